@@ -24,6 +24,10 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * Error Page Handling Service which facilitates the resolution of errors against authorable pages for discrete content trees.
  *
@@ -78,6 +82,21 @@ public interface ErrorPageHandlerService {
      */
     public void doHandle404(SlingHttpServletRequest request, SlingHttpServletResponse response);
 
+    /**
+     * Records the 404 against the requesting client and content root and, if either is producing 404s at an
+     * abnormal rate, writes a minimal pre-rendered 404 body to the response.
+     *
+     * Intended to be called before any other 404 handling; when it returns true no further handling
+     * (authentication, error page look up or inclusion) should occur.
+     *
+     * @param request
+     * @param response
+     * @return true if the degraded 404 body was written to the response
+     * @throws IOException
+     */
+    public boolean doHandle404Storm(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws IOException;
+
     /**
      * Returns the Exception Message (Stacktrace) from the Request
      *
@@ -94,6 +113,25 @@ public interface ErrorPageHandlerService {
      */
     public String getRequestProgress(SlingHttpServletRequest request);
 
+    /**
+     * Writes the Exception Message (Stacktrace) from the Request to the writer, bounded by the configured frame
+     * and cause depth limits.
+     *
+     * @param request
+     * @param writer
+     * @throws IOException
+     */
+    public void writeException(SlingHttpServletRequest request, Writer writer) throws IOException;
+
+    /**
+     * Writes the RequestProgress trace to the writer, bounded by the configured message limit.
+     *
+     * @param request
+     * @param writer
+     * @throws IOException
+     */
+    public void writeRequestProgress(SlingHttpServletRequest request, Writer writer) throws IOException;
+
     /**
      * Reset response attributes to support printing out a new page (rather than one that potentially errored out).
      * This includes clearing clientlib inclusion state, and resetting the response.
@@ -104,4 +142,20 @@ public interface ErrorPageHandlerService {
      * @param statusCode
      */
     public void resetRequestAndResponse(SlingHttpServletRequest request, SlingHttpServletResponse response, int statusCode);
+
+    /**
+     * Include the error page into the response with the provided status code.
+     *
+     * If the rendered error page cache is enabled, anonymous requests are served the cached bytes of the previously
+     * rendered error page (keyed by error page path, extension and WCM mode) rather than re-rendering it.
+     *
+     * @param request
+     * @param response
+     * @param errorPagePath the error page path, including extension, as returned by findErrorPage(..)
+     * @param statusCode
+     * @throws ServletException
+     * @throws IOException
+     */
+    public void includeErrorPage(SlingHttpServletRequest request, SlingHttpServletResponse response,
+                                 String errorPagePath, int statusCode) throws ServletException, IOException;
 }
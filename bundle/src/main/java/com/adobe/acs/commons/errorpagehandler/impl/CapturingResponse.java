@@ -0,0 +1,100 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
+
+import javax.servlet.ServletOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Response wrapper that captures the output of an include, written via either the writer or the output stream,
+ * so it can be replayed as bytes.
+ */
+public class CapturingResponse extends SlingHttpServletResponseWrapper {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    private final CharArrayWriter chars = new CharArrayWriter();
+
+    private PrintWriter printWriter;
+
+    private ServletOutputStream outputStream;
+
+    public CapturingResponse(final SlingHttpServletResponse slingHttpServletResponse) {
+        super(slingHttpServletResponse);
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        if (this.printWriter == null) {
+            this.printWriter = new PrintWriter(this.chars);
+        }
+        return this.printWriter;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (this.outputStream == null) {
+            this.outputStream = new ServletOutputStream() {
+                @Override
+                public void write(final int b) {
+                    bytes.write(b);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) {
+                    bytes.write(b, off, len);
+                }
+            };
+        }
+        return this.outputStream;
+    }
+
+    @Override
+    public void flushBuffer() {
+        // Nothing is sent to the client until the captured output is replayed
+    }
+
+    @Override
+    public void resetBuffer() {
+        this.bytes.reset();
+        this.chars.reset();
+    }
+
+    /**
+     * Gets the captured output encoded using the response's character encoding.
+     *
+     * @return the captured bytes
+     * @throws IOException
+     */
+    public byte[] toByteArray() throws IOException {
+        if (this.printWriter != null) {
+            this.printWriter.flush();
+            this.bytes.write(new String(this.chars.toCharArray()).getBytes(this.getCharacterEncoding()));
+            this.chars.reset();
+        }
+
+        return this.bytes.toByteArray();
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, time limited cache of rendered error pages.
+ *
+ * Entries are keyed by the error page path (including extension) and WCM mode, and are invalidated via JCR
+ * observation when the error page, or the template it was created from, changes. Any change beneath /apps or /libs
+ * clears the cache, as the components and client libraries there render every error page. Changes the error page
+ * merely inherits, ex. from its parent pages, are not observed; entries expire after the TTL instead.
+ *
+ * Once full, the least recently used entry is evicted. Pages rendered while an invalidation occurred are not
+ * cached, as they may have been rendered from the content prior to the change.
+ */
+public final class ErrorPageCache implements EventListener {
+    private static final Logger log = LoggerFactory.getLogger(ErrorPageCache.class);
+
+    private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED
+            | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+    /* Changes beneath these paths may affect the rendering of any error page */
+    private static final String[] CODE_PATHS = { "/apps", "/libs" };
+
+    /* Guarded by this; access ordered, so the eldest entry is the least recently used */
+    private final LinkedHashMap<String, CachedEntry> entries;
+
+    private final int maxEntries;
+
+    private final long ttl;
+
+    /* Guarded by this; incremented by each invalidation */
+    private long generation = 0;
+
+    private final int maxEntrySize;
+
+    private ObservationManager observationManager;
+
+    /**
+     * @param maxEntries maximum number of rendered error pages to hold
+     * @param maxEntrySize maximum size, in bytes, of a single rendered error page
+     * @param ttl time in milliseconds a rendered error page is held for
+     */
+    public ErrorPageCache(final int maxEntries, final int maxEntrySize, final long ttl) {
+        this.maxEntries = maxEntries;
+        this.maxEntrySize = maxEntrySize;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, CachedEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedEntry> eldest) {
+                return this.size() > ErrorPageCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Starts observing the repository for changes to cached error pages and their templates.
+     *
+     * @param observationManager the observation manager to register with
+     * @param observedPaths the repository trees holding error pages and templates
+     * @throws RepositoryException
+     */
+    public synchronized void open(final ObservationManager observationManager, final String[] observedPaths)
+            throws RepositoryException {
+        this.observationManager = observationManager;
+
+        for (final String observedPath : observedPaths) {
+            if (StringUtils.isBlank(observedPath)) { continue; }
+
+            observationManager.addEventListener(this, EVENT_TYPES, StringUtils.strip(observedPath), true,
+                    null, null, false);
+        }
+    }
+
+    /**
+     * Stops observing the repository and clears the cache.
+     */
+    public synchronized void close() {
+        if (this.observationManager != null) {
+            try {
+                this.observationManager.removeEventListener(this);
+            } catch (RepositoryException ex) {
+                log.warn("Could not remove error page cache observation listener: {}", ex.getMessage());
+            }
+            this.observationManager = null;
+        }
+
+        this.clear();
+    }
+
+    /**
+     * Builds the cache key for a rendered error page.
+     *
+     * @param errorPagePath the error page path including its extension
+     * @param wcmMode the WCM mode the error page was rendered in
+     * @return the cache key
+     */
+    public static String toKey(final String errorPagePath, final String wcmMode) {
+        return errorPagePath + "|" + wcmMode;
+    }
+
+    /**
+     * @param key the cache key
+     * @return the cached rendered error page, or null if not cached or expired
+     */
+    public synchronized Entry get(final String key) {
+        final CachedEntry cached = this.entries.get(key);
+
+        if (cached == null) {
+            return null;
+        } else if (cached.expires <= System.currentTimeMillis()) {
+            this.entries.remove(key);
+            return null;
+        }
+
+        return cached.entry;
+    }
+
+    /**
+     * Gets the current generation of the cache, to be obtained before rendering an error page to cache.
+     *
+     * @return the current generation
+     * @see #put(String, Entry, long)
+     */
+    public synchronized long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * Caches a rendered error page, evicting the least recently used error page if the cache is full.
+     *
+     * The rendered page is not cached if it is too large, or if the cache was invalidated since the provided
+     * generation, as the page may then have been rendered from stale content.
+     *
+     * @param key the cache key
+     * @param entry the rendered error page
+     * @param generation the generation obtained via {@link #getGeneration()} before rendering the error page
+     */
+    public synchronized void put(final String key, final Entry entry, final long generation) {
+        if (entry.getBytes().length > this.maxEntrySize) {
+            log.debug("Not caching error page [ {} ]; exceeds maximum entry size", key);
+        } else if (generation != this.generation) {
+            log.debug("Not caching error page [ {} ]; invalidated while rendering", key);
+        } else if (this.maxEntries > 0) {
+            this.entries.put(key, new CachedEntry(entry, System.currentTimeMillis() + this.ttl));
+        }
+    }
+
+    /**
+     * Removes all cached error pages whose page or template lives at, above or beneath the provided path; or all
+     * cached error pages if the path is beneath /apps or /libs.
+     *
+     * @param path the changed path
+     */
+    public synchronized void invalidate(final String path) {
+        for (final String codePath : CODE_PATHS) {
+            if (ErrorPageIndex.isSelfOrDescendant(path, codePath)) {
+                log.debug("Clearing cached error pages due to change at [ {} ]", path);
+                this.clear();
+                return;
+            }
+        }
+
+        this.generation++;
+
+        final Iterator<CachedEntry> iterator = this.entries.values().iterator();
+
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next().entry;
+
+            if (intersects(path, entry.getPagePath()) || intersects(path, entry.getTemplatePath())) {
+                iterator.remove();
+                log.debug("Invalidated cached error page [ {} ] due to change at [ {} ]", entry.getPagePath(), path);
+            }
+        }
+    }
+
+    private static boolean intersects(final String path, final String cachedPath) {
+        return cachedPath != null
+                && (ErrorPageIndex.isSelfOrDescendant(path, cachedPath)
+                || ErrorPageIndex.isSelfOrDescendant(cachedPath, path));
+    }
+
+    /**
+     * @return the number of cached error pages
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    private synchronized void clear() {
+        this.generation++;
+        this.entries.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onEvent(final EventIterator events) {
+        while (events.hasNext()) {
+            try {
+                this.invalidate(events.nextEvent().getPath());
+            } catch (RepositoryException ex) {
+                log.warn("Could not process error page cache event; clearing cache: {}", ex.getMessage());
+                this.clear();
+            }
+        }
+    }
+
+    private static final class CachedEntry {
+        private final Entry entry;
+
+        private final long expires;
+
+        private CachedEntry(final Entry entry, final long expires) {
+            this.entry = entry;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A rendered error page.
+     */
+    public static final class Entry {
+        private final String pagePath;
+
+        private final String templatePath;
+
+        private final String contentType;
+
+        private final String characterEncoding;
+
+        private final byte[] bytes;
+
+        /**
+         * @param pagePath the path of the rendered error page
+         * @param templatePath the path of the template the error page was created from, or null
+         * @param contentType the content type of the rendered error page
+         * @param characterEncoding the character encoding of the rendered error page
+         * @param bytes the rendered error page
+         */
+        public Entry(final String pagePath, final String templatePath, final String contentType,
+                     final String characterEncoding, final byte[] bytes) {
+            this.pagePath = pagePath;
+            this.templatePath = templatePath;
+            this.contentType = contentType;
+            this.characterEncoding = characterEncoding;
+            this.bytes = bytes;
+        }
+
+        public String getPagePath() {
+            return this.pagePath;
+        }
+
+        public String getTemplatePath() {
+            return this.templatePath;
+        }
+
+        public String getContentType() {
+            return this.contentType;
+        }
+
+        public String getCharacterEncoding() {
+            return this.characterEncoding;
+        }
+
+        public byte[] getBytes() {
+            return this.bytes;
+        }
+    }
+}
@@ -31,22 +31,26 @@ import com.day.cq.search.eval.TypePredicateEvaluator;
 import com.day.cq.search.result.Hit;
 import com.day.cq.search.result.SearchResult;
 import com.day.cq.wcm.api.NameConstants;
+import com.day.cq.wcm.api.WCMMode;
 import org.apache.commons.collections.IteratorUtils;
-import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.CharEncoding;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.*;
 import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
-import org.apache.sling.api.request.RequestProgressTracker;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.auth.core.AuthUtil;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.commons.auth.Authenticator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,11 +58,21 @@ import org.slf4j.LoggerFactory;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
 import javax.servlet.ServletException;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Component(label = "ACS AEM Commons - Error Page Handler",
             description = "Error Page Handling module which facilitates the resolution of errors against authorable pages for discrete content trees.",
@@ -111,9 +125,195 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
     cardinality = Integer.MAX_VALUE)
     private static final String PROP_SEARCH_PATHS = "prop.paths";
 
+    /* Error Page Index */
+    private static final boolean DEFAULT_INDEX_ENABLED = true;
+    private boolean indexEnabled = DEFAULT_INDEX_ENABLED;
+    @Property(label = "Error page index",
+    description = "Maintain an in-memory index of error pages, kept current via JCR observation, instead of querying for error pages on every error. [Optional] [Default: true]",
+    boolValue = DEFAULT_INDEX_ENABLED)
+    private static final String PROP_INDEX_ENABLED = "prop.index.enabled";
+
+    /* Error Page Index Observed Paths */
+    private static final String[] DEFAULT_INDEX_OBSERVED_PATHS = {"/content"};
+    private String[] indexObservedPaths = DEFAULT_INDEX_OBSERVED_PATHS;
+    @Property(label = "Error page index observed paths",
+    description = "Repository trees observed for changes to error pages and content roots defining ./errorPages. Should include all content trees and error page paths. [Optional] [Default: /content]",
+    cardinality = Integer.MAX_VALUE,
+    value = {"/content"})
+    private static final String PROP_INDEX_OBSERVED_PATHS = "prop.index.observed-paths";
+
+    /* Error Page Index Warm-up Wait */
+    private static final int DEFAULT_INDEX_WARM_UP_WAIT = 5000;
+    private int indexWarmUpWait = DEFAULT_INDEX_WARM_UP_WAIT;
+    @Property(label = "Error page index warm-up wait",
+    description = "The error page index is built in the background on activation. Time in milliseconds errors wait for the index to finish building before falling back to queries. 0 never waits. [Optional] [Default: 5000]",
+    intValue = DEFAULT_INDEX_WARM_UP_WAIT)
+    private static final String PROP_INDEX_WARM_UP_WAIT = "prop.index.warm-up-wait";
+
+    /* Error Page Fallback Chains */
+    private FallbackChains fallbackChains = FallbackChains.NONE;
+    @Property(label = "Error page fallback chains",
+    description = "Error page names to try, in order, when no error page named after the status code exists; the content root's errors page remains the final fallback. Format: <status or status class>=<page name>,<page name> (ex. 404=4xx or 5xx=5xx,500) [Optional]",
+    cardinality = Integer.MAX_VALUE)
+    private static final String PROP_FALLBACK_CHAINS = "prop.fallback-chains";
+
+    private static final String INDEX_WARM_UP_THREAD_NAME = "ACS AEM Commons - Error Page Index Warm-up";
+
+    /* Rendered Error Page Cache */
+    private static final boolean DEFAULT_CACHE_ENABLED = false;
+    private boolean cacheEnabled = DEFAULT_CACHE_ENABLED;
+    @Property(label = "Error page cache",
+    description = "Cache the rendered bytes of error pages served to anonymous requests. Cached pages are invalidated when the error page or its template changes, cleared when anything beneath /apps or /libs changes, and otherwise expire after the TTL. [Optional] [Default: false]",
+    boolValue = DEFAULT_CACHE_ENABLED)
+    private static final String PROP_CACHE_ENABLED = "prop.cache.enabled";
+
+    /* Rendered Error Page Cache Max Entries */
+    private static final int DEFAULT_CACHE_MAX_ENTRIES = 100;
+    private int cacheMaxEntries = DEFAULT_CACHE_MAX_ENTRIES;
+    @Property(label = "Error page cache size",
+    description = "Maximum number of rendered error pages (per error page path, extension and WCM mode) to cache; the least recently used is evicted once full. [Optional] [Default: 100]",
+    intValue = DEFAULT_CACHE_MAX_ENTRIES)
+    private static final String PROP_CACHE_MAX_ENTRIES = "prop.cache.max-entries";
+
+    /* Rendered Error Page Cache Max Entry Size */
+    private static final int DEFAULT_CACHE_MAX_ENTRY_SIZE = 1024 * 1024;
+    private int cacheMaxEntrySize = DEFAULT_CACHE_MAX_ENTRY_SIZE;
+    @Property(label = "Error page cache entry size",
+    description = "Maximum size in bytes of a rendered error page to cache. [Optional] [Default: 1048576]",
+    intValue = DEFAULT_CACHE_MAX_ENTRY_SIZE)
+    private static final String PROP_CACHE_MAX_ENTRY_SIZE = "prop.cache.max-entry-size";
+
+    /* Rendered Error Page Cache TTL */
+    private static final int DEFAULT_CACHE_TTL = 300;
+    private int cacheTtl = DEFAULT_CACHE_TTL;
+    @Property(label = "Error page cache TTL",
+    description = "Time in seconds a rendered error page is cached for. Bounds how long changes the error page inherits, ex. from its parent pages, take to show. [Optional] [Default: 300]",
+    intValue = DEFAULT_CACHE_TTL)
+    private static final String PROP_CACHE_TTL = "prop.cache.ttl";
+
+    /* Rendered Error Page Cache Observed Paths */
+    private static final String[] DEFAULT_CACHE_OBSERVED_PATHS = {"/content", "/apps"};
+    private String[] cacheObservedPaths = DEFAULT_CACHE_OBSERVED_PATHS;
+    @Property(label = "Error page cache observed paths",
+    description = "Repository trees observed for changes to cached error pages and their templates. Changes beneath /apps or /libs clear the whole cache, as they may affect any error page. [Optional] [Default: /content, /apps]",
+    cardinality = Integer.MAX_VALUE,
+    value = {"/content", "/apps"})
+    private static final String PROP_CACHE_OBSERVED_PATHS = "prop.cache.observed-paths";
+
+    /* Existing Ancestor Cache */
+    private static final boolean DEFAULT_ANCESTOR_CACHE_ENABLED = true;
+    private boolean ancestorCacheEnabled = DEFAULT_ANCESTOR_CACHE_ENABLED;
+    @Property(label = "Existing ancestor cache",
+    description = "Cache the nearest existing ancestor of non-existing paths requested anonymously, avoiding repeated repository walks for deep non-existing paths (ex. vulnerability scans). Only paths beneath the error page index observed paths are cached. [Optional] [Default: true]",
+    boolValue = DEFAULT_ANCESTOR_CACHE_ENABLED)
+    private static final String PROP_ANCESTOR_CACHE_ENABLED = "prop.ancestor-cache.enabled";
+
+    /* Existing Ancestor Cache Max Entries */
+    private static final int DEFAULT_ANCESTOR_CACHE_MAX_ENTRIES = 1000;
+    private int ancestorCacheMaxEntries = DEFAULT_ANCESTOR_CACHE_MAX_ENTRIES;
+    @Property(label = "Existing ancestor cache size",
+    description = "Maximum number of non-existing path prefixes to cache; the least recently used is evicted once full. [Optional] [Default: 1000]",
+    intValue = DEFAULT_ANCESTOR_CACHE_MAX_ENTRIES)
+    private static final String PROP_ANCESTOR_CACHE_MAX_ENTRIES = "prop.ancestor-cache.max-entries";
+
+    /* Existing Ancestor Cache TTL */
+    private static final int DEFAULT_ANCESTOR_CACHE_TTL = 300;
+    private int ancestorCacheTtl = DEFAULT_ANCESTOR_CACHE_TTL;
+    @Property(label = "Existing ancestor cache TTL",
+    description = "Time in seconds a non-existing path prefix is cached for. [Optional] [Default: 300]",
+    intValue = DEFAULT_ANCESTOR_CACHE_TTL)
+    private static final String PROP_ANCESTOR_CACHE_TTL = "prop.ancestor-cache.ttl";
+
+    /* 404 Storm Protection */
+    private static final boolean DEFAULT_STORM_ENABLED = false;
+    private boolean stormEnabled = DEFAULT_STORM_ENABLED;
+    @Property(label = "404 storm protection",
+    description = "Serve a minimal pre-rendered 404 body, without authentication, queries or page includes, to clients and content roots producing 404s at an abnormal rate. [Optional] [Default: false]",
+    boolValue = DEFAULT_STORM_ENABLED)
+    private static final String PROP_STORM_ENABLED = "prop.storm.enabled";
+
+    /* 404 Storm Protection Window */
+    private static final int DEFAULT_STORM_WINDOW = 60;
+    private int stormWindow = DEFAULT_STORM_WINDOW;
+    @Property(label = "404 storm window",
+    description = "Length in seconds of the sliding window 404s are counted over. [Optional] [Default: 60]",
+    intValue = DEFAULT_STORM_WINDOW)
+    private static final String PROP_STORM_WINDOW = "prop.storm.window";
+
+    /* 404 Storm Protection Client Threshold */
+    private static final int DEFAULT_STORM_CLIENT_THRESHOLD = 300;
+    private int stormClientThreshold = DEFAULT_STORM_CLIENT_THRESHOLD;
+    @Property(label = "404 storm client threshold",
+    description = "Number of 404s a single client may cause per window before being served degraded 404s. 0 disables. [Optional] [Default: 300]",
+    intValue = DEFAULT_STORM_CLIENT_THRESHOLD)
+    private static final String PROP_STORM_CLIENT_THRESHOLD = "prop.storm.client-threshold";
+
+    /* 404 Storm Protection Content Root Threshold */
+    private static final int DEFAULT_STORM_CONTENT_ROOT_THRESHOLD = 3000;
+    private int stormContentRootThreshold = DEFAULT_STORM_CONTENT_ROOT_THRESHOLD;
+    @Property(label = "404 storm content root threshold",
+    description = "Number of 404s a single content root may serve per window before serving degraded 404s. 0 disables. [Optional] [Default: 3000]",
+    intValue = DEFAULT_STORM_CONTENT_ROOT_THRESHOLD)
+    private static final String PROP_STORM_CONTENT_ROOT_THRESHOLD = "prop.storm.content-root-threshold";
+
+    /* 404 Storm Protection Client Header */
+    private static final String DEFAULT_STORM_CLIENT_HEADER = "";
+    private String stormClientHeader = DEFAULT_STORM_CLIENT_HEADER;
+    @Property(label = "404 storm client header",
+    description = "Request header identifying the originating client (ex. X-Forwarded-For). If blank, the remote address is used. [Optional] [Default: none]",
+    value = DEFAULT_STORM_CLIENT_HEADER)
+    private static final String PROP_STORM_CLIENT_HEADER = "prop.storm.client-header";
+
+    /* 404 Storm Protection Trusted Proxies */
+    private static final int DEFAULT_STORM_TRUSTED_PROXIES = 1;
+    private int stormTrustedProxies = DEFAULT_STORM_TRUSTED_PROXIES;
+    @Property(label = "404 storm trusted proxies",
+    description = "Number of trusted proxies (ex. load balancer, dispatcher) appending to the comma delimited client header. The client is the address appended by the outermost trusted proxy, counting from the right; addresses left of it are set by the client itself and can be forged. [Optional] [Default: 1]",
+    intValue = DEFAULT_STORM_TRUSTED_PROXIES)
+    private static final String PROP_STORM_TRUSTED_PROXIES = "prop.storm.trusted-proxies";
+
+    /* 404 Storm Protection Body */
+    private static final String DEFAULT_STORM_BODY = "<html><head><title>Not Found</title></head><body><h1>Not Found</h1></body></html>";
+    private byte[] stormBody;
+    @Property(label = "404 storm body",
+    description = "HTML body served as the degraded 404 response. [Optional] [Default: minimal Not Found HTML]",
+    value = DEFAULT_STORM_BODY)
+    private static final String PROP_STORM_BODY = "prop.storm.body";
+
+    private static final String STORM_CONTENT_TYPE = "text/html";
+
+    /* Error Message Max Frames */
+    private static final int DEFAULT_ERROR_MESSAGE_MAX_FRAMES = 100;
+    private int errorMessageMaxFrames = DEFAULT_ERROR_MESSAGE_MAX_FRAMES;
+    @Property(label = "Error message frames",
+    description = "Maximum number of stack frames displayed per exception in the preview mode error message. [Optional] [Default: 100]",
+    intValue = DEFAULT_ERROR_MESSAGE_MAX_FRAMES)
+    private static final String PROP_ERROR_MESSAGE_MAX_FRAMES = "prop.error-message.max-frames";
+
+    /* Error Message Max Depth */
+    private static final int DEFAULT_ERROR_MESSAGE_MAX_DEPTH = 10;
+    private int errorMessageMaxDepth = DEFAULT_ERROR_MESSAGE_MAX_DEPTH;
+    @Property(label = "Error message depth",
+    description = "Maximum number of causes displayed per exception in the preview mode error message. [Optional] [Default: 10]",
+    intValue = DEFAULT_ERROR_MESSAGE_MAX_DEPTH)
+    private static final String PROP_ERROR_MESSAGE_MAX_DEPTH = "prop.error-message.max-depth";
+
+    /* Request Progress Max Messages */
+    private static final int DEFAULT_REQUEST_PROGRESS_MAX_MESSAGES = 1000;
+    private int requestProgressMaxMessages = DEFAULT_REQUEST_PROGRESS_MAX_MESSAGES;
+    @Property(label = "Request progress messages",
+    description = "Maximum number of request progress messages displayed in the preview mode error message. [Optional] [Default: 1000]",
+    intValue = DEFAULT_REQUEST_PROGRESS_MAX_MESSAGES)
+    private static final String PROP_REQUEST_PROGRESS_MAX_MESSAGES = "prop.request-progress.max-messages";
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
     @Reference
     private QueryBuilder queryBuilder;
 
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
     @Reference
     private Authenticator authenticator;
 
@@ -122,6 +322,22 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
 
     private SortedMap<String, String> pathMap = new TreeMap<String, String>();
 
+    private ResourceResolver observationResourceResolver = null;
+
+    private volatile ErrorPageIndex errorPageIndex = null;
+
+    private volatile FutureTask<ErrorPageIndex.Snapshot> indexWarmUp = null;
+
+    private volatile ErrorPageCache errorPageCache = null;
+
+    private volatile ExistingAncestorCache existingAncestorCache = null;
+
+    private volatile StormProtection stormProtection = null;
+
+    private ServiceRegistration mbeanRegistration = null;
+
+    private final ErrorPageMetrics metrics = new ErrorPageMetrics();
+
     /**
      * Find the JCR full path to the most appropriate Error Page
      *
@@ -133,34 +349,71 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
     public String findErrorPage(SlingHttpServletRequest request, Resource errorResource) {
         if (!isEnabled()) { return null; }
 
+        final long start = System.nanoTime();
+        long queryNanos = 0;
+
         Resource page = null;
         final ResourceResolver resourceResolver = errorResource.getResourceResolver();
 
-        final boolean isError = this.getStatusCode(request) >= SlingHttpServletResponse.SC_INTERNAL_SERVER_ERROR;
-
-        // Get error page name to look for based on the error code/name
-        final String pageName = getErrorPageName(request);
+        final int statusCode = this.getStatusCode(request);
+        final boolean isError = statusCode >= SlingHttpServletResponse.SC_INTERNAL_SERVER_ERROR;
 
         // Try to find the closest real parent for the requested resource
-        final Resource parent = findFirstRealParentOrSelf(errorResource);
+        final Resource parent = findFirstRealParentOrSelf(errorResource, isAnonymousRequest(request));
+
+        // Use the error page index when available; otherwise fall back to querying the repository
+        final ErrorPageIndex.Snapshot snapshot = this.getIndexSnapshot(true);
 
-        final SortedMap<String, String> errorPagesMap = getErrorPagesMap(resourceResolver);
+        long queryStart = System.nanoTime();
+        final SortedMap<String, String> errorPagesMap = snapshot != null
+                ? snapshot.getErrorPagesMap() : getErrorPagesMap(resourceResolver);
+        queryNanos += System.nanoTime() - queryStart;
 
         if (!errorPagesMap.isEmpty()) {
             // Get the best-matching Errors Path for this particular Request
-            final String errorsPath = this.getErrorPagesPath(parent, errorPagesMap);
+            final String errorsPath = snapshot != null
+                    ? this.getErrorPagesPath(parent, snapshot.getErrorPagesTrie())
+                    : this.getErrorPagesPath(parent, errorPagesMap);
 
             if(StringUtils.isNotBlank(errorsPath)) {
                 log.debug("Best matching errors path for request is: {}", errorsPath);
 
-                // Search for CQ Page for specific servlet named Page (404, 500, Throwable, etc.)
-                SearchResult result = executeQuery(resourceResolver, pageName);
-                List<String> errorPaths = filterResults(errorsPath, result);
+                if (snapshot != null) {
+                    // Look up the CQ Page named after the exception type or one of its superclasses
+                    // (NullPointerException, RuntimeException, Throwable, etc.)
+                    final Object exceptionType = request.getAttribute(SlingConstants.ERROR_EXCEPTION_TYPE);
 
-                // Return the first existing match
-                for (String errorPath : errorPaths) {
-                    page = getResource(resourceResolver, errorPath);
-                    if(page != null) { break; }
+                    if (exceptionType instanceof Class) {
+                        queryStart = System.nanoTime();
+                        final String errorPath = snapshot.getExceptionErrorPage(errorsPath, (Class<?>) exceptionType);
+                        queryNanos += System.nanoTime() - queryStart;
+
+                        if (errorPath != null) {
+                            page = getResource(resourceResolver, errorPath);
+                        }
+                    }
+
+                    // Look up the CQ Page for the status code, following its fallback chain (404, 4xx, etc.)
+                    if (page == null) {
+                        queryStart = System.nanoTime();
+                        final String errorPath = snapshot.getStatusErrorPage(errorsPath, statusCode);
+                        queryNanos += System.nanoTime() - queryStart;
+
+                        if (errorPath != null) {
+                            page = getResource(resourceResolver, errorPath);
+                        }
+                    }
+                } else {
+                    // Search for CQ Pages for the status code and its fallback chain (404, 4xx, etc.)
+                    final String[] pageNames = this.fallbackChains.getPageNames(statusCode);
+
+                    queryStart = System.nanoTime();
+                    SearchResult result = executeQuery(resourceResolver, pageNames);
+                    List<String> errorPaths = filterResults(errorsPath, result);
+                    queryNanos += System.nanoTime() - queryStart;
+
+                    // Return the first existing match, in fallback chain order
+                    page = getFirstErrorPage(resourceResolver, errorPaths, pageNames);
                 }
 
                 // No error-specific page could be found, use the "default" error page
@@ -171,20 +424,26 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
             }
         }
 
+        String errorPage = null;
+        boolean authored = false;
+
         if (page == null || ResourceUtil.isNonExistingResource(page)) {
             // If no error page could be found
             if (this.hasSystemErrorPage()) {
-                final String errorPage = applyExtension(this.getSystemErrorPagePath());
+                errorPage = applyExtension(this.getSystemErrorPagePath());
                 log.debug("Using default error page: {}", errorPage);
-                return StringUtils.stripToNull(errorPage);
             }
         } else {
-            final String errorPage = applyExtension(page.getPath());
+            errorPage = applyExtension(page.getPath());
+            authored = true;
             log.debug("Using resolved error page: {}", errorPage);
-            return StringUtils.stripToNull(errorPage);
         }
 
-        return null;
+        errorPage = StringUtils.stripToNull(errorPage);
+        this.metrics.record(statusCode, authored, !authored && errorPage != null, queryNanos,
+                System.nanoTime() - start);
+
+        return errorPage;
     }
 
 
@@ -216,6 +475,27 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         return query.getResult();
     }
 
+    /**
+     * Gets the first existing error page, in page name order, from the candidate error page paths.
+     *
+     * @param resourceResolver
+     * @param errorPaths candidate error page paths
+     * @param pageNames the (lowercase) error page names, in order of preference
+     * @return the first existing error page, or null
+     */
+    private Resource getFirstErrorPage(ResourceResolver resourceResolver, List<String> errorPaths, String[] pageNames) {
+        for (String pageName : pageNames) {
+            for (String errorPath : errorPaths) {
+                if (!StringUtils.equalsIgnoreCase(pageName, ResourceUtil.getName(errorPath))) { continue; }
+
+                final Resource page = getResource(resourceResolver, errorPath);
+                if (page != null) { return page; }
+            }
+        }
+
+        return null;
+    }
+
     /**
      * Gets the resource object for the provided path.
      *
@@ -298,25 +578,10 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         // Set the servlet name ot find to statusCode; update later if needed
         String servletName = String.valueOf(getStatusCode(request));
 
-        // Only support Status codes as error exception lookup scheme is too complex/expensive at this time.
-        // Using the 500 response code/default error page should suffice for all errors pages generated from exceptions.
-
-        /*
-        final Object tmp = request.getAttribute(SlingConstants.ERROR_EXCEPTION_TYPE);
-
-        if(tmp != null && tmp instanceof Class) {
-            final Class clazz = (Class) tmp;
-
-            final String exceptionName = clazz.getSimpleName();
-            log.debug("Servlet path used to derived exception name: {} ", exceptionName);
-
-            if(StringUtils.isNotBlank(exceptionName)) {
-                servletName = exceptionName;
-            }
-        }
-
-        if(StringUtils.isBlank(servletName)) { servletName = this.fallbackErrorName; }
-        */
+        // Exception type error pages (named after the exception's simple name or one of its superclasses) are
+        // resolved in findErrorPage(..) against the error page index, ahead of the status code error page.
+        // Without the index only status code error pages are supported, as querying per exception type is too
+        // expensive.
 
         servletName = StringUtils.lowerCase(servletName);
 
@@ -359,6 +624,43 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         return mergeMaps(authoredMap, this.pathMap);
     }
 
+    /**
+     * Gets the current state of the error page index.
+     *
+     * While the index is warming up, callers may wait (up to the configured warm-up wait) on the single in-flight
+     * build, rather than each querying the repository.
+     *
+     * @param awaitWarmUp true to wait for the index to finish warming up
+     * @return the index snapshot, or null if the index is disabled or unavailable
+     */
+    private ErrorPageIndex.Snapshot getIndexSnapshot(boolean awaitWarmUp) {
+        final ErrorPageIndex index = this.errorPageIndex;
+        if (index == null) {
+            return null;
+        }
+
+        final ErrorPageIndex.Snapshot snapshot = index.getSnapshot();
+        final FutureTask<ErrorPageIndex.Snapshot> warmUp = this.indexWarmUp;
+
+        if (snapshot != null || !awaitWarmUp || warmUp == null || warmUp.isDone() || this.indexWarmUpWait <= 0) {
+            return snapshot;
+        }
+
+        try {
+            return warmUp.get(this.indexWarmUpWait, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            log.debug("Error page index is still warming up; falling back to queries");
+        } catch (ExecutionException ex) {
+            log.debug("Error page index failed to warm up; falling back to queries");
+        } catch (CancellationException ex) {
+            log.debug("Error page index warm-up was cancelled; falling back to queries");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        return null;
+    }
+
     /** OSGi Component Property Getters/Setters **/
 
     /**
@@ -397,15 +699,6 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         return StringUtils.stripToEmpty(this.errorPageExtension);
     }
 
-    /**
-     * Get the sorted Search Paths
-     *
-     * @return
-     */
-    private List<String> getRootPaths(Map<String, String> errorPagesMap) {
-        return Arrays.asList(errorPagesMap.keySet().toArray(new String[errorPagesMap.size()]));
-    }
-
     /**
      * Gets the Error Pages Path for the provided content root path
      *
@@ -432,7 +725,7 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         final String path = resource.getPath();
         final ResourceResolver resourceResolver = resource.getResourceResolver();
 
-        for(final String rootPath : this.getRootPaths(errorPagesMap)) {
+        for(final String rootPath : errorPagesMap.keySet()) {
             if(StringUtils.equals(path, rootPath) ||
                     StringUtils.startsWith(path, rootPath.concat("/"))) {
 
@@ -447,13 +740,39 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         return null;
     }
 
+    /**
+     * Find the Error page search path that best contains the provided resource, walking from the deepest
+     * matching content root up through its matching ancestors.
+     *
+     * @param resource
+     * @param errorPagesTrie
+     * @return
+     */
+    private String getErrorPagesPath(Resource resource, PathTrie<String> errorPagesTrie) {
+        final ResourceResolver resourceResolver = resource.getResourceResolver();
+
+        PathTrie.Match<String> match = errorPagesTrie.findDeepest(resource.getPath());
+
+        while (match != null) {
+            final Resource errorPageResource = getResource(resourceResolver, match.getValue());
+            if (errorPageResource != null) {
+                return errorPageResource.getPath();
+            }
+
+            match = match.getNext();
+        }
+
+        return null;
+    }
+
     /**
      * Given the Request path, find the first Real Parent of the Request (even if the resource doesnt exist)
      *
      * @param resource
+     * @param cacheable true if the lookup may be served from, and recorded in, the existing ancestor cache
      * @return
      */
-    private Resource findFirstRealParentOrSelf(Resource resource) {
+    private Resource findFirstRealParentOrSelf(Resource resource, boolean cacheable) {
         if(resource == null) {
             return null;
         } else if(!ResourceUtil.isNonExistingResource(resource)) {
@@ -464,19 +783,35 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         if (parent != null) { return parent; }
 
         final ResourceResolver resourceResolver = resource.getResourceResolver();
-        final String path = resource.getPath();
-        final PathInfo pathInfo = new PathInfo(path);
-        String[] parts = StringUtils.split(pathInfo.getResourcePath(), '/');
+        final String path = new PathInfo(resource.getPath()).getResourcePath();
+        final ExistingAncestorCache cache = cacheable ? this.existingAncestorCache : null;
+
+        if (cache != null) {
+            final String ancestorPath = cache.get(path);
+
+            if (ancestorPath != null) {
+                final Resource ancestor = resourceResolver.getResource(ancestorPath);
+                if (ancestor != null) { return ancestor; }
+            }
+        }
 
-        for (int i = parts.length - 1; i >= 0; i--) {
-            String[] tmpArray = (String[]) ArrayUtils.subarray(parts, 0, i);
-            String tmpStr = "/".concat(StringUtils.join(tmpArray, '/'));
+        // Walk up the path; end is the index of the '/' terminating the ancestor being checked
+        int end = path.lastIndexOf('/');
 
+        while (end >= 0) {
+            final String tmpStr = end == 0 ? "/" : path.substring(0, end);
             final Resource tmpResource = resourceResolver.getResource(tmpStr);
 
             if (tmpResource != null) {
+                if (cache != null) {
+                    final int prefixEnd = path.indexOf('/', end + 1);
+                    cache.put(prefixEnd < 0 ? path : path.substring(0, prefixEnd), tmpStr);
+                }
+
                 return tmpResource;
             }
+
+            end = path.lastIndexOf('/', end - 1);
         }
 
         return null;
@@ -575,30 +910,116 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
      */
     @Override
     public String getException(SlingHttpServletRequest request) {
-        StringWriter stringWriter = new StringWriter();
-        if (request.getAttribute(SlingConstants.ERROR_EXCEPTION) instanceof Throwable) {
-            Throwable throwable = (Throwable) request.getAttribute(SlingConstants.ERROR_EXCEPTION);
+        final StringWriter stringWriter = new StringWriter();
 
-            if (throwable == null) {
-                return "";
-            }
+        try {
+            writeException(request, stringWriter);
+        } catch (IOException ex) {
+            // StringWriters do not throw IOExceptions
+        }
 
-            if (throwable instanceof ServletException) {
-                ServletException se = (ServletException) throwable;
-                while (se.getRootCause() != null) {
-                    throwable = se.getRootCause();
-                    if (throwable instanceof ServletException) {
-                        se = (ServletException) throwable;
-                    } else {
-                        break;
-                    }
+        return stringWriter.toString();
+    }
+
+    /**
+     * Writes the Exception Message (Stacktrace) from the Request to the writer, in the format of
+     * Throwable.printStackTrace(..), limited to the configured number of frames per throwable and causes.
+     *
+     * Frames in common with the enclosing throwable, and frames beyond the limit, are summarized as "... N more".
+     *
+     * @param request
+     * @param writer
+     * @throws IOException
+     */
+    @Override
+    public void writeException(SlingHttpServletRequest request, Writer writer) throws IOException {
+        if (!(request.getAttribute(SlingConstants.ERROR_EXCEPTION) instanceof Throwable)) {
+            return;
+        }
+
+        Throwable throwable = (Throwable) request.getAttribute(SlingConstants.ERROR_EXCEPTION);
+
+        if (throwable instanceof ServletException) {
+            ServletException se = (ServletException) throwable;
+            while (se.getRootCause() != null) {
+                throwable = se.getRootCause();
+                if (throwable instanceof ServletException) {
+                    se = (ServletException) throwable;
+                } else {
+                    break;
                 }
             }
+        }
+
+        final Set<Throwable> written = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+        StackTraceElement[] enclosingTrace = null;
+        int depth = 0;
 
-            throwable.printStackTrace(new PrintWriter(stringWriter, true));
+        while (throwable != null && written.add(throwable)) {
+            if (depth > this.errorMessageMaxDepth) {
+                writer.write("Caused by: ... further causes omitted");
+                writer.write(LINE_SEPARATOR);
+                break;
+            }
+
+            if (depth > 0) {
+                writer.write("Caused by: ");
+            }
+            writer.write(String.valueOf(throwable));
+            writer.write(LINE_SEPARATOR);
+
+            final StackTraceElement[] trace = throwable.getStackTrace();
+            final int unique = trace.length - countFramesInCommon(trace, enclosingTrace);
+            final int frames = Math.min(unique, this.errorMessageMaxFrames);
+
+            for (int i = 0; i < frames; i++) {
+                writer.write("\tat ");
+                writer.write(String.valueOf(trace[i]));
+                writer.write(LINE_SEPARATOR);
+            }
+
+            if (trace.length > frames) {
+                writer.write("\t... ");
+                writer.write(String.valueOf(trace.length - frames));
+                writer.write(" more");
+                writer.write(LINE_SEPARATOR);
+            }
+
+            enclosingTrace = trace;
+            throwable = getCause(throwable);
+            depth++;
         }
+    }
 
-        return stringWriter.toString();
+    /**
+     * Counts the frames at the bottom of the trace that are identical to the bottom of the enclosing trace.
+     *
+     * @param trace
+     * @param enclosingTrace
+     * @return the number of frames in common
+     */
+    private static int countFramesInCommon(StackTraceElement[] trace, StackTraceElement[] enclosingTrace) {
+        if (enclosingTrace == null) {
+            return 0;
+        }
+
+        int m = trace.length - 1;
+        int n = enclosingTrace.length - 1;
+
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosingTrace[n])) {
+            m--;
+            n--;
+        }
+
+        return trace.length - 1 - m;
+    }
+
+    private static Throwable getCause(Throwable throwable) {
+        if (throwable instanceof ServletException && ((ServletException) throwable).getRootCause() != null) {
+            return ((ServletException) throwable).getRootCause();
+        }
+
+        return throwable.getCause();
     }
 
     /**
@@ -609,14 +1030,52 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
      */
     @Override
     public String getRequestProgress(SlingHttpServletRequest request) {
-        StringWriter stringWriter = new StringWriter();
-        if (request != null) {
-            RequestProgressTracker tracker = request.getRequestProgressTracker();
-            tracker.dump(new PrintWriter(stringWriter, true));
+        final StringWriter stringWriter = new StringWriter();
+
+        try {
+            writeRequestProgress(request, stringWriter);
+        } catch (IOException ex) {
+            // StringWriters do not throw IOExceptions
         }
+
         return stringWriter.toString();
     }
 
+    /**
+     * Writes the RequestProgress trace to the writer, limited to the configured number of messages.
+     *
+     * @param request
+     * @param writer
+     * @throws IOException
+     */
+    @Override
+    public void writeRequestProgress(SlingHttpServletRequest request, Writer writer) throws IOException {
+        if (request == null) {
+            return;
+        }
+
+        final Iterator<String> messages = request.getRequestProgressTracker().getMessages();
+        int count = 0;
+
+        while (messages.hasNext() && count < this.requestProgressMaxMessages) {
+            writer.write(messages.next());
+            count++;
+        }
+
+        int remaining = 0;
+        while (messages.hasNext()) {
+            messages.next();
+            remaining++;
+        }
+
+        if (remaining > 0) {
+            writer.write("... ");
+            writer.write(String.valueOf(remaining));
+            writer.write(" more");
+            writer.write(LINE_SEPARATOR);
+        }
+    }
+
     /**
      * Reset response attributes to support printing out a new page (rather than one that potentially errored out).
      * This includes clearing clientlib inclusion state, and resetting the response.
@@ -638,6 +1097,184 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         response.setStatus(statusCode);
     }
 
+    /**
+     * Include the error page into the response with the provided status code.
+     *
+     * If the rendered error page cache is enabled, anonymous requests are served the cached bytes of the previously
+     * rendered error page (keyed by error page path, extension and WCM mode) rather than re-rendering it.
+     *
+     * @param request
+     * @param response
+     * @param errorPagePath the error page path, including extension, as returned by findErrorPage(..)
+     * @param statusCode
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Override
+    public void includeErrorPage(SlingHttpServletRequest request, SlingHttpServletResponse response,
+                                 String errorPagePath, int statusCode) throws ServletException, IOException {
+        final ErrorPageCache cache = this.errorPageCache;
+
+        if (cache == null || !isAnonymousRequest(request)) {
+            response.setStatus(statusCode);
+            request.getRequestDispatcher(errorPagePath).include(request, response);
+            return;
+        }
+
+        final String key = ErrorPageCache.toKey(errorPagePath, WCMMode.fromRequest(request).name());
+        ErrorPageCache.Entry entry = cache.get(key);
+
+        if (entry == null) {
+            // Obtained before rendering, so a change to the error page while rendering is not cached
+            final long generation = cache.getGeneration();
+            final CapturingResponse capturingResponse = new CapturingResponse(response);
+            request.getRequestDispatcher(errorPagePath).include(request, capturingResponse);
+
+            final String pagePath = new PathInfo(errorPagePath).getResourcePath();
+            final Resource contentResource = request.getResourceResolver().getResource(
+                    pagePath + "/" + JcrConstants.JCR_CONTENT);
+            final String templatePath = contentResource == null ? null
+                    : ResourceUtil.getValueMap(contentResource).get(NameConstants.PN_TEMPLATE, String.class);
+
+            entry = new ErrorPageCache.Entry(pagePath, templatePath, response.getContentType(),
+                    response.getCharacterEncoding(), capturingResponse.toByteArray());
+
+            if (entry.getBytes().length > 0) {
+                cache.put(key, entry, generation);
+            }
+        } else {
+            log.debug("Serving cached error page: {}", key);
+        }
+
+        writeErrorPage(response, statusCode, entry.getContentType(), entry.getCharacterEncoding(), entry.getBytes());
+    }
+
+    /**
+     * Writes a pre-rendered error page to the response.
+     *
+     * @param response
+     * @param statusCode
+     * @param contentType
+     * @param characterEncoding
+     * @param bytes
+     * @throws IOException
+     */
+    private void writeErrorPage(SlingHttpServletResponse response, int statusCode, String contentType,
+                                String characterEncoding, byte[] bytes) throws IOException {
+        response.setStatus(statusCode);
+
+        if (contentType != null) {
+            response.setContentType(contentType);
+        }
+        if (characterEncoding != null) {
+            response.setCharacterEncoding(characterEncoding);
+        }
+
+        try {
+            response.getOutputStream().write(bytes);
+        } catch (IllegalStateException ex) {
+            // The response's writer is already in use
+            response.getWriter().write(new String(bytes, response.getCharacterEncoding()));
+        }
+    }
+
+    /**
+     * Records the 404 against the requesting client and content root and, if either is producing 404s at an
+     * abnormal rate, writes the degraded 404 body to the response.
+     *
+     * The degraded response is served without authentication, queries or page includes.
+     *
+     * @param request
+     * @param response
+     * @return true if the degraded 404 body was written
+     * @throws IOException
+     */
+    @Override
+    public boolean doHandle404Storm(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws IOException {
+        final StormProtection protection = this.stormProtection;
+
+        if (protection == null || getStatusCode(request) != SlingHttpServletResponse.SC_NOT_FOUND) {
+            return false;
+        }
+
+        if (!protection.record(getStormClient(request), getStormContentRoot(request.getResource().getPath()))) {
+            return false;
+        }
+
+        writeErrorPage(response, SlingHttpServletResponse.SC_NOT_FOUND, STORM_CONTENT_TYPE, CharEncoding.UTF_8,
+                this.stormBody);
+        return true;
+    }
+
+    /**
+     * Identifies the requesting client, preferring the configured client header (ex. X-Forwarded-For) when present.
+     *
+     * Each proxy appends the address it received the request from to the header, so only the addresses appended by
+     * the trusted proxies can be relied on; the client is the one appended by the outermost trusted proxy.
+     *
+     * @param request
+     * @return the client address
+     */
+    String getStormClient(SlingHttpServletRequest request) {
+        if (StringUtils.isNotBlank(this.stormClientHeader)) {
+            final String[] hops = StringUtils.split(StringUtils.defaultString(
+                    request.getHeader(this.stormClientHeader)), ',');
+
+            if (hops.length > 0) {
+                // Count the trusted hops from the right; fewer hops than trusted proxies leaves the leftmost
+                final int index = Math.max(0, hops.length - Math.max(1, this.stormTrustedProxies));
+                final String client = StringUtils.trim(hops[index]);
+
+                if (StringUtils.isNotBlank(client)) {
+                    return client;
+                }
+            }
+        }
+
+        return request.getRemoteAddr();
+    }
+
+    /**
+     * Identifies the content root a request path targets without accessing the repository; the deepest indexed
+     * error page content root if available, otherwise the first two path segments (ex. /content/site).
+     *
+     * @param path
+     * @return the content root
+     */
+    private String getStormContentRoot(String path) {
+        final ErrorPageIndex.Snapshot snapshot = this.getIndexSnapshot(false);
+
+        if (snapshot != null) {
+            final PathTrie.Match<String> match = snapshot.getErrorPagesTrie().findDeepest(path);
+            if (match != null) {
+                return match.getPath();
+            }
+        }
+
+        final int first = path.indexOf('/', 1);
+        if (first < 0) {
+            return path;
+        }
+
+        final int second = path.indexOf('/', first + 1);
+        return second < 0 ? path : path.substring(0, second);
+    }
+
+    /**
+     * @return the error page resolution metrics
+     */
+    ErrorPageMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @return the storm protection, or null if storm protection is disabled
+     */
+    StormProtection getStormProtection() {
+        return this.stormProtection;
+    }
+
     /**
      * Merge two Maps together. In the event of any key collisions the Master map wins
      *
@@ -695,11 +1332,156 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
     @Activate
     protected void activate(ComponentContext componentContext) {
         configure(componentContext);
+
+        if (this.enabled && this.stormEnabled) {
+            this.stormProtection = new StormProtection(this.stormWindow * 1000L, this.stormClientThreshold,
+                    this.stormContentRootThreshold);
+        }
+
+        registerMBean(componentContext.getBundleContext());
+
+        if (this.enabled && (this.indexEnabled || this.cacheEnabled || this.ancestorCacheEnabled)) {
+            openObservers();
+        }
     }
 
     @Deactivate
     protected void deactivate(ComponentContext componentContext) {
         enabled = false;
+
+        if (this.mbeanRegistration != null) {
+            this.mbeanRegistration.unregister();
+            this.mbeanRegistration = null;
+        }
+
+        this.stormProtection = null;
+
+        if (this.indexWarmUp != null) {
+            // A warm-up that has started holds the index lock, so closing the index below waits for it to finish
+            this.indexWarmUp.cancel(false);
+            this.indexWarmUp = null;
+        }
+
+        if (this.errorPageIndex != null) {
+            this.errorPageIndex.close();
+            this.errorPageIndex = null;
+        }
+
+        if (this.errorPageCache != null) {
+            this.errorPageCache.close();
+            this.errorPageCache = null;
+        }
+
+        if (this.existingAncestorCache != null) {
+            this.existingAncestorCache.close();
+            this.existingAncestorCache = null;
+        }
+
+        if (this.observationResourceResolver != null) {
+            this.observationResourceResolver.close();
+            this.observationResourceResolver = null;
+        }
+    }
+
+    /**
+     * Opens the error page index on a background thread, so activation does not wait on the queries that build it.
+     *
+     * @param index
+     * @param resourceResolver
+     */
+    private void warmUpErrorPageIndex(final ErrorPageIndex index, final ResourceResolver resourceResolver) {
+        final String[] observedPaths = this.indexObservedPaths;
+
+        final FutureTask<ErrorPageIndex.Snapshot> warmUp = new FutureTask<ErrorPageIndex.Snapshot>(
+                new Callable<ErrorPageIndex.Snapshot>() {
+            @Override
+            public ErrorPageIndex.Snapshot call() throws RepositoryException {
+                try {
+                    index.open(resourceResolver, observedPaths);
+                } catch (RepositoryException ex) {
+                    log.error("Could not open error page index; falling back to queries: {}", ex.getMessage());
+
+                    if (errorPageIndex == index) {
+                        errorPageIndex = null;
+                    }
+                    throw ex;
+                }
+
+                return index.getSnapshot();
+            }
+        });
+
+        this.errorPageIndex = index;
+        this.indexWarmUp = warmUp;
+
+        final Thread thread = new Thread(warmUp, INDEX_WARM_UP_THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Registers the JMX view of this Error Page Handler via the JMX whiteboard.
+     *
+     * @param bundleContext
+     */
+    private void registerMBean(BundleContext bundleContext) {
+        if (bundleContext == null) { return; }
+
+        try {
+            final Dictionary<String, Object> mbeanProps = new Hashtable<String, Object>();
+            mbeanProps.put("jmx.objectname", ErrorPageHandlerMBeanImpl.OBJECT_NAME);
+
+            this.mbeanRegistration = bundleContext.registerService(DynamicMBean.class.getName(),
+                    new ErrorPageHandlerMBeanImpl(this), mbeanProps);
+        } catch (NotCompliantMBeanException ex) {
+            log.error("Could not register Error Page Handler MBean: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Builds the error page index, the rendered error page cache and the existing ancestor cache, and registers them
+     * for repository observation.
+     *
+     * If the index cannot be opened, error pages are resolved via repository queries.
+     * If the caches cannot be opened, error pages are rendered and ancestors are looked up on every request.
+     */
+    private void openObservers() {
+        try {
+            this.observationResourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+        } catch (LoginException ex) {
+            log.error("Could not observe the repository for error page changes: {}", ex.getMessage());
+            return;
+        }
+
+        if (this.indexEnabled) {
+            warmUpErrorPageIndex(new ErrorPageIndex(queryBuilder, this.pathMap, this.fallbackChains), this.observationResourceResolver);
+        }
+
+        if (this.cacheEnabled) {
+            try {
+                final ErrorPageCache cache = new ErrorPageCache(this.cacheMaxEntries, this.cacheMaxEntrySize,
+                        this.cacheTtl * 1000L);
+                cache.open(this.observationResourceResolver.adaptTo(Session.class).getWorkspace()
+                        .getObservationManager(), this.cacheObservedPaths);
+
+                this.errorPageCache = cache;
+            } catch (RepositoryException ex) {
+                log.error("Could not open error page cache: {}", ex.getMessage());
+            }
+        }
+
+        if (this.ancestorCacheEnabled) {
+            try {
+                final ExistingAncestorCache cache = new ExistingAncestorCache(this.ancestorCacheMaxEntries,
+                        this.ancestorCacheTtl * 1000L);
+                cache.open(this.observationResourceResolver.adaptTo(Session.class).getWorkspace()
+                        .getObservationManager(), this.indexObservedPaths);
+
+                this.existingAncestorCache = cache;
+            } catch (RepositoryException ex) {
+                log.error("Could not open existing ancestor cache: {}", ex.getMessage());
+            }
+        }
     }
 
     private void configure(ComponentContext componentContext) {
@@ -715,10 +1497,62 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
 
         this.pathMap = configurePathMap(PropertiesUtil.toStringArray(properties.get(PROP_SEARCH_PATHS), DEFAULT_SEARCH_PATHS));
 
+        this.indexEnabled = PropertiesUtil.toBoolean(properties.get(PROP_INDEX_ENABLED), DEFAULT_INDEX_ENABLED);
+
+        this.indexObservedPaths = PropertiesUtil.toStringArray(properties.get(PROP_INDEX_OBSERVED_PATHS), DEFAULT_INDEX_OBSERVED_PATHS);
+
+        this.fallbackChains = new FallbackChains(PropertiesUtil.toStringArray(properties.get(PROP_FALLBACK_CHAINS), new String[0]));
+
+        this.indexWarmUpWait = PropertiesUtil.toInteger(properties.get(PROP_INDEX_WARM_UP_WAIT), DEFAULT_INDEX_WARM_UP_WAIT);
+
+        this.cacheEnabled = PropertiesUtil.toBoolean(properties.get(PROP_CACHE_ENABLED), DEFAULT_CACHE_ENABLED);
+
+        this.cacheMaxEntries = PropertiesUtil.toInteger(properties.get(PROP_CACHE_MAX_ENTRIES), DEFAULT_CACHE_MAX_ENTRIES);
+
+        this.cacheMaxEntrySize = PropertiesUtil.toInteger(properties.get(PROP_CACHE_MAX_ENTRY_SIZE), DEFAULT_CACHE_MAX_ENTRY_SIZE);
+
+        this.cacheTtl = PropertiesUtil.toInteger(properties.get(PROP_CACHE_TTL), DEFAULT_CACHE_TTL);
+
+        this.cacheObservedPaths = PropertiesUtil.toStringArray(properties.get(PROP_CACHE_OBSERVED_PATHS), DEFAULT_CACHE_OBSERVED_PATHS);
+
+        this.ancestorCacheEnabled = PropertiesUtil.toBoolean(properties.get(PROP_ANCESTOR_CACHE_ENABLED), DEFAULT_ANCESTOR_CACHE_ENABLED);
+
+        this.ancestorCacheMaxEntries = PropertiesUtil.toInteger(properties.get(PROP_ANCESTOR_CACHE_MAX_ENTRIES), DEFAULT_ANCESTOR_CACHE_MAX_ENTRIES);
+
+        this.ancestorCacheTtl = PropertiesUtil.toInteger(properties.get(PROP_ANCESTOR_CACHE_TTL), DEFAULT_ANCESTOR_CACHE_TTL);
+
+        this.stormEnabled = PropertiesUtil.toBoolean(properties.get(PROP_STORM_ENABLED), DEFAULT_STORM_ENABLED);
+
+        this.stormWindow = PropertiesUtil.toInteger(properties.get(PROP_STORM_WINDOW), DEFAULT_STORM_WINDOW);
+
+        this.stormClientThreshold = PropertiesUtil.toInteger(properties.get(PROP_STORM_CLIENT_THRESHOLD), DEFAULT_STORM_CLIENT_THRESHOLD);
+
+        this.stormContentRootThreshold = PropertiesUtil.toInteger(properties.get(PROP_STORM_CONTENT_ROOT_THRESHOLD), DEFAULT_STORM_CONTENT_ROOT_THRESHOLD);
+
+        this.stormClientHeader = PropertiesUtil.toString(properties.get(PROP_STORM_CLIENT_HEADER), DEFAULT_STORM_CLIENT_HEADER);
+
+        this.stormTrustedProxies = PropertiesUtil.toInteger(properties.get(PROP_STORM_TRUSTED_PROXIES), DEFAULT_STORM_TRUSTED_PROXIES);
+
+        try {
+            this.stormBody = PropertiesUtil.toString(properties.get(PROP_STORM_BODY), DEFAULT_STORM_BODY).getBytes(CharEncoding.UTF_8);
+        } catch (UnsupportedEncodingException ex) {
+            this.stormBody = new byte[0];
+        }
+
+        this.errorMessageMaxFrames = PropertiesUtil.toInteger(properties.get(PROP_ERROR_MESSAGE_MAX_FRAMES), DEFAULT_ERROR_MESSAGE_MAX_FRAMES);
+
+        this.errorMessageMaxDepth = PropertiesUtil.toInteger(properties.get(PROP_ERROR_MESSAGE_MAX_DEPTH), DEFAULT_ERROR_MESSAGE_MAX_DEPTH);
+
+        this.requestProgressMaxMessages = PropertiesUtil.toInteger(properties.get(PROP_REQUEST_PROGRESS_MAX_MESSAGES), DEFAULT_REQUEST_PROGRESS_MAX_MESSAGES);
+
         log.debug("Enabled: {}", this.enabled);
         log.debug("System Error Page Path: {}", this.systemErrorPagePath);
         log.debug("Error Page Extension: {}", this.errorPageExtension);
         log.debug("Fallback Error Page Name: {}", this.fallbackErrorName);
+        log.debug("Error Page Index Enabled: {}", this.indexEnabled);
+        log.debug("Error Page Cache Enabled: {}", this.cacheEnabled);
+        log.debug("Existing Ancestor Cache Enabled: {}", this.ancestorCacheEnabled);
+        log.debug("404 Storm Protection Enabled: {}", this.stormEnabled);
     }
 
     /**
@@ -0,0 +1,130 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+/**
+ * JMX view of the Error Page Handler.
+ */
+public interface ErrorPageHandlerMBean {
+    /**
+     * @return true if 404 storm protection is enabled
+     */
+    boolean isStormProtectionEnabled();
+
+    /**
+     * @return true if any client or content root is currently served degraded 404 responses
+     */
+    boolean isStorming();
+
+    /**
+     * @return the clients currently served degraded 404 responses
+     */
+    String[] getStormingClients();
+
+    /**
+     * @return the content roots currently served degraded 404 responses
+     */
+    String[] getStormingContentRoots();
+
+    /**
+     * @return the number of degraded 404 responses served
+     */
+    long getDegradedResponseCount();
+
+    /**
+     * Discards all 404 counts, ending any current storm.
+     */
+    void resetStormProtection();
+
+    /**
+     * @return the number of error page resolutions per status code, formatted as "status=count"
+     */
+    String[] getStatusCounts();
+
+    /**
+     * @return the number of error page resolutions that found an authored error page
+     */
+    long getAuthoredHitCount();
+
+    /**
+     * @return the number of error page resolutions that did not find an authored error page
+     */
+    long getAuthoredMissCount();
+
+    /**
+     * @return the number of error page resolutions that fell back to the system error page
+     */
+    long getSystemHitCount();
+
+    /**
+     * @return the number of error page resolutions that found neither an authored nor a system error page
+     */
+    long getSystemMissCount();
+
+    /**
+     * @return the 50th percentile of total error page resolution time, in milliseconds
+     */
+    double getTotalTimeP50();
+
+    /**
+     * @return the 95th percentile of total error page resolution time, in milliseconds
+     */
+    double getTotalTimeP95();
+
+    /**
+     * @return the 99th percentile of total error page resolution time, in milliseconds
+     */
+    double getTotalTimeP99();
+
+    /**
+     * @return the 50th percentile of time spent querying for error pages, in milliseconds
+     */
+    double getQueryTimeP50();
+
+    /**
+     * @return the 95th percentile of time spent querying for error pages, in milliseconds
+     */
+    double getQueryTimeP95();
+
+    /**
+     * @return the 99th percentile of time spent querying for error pages, in milliseconds
+     */
+    double getQueryTimeP99();
+
+    /**
+     * @return the 50th percentile of time spent resolving resources, excluding queries, in milliseconds
+     */
+    double getResolutionTimeP50();
+
+    /**
+     * @return the 95th percentile of time spent resolving resources, excluding queries, in milliseconds
+     */
+    double getResolutionTimeP95();
+
+    /**
+     * @return the 99th percentile of time spent resolving resources, excluding queries, in milliseconds
+     */
+    double getResolutionTimeP99();
+
+    /**
+     * Discards all error page resolution counts and latencies.
+     */
+    void resetMetrics();
+}
@@ -0,0 +1,159 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import com.adobe.acs.commons.util.impl.LatencyHistogram;
+
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+
+/**
+ * Exposes the storm protection state and error page resolution metrics of an Error Page Handler via JMX.
+ */
+public final class ErrorPageHandlerMBeanImpl extends StandardMBean implements ErrorPageHandlerMBean {
+    public static final String OBJECT_NAME = "com.adobe.acs.commons:type=Error Page Handler";
+
+    private static final String[] EMPTY = new String[0];
+
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    private final ErrorPageHandlerImpl errorPageHandler;
+
+    public ErrorPageHandlerMBeanImpl(final ErrorPageHandlerImpl errorPageHandler) throws NotCompliantMBeanException {
+        super(ErrorPageHandlerMBean.class);
+        this.errorPageHandler = errorPageHandler;
+    }
+
+    @Override
+    public boolean isStormProtectionEnabled() {
+        return this.errorPageHandler.getStormProtection() != null;
+    }
+
+    @Override
+    public boolean isStorming() {
+        final StormProtection stormProtection = this.errorPageHandler.getStormProtection();
+        return stormProtection != null && stormProtection.isStorming();
+    }
+
+    @Override
+    public String[] getStormingClients() {
+        final StormProtection stormProtection = this.errorPageHandler.getStormProtection();
+        return stormProtection == null ? EMPTY : stormProtection.getStormingClients();
+    }
+
+    @Override
+    public String[] getStormingContentRoots() {
+        final StormProtection stormProtection = this.errorPageHandler.getStormProtection();
+        return stormProtection == null ? EMPTY : stormProtection.getStormingContentRoots();
+    }
+
+    @Override
+    public long getDegradedResponseCount() {
+        final StormProtection stormProtection = this.errorPageHandler.getStormProtection();
+        return stormProtection == null ? 0 : stormProtection.getDegradedCount();
+    }
+
+    @Override
+    public void resetStormProtection() {
+        final StormProtection stormProtection = this.errorPageHandler.getStormProtection();
+        if (stormProtection != null) {
+            stormProtection.reset();
+        }
+    }
+
+    @Override
+    public String[] getStatusCounts() {
+        return this.errorPageHandler.getMetrics().getStatusCounts();
+    }
+
+    @Override
+    public long getAuthoredHitCount() {
+        return this.errorPageHandler.getMetrics().getAuthoredHits();
+    }
+
+    @Override
+    public long getAuthoredMissCount() {
+        return this.errorPageHandler.getMetrics().getAuthoredMisses();
+    }
+
+    @Override
+    public long getSystemHitCount() {
+        return this.errorPageHandler.getMetrics().getSystemHits();
+    }
+
+    @Override
+    public long getSystemMissCount() {
+        return this.errorPageHandler.getMetrics().getSystemMisses();
+    }
+
+    @Override
+    public double getTotalTimeP50() {
+        return toMillis(this.errorPageHandler.getMetrics().getTotalTime(), 50);
+    }
+
+    @Override
+    public double getTotalTimeP95() {
+        return toMillis(this.errorPageHandler.getMetrics().getTotalTime(), 95);
+    }
+
+    @Override
+    public double getTotalTimeP99() {
+        return toMillis(this.errorPageHandler.getMetrics().getTotalTime(), 99);
+    }
+
+    @Override
+    public double getQueryTimeP50() {
+        return toMillis(this.errorPageHandler.getMetrics().getQueryTime(), 50);
+    }
+
+    @Override
+    public double getQueryTimeP95() {
+        return toMillis(this.errorPageHandler.getMetrics().getQueryTime(), 95);
+    }
+
+    @Override
+    public double getQueryTimeP99() {
+        return toMillis(this.errorPageHandler.getMetrics().getQueryTime(), 99);
+    }
+
+    @Override
+    public double getResolutionTimeP50() {
+        return toMillis(this.errorPageHandler.getMetrics().getResolutionTime(), 50);
+    }
+
+    @Override
+    public double getResolutionTimeP95() {
+        return toMillis(this.errorPageHandler.getMetrics().getResolutionTime(), 95);
+    }
+
+    @Override
+    public double getResolutionTimeP99() {
+        return toMillis(this.errorPageHandler.getMetrics().getResolutionTime(), 99);
+    }
+
+    @Override
+    public void resetMetrics() {
+        this.errorPageHandler.getMetrics().reset();
+    }
+
+    private static double toMillis(final LatencyHistogram histogram, final double percentile) {
+        return histogram.getPercentile(percentile) / NANOS_PER_MILLI;
+    }
+}
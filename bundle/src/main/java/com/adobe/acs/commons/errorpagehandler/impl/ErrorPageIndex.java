@@ -0,0 +1,590 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.eval.JcrPropertyPredicateEvaluator;
+import com.day.cq.search.eval.PathPredicateEvaluator;
+import com.day.cq.search.eval.TypePredicateEvaluator;
+import com.day.cq.search.result.Hit;
+import com.day.cq.wcm.api.NameConstants;
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory index of the Error Page configuration held in the repository.
+ *
+ * Tracks the content roots that define an errorPages property (merged with the OSGi configured roots) and the
+ * cq:Pages that live beneath each of the referenced error page trees. The index is built once and then kept current
+ * via JCR observation, so error pages can be resolved without executing any queries.
+ *
+ * Readers only ever see immutable {@link Snapshot}s; all mutations are serialized on the index.
+ */
+public final class ErrorPageIndex implements EventListener {
+    private static final Logger log = LoggerFactory.getLogger(ErrorPageIndex.class);
+
+    private static final String ERROR_PAGES_PROPERTY_SUFFIX =
+            "/" + JcrConstants.JCR_CONTENT + "/" + ErrorPageHandlerImpl.ERROR_PAGE_PROPERTY;
+
+    private static final String EVENT_INFO_SRC_ABS_PATH = "srcAbsPath";
+
+    private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED
+            | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+    private final QueryBuilder queryBuilder;
+
+    private final SortedMap<String, String> configuredPaths;
+
+    private final FallbackChains fallbackChains;
+
+    /* Mutable state; guarded by this */
+
+    private final Map<String, String> authoredRoots = new HashMap<String, String>();
+
+    private final Map<String, Map<String, String>> errorPageTrees = new HashMap<String, Map<String, String>>();
+
+    private ResourceResolver resourceResolver;
+
+    private volatile Snapshot snapshot;
+
+    private boolean closed = false;
+
+    /**
+     * @param queryBuilder used to discover the content roots that define an errorPages property
+     * @param configuredPaths the OSGi configured content root to error pages path mappings
+     * @param fallbackChains the error page names to try for each status code
+     */
+    public ErrorPageIndex(final QueryBuilder queryBuilder, final SortedMap<String, String> configuredPaths,
+                          final FallbackChains fallbackChains) {
+        this.queryBuilder = queryBuilder;
+        this.configuredPaths = configuredPaths;
+        this.fallbackChains = fallbackChains;
+    }
+
+    /**
+     * Builds the index and starts observing the repository to keep it current.
+     *
+     * The resource resolver must remain open until the index is closed. Opening an index that has already been
+     * closed does nothing.
+     *
+     * @param serviceResourceResolver resolver with read access to all content roots and error pages
+     * @param observedPaths the repository trees to observe for changes
+     * @throws RepositoryException
+     */
+    public synchronized void open(final ResourceResolver serviceResourceResolver, final String[] observedPaths)
+            throws RepositoryException {
+        if (this.closed) {
+            return;
+        }
+
+        this.resourceResolver = serviceResourceResolver;
+
+        // Observe before building, so error pages changed while building are not missed
+        final ObservationManager observationManager = this.getObservationManager();
+        for (final String observedPath : observedPaths) {
+            if (StringUtils.isBlank(observedPath)) { continue; }
+
+            observationManager.addEventListener(this, EVENT_TYPES, StringUtils.strip(observedPath), true,
+                    null, null, false);
+            log.debug("Observing [ {} ] for error page changes", observedPath);
+        }
+
+        this.build();
+    }
+
+    /**
+     * Stops observing the repository.
+     */
+    public synchronized void close() {
+        this.closed = true;
+
+        if (this.resourceResolver == null) {
+            return;
+        }
+
+        try {
+            this.getObservationManager().removeEventListener(this);
+        } catch (RepositoryException ex) {
+            log.warn("Could not remove error page index observation listener: {}", ex.getMessage());
+        }
+
+        this.resourceResolver = null;
+        this.snapshot = null;
+    }
+
+    /**
+     * Gets the current state of the index.
+     *
+     * @return the current snapshot, or null if the index has not been built
+     */
+    public Snapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Rebuilds the entire index from the repository.
+     */
+    public synchronized void build() {
+        final long start = System.currentTimeMillis();
+
+        this.authoredRoots.clear();
+        this.errorPageTrees.clear();
+
+        this.discoverRoots(null);
+
+        for (final String errorsPath : this.configuredPaths.values()) {
+            this.indexErrorPageTree(errorsPath);
+        }
+
+        this.publish();
+
+        log.info("Built error page index of {} content roots in {} ms", this.snapshot.getErrorPagesMap().size(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onEvent(final EventIterator events) {
+        synchronized (this) {
+            if (this.resourceResolver == null) {
+                return;
+            }
+
+            try {
+                // Long lived sessions must be refreshed to see the changes being reported
+                this.resourceResolver.adaptTo(Session.class).refresh(true);
+            } catch (RepositoryException ex) {
+                log.warn("Could not refresh error page index session: {}", ex.getMessage());
+            }
+
+            final Set<String> dirtyTrees = new HashSet<String>();
+            boolean dirty = false;
+
+            while (events.hasNext()) {
+                try {
+                    dirty = this.handleEvent(events.nextEvent(), dirtyTrees) || dirty;
+                } catch (RepositoryException ex) {
+                    log.warn("Could not process error page index event: {}", ex.getMessage());
+                }
+            }
+
+            for (final String errorsPath : dirtyTrees) {
+                this.indexErrorPageTree(errorsPath);
+            }
+
+            if (dirty) {
+                this.publish();
+            }
+        }
+    }
+
+    private boolean handleEvent(final Event event, final Set<String> dirtyTrees) throws RepositoryException {
+        final String path = event.getPath();
+        final int type = event.getType();
+
+        if (type == Event.PROPERTY_ADDED || type == Event.PROPERTY_CHANGED || type == Event.PROPERTY_REMOVED) {
+            if (!StringUtils.endsWith(path, ERROR_PAGES_PROPERTY_SUFFIX)) {
+                return false;
+            }
+
+            final String rootPath = StringUtils.removeEnd(path, ERROR_PAGES_PROPERTY_SUFFIX);
+            final String errorsPath = this.readErrorPagesProperty(rootPath);
+
+            if (errorsPath == null) {
+                this.authoredRoots.remove(rootPath);
+            } else {
+                this.authoredRoots.put(rootPath, errorsPath);
+                dirtyTrees.add(errorsPath);
+            }
+
+            log.debug("Error pages of content root [ {} ] changed to [ {} ]", rootPath, errorsPath);
+            return true;
+        }
+
+        boolean dirty = this.markDirtyTrees(path, dirtyTrees);
+
+        if (type == Event.NODE_REMOVED) {
+            dirty = this.removeRoots(path) || dirty;
+        } else if (type == Event.NODE_MOVED) {
+            final Object srcAbsPath = event.getInfo().get(EVENT_INFO_SRC_ABS_PATH);
+
+            if (srcAbsPath instanceof String) {
+                dirty = this.markDirtyTrees((String) srcAbsPath, dirtyTrees) || dirty;
+                dirty = this.removeRoots((String) srcAbsPath) || dirty;
+            }
+
+            // Moved trees do not report property events for their descendants
+            dirty = this.discoverRoots(path) || dirty;
+        }
+
+        return dirty;
+    }
+
+    /**
+     * Marks every indexed error page tree that intersects the provided path as requiring re-indexing.
+     *
+     * @param path the changed path
+     * @param dirtyTrees the set of error page trees to re-index
+     * @return true if any tree was affected
+     */
+    private boolean markDirtyTrees(final String path, final Set<String> dirtyTrees) {
+        boolean dirty = false;
+
+        for (final String errorsPath : this.errorPageTrees.keySet()) {
+            if (isSelfOrDescendant(path, errorsPath) || isSelfOrDescendant(errorsPath, path)) {
+                dirtyTrees.add(errorsPath);
+                dirty = true;
+            }
+        }
+
+        return dirty;
+    }
+
+    private boolean removeRoots(final String path) {
+        boolean removed = false;
+
+        final Iterator<String> iterator = this.authoredRoots.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (isSelfOrDescendant(iterator.next(), path)) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Queries for the cq:Pages that define an errorPages property and adds them to the index.
+     *
+     * @param path the tree to search; null searches the entire repository
+     * @return true if any content roots were found
+     */
+    private boolean discoverRoots(final String path) {
+        final Map<String, String> map = new HashMap<String, String>();
+
+        map.put(TypePredicateEvaluator.TYPE, NameConstants.NT_PAGE);
+        map.put(JcrPropertyPredicateEvaluator.PROPERTY, JcrConstants.JCR_CONTENT + "/"
+                + ErrorPageHandlerImpl.ERROR_PAGE_PROPERTY);
+        map.put(JcrPropertyPredicateEvaluator.PROPERTY + "." + JcrPropertyPredicateEvaluator.OPERATION,
+                JcrPropertyPredicateEvaluator.OP_EXISTS);
+        map.put("p.limit", "0");
+
+        if (path != null) {
+            map.put(PathPredicateEvaluator.PATH, path);
+        }
+
+        final Query query = queryBuilder.createQuery(PredicateGroup.create(map),
+                this.resourceResolver.adaptTo(Session.class));
+
+        boolean found = false;
+
+        for (final Hit hit : query.getResult().getHits()) {
+            try {
+                final String errorsPath = this.readErrorPagesProperty(hit.getPath());
+
+                if (errorsPath != null) {
+                    this.authoredRoots.put(hit.getPath(), errorsPath);
+                    this.indexErrorPageTree(errorsPath);
+                    found = true;
+                }
+            } catch (RepositoryException ex) {
+                log.error("Could not resolve hit to a valid resource");
+            }
+        }
+
+        return found;
+    }
+
+    private String readErrorPagesProperty(final String rootPath) {
+        final Resource contentResource = this.resourceResolver.getResource(rootPath + "/" + JcrConstants.JCR_CONTENT);
+        if (contentResource == null) {
+            return null;
+        }
+
+        final ValueMap properties = contentResource.adaptTo(ValueMap.class);
+        if (properties == null) {
+            return null;
+        }
+
+        return StringUtils.stripToNull(properties.get(ErrorPageHandlerImpl.ERROR_PAGE_PROPERTY, String.class));
+    }
+
+    /**
+     * Collects the cq:Pages beneath (and including) the error pages path, breadth first, so the shallowest page
+     * of any given name wins.
+     *
+     * @param errorsPath the root of the error page tree
+     */
+    private void indexErrorPageTree(final String errorsPath) {
+        final Map<String, String> pages = new LinkedHashMap<String, String>();
+        final Resource errorsResource = this.resourceResolver.getResource(errorsPath);
+
+        if (errorsResource != null && !ResourceUtil.isNonExistingResource(errorsResource)) {
+            final LinkedList<Resource> queue = new LinkedList<Resource>();
+            queue.add(errorsResource);
+
+            while (!queue.isEmpty()) {
+                final Resource resource = queue.removeFirst();
+
+                if (!isPage(resource)) { continue; }
+
+                final String name = StringUtils.lowerCase(resource.getName());
+                if (!pages.containsKey(name)) {
+                    pages.put(name, resource.getPath());
+                }
+
+                final Iterator<Resource> children = resource.listChildren();
+                while (children.hasNext()) {
+                    queue.add(children.next());
+                }
+            }
+        }
+
+        this.errorPageTrees.put(errorsPath, Collections.unmodifiableMap(pages));
+    }
+
+    /**
+     * Publishes the current state of the index as a new immutable snapshot.
+     */
+    private void publish() {
+        final SortedMap<String, String> errorPagesMap = new TreeMap<String, String>(new StringLengthComparator());
+
+        for (final Map.Entry<String, String> entry : this.configuredPaths.entrySet()) {
+            if (StringUtils.isNotBlank(entry.getValue())) {
+                errorPagesMap.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // Authored error pages win over the OSGi configured error pages
+        errorPagesMap.putAll(this.authoredRoots);
+
+        // Drop trees that are no longer referenced
+        this.errorPageTrees.keySet().retainAll(errorPagesMap.values());
+
+        this.snapshot = new Snapshot(Collections.unmodifiableSortedMap(errorPagesMap),
+                new PathTrie<String>(errorPagesMap),
+                new HashMap<String, Map<String, String>>(this.errorPageTrees),
+                this.fallbackChains);
+    }
+
+    private ObservationManager getObservationManager() throws RepositoryException {
+        return this.resourceResolver.adaptTo(Session.class).getWorkspace().getObservationManager();
+    }
+
+    private static boolean isPage(final Resource resource) {
+        return NameConstants.NT_PAGE.equals(resource.getResourceType())
+                || NameConstants.NT_PAGE.equals(ResourceUtil.getValueMap(resource).get(JcrConstants.JCR_PRIMARYTYPE,
+                String.class));
+    }
+
+    /**
+     * Checks if path is equal to, or a descendant of, the ancestor path without allocating.
+     *
+     * @param path the path to check
+     * @param ancestor the candidate ancestor
+     * @return true if path is ancestor or is beneath ancestor
+     */
+    static boolean isSelfOrDescendant(final String path, final String ancestor) {
+        if (!path.startsWith(ancestor)) {
+            return false;
+        }
+
+        return path.length() == ancestor.length()
+                || path.charAt(ancestor.length()) == '/'
+                || ancestor.endsWith("/");
+    }
+
+    /**
+     * Immutable view of the error page index.
+     */
+    public static final class Snapshot {
+        private static final String NO_ERROR_PAGE = "";
+
+        private final SortedMap<String, String> errorPagesMap;
+
+        private final PathTrie<String> errorPagesTrie;
+
+        private final Map<String, Map<String, String>> errorPageTrees;
+
+        private final FallbackChains fallbackChains;
+
+        /* Compiled status code to error page resolutions, per error page tree; null entries mark no match */
+        private final ConcurrentMap<String, String[]> statusErrorPages = new ConcurrentHashMap<String, String[]>();
+
+        /* Memoized exception type to error page resolutions, per error page tree; NO_ERROR_PAGE marks no match.
+           Exception types are weakly referenced, so they do not pin the class loaders of uninstalled bundles. */
+        private final ConcurrentMap<String, Map<Class<?>, String>> exceptionErrorPages =
+                new ConcurrentHashMap<String, Map<Class<?>, String>>();
+
+        Snapshot(final SortedMap<String, String> errorPagesMap,
+                 final PathTrie<String> errorPagesTrie,
+                 final Map<String, Map<String, String>> errorPageTrees,
+                 final FallbackChains fallbackChains) {
+            this.errorPagesMap = errorPagesMap;
+            this.errorPagesTrie = errorPagesTrie;
+            this.errorPageTrees = errorPageTrees;
+            this.fallbackChains = fallbackChains;
+        }
+
+        /**
+         * @return the merged authored and OSGi configured content root to error pages mappings, sorted by
+         * content root path length (longest first)
+         */
+        public SortedMap<String, String> getErrorPagesMap() {
+            return this.errorPagesMap;
+        }
+
+        /**
+         * @return the merged authored and OSGi configured content root to error pages mappings, for longest
+         * prefix matching against request paths
+         */
+        public PathTrie<String> getErrorPagesTrie() {
+            return this.errorPagesTrie;
+        }
+
+        /**
+         * Gets the path of the first error page in the status code's fallback chain that lives in the error page
+         * tree.
+         *
+         * The fallback chains of all error status codes are compiled into a status code indexed array per error
+         * page tree on first use, so each subsequent look up is a single array access.
+         *
+         * @param errorsPath the root of the error page tree
+         * @param statusCode the error status code
+         * @return the error page path or null if no page in the fallback chain is indexed
+         */
+        public String getStatusErrorPage(final String errorsPath, final int statusCode) {
+            final Map<String, String> pages = this.errorPageTrees.get(errorsPath);
+            if (pages == null) {
+                return null;
+            } else if (statusCode < FallbackChains.MIN_STATUS || statusCode > FallbackChains.MAX_STATUS) {
+                return resolveFirst(pages, this.fallbackChains.getPageNames(statusCode));
+            }
+
+            String[] compiled = this.statusErrorPages.get(errorsPath);
+            if (compiled == null) {
+                compiled = new String[FallbackChains.MAX_STATUS - FallbackChains.MIN_STATUS + 1];
+
+                for (int status = FallbackChains.MIN_STATUS; status <= FallbackChains.MAX_STATUS; status++) {
+                    compiled[status - FallbackChains.MIN_STATUS] =
+                            resolveFirst(pages, this.fallbackChains.getPageNames(status));
+                }
+
+                final String[] existing = this.statusErrorPages.putIfAbsent(errorsPath, compiled);
+                if (existing != null) {
+                    compiled = existing;
+                }
+            }
+
+            return compiled[statusCode - FallbackChains.MIN_STATUS];
+        }
+
+        private static String resolveFirst(final Map<String, String> pages, final String[] pageNames) {
+            for (final String pageName : pageNames) {
+                final String errorPage = pages.get(pageName);
+                if (errorPage != null) {
+                    return errorPage;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Gets the path of the error page named after the exception type (ex. nullpointerexception), falling back
+         * through the exception type's superclasses up to and including Throwable.
+         *
+         * Resolutions are memoized per exception type for the life of the snapshot, so repeated exceptions cost a
+         * single map look up.
+         *
+         * @param errorsPath the root of the error page tree
+         * @param exceptionType the exception type
+         * @return the error page path or null if no page is indexed for the exception type or its superclasses
+         */
+        public String getExceptionErrorPage(final String errorsPath, final Class<?> exceptionType) {
+            final Map<String, String> pages = this.errorPageTrees.get(errorsPath);
+            if (pages == null || exceptionType == null) {
+                return null;
+            }
+
+            Map<Class<?>, String> resolutions = this.exceptionErrorPages.get(errorsPath);
+            if (resolutions == null) {
+                resolutions = Collections.synchronizedMap(new WeakHashMap<Class<?>, String>());
+
+                final Map<Class<?>, String> existing = this.exceptionErrorPages.putIfAbsent(errorsPath, resolutions);
+                if (existing != null) {
+                    resolutions = existing;
+                }
+            }
+
+            String errorPage = resolutions.get(exceptionType);
+            if (errorPage == null) {
+                // Resolutions are deterministic, so concurrent resolutions of the same type are harmless
+                errorPage = resolveExceptionErrorPage(pages, exceptionType);
+                resolutions.put(exceptionType, errorPage);
+            }
+
+            return errorPage.length() == 0 ? null : errorPage;
+        }
+
+        private static String resolveExceptionErrorPage(final Map<String, String> pages, final Class<?> exceptionType) {
+            for (Class<?> clazz = exceptionType; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+                final String pageName = StringUtils.lowerCase(clazz.getSimpleName());
+
+                if (StringUtils.isNotEmpty(pageName) && pages.containsKey(pageName)) {
+                    return pages.get(pageName);
+                }
+            }
+
+            return NO_ERROR_PAGE;
+        }
+    }
+}
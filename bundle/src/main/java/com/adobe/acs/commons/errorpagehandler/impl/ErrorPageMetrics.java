@@ -0,0 +1,150 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import com.adobe.acs.commons.util.impl.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counters and latency histograms of error page resolution.
+ */
+public final class ErrorPageMetrics {
+    private static final int MIN_STATUS = 100;
+
+    private static final int MAX_STATUS = 599;
+
+    /* Counts of status codes 100 - 599; other status codes are counted in the final slot */
+    private final AtomicLongArray statusCounts = new AtomicLongArray(MAX_STATUS - MIN_STATUS + 2);
+
+    private final AtomicLong authoredHits = new AtomicLong();
+
+    private final AtomicLong authoredMisses = new AtomicLong();
+
+    private final AtomicLong systemHits = new AtomicLong();
+
+    private final AtomicLong systemMisses = new AtomicLong();
+
+    private final LatencyHistogram totalTime = new LatencyHistogram();
+
+    private final LatencyHistogram queryTime = new LatencyHistogram();
+
+    private final LatencyHistogram resolutionTime = new LatencyHistogram();
+
+    /**
+     * Records a resolved error page.
+     *
+     * @param statusCode the status code the error page was resolved for
+     * @param authored true if an authored error page was found
+     * @param system true if the system error page was used in lieu of an authored error page
+     * @param queryNanos time spent looking up error pages and content roots (queries or the error page index)
+     * @param totalNanos total time spent resolving the error page
+     */
+    public void record(final int statusCode, final boolean authored, final boolean system,
+                       final long queryNanos, final long totalNanos) {
+        if (statusCode >= MIN_STATUS && statusCode <= MAX_STATUS) {
+            this.statusCounts.incrementAndGet(statusCode - MIN_STATUS);
+        } else {
+            this.statusCounts.incrementAndGet(this.statusCounts.length() - 1);
+        }
+
+        if (authored) {
+            this.authoredHits.incrementAndGet();
+        } else {
+            this.authoredMisses.incrementAndGet();
+
+            if (system) {
+                this.systemHits.incrementAndGet();
+            } else {
+                this.systemMisses.incrementAndGet();
+            }
+        }
+
+        this.totalTime.record(totalNanos);
+        this.queryTime.record(queryNanos);
+        this.resolutionTime.record(totalNanos - queryNanos);
+    }
+
+    /**
+     * @return the non-zero status code counts, formatted as "status=count"
+     */
+    public String[] getStatusCounts() {
+        final List<String> counts = new ArrayList<String>();
+
+        for (int i = 0; i < this.statusCounts.length(); i++) {
+            final long count = this.statusCounts.get(i);
+
+            if (count > 0) {
+                final boolean other = i == this.statusCounts.length() - 1;
+                counts.add((other ? "other" : String.valueOf(i + MIN_STATUS)) + "=" + count);
+            }
+        }
+
+        return counts.toArray(new String[counts.size()]);
+    }
+
+    public long getAuthoredHits() {
+        return this.authoredHits.get();
+    }
+
+    public long getAuthoredMisses() {
+        return this.authoredMisses.get();
+    }
+
+    public long getSystemHits() {
+        return this.systemHits.get();
+    }
+
+    public long getSystemMisses() {
+        return this.systemMisses.get();
+    }
+
+    public LatencyHistogram getTotalTime() {
+        return this.totalTime;
+    }
+
+    public LatencyHistogram getQueryTime() {
+        return this.queryTime;
+    }
+
+    public LatencyHistogram getResolutionTime() {
+        return this.resolutionTime;
+    }
+
+    /**
+     * Discards all counts and recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < this.statusCounts.length(); i++) {
+            this.statusCounts.set(i, 0);
+        }
+
+        this.authoredHits.set(0);
+        this.authoredMisses.set(0);
+        this.systemHits.set(0);
+        this.systemMisses.set(0);
+        this.totalTime.reset();
+        this.queryTime.reset();
+        this.resolutionTime.reset();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, time limited cache of the nearest existing ancestor of non-existing request paths.
+ *
+ * Entries are keyed by the shallowest non-existing path prefix, so any deeper request path beneath that prefix
+ * resolves to the same ancestor without touching the repository. Entries are invalidated via JCR observation when
+ * nodes are added at or above a cached prefix, or when a cached ancestor is removed.
+ *
+ * Once full, the least recently used entry is evicted; expired entries are removed when looked up.
+ */
+public final class ExistingAncestorCache implements EventListener {
+    private static final Logger log = LoggerFactory.getLogger(ExistingAncestorCache.class);
+
+    private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED;
+
+    private static final String SRC_ABS_PATH = "srcAbsPath";
+
+    /* Guarded by this; access ordered, so the eldest entry is the least recently used */
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final int maxEntries;
+
+    private final long ttl;
+
+    private String[] observedPaths = new String[0];
+
+    private ObservationManager observationManager;
+
+    /**
+     * @param maxEntries maximum number of non-existing path prefixes to hold
+     * @param ttl time in milliseconds an entry is held for
+     */
+    public ExistingAncestorCache(final int maxEntries, final long ttl) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, ExistingAncestorCache.Entry> eldest) {
+                return this.size() > ExistingAncestorCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Starts observing the repository for node additions and removals. Only paths beneath the observed paths
+     * are cached.
+     *
+     * @param observationManager the observation manager to register with
+     * @param observedPaths the repository trees to cache lookups for
+     * @throws RepositoryException
+     */
+    public synchronized void open(final ObservationManager observationManager, final String[] observedPaths)
+            throws RepositoryException {
+        this.observationManager = observationManager;
+
+        final String[] paths = new String[observedPaths.length];
+        int count = 0;
+
+        for (final String observedPath : observedPaths) {
+            if (StringUtils.isBlank(observedPath)) { continue; }
+
+            paths[count++] = StringUtils.strip(observedPath);
+            observationManager.addEventListener(this, EVENT_TYPES, StringUtils.strip(observedPath), true,
+                    null, null, false);
+        }
+
+        final String[] tmp = new String[count];
+        System.arraycopy(paths, 0, tmp, 0, count);
+        this.observedPaths = tmp;
+    }
+
+    /**
+     * Stops observing the repository and clears the cache.
+     */
+    public synchronized void close() {
+        if (this.observationManager != null) {
+            try {
+                this.observationManager.removeEventListener(this);
+            } catch (RepositoryException ex) {
+                log.warn("Could not remove existing ancestor cache observation listener: {}", ex.getMessage());
+            }
+            this.observationManager = null;
+        }
+
+        this.observedPaths = new String[0];
+        this.entries.clear();
+    }
+
+    /**
+     * Gets the cached nearest existing ancestor of a non-existing path.
+     *
+     * @param path the non-existing path
+     * @return the path of the nearest existing ancestor, or null if not cached
+     */
+    public synchronized String get(final String path) {
+        if (this.entries.isEmpty()) {
+            return null;
+        }
+
+        final long now = System.currentTimeMillis();
+        int end = path.length();
+
+        while (end > 0) {
+            final String prefix = end == path.length() ? path : path.substring(0, end);
+            final Entry entry = this.entries.get(prefix);
+
+            if (entry != null) {
+                if (entry.expires > now) {
+                    return entry.ancestorPath;
+                }
+                this.entries.remove(prefix);
+            }
+
+            end = path.lastIndexOf('/', end - 1);
+        }
+
+        return null;
+    }
+
+    /**
+     * Caches the nearest existing ancestor of a non-existing path prefix, evicting the least recently used entry if
+     * the cache is full. Prefixes that are not observed are not cached.
+     *
+     * @param prefix the shallowest non-existing path prefix
+     * @param ancestorPath the path of the nearest existing ancestor
+     */
+    public synchronized void put(final String prefix, final String ancestorPath) {
+        if (this.maxEntries > 0 && this.isObserved(prefix)) {
+            this.entries.put(prefix, new Entry(ancestorPath, System.currentTimeMillis() + this.ttl));
+        }
+    }
+
+    /**
+     * Removes entries whose non-existing prefix may exist now that a node was added at the provided path.
+     *
+     * Each prefix is the child of its existing ancestor, so no prefix lies beneath the added path; only the added
+     * path and its ancestors are looked up.
+     *
+     * @param path the added path
+     */
+    public synchronized void invalidateAdded(final String path) {
+        int end = path.length();
+
+        while (end > 0 && !this.entries.isEmpty()) {
+            this.entries.remove(end == path.length() ? path : path.substring(0, end));
+            end = path.lastIndexOf('/', end - 1);
+        }
+    }
+
+    /**
+     * Removes entries whose existing ancestor no longer exists now that the node at the provided path was removed.
+     *
+     * @param path the removed path
+     */
+    public synchronized void invalidateRemoved(final String path) {
+        final Iterator<Entry> iterator = this.entries.values().iterator();
+
+        while (iterator.hasNext()) {
+            if (ErrorPageIndex.isSelfOrDescendant(iterator.next().ancestorPath, path)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of cached entries, including expired entries not yet purged
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onEvent(final EventIterator events) {
+        while (events.hasNext() && this.size() > 0) {
+            final Event event = events.nextEvent();
+
+            try {
+                if (event.getType() == Event.NODE_ADDED) {
+                    this.invalidateAdded(event.getPath());
+                } else if (event.getType() == Event.NODE_REMOVED) {
+                    this.invalidateRemoved(event.getPath());
+                } else if (event.getType() == Event.NODE_MOVED) {
+                    final Object srcAbsPath = event.getInfo().get(SRC_ABS_PATH);
+                    if (srcAbsPath != null) {
+                        this.invalidateRemoved(srcAbsPath.toString());
+                    }
+                    this.invalidateAdded(event.getPath());
+                }
+            } catch (RepositoryException ex) {
+                log.warn("Could not process existing ancestor cache event; clearing cache: {}", ex.getMessage());
+                this.clear();
+            }
+        }
+    }
+
+    private boolean isObserved(final String path) {
+        for (final String observedPath : this.observedPaths) {
+            if (ErrorPageIndex.isSelfOrDescendant(path, observedPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void clear() {
+        this.entries.clear();
+    }
+
+    private static final class Entry {
+        private final String ancestorPath;
+
+        private final long expires;
+
+        private Entry(final String ancestorPath, final long expires) {
+            this.ancestorPath = ancestorPath;
+            this.expires = expires;
+        }
+    }
+}
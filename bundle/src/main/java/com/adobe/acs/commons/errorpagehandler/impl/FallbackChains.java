@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import com.adobe.acs.commons.util.OsgiPropertyUtil;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ordered error page names to try for each error status code.
+ *
+ * Chains are configured as &lt;status&gt;=&lt;page name&gt;,&lt;page name&gt; where status is either an exact status
+ * code (ex. 404) or a status class (ex. 4xx); exact status codes take precedence over status classes. The page named
+ * after the status code is always tried first.
+ */
+public final class FallbackChains {
+    private static final Logger log = LoggerFactory.getLogger(FallbackChains.class);
+
+    public static final int MIN_STATUS = 400;
+
+    public static final int MAX_STATUS = 599;
+
+    public static final FallbackChains NONE = new FallbackChains(new String[0]);
+
+    /* Page names to try, indexed by status code - MIN_STATUS */
+    private final String[][] pageNames = new String[MAX_STATUS - MIN_STATUS + 1][];
+
+    /**
+     * @param config fallback chains in the format &lt;status&gt;=&lt;page name&gt;,&lt;page name&gt;
+     */
+    public FallbackChains(final String[] config) {
+        final Map<String, String[]> chains = new HashMap<String, String[]>();
+
+        for (final Map.Entry<String, String[]> entry : OsgiPropertyUtil.toMap(config, "=", ",").entrySet()) {
+            final String key = StringUtils.lowerCase(StringUtils.trim(entry.getKey()));
+
+            if (isStatus(key) || isStatusClass(key)) {
+                chains.put(key, entry.getValue());
+            } else {
+                log.warn("Ignoring error page fallback chain for invalid status [ {} ]", entry.getKey());
+            }
+        }
+
+        for (int status = MIN_STATUS; status <= MAX_STATUS; status++) {
+            final String statusName = String.valueOf(status);
+            String[] chain = chains.get(statusName);
+
+            if (chain == null) {
+                chain = chains.get(statusName.charAt(0) + "xx");
+            }
+
+            this.pageNames[status - MIN_STATUS] = toPageNames(statusName, chain);
+        }
+    }
+
+    /**
+     * @param statusCode the error status code
+     * @return the (lowercase) error page names to try, in order
+     */
+    public String[] getPageNames(final int statusCode) {
+        if (statusCode < MIN_STATUS || statusCode > MAX_STATUS) {
+            return new String[]{ String.valueOf(statusCode) };
+        }
+
+        return this.pageNames[statusCode - MIN_STATUS].clone();
+    }
+
+    private static String[] toPageNames(final String statusName, final String[] chain) {
+        final List<String> names = new ArrayList<String>();
+        names.add(statusName);
+
+        if (chain != null) {
+            for (final String name : chain) {
+                final String pageName = StringUtils.lowerCase(StringUtils.trimToNull(name));
+
+                if (pageName != null && !names.contains(pageName)) {
+                    names.add(pageName);
+                }
+            }
+        }
+
+        return names.toArray(new String[names.size()]);
+    }
+
+    private static boolean isStatus(final String key) {
+        return key.length() == 3 && StringUtils.isNumeric(key);
+    }
+
+    private static boolean isStatusClass(final String key) {
+        return key.length() == 3 && Character.isDigit(key.charAt(0)) && key.endsWith("xx");
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable, segment-based radix trie of absolute repository paths.
+ *
+ * Resolves the deepest path in the trie that is equal to, or an ancestor of, a provided path in O(path depth)
+ * without allocating; child segments are matched in place against the looked up path.
+ *
+ * @param <V> type of the value associated with each path
+ */
+public final class PathTrie<V> {
+    private final Node<V> root = new Node<V>(null, "");
+
+    private final int size;
+
+    /**
+     * @param entries absolute paths and their associated values; null values are ignored
+     */
+    public PathTrie(final Map<String, V> entries) {
+        int count = 0;
+
+        for (final Map.Entry<String, V> entry : entries.entrySet()) {
+            if (entry.getValue() == null || !StringUtils.startsWith(entry.getKey(), "/")) { continue; }
+
+            Node<V> node = this.root;
+            for (final String segment : StringUtils.split(entry.getKey(), '/')) {
+                node = node.getOrCreateChild(segment);
+            }
+
+            if (node.value == null) {
+                count++;
+            }
+            node.value = entry.getValue();
+        }
+
+        this.size = count;
+        this.root.seal(null);
+    }
+
+    /**
+     * @return the number of paths held by the trie
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return true if the trie holds no paths
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Finds the deepest path in the trie that is equal to, or an ancestor of, the provided path.
+     *
+     * Shallower matches can be visited via {@link Match#getNext()}.
+     *
+     * @param path the absolute path to match
+     * @return the deepest match, or null if no path in the trie matches
+     */
+    public Match<V> findDeepest(final String path) {
+        if (path == null) {
+            return null;
+        }
+
+        Node<V> node = this.root;
+        Node<V> deepest = this.root.value == null ? null : this.root;
+
+        final int length = path.length();
+        int start = 0;
+
+        while (start < length) {
+            if (path.charAt(start) == '/') {
+                start++;
+                continue;
+            }
+
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            node = node.getChild(path, start, end);
+            if (node == null) {
+                break;
+            } else if (node.value != null) {
+                deepest = node;
+            }
+
+            start = end;
+        }
+
+        return deepest;
+    }
+
+    /**
+     * A path held by the trie that matched a lookup.
+     *
+     * @param <V> type of the value associated with the path
+     */
+    public interface Match<V> {
+        /**
+         * @return the matching path
+         */
+        String getPath();
+
+        /**
+         * @return the value associated with the matching path
+         */
+        V getValue();
+
+        /**
+         * @return the next shallower matching ancestor path, or null if there is none
+         */
+        Match<V> getNext();
+    }
+
+    private static final class Node<V> implements Match<V> {
+        private static final int MIN_TABLE_SIZE = 4;
+
+        private final String path;
+
+        private final String segment;
+
+        private V value;
+
+        private Match<V> next;
+
+        /* Children are collected in a map while building, then sealed into an open addressed hash table */
+        private Map<String, Node<V>> pending = new LinkedHashMap<String, Node<V>>();
+
+        private String[] segments;
+
+        private Node<V>[] children;
+
+        private Node(final String parentPath, final String segment) {
+            this.segment = segment;
+
+            if (parentPath == null) {
+                this.path = "/";
+            } else if ("/".equals(parentPath)) {
+                this.path = "/" + segment;
+            } else {
+                this.path = parentPath + "/" + segment;
+            }
+        }
+
+        private Node<V> getOrCreateChild(final String childSegment) {
+            Node<V> child = this.pending.get(childSegment);
+
+            if (child == null) {
+                child = new Node<V>(this.path, childSegment);
+                this.pending.put(childSegment, child);
+            }
+
+            return child;
+        }
+
+        private void seal(final Match<V> ancestor) {
+            this.next = ancestor;
+            final Match<V> nextAncestor = this.value == null ? ancestor : this;
+
+            int tableSize = MIN_TABLE_SIZE;
+            while (tableSize < this.pending.size() * 2) {
+                tableSize <<= 1;
+            }
+
+            this.segments = new String[tableSize];
+            @SuppressWarnings("unchecked")
+            final Node<V>[] children = (Node<V>[]) new Node<?>[tableSize];
+            this.children = children;
+
+            for (final Node<V> child : this.pending.values()) {
+                int slot = hash(child.segment, 0, child.segment.length()) & (tableSize - 1);
+
+                while (this.segments[slot] != null) {
+                    slot = (slot + 1) & (tableSize - 1);
+                }
+
+                this.segments[slot] = child.segment;
+                this.children[slot] = child;
+
+                child.seal(nextAncestor);
+            }
+
+            this.pending = null;
+        }
+
+        private Node<V> getChild(final String path, final int start, final int end) {
+            final int mask = this.segments.length - 1;
+            final int length = end - start;
+            int slot = hash(path, start, end) & mask;
+
+            String candidate;
+            while ((candidate = this.segments[slot]) != null) {
+                if (candidate.length() == length && path.regionMatches(start, candidate, 0, length)) {
+                    return this.children[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            return null;
+        }
+
+        private static int hash(final String value, final int start, final int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + value.charAt(i);
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        @Override
+        public String getPath() {
+            return this.path;
+        }
+
+        @Override
+        public V getValue() {
+            return this.value;
+        }
+
+        @Override
+        public Match<V> getNext() {
+            return this.next;
+        }
+    }
+}
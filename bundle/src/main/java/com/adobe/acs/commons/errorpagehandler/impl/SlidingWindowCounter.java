@@ -0,0 +1,126 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, approximate sliding window counter of events per key.
+ *
+ * Keys are hashed onto a fixed number of stripes, each holding one counter per window bucket, so memory is bounded
+ * regardless of the number of distinct keys. Keys sharing a stripe share a count, so counts may over-estimate but
+ * never under-estimate (other than increments racing a bucket being recycled).
+ */
+public final class SlidingWindowCounter {
+    private static final int BUCKETS = 10;
+
+    private final int stripeMask;
+
+    private final long bucketMillis;
+
+    /* counts[bucket * stripes + stripe] */
+    private final AtomicLongArray counts;
+
+    /* The time slot (now / bucketMillis) each bucket currently counts */
+    private final AtomicLongArray slots = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @param stripes number of counter stripes; rounded up to a power of two
+     * @param windowMillis length of the sliding window in milliseconds
+     */
+    public SlidingWindowCounter(final int stripes, final long windowMillis) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+
+        this.stripeMask = size - 1;
+        this.bucketMillis = Math.max(1L, windowMillis / BUCKETS);
+        this.counts = new AtomicLongArray(size * BUCKETS);
+    }
+
+    /**
+     * Counts an event for the key.
+     *
+     * @param key the key
+     * @param now the current time in milliseconds
+     * @return the number of events counted for the key within the window, including this one
+     */
+    public long increment(final String key, final long now) {
+        final long slot = now / this.bucketMillis;
+        final int bucket = (int) (slot % BUCKETS);
+
+        this.recycle(bucket, slot);
+        this.counts.incrementAndGet(bucket * this.stripes() + this.stripe(key));
+
+        return this.count(key, now);
+    }
+
+    /**
+     * @param key the key
+     * @param now the current time in milliseconds
+     * @return the number of events counted for the key within the window
+     */
+    public long count(final String key, final long now) {
+        final long slot = now / this.bucketMillis;
+        final int stripe = this.stripe(key);
+        long count = 0;
+
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (slot - this.slots.get(bucket) < BUCKETS) {
+                count += this.counts.get(bucket * this.stripes() + stripe);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Discards all counts.
+     */
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            this.slots.set(bucket, Long.MIN_VALUE / 2);
+        }
+        for (int i = 0; i < this.counts.length(); i++) {
+            this.counts.set(i, 0);
+        }
+    }
+
+    private void recycle(final int bucket, final long slot) {
+        final long current = this.slots.get(bucket);
+
+        if (current != slot && this.slots.compareAndSet(bucket, current, slot)) {
+            final int offset = bucket * this.stripes();
+            for (int i = 0; i < this.stripes(); i++) {
+                this.counts.set(offset + i, 0);
+            }
+        }
+    }
+
+    private int stripes() {
+        return this.stripeMask + 1;
+    }
+
+    private int stripe(final String key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & this.stripeMask;
+    }
+}
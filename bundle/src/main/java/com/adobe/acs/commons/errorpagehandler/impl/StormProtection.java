@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects abnormal error rates per client and per content root.
+ *
+ * A client or content root is "storming" for one window length after its error count within the sliding window
+ * exceeds the configured threshold.
+ */
+public final class StormProtection {
+    private static final Logger log = LoggerFactory.getLogger(StormProtection.class);
+
+    private static final int STRIPES = 4096;
+
+    private static final int MAX_TRACKED = 100;
+
+    private final long windowMillis;
+
+    private final int clientThreshold;
+
+    private final int contentRootThreshold;
+
+    private final SlidingWindowCounter clientCounter;
+
+    private final SlidingWindowCounter contentRootCounter;
+
+    /* Storming keys and the time until which they are considered storming */
+    private final Map<String, Long> stormingClients = new ConcurrentHashMap<String, Long>();
+
+    private final Map<String, Long> stormingContentRoots = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong degradedCount = new AtomicLong();
+
+    /**
+     * @param windowMillis length of the sliding window in milliseconds
+     * @param clientThreshold errors per window a single client may cause; 0 disables per client detection
+     * @param contentRootThreshold errors per window a single content root may cause; 0 disables per content root
+     *                             detection
+     */
+    public StormProtection(final long windowMillis, final int clientThreshold, final int contentRootThreshold) {
+        this.windowMillis = windowMillis;
+        this.clientThreshold = clientThreshold;
+        this.contentRootThreshold = contentRootThreshold;
+        this.clientCounter = new SlidingWindowCounter(STRIPES, windowMillis);
+        this.contentRootCounter = new SlidingWindowCounter(STRIPES, windowMillis);
+    }
+
+    /**
+     * Records an error.
+     *
+     * @param client the requesting client
+     * @param contentRoot the content root the request targeted
+     * @return true if the client or content root is storming, and the error should be handled in degraded mode
+     */
+    public boolean record(final String client, final String contentRoot) {
+        final long now = System.currentTimeMillis();
+
+        final boolean clientStorming = this.record(client, now, this.clientThreshold,
+                this.clientCounter, this.stormingClients);
+        final boolean contentRootStorming = this.record(contentRoot, now, this.contentRootThreshold,
+                this.contentRootCounter, this.stormingContentRoots);
+
+        if (clientStorming || contentRootStorming) {
+            this.degradedCount.incrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean record(final String key, final long now, final int threshold,
+                           final SlidingWindowCounter counter, final Map<String, Long> storming) {
+        if (threshold <= 0 || key == null) {
+            return false;
+        }
+
+        if (counter.increment(key, now) <= threshold) {
+            return false;
+        }
+
+        final Long until = storming.get(key);
+        if (until == null || until < now) {
+            if (until == null) {
+                log.warn("Error storm detected for [ {} ]; serving degraded error responses", key);
+            }
+
+            if (until != null || storming.size() < MAX_TRACKED) {
+                storming.put(key, now + this.windowMillis);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true if any client or content root is currently storming
+     */
+    public boolean isStorming() {
+        return this.getStormingClients().length > 0 || this.getStormingContentRoots().length > 0;
+    }
+
+    /**
+     * @return the clients currently storming
+     */
+    public String[] getStormingClients() {
+        return getStorming(this.stormingClients);
+    }
+
+    /**
+     * @return the content roots currently storming
+     */
+    public String[] getStormingContentRoots() {
+        return getStorming(this.stormingContentRoots);
+    }
+
+    /**
+     * @return the number of errors handled in degraded mode
+     */
+    public long getDegradedCount() {
+        return this.degradedCount.get();
+    }
+
+    /**
+     * Discards all counts and storming clients and content roots.
+     */
+    public void reset() {
+        this.clientCounter.reset();
+        this.contentRootCounter.reset();
+        this.stormingClients.clear();
+        this.stormingContentRoots.clear();
+    }
+
+    private static String[] getStorming(final Map<String, Long> storming) {
+        final long now = System.currentTimeMillis();
+        final List<String> keys = new ArrayList<String>();
+
+        final Iterator<Map.Entry<String, Long>> iterator = storming.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+
+            if (entry.getValue() < now) {
+                iterator.remove();
+            } else {
+                keys.add(entry.getKey());
+            }
+        }
+
+        return keys.toArray(new String[keys.size()]);
+    }
+}
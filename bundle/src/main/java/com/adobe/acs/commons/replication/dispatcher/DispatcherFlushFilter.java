@@ -81,15 +81,19 @@ public class DispatcherFlushFilter implements AgentFilter {
      */
     @Override
     public final boolean isIncluded(final Agent agent) {
-        if (FlushType.All.equals(this.flushType)) {
-            return this.isIncludedCommon(agent);
-        } else if (FlushType.Hierarchical.equals(this.flushType)) {
-            return this.isIncludedHierarchical(agent);
-        } else if (FlushType.ResourceOnly.equals(this.flushType)) {
-            return this.isIncludedResourceOnly(agent);
+        if (!this.isIncludedCommon(agent)) {
+            return false;
         }
 
-        return false;
+        final FlushType agentFlushType = this.getAgentFlushType(agent);
+
+        if (agentFlushType == null) {
+            return false;
+        } else if (FlushType.All.equals(this.flushType)) {
+            return true;
+        }
+
+        return agentFlushType.equals(this.flushType);
     }
 
     /**
@@ -103,20 +107,9 @@ public class DispatcherFlushFilter implements AgentFilter {
     private boolean isIncludedCommon(final Agent agent) {
         return this.isFlushingAgent(agent)
                 && this.isDispatcherTransportURI(agent)
-                && this.isDispatcherHeaders(agent)
                 && this.isEnabled(agent);
     }
 
-    private boolean isIncludedHierarchical(final Agent agent) {
-        return this.isIncludedCommon(agent)
-                && !this.isResourceOnly(agent);
-    }
-
-    private boolean isIncludedResourceOnly(final Agent agent) {
-        return this.isIncludedCommon(agent)
-                && this.isResourceOnly(agent);
-    }
-
     /**
      * Checks if the agent is enabled.
      *
@@ -151,40 +144,31 @@ public class DispatcherFlushFilter implements AgentFilter {
     }
 
     /**
-     * Checks if the agent has a valid dispatcher headers.
+     * Classifies the agent by its dispatcher headers, scanning them once.
      *
      * @param agent Agent to check
-     * @return true if the Agent's headers contain the proper values
+     * @return ResourceOnly if the Agent's headers contain CQ-Action and CQ-Action-Scope: ResourceOnly, Hierarchical
+     * if they contain only CQ-Action, or null if they are not dispatcher headers
      */
-    private boolean isDispatcherHeaders(final Agent agent) {
+    private FlushType getAgentFlushType(final Agent agent) {
         final ValueMap properties = agent.getConfiguration().getProperties();
         final String[] headers =  properties.get(AgentConfig.PROTOCOL_HTTP_HEADERS, new String[]{});
 
-        for (final String header : headers) {
-            if (StringUtils.startsWith(header, CQ_ACTION_HEADER)) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
-    /**
-     * Checks if the agent has valid CQ-Action-Scope: ResourceOnly header.
-     *
-     * @param agent Agent to check
-     * @return true if the Agent's headers contain the expected values
-     */
-    private boolean isResourceOnly(final Agent agent) {
-        final ValueMap properties = agent.getConfiguration().getProperties();
-        final String[] headers =  properties.get(AgentConfig.PROTOCOL_HTTP_HEADERS, new String[]{});
+        boolean dispatcherHeaders = false;
+        boolean resourceOnly = false;
 
         for (final String header : headers) {
             if (StringUtils.equals(header, CQ_SCOPE_ACTION_HEADER)) {
-                return true;
+                resourceOnly = true;
+            } else if (StringUtils.startsWith(header, CQ_ACTION_HEADER)) {
+                dispatcherHeaders = true;
             }
         }
 
-        return false;
+        if (!dispatcherHeaders) {
+            return null;
+        }
+
+        return resourceOnly ? FlushType.ResourceOnly : FlushType.Hierarchical;
     }
 }
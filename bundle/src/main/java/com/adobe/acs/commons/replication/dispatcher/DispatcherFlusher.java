@@ -27,6 +27,7 @@ import com.day.cq.replication.ReplicationException;
 import com.day.cq.replication.ReplicationResult;
 import org.apache.sling.api.resource.ResourceResolver;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -75,6 +76,27 @@ public interface DispatcherFlusher {
                                         boolean synchronous, AgentFilter agentFilter, String... paths) throws
             ReplicationException;
 
+    /**
+     * Issue flush replication requests for a batch of paths.
+     *
+     * Each distinct path is flushed once per agent. Hierarchical flush agents are not sent paths beneath another
+     * path of the batch, as flushing the ancestor already flushes them.
+     *
+     * @param resourceResolver access into repository; Must have access to the resources to flush
+     * @param actionType specifies the Replication Type that will be associated with the flush requests
+     *                   (ex. Activate, Deactivate, Delete)
+     * @param synchronous specifies if the Replication Request should be synchronous or asynchronous
+     * @param agentFilter filter used to specify agents to flush
+     * @param paths resources to flush
+     * @return a map of each distinct path to the targeted flush agents and the result of the replication request
+     * that flushed the path via the agent
+     * @throws ReplicationException
+     */
+    Map<String, Map<Agent, ReplicationResult>> flush(ResourceResolver resourceResolver,
+                                                     ReplicationActionType actionType, boolean synchronous,
+                                                     AgentFilter agentFilter, Collection<String> paths)
+            throws ReplicationException;
+
     /**
      * Get Replication Agents targeted by this service.
      *
@@ -0,0 +1,69 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentFilter;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Restricts an agent filter to the Agents admitted by the flush circuit breaker.
+ */
+public final class AdmittedAgentFilter implements AgentFilter {
+    private final AgentFilter agentFilter;
+
+    private final Set<String> agentIds;
+
+    /**
+     * @param agentFilter the restricted agent filter
+     * @param agentIds the ids of the admitted Agents
+     */
+    public AdmittedAgentFilter(final AgentFilter agentFilter, final Collection<String> agentIds) {
+        this.agentFilter = agentFilter;
+        this.agentIds = new HashSet<String>(agentIds);
+    }
+
+    /**
+     * @param agentFilter the restricted agent filter
+     * @param agentIds the ids of the admitted Agents
+     */
+    public AdmittedAgentFilter(final AgentFilter agentFilter, final String... agentIds) {
+        this(agentFilter, Arrays.asList(agentIds));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isIncluded(final Agent agent) {
+        return this.agentIds.contains(agent.getId()) && this.agentFilter.isIncluded(agent);
+    }
+
+    /**
+     * @return the restricted agent filter
+     */
+    public AgentFilter getAgentFilter() {
+        return this.agentFilter;
+    }
+}
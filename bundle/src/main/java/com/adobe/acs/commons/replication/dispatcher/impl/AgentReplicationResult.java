@@ -0,0 +1,153 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.ReplicationResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of replicating a series of paths via a single agent; successful only if every path was replicated
+ * successfully.
+ */
+public class AgentReplicationResult extends ReplicationResult {
+    private final List<PathResult> pathResults;
+
+    private final List<PathResult> failures;
+
+    /**
+     * @param pathResults the results of the individual paths
+     */
+    public AgentReplicationResult(final Collection<PathResult> pathResults) {
+        this(pathResults, getFailures(pathResults));
+    }
+
+    private AgentReplicationResult(final Collection<PathResult> pathResults, final List<PathResult> failures) {
+        super(failures.isEmpty(), getCode(pathResults, failures), getMessage(pathResults, failures));
+
+        this.pathResults = Collections.unmodifiableList(new ArrayList<PathResult>(pathResults));
+        this.failures = Collections.unmodifiableList(failures);
+    }
+
+    private static List<PathResult> getFailures(final Collection<PathResult> pathResults) {
+        final List<PathResult> failures = new ArrayList<PathResult>();
+
+        for (final PathResult pathResult : pathResults) {
+            if (!pathResult.isSuccess()) {
+                failures.add(pathResult);
+            }
+        }
+
+        return failures;
+    }
+
+    private static int getCode(final Collection<PathResult> pathResults, final List<PathResult> failures) {
+        if (!failures.isEmpty()) {
+            return failures.get(0).getCode();
+        }
+
+        int code = 0;
+        for (final PathResult pathResult : pathResults) {
+            code = pathResult.getCode();
+        }
+
+        return code;
+    }
+
+    private static String getMessage(final Collection<PathResult> pathResults, final List<PathResult> failures) {
+        if (failures.isEmpty()) {
+            return pathResults.size() + " paths replicated";
+        }
+
+        return failures.size() + " of " + pathResults.size() + " paths failed; first failure: "
+                + failures.get(0).getPath() + " (" + failures.get(0).getMessage() + ")";
+    }
+
+    /**
+     * @return the results of the individual paths
+     */
+    public final List<PathResult> getPathResults() {
+        return this.pathResults;
+    }
+
+    /**
+     * @return the results of the individual paths that failed
+     */
+    public final List<PathResult> getFailures() {
+        return this.failures;
+    }
+
+    /**
+     * The result of replicating a single path via a single agent.
+     */
+    public static final class PathResult {
+        private final String path;
+
+        private final boolean success;
+
+        private final int code;
+
+        private final String message;
+
+        private final long duration;
+
+        /**
+         * @param path the replicated path
+         * @param success true if the path was replicated successfully
+         * @param code the replication result code
+         * @param message the replication result message
+         * @param duration the time in nanoseconds from the start to the end of the replication, or -1 if unknown
+         */
+        public PathResult(final String path, final boolean success, final int code, final String message,
+                          final long duration) {
+            this.path = path;
+            this.success = success;
+            this.code = code;
+            this.message = message;
+            this.duration = duration;
+        }
+
+        public String getPath() {
+            return this.path;
+        }
+
+        public boolean isSuccess() {
+            return this.success;
+        }
+
+        public int getCode() {
+            return this.code;
+        }
+
+        public String getMessage() {
+            return this.message;
+        }
+
+        /**
+         * @return the time in nanoseconds from the start to the end of the replication, or -1 if unknown
+         */
+        public long getDuration() {
+            return this.duration;
+        }
+    }
+}
@@ -0,0 +1,605 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
+import com.adobe.acs.commons.replication.dispatcher.impl.AgentReplicationResult.PathResult;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentConfig;
+import com.day.cq.replication.AgentFilter;
+import com.day.cq.replication.AgentManager;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationResult;
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * DispatcherFlusher that sends invalidation requests directly to the dispatchers targeted by the Dispatcher Flush
+ * Agents, rather than via the Agents' replication queues.
+ *
+ * Requests are built from each Agent's transport URI, HTTP method and HTTP headers (ex. CQ-Action:{action} and
+ * CQ-Handle:{path}), and are sent in parallel over keep-alive connections; HttpURLConnection pools and reuses
+ * connections whose responses are fully read.
+ *
+ * Requests wait in a queue per dispatcher host until one of the host's connections is free, so requests to a slow
+ * dispatcher do not occupy the threads sending requests to other dispatchers.
+ */
+@Component(
+        label = "ACS AEM Commons - Direct Dispatcher Flusher",
+        description = "Issues flush requests directly to the dispatchers of enabled Dispatcher Flush Agents, "
+                + "bypassing the Agents' replication queues. Flushes are not retried. Transport credentials "
+                + "must be stored unencrypted to be used.",
+        immediate = false,
+        metatype = true,
+        policy = ConfigurationPolicy.REQUIRE
+)
+@Properties({
+    @Property(
+        label = "Service Ranking",
+        description = "Ranks this DispatcherFlusher above the default, queue-based DispatcherFlusher. "
+                + "[ Default: 1000 ]",
+        name = "service.ranking",
+        intValue = 1000
+    )
+})
+@Service
+public class DirectDispatcherFlusherImpl implements DispatcherFlusher {
+    private static final Logger log = LoggerFactory.getLogger(DirectDispatcherFlusherImpl.class);
+
+    private static final String ACTION_PLACEHOLDER = "{action}";
+
+    private static final String PATH_PLACEHOLDER = "{path}";
+
+    private static final String DEFAULT_HTTP_METHOD = "POST";
+
+    /* Threads */
+    private static final int DEFAULT_THREADS = 10;
+
+    @Property(label = "Threads",
+            description = "Number of flush requests sent in parallel across all dispatchers. [ Default: 10 ]",
+            intValue = DEFAULT_THREADS)
+    private static final String PROP_THREADS = "prop.threads";
+
+    /* Max connections per host */
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+
+    @Property(label = "Max Connections per Host",
+            description = "Number of flush requests sent in parallel to a single dispatcher. Keep at or below the "
+                    + "JVM's http.maxConnections (5 by default) so all connections are kept alive. [ Default: 5 ]",
+            intValue = DEFAULT_MAX_CONNECTIONS_PER_HOST)
+    private static final String PROP_MAX_CONNECTIONS_PER_HOST = "prop.max-connections-per-host";
+
+    /* Connect timeout */
+    private static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+
+    @Property(label = "Connect Timeout",
+            description = "Time in milliseconds to wait to connect to a dispatcher, unless set on the Agent. "
+                    + "[ Default: 2000 ]",
+            intValue = DEFAULT_CONNECT_TIMEOUT)
+    private static final String PROP_CONNECT_TIMEOUT = "prop.connect-timeout";
+
+    /* Socket timeout */
+    private static final int DEFAULT_SOCKET_TIMEOUT = 5000;
+
+    @Property(label = "Socket Timeout",
+            description = "Time in milliseconds to wait for a dispatcher to respond, unless set on the Agent. "
+                    + "[ Default: 5000 ]",
+            intValue = DEFAULT_SOCKET_TIMEOUT)
+    private static final String PROP_SOCKET_TIMEOUT = "prop.socket-timeout";
+
+    @Reference
+    private AgentManager agentManager;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile FlushTelemetry flushTelemetry;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile FlushPlanner flushPlanner;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile FlushJournal flushJournal;
+
+    private final AtomicReference<FlushAgentSnapshot> flushAgentSnapshot = new AtomicReference<FlushAgentSnapshot>();
+
+    private final ConcurrentMap<String, HostQueue> hostQueues = new ConcurrentHashMap<String, HostQueue>();
+
+    private ThreadPoolExecutor executor;
+
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+    private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final Map<Agent, ReplicationResult> flush(final ResourceResolver resourceResolver, final String... paths)
+            throws ReplicationException {
+        return this.flush(resourceResolver, ReplicationActionType.ACTIVATE, false, paths);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final Map<Agent, ReplicationResult> flush(final ResourceResolver resourceResolver,
+                                                     final ReplicationActionType actionType,
+                                                     final boolean synchronous,
+                                                     final String... paths) throws ReplicationException {
+        return this.flush(resourceResolver, actionType, synchronous, DispatcherFlushFilter.HIERARCHICAL, paths);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Asynchronous flushes return once the requests are submitted, with a SubmittedReplicationResult per Agent. If a
+     * FlushPlanner is available, multiple paths are flushed as a batch planned by it.
+     *
+     * If a FlushJournal is available, flushes with a DispatcherFlushFilter are journaled until they are delivered via
+     * all Agents, also when flushed asynchronously.
+     */
+    @Override
+    public final Map<Agent, ReplicationResult> flush(final ResourceResolver resourceResolver,
+                                                     final ReplicationActionType actionType,
+                                                     final boolean synchronous,
+                                                     final AgentFilter agentFilter,
+                                                     final String... paths) throws ReplicationException {
+        final Map<Agent, List<String>> flushes = new LinkedHashMap<Agent, List<String>>();
+        final Agent[] agents = this.getAgents(agentFilter);
+        final FlushPlanner planner = this.flushPlanner;
+        final FlushBatch batch = planner != null && paths.length > 1
+                ? new FlushBatch(agents, actionType, Arrays.asList(paths), planner) : null;
+        final FlushJournal journal = this.flushJournal;
+        final long sequence = FlushJournalImpl.record(journal, actionType, agentFilter, Arrays.asList(paths));
+
+        for (final Agent agent : agents) {
+            flushes.put(agent, batch == null ? Arrays.asList(paths) : batch.getFlushPaths(agent));
+        }
+
+        final boolean journaled = sequence != FlushJournalImpl.NOT_JOURNALED;
+
+        return this.send(flushes, actionType, synchronous, !journaled ? null : new Completion() {
+            @Override
+            public void complete(final Map<Agent, ReplicationResult> results) {
+                FlushJournalImpl.done(journal, actionType, agentFilter, agents, batch == null
+                        ? FlushBatch.getResults(Arrays.asList(paths), results) : batch.getResults(results),
+                        sequence);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Each Agent is sent one request per distinct path it flushes.
+     */
+    @Override
+    public final Map<String, Map<Agent, ReplicationResult>> flush(final ResourceResolver resourceResolver,
+                                                                  final ReplicationActionType actionType,
+                                                                  final boolean synchronous,
+                                                                  final AgentFilter agentFilter,
+                                                                  final Collection<String> paths)
+            throws ReplicationException {
+        final Agent[] agents = this.getAgents(agentFilter);
+        final FlushBatch batch = new FlushBatch(agents, actionType, paths, this.flushPlanner);
+        final Map<Agent, List<String>> flushes = new LinkedHashMap<Agent, List<String>>();
+        final FlushJournal journal = this.flushJournal;
+        final long sequence = FlushJournalImpl.record(journal, actionType, agentFilter, batch.getPaths());
+
+        for (final Agent agent : agents) {
+            flushes.put(agent, batch.getFlushPaths(agent));
+        }
+
+        final boolean journaled = sequence != FlushJournalImpl.NOT_JOURNALED;
+
+        return batch.getResults(this.send(flushes, actionType, synchronous, !journaled ? null : new Completion() {
+            @Override
+            public void complete(final Map<Agent, ReplicationResult> results) {
+                FlushJournalImpl.done(journal, actionType, agentFilter, agents, batch.getResults(results), sequence);
+            }
+        }));
+    }
+
+    /**
+     * Sends the flush requests of each Agent in parallel.
+     *
+     * @param flushes the paths to flush per Agent
+     * @param actionType the replication action type of the flushes
+     * @param synchronous true to wait for the requests to complete
+     * @param completion notified once all requests completed, also if not waited for, or null
+     * @return the result per Agent
+     * @throws ReplicationException
+     */
+    private Map<Agent, ReplicationResult> send(final Map<Agent, List<String>> flushes,
+                                               final ReplicationActionType actionType, final boolean synchronous,
+                                               final Completion completion)
+            throws ReplicationException {
+        final Map<Agent, List<Future<PathResult>>> requests = new LinkedHashMap<Agent, List<Future<PathResult>>>();
+
+        /* Completed requests per Agent, and the number of requests yet to complete */
+        final Map<Agent, Queue<PathResult>> completed = new LinkedHashMap<Agent, Queue<PathResult>>();
+        final AtomicInteger remaining = new AtomicInteger();
+
+        for (final Map.Entry<Agent, List<String>> flush : flushes.entrySet()) {
+            completed.put(flush.getKey(), new ConcurrentLinkedQueue<PathResult>());
+            remaining.addAndGet(flush.getValue().size());
+        }
+
+        for (final Map.Entry<Agent, List<String>> flush : flushes.entrySet()) {
+            final Agent agent = flush.getKey();
+            final List<Future<PathResult>> futures = new ArrayList<Future<PathResult>>(flush.getValue().size());
+
+            final HostQueue hostQueue = this.getHostQueue(agent);
+
+            for (final String path : flush.getValue()) {
+                log.debug("Issuing Dispatcher Flush (direct) request for: {} via {}", path, agent.getId());
+
+                final FutureTask<PathResult> request = new FutureTask<PathResult>(new Callable<PathResult>() {
+                    @Override
+                    public PathResult call() {
+                        final long start = System.nanoTime();
+                        final ReplicationResult result = invalidate(agent, actionType, path);
+                        final long duration = System.nanoTime() - start;
+
+                        final FlushTelemetry telemetry = flushTelemetry;
+                        if (telemetry != null) {
+                            telemetry.recordAgentFlush(agent.getId(), actionType, path, duration,
+                                    result.isSuccess(), result.getCode());
+                        }
+
+                        final PathResult pathResult = new PathResult(path, result.isSuccess(), result.getCode(),
+                                result.getMessage(), duration);
+
+                        if (completion != null) {
+                            completed.get(agent).add(pathResult);
+
+                            if (remaining.decrementAndGet() == 0) {
+                                completion.complete(getResults(completed));
+                            }
+                        }
+
+                        return pathResult;
+                    }
+                });
+
+                hostQueue.submit(request);
+                futures.add(request);
+            }
+
+            requests.put(agent, futures);
+        }
+
+        final Map<Agent, ReplicationResult> results = new LinkedHashMap<Agent, ReplicationResult>();
+
+        for (final Map.Entry<Agent, List<Future<PathResult>>> entry : requests.entrySet()) {
+            results.put(entry.getKey(), synchronous
+                    ? this.getResult(entry.getValue())
+                    : new SubmittedReplicationResult());
+        }
+
+        return results;
+    }
+
+    private static Map<Agent, ReplicationResult> getResults(final Map<Agent, Queue<PathResult>> completed) {
+        final Map<Agent, ReplicationResult> results = new LinkedHashMap<Agent, ReplicationResult>();
+
+        for (final Map.Entry<Agent, Queue<PathResult>> entry : completed.entrySet()) {
+            results.put(entry.getKey(), new AgentReplicationResult(entry.getValue()));
+        }
+
+        return results;
+    }
+
+    /**
+     * Waits for the flush requests sent via an Agent and collects them into a single result.
+     *
+     * @param futures the flush requests sent via the Agent
+     * @return the result, successful only if all requests succeeded
+     * @throws ReplicationException
+     */
+    private ReplicationResult getResult(final List<Future<PathResult>> futures) throws ReplicationException {
+        final List<PathResult> pathResults = new ArrayList<PathResult>(futures.size());
+
+        for (final Future<PathResult> future : futures) {
+            try {
+                pathResults.add(future.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ReplicationException("Interrupted waiting for dispatcher flush", ex);
+            } catch (ExecutionException ex) {
+                throw new ReplicationException("Could not issue dispatcher flush", ex);
+            } catch (CancellationException ex) {
+                throw new ReplicationException("Dispatcher flush was cancelled", ex);
+            }
+        }
+
+        return new AgentReplicationResult(pathResults);
+    }
+
+    /**
+     * Sends a single invalidation request to the dispatcher targeted by the Agent.
+     *
+     * @param agent the Dispatcher Flush Agent
+     * @param actionType the replication action type of the flush
+     * @param path the path to flush
+     * @return the result of the request
+     */
+    final ReplicationResult invalidate(final Agent agent, final ReplicationActionType actionType,
+                                       final String path) {
+        final AgentConfig config = agent.getConfiguration();
+        final ValueMap properties = config.getProperties();
+
+        HttpURLConnection connection = null;
+
+        try {
+            final URL url = new URL(config.getTransportURI());
+
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(getTimeout(properties, AgentConfig.PROTOCOL_CONNECT_TIMEOUT,
+                    this.connectTimeout));
+            connection.setReadTimeout(getTimeout(properties, AgentConfig.PROTOCOL_SOCKET_TIMEOUT,
+                    this.socketTimeout));
+            connection.setUseCaches(false);
+            connection.setRequestMethod(StringUtils.defaultIfEmpty(
+                    properties.get(AgentConfig.PROTOCOL_HTTP_METHOD, String.class), DEFAULT_HTTP_METHOD));
+
+            for (final String header : properties.get(AgentConfig.PROTOCOL_HTTP_HEADERS, new String[]{})) {
+                final int colon = header.indexOf(':');
+
+                if (colon > 0) {
+                    connection.setRequestProperty(StringUtils.trim(header.substring(0, colon)),
+                            StringUtils.trim(StringUtils.replaceEach(header.substring(colon + 1),
+                                    new String[]{ ACTION_PLACEHOLDER, PATH_PLACEHOLDER },
+                                    new String[]{ actionType.getName(), path })));
+                }
+            }
+
+            if (StringUtils.isNotBlank(config.getTransportUser())) {
+                final String credentials = config.getTransportUser() + ":"
+                        + StringUtils.defaultString(config.getTransportPassword());
+                connection.setRequestProperty("Authorization", "Basic "
+                        + DatatypeConverter.printBase64Binary(credentials.getBytes("UTF-8")));
+            }
+
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+
+            if ("POST".equals(connection.getRequestMethod())) {
+                // Send an empty, buffered body; unlike a streamed body, HttpURLConnection can resend it on a fresh
+                // connection when a pooled connection turns out to have been closed by the dispatcher
+                connection.setDoOutput(true);
+                connection.getOutputStream().close();
+            }
+
+            final int code = connection.getResponseCode();
+            final String message = connection.getResponseMessage();
+
+            HttpConnectionUtil.drainResponse(connection, code);
+
+            log.debug("Dispatcher Flush (direct) of {} via {} returned {}", new Object[]{ path, agent.getId(),
+                    code });
+
+            return new ReplicationResult(code >= HttpURLConnection.HTTP_OK
+                    && code < HttpURLConnection.HTTP_MULT_CHOICE, code, message);
+        } catch (IOException ex) {
+            log.warn("Could not issue Dispatcher Flush (direct) of {} via {}: {}", new Object[]{ path,
+                    agent.getId(), ex.getMessage() });
+
+            if (connection != null) {
+                // Don't return a connection in an unknown state to the pool
+                connection.disconnect();
+            }
+
+            return new ReplicationResult(false, 0, ex.getMessage());
+        }
+    }
+
+    private HostQueue getHostQueue(final Agent agent) {
+        // Requests to malformed transport URIs fail once sent; they are queued by the transport URI meanwhile
+        final String host = HttpConnectionUtil.getHost(agent.getConfiguration().getTransportURI());
+
+        HostQueue hostQueue = this.hostQueues.get(host);
+        if (hostQueue == null) {
+            final HostQueue created = new HostQueue(this.executor, this.maxConnectionsPerHost);
+            hostQueue = this.hostQueues.putIfAbsent(host, created);
+
+            if (hostQueue == null) {
+                hostQueue = created;
+            }
+        }
+
+        return hostQueue;
+    }
+
+    /**
+     * The flush requests to a single dispatcher host. Requests are run on the shared executor once fewer than the
+     * maximum number of connections per host are in use; until then they wait here, not on the executor's threads.
+     */
+    private static final class HostQueue {
+        private final Executor executor;
+
+        private final int maxConnections;
+
+        /* Guarded by this */
+        private final Queue<FutureTask<PathResult>> pending = new LinkedList<FutureTask<PathResult>>();
+
+        /* Guarded by this */
+        private int running = 0;
+
+        private HostQueue(final Executor executor, final int maxConnections) {
+            this.executor = executor;
+            this.maxConnections = maxConnections;
+        }
+
+        synchronized void submit(final FutureTask<PathResult> request) {
+            this.pending.add(request);
+            this.schedule();
+        }
+
+        private synchronized void complete() {
+            this.running--;
+            this.schedule();
+        }
+
+        private synchronized void schedule() {
+            while (this.running < this.maxConnections && !this.pending.isEmpty()) {
+                final FutureTask<PathResult> request = this.pending.remove();
+
+                try {
+                    this.executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                request.run();
+                            } finally {
+                                complete();
+                            }
+                        }
+                    });
+                    this.running++;
+                } catch (RejectedExecutionException ex) {
+                    // The flusher is deactivated
+                    request.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Notified once all flush requests of a flush completed.
+     */
+    private interface Completion {
+        /**
+         * @param results the result per Agent
+         */
+        void complete(Map<Agent, ReplicationResult> results);
+    }
+
+    private static int getTimeout(final ValueMap properties, final String name, final int defaultValue) {
+        final int timeout = PropertiesUtil.toInteger(properties.get(name), 0);
+        return timeout > 0 ? timeout : defaultValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final Agent[] getFlushAgents() {
+        return this.getAgents(new DispatcherFlushFilter());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final Agent[] getAgents(final AgentFilter agentFilter) {
+        return FlushAgentSnapshot.getAgents(agentManager.getAgents().values(), this.flushAgentSnapshot, agentFilter);
+    }
+
+    @Activate
+    protected final void activate(final Map<String, Object> properties) {
+        final int threads = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_THREADS), DEFAULT_THREADS));
+
+        this.maxConnectionsPerHost = Math.max(1, PropertiesUtil.toInteger(
+                properties.get(PROP_MAX_CONNECTIONS_PER_HOST), DEFAULT_MAX_CONNECTIONS_PER_HOST));
+        this.connectTimeout = PropertiesUtil.toInteger(properties.get(PROP_CONNECT_TIMEOUT),
+                DEFAULT_CONNECT_TIMEOUT);
+        this.socketTimeout = PropertiesUtil.toInteger(properties.get(PROP_SOCKET_TIMEOUT),
+                DEFAULT_SOCKET_TIMEOUT);
+
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "ACS AEM Commons - Direct Dispatcher Flusher " + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+
+        log.debug("Direct Dispatcher Flusher using {} threads and {} connections per host", threads,
+                this.maxConnectionsPerHost);
+    }
+
+    @Deactivate
+    protected final void deactivate(final Map<String, Object> properties) {
+        if (this.executor != null) {
+            this.executor.shutdown();
+            try {
+                if (!this.executor.awaitTermination(this.socketTimeout, TimeUnit.MILLISECONDS)) {
+                    this.executor.shutdownNow();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            this.executor = null;
+        }
+
+        this.hostQueues.clear();
+    }
+}
@@ -23,13 +23,18 @@ package com.adobe.acs.commons.replication.dispatcher.impl;
 import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
 import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
 import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
+import com.adobe.acs.commons.replication.dispatcher.impl.FlushRuleMatcher.FlushRule;
 import com.adobe.acs.commons.util.OsgiPropertyUtil;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentFilter;
 import com.day.cq.replication.AgentManager;
 import com.day.cq.replication.Preprocessor;
 import com.day.cq.replication.ReplicationAction;
 import com.day.cq.replication.ReplicationActionType;
 import com.day.cq.replication.ReplicationException;
 import com.day.cq.replication.ReplicationOptions;
+import com.day.cq.replication.ReplicationResult;
+import com.day.cq.search.QueryBuilder;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
@@ -39,6 +44,8 @@ import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -47,10 +54,24 @@ import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.jcr.RepositoryException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 @Component(
@@ -96,8 +117,10 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
     private static final String[] DEFAULT_HIERARCHICAL_FLUSH_RULES = {};
 
     @Property(label = "Flush Rules (Hierarchical)",
-            description = "Pattern to Path associations for flush rules."
-                    + "Format: <pattern-of-trigger-content>=<path-to-flush>",
+            description = "Pattern to Path associations for flush rules. "
+                    + "Format: <pattern-of-trigger-content>=<path-to-flush>[,<path-to-flush>...] "
+                    + "Paths may reference capture groups of the pattern as $1, $2, etc. "
+                    + "(ex. /content/dam/brand/(.*)=/content/site/$1)",
             cardinality = Integer.MAX_VALUE,
             value = { })
     private static final String PROP_FLUSH_RULES = "prop.rules.hierarchical";
@@ -108,11 +131,82 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
 
     @Property(label = "Flush Rules (ResourceOnly)",
             description = "Pattern to Path associations for flush rules. "
-                    + "Format: <pattern-of-trigger-content>=<path-to-flush>",
+                    + "Format: <pattern-of-trigger-content>=<path-to-flush>[,<path-to-flush>...] "
+                    + "Paths may reference capture groups of the pattern as $1, $2, etc. "
+                    + "(ex. /content/dam/brand/(.*)=/content/site/$1)",
             cardinality = Integer.MAX_VALUE,
             value = { })
     private static final String PROP_RESOURCE_ONLY_FLUSH_RULES = "prop.rules.resource-only";
 
+    /* Reference Flush Rules */
+    private static final String[] DEFAULT_REFERENCE_FLUSH_RULES = {};
+
+    @Property(label = "Flush Rules (References)",
+            description = "Patterns of replicated paths, such as DAM assets and content fragments, whose "
+                    + "referencing pages are flushed, as a batch. Pages are flushed ResourceOnly via ResourceOnly "
+                    + "Dispatcher Flush Agents, and hierarchically via the hierarchical Agents of dispatchers "
+                    + "without a ResourceOnly Agent. "
+                    + "Format: <pattern-of-trigger-content>",
+            cardinality = Integer.MAX_VALUE,
+            value = { })
+    private static final String PROP_REFERENCE_FLUSH_RULES = "prop.rules.references";
+
+    private static final String[] DEFAULT_REFERENCE_PROPERTIES = { "fileReference", "fragmentPath" };
+
+    @Property(label = "Reference Properties",
+            description = "Names of the properties that reference assets and content fragments. "
+                    + "[ Default: fileReference, fragmentPath ]",
+            cardinality = Integer.MAX_VALUE,
+            value = { "fileReference", "fragmentPath" })
+    private static final String PROP_REFERENCE_PROPERTIES = "prop.references.properties";
+
+    private static final String[] DEFAULT_REFERENCE_PATHS = { "/content" };
+
+    @Property(label = "Referencing Content Paths",
+            description = "Repository trees holding the referencing pages; observed to keep the references "
+                    + "current. [ Default: /content ]",
+            cardinality = Integer.MAX_VALUE,
+            value = { "/content" })
+    private static final String PROP_REFERENCE_PATHS = "prop.references.paths";
+
+    private static final String REFERENCE_INDEX_THREAD_NAME =
+            "ACS AEM Commons - Dispatcher Flush Rules Reference Index";
+
+    /* Flush Coalescing */
+    private static final long DEFAULT_COALESCE_WINDOW = 0;
+
+    @Property(label = "Flush Coalescing Window",
+            description = "Time in milliseconds to collect rule-triggered flushes before issuing them. Duplicate "
+                    + "flushes within the window are issued once, and hierarchical flushes beneath another "
+                    + "hierarchical flush are collapsed into it. Set to 0 to flush immediately. [ Default: 0 ]",
+            longValue = DEFAULT_COALESCE_WINDOW)
+    private static final String PROP_COALESCE_WINDOW = "prop.coalesce.window";
+
+    /* Asynchronous Flushing */
+    private static final boolean DEFAULT_ASYNC_ENABLED = false;
+
+    @Property(label = "Asynchronous Flushing",
+            description = "Issue rule-triggered flushes from a background thread pool rather than the replication "
+                    + "thread. Ignored when a Flush Coalescing Window is set. [ Default: false ]",
+            boolValue = DEFAULT_ASYNC_ENABLED)
+    private static final String PROP_ASYNC_ENABLED = "prop.async.enabled";
+
+    private static final int DEFAULT_ASYNC_THREADS = 1;
+
+    @Property(label = "Asynchronous Flushing Threads",
+            description = "Number of threads issuing asynchronous flushes. [ Default: 1 ]",
+            intValue = DEFAULT_ASYNC_THREADS)
+    private static final String PROP_ASYNC_THREADS = "prop.async.threads";
+
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 1000;
+
+    @Property(label = "Asynchronous Flushing Queue Size",
+            description = "Maximum number of replications awaiting asynchronous flushes. When the queue is full, "
+                    + "flushes are issued on the replication thread, slowing replication down until the queue "
+                    + "drains. [ Default: 1000 ]",
+            intValue = DEFAULT_ASYNC_QUEUE_SIZE)
+    private static final String PROP_ASYNC_QUEUE_SIZE = "prop.async.queue-size";
+
     @Reference
     private DispatcherFlusher dispatcherFlusher;
 
@@ -122,9 +216,25 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
     @Reference
     private ResourceResolverFactory resourceResolverFactory;
 
+    @Reference
+    private QueryBuilder queryBuilder;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile FlushTelemetry flushTelemetry;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile FlushJournal flushJournal;
+
     private Map<Pattern, String> hierarchicalFlushRules = new LinkedHashMap<Pattern, String>();
     private Map<Pattern, String> resourceOnlyFlushRules = new LinkedHashMap<Pattern, String>();
+    private List<Pattern> referenceFlushRules = new ArrayList<Pattern>();
     private ReplicationActionType replicationActionType = null;
+    private volatile FlushRuleMatcher flushRuleMatcher = null;
+    private volatile FlushCoalescer flushCoalescer = null;
+    private volatile FlushCoalescer referenceCoalescer = null;
+    private volatile ThreadPoolExecutor asyncExecutor = null;
+    private volatile ReferenceIndex referenceIndex = null;
+    private ResourceResolver referenceResourceResolver = null;
 
     /**
      * {@inheritDoc}
@@ -143,38 +253,141 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
         final ReplicationActionType flushActionType =
                 replicationActionType == null ? replicationAction.getType() : replicationActionType;
 
+        final List<FlushRule> flushRules = this.getFlushRuleMatcher().match(path);
+        final ReferenceFlush references = this.getReferenceFlush(path);
+
+        if (flushRules.isEmpty() && references == null) {
+            return;
+        }
+
+        final FlushJournal journal = this.flushJournal;
+
+        if (journal != null) {
+            // Journal the flushes before queuing them, so they are re-issued if lost; the DispatcherFlusher marks
+            // them done once it knows they were delivered via every Agent
+            for (final FlushRule rule : flushRules) {
+                journal.record(flushActionType, rule.getFlushType(), rule.getTarget());
+            }
+
+            if (references != null) {
+                for (final FlushType flushType : references.getFilters().keySet()) {
+                    for (final String page : references.getPages()) {
+                        journal.record(flushActionType, flushType, page);
+                    }
+                }
+            }
+        }
+
+        final FlushCoalescer coalescer = this.flushCoalescer;
+        final FlushCoalescer referenceCoalescer = this.referenceCoalescer;
+        final ThreadPoolExecutor executor = this.asyncExecutor;
+
+        if (coalescer != null && referenceCoalescer != null) {
+            for (final FlushRule rule : flushRules) {
+                log.debug("Queuing {} flush of associated path: {} ~> {}", new Object[]{ rule.getFlushType(), path,
+                        rule.getTarget() });
+                final boolean queued = coalescer.add(flushActionType, rule.getFlushType(), rule.getTarget());
+
+                if (!queued) {
+                    log.warn("Could not queue flush of associated path: {} ~> {}", path, rule.getTarget());
+                }
+
+                this.recordRuleFlush(rule.getPattern(), flushActionType, path, rule.getTarget(), null, -1, queued);
+            }
+
+            if (references != null) {
+                // Referencing pages are coalesced apart, as they are flushed via the reference filters
+                boolean queued = true;
+
+                for (final FlushType flushType : references.getFilters().keySet()) {
+                    for (final String page : references.getPages()) {
+                        queued &= referenceCoalescer.add(flushActionType, flushType, page);
+                    }
+                }
+
+                if (!queued) {
+                    log.warn("Could not queue flush of pages referencing: {}", path);
+                }
+
+                this.recordRuleFlush(references.getPattern(), flushActionType, path, references.getTarget(), null,
+                        -1, queued);
+            }
+        } else if (executor != null) {
+            // When the queue is full or the executor shut down, the rejection handler runs the flush on this thread
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush(path, flushActionType, flushRules, references);
+                    } catch (ReplicationException ex) {
+                        log.error("Error issuing asynchronous dispatcher flush rules for [ {} ]", path, ex);
+                    }
+                }
+            });
+        } else {
+            this.flush(path, flushActionType, flushRules, references);
+        }
+    }
+
+    /**
+     * Issues the flushes of the matched flush rules, then of the pages referencing the replicated path.
+     *
+     * @param path the replicated path
+     * @param flushActionType the replication action type of the flushes
+     * @param flushRules the flush rules matching the replicated path
+     * @param references the flush of the pages referencing the replicated path, or null
+     * @throws ReplicationException
+     */
+    private void flush(final String path, final ReplicationActionType flushActionType,
+                       final List<FlushRule> flushRules, final ReferenceFlush references)
+            throws ReplicationException {
         ResourceResolver resourceResolver = null;
 
         try {
             resourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
 
-            // Flush full content hierarchies
-            for (final Map.Entry<Pattern, String> entry : this.hierarchicalFlushRules.entrySet()) {
-                final Pattern pattern = entry.getKey();
-                final Matcher m = pattern.matcher(path);
-
-                if (m.matches()) {
-                    log.debug("Requesting hierarchical flush of associated path: {} ~> {}", path,
-                            entry.getValue());
-                    dispatcherFlusher.flush(resourceResolver, flushActionType, false,
-                            HIERARCHICAL_FILTER,
-                            entry.getValue());
+            // Flush full content hierarchies, then explicit resources using the CQ-Action-Scope ResourceOnly header
+            for (final FlushRule rule : flushRules) {
+                final long start = System.nanoTime();
+                Map<Agent, ReplicationResult> results = null;
+
+                try {
+                    if (FlushType.ResourceOnly.equals(rule.getFlushType())) {
+                        log.debug("Requesting ResourceOnly flush of associated path: {} ~> {}", path,
+                                rule.getTarget());
+                        results = dispatcherFlusher.flush(resourceResolver, flushActionType, false,
+                                RESOURCE_ONLY_FILTER,
+                                rule.getTarget());
+                    } else {
+                        log.debug("Requesting hierarchical flush of associated path: {} ~> {}", path,
+                                rule.getTarget());
+                        results = dispatcherFlusher.flush(resourceResolver, flushActionType, false,
+                                HIERARCHICAL_FILTER,
+                                rule.getTarget());
+                    }
+                } finally {
+                    this.recordRuleFlush(rule.getPattern(), flushActionType, path, rule.getTarget(),
+                            results == null ? null : results.keySet(), System.nanoTime() - start, results != null);
                 }
             }
 
-            // Flush explicit resources using the CQ-Action-Scope ResourceOnly header
-            for (final Map.Entry<Pattern, String> entry : this.resourceOnlyFlushRules.entrySet()) {
-                final Pattern pattern = entry.getKey();
-                final Matcher m = pattern.matcher(path);
-
-                if (m.matches()) {
-                    log.debug("Requesting ResourceOnly flush of associated path: {} ~> {}", path, entry.getValue());
-                    dispatcherFlusher.flush(resourceResolver, flushActionType, false,
-                            RESOURCE_ONLY_FILTER,
-                            entry.getValue());
+            if (references != null) {
+                for (final Map.Entry<FlushType, AgentFilter> filter : references.getFilters().entrySet()) {
+                    final long start = System.nanoTime();
+                    Map<String, Map<Agent, ReplicationResult>> results = null;
+
+                    try {
+                        log.debug("Requesting {} flush of {} pages referencing: {}", new Object[]{ filter.getKey(),
+                                references.getPages().size(), path });
+                        results = dispatcherFlusher.flush(resourceResolver, flushActionType, false,
+                                filter.getValue(), references.getPages());
+                    } finally {
+                        this.recordRuleFlush(references.getPattern(), flushActionType, path,
+                                references.getTarget(), results == null ? null : getAgents(results),
+                                System.nanoTime() - start, results != null);
+                    }
                 }
             }
-
         } catch (LoginException e) {
             log.error("Error issuing  dispatcher flush rules do to repository login exception: {}", e.getMessage());
         } finally {
@@ -184,6 +397,152 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
         }
     }
 
+    private static Set<Agent> getAgents(final Map<String, Map<Agent, ReplicationResult>> results) {
+        final Set<Agent> agents = new LinkedHashSet<Agent>();
+
+        for (final Map<Agent, ReplicationResult> byAgent : results.values()) {
+            agents.addAll(byAgent.keySet());
+        }
+
+        return agents;
+    }
+
+    /**
+     * Records a rule-triggered flush with the flush telemetry, if available.
+     *
+     * @param pattern the pattern of the triggered flush rule
+     * @param flushActionType the replication action type of the flush
+     * @param path the replicated path
+     * @param target the flushed path
+     * @param agents the Agents the flush was issued to, or null if not issued or not yet issued
+     * @param duration the time in nanoseconds taken to issue the flush, or -1 if unknown
+     * @param success true if the flush was issued or queued
+     */
+    private void recordRuleFlush(final Pattern pattern, final ReplicationActionType flushActionType,
+                                 final String path, final String target, final Collection<Agent> agents,
+                                 final long duration, final boolean success) {
+        final FlushTelemetry telemetry = this.flushTelemetry;
+
+        if (telemetry == null) {
+            return;
+        }
+
+        String agentIds = null;
+
+        if (agents != null) {
+            final StringBuilder sb = new StringBuilder();
+
+            for (final Agent agent : agents) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(agent.getId());
+            }
+
+            agentIds = sb.toString();
+        }
+
+        telemetry.recordRuleFlush(pattern.pattern(), flushActionType, path, target, agentIds, duration, success);
+    }
+
+    /**
+     * Gets the flush of the pages referencing the replicated path, for each matching reference flush rule.
+     *
+     * @param path the replicated path
+     * @return the flush of the referencing pages, or null if no pages are to be flushed
+     */
+    private ReferenceFlush getReferenceFlush(final String path) {
+        final ReferenceIndex index = this.referenceIndex;
+
+        if (index == null || this.referenceFlushRules.isEmpty()) {
+            return null;
+        }
+
+        Pattern triggered = null;
+        final Set<String> pages = new LinkedHashSet<String>();
+
+        for (final Pattern pattern : this.referenceFlushRules) {
+            if (!pattern.matcher(path).matches()) {
+                continue;
+            }
+
+            if (!index.isBuilt()) {
+                log.warn("Reference index is not built; not flushing pages referencing [ {} ]", path);
+                break;
+            }
+
+            if (pages.addAll(index.getReferencingPages(path)) && triggered == null) {
+                triggered = pattern;
+            }
+        }
+
+        if (triggered == null) {
+            return null;
+        }
+
+        final Map<FlushType, AgentFilter> filters = this.getReferenceFilters();
+
+        return filters.isEmpty() ? null : new ReferenceFlush(triggered, pages, filters);
+    }
+
+    /**
+     * Gets the agent filters to flush pages referencing a replicated path with, per flush type. Only the referencing
+     * pages changed, so they are flushed ResourceOnly via the ResourceOnly Dispatcher Flush Agents, and
+     * hierarchically only via the hierarchical Dispatcher Flush Agents of dispatchers without a ResourceOnly Agent.
+     * Dispatchers are identified by the host and port of the Agents' transport URIs.
+     *
+     * @return the agent filters per flush type; empty if there are no Dispatcher Flush Agents
+     */
+    private Map<FlushType, AgentFilter> getReferenceFilters() {
+        final Map<FlushType, AgentFilter> filters = new EnumMap<FlushType, AgentFilter>(FlushType.class);
+        final Agent[] resourceOnlyAgents = dispatcherFlusher.getAgents(RESOURCE_ONLY_FILTER);
+        final Agent[] hierarchicalAgents = dispatcherFlusher.getAgents(HIERARCHICAL_FILTER);
+        final Set<String> resourceOnlyHosts = new HashSet<String>();
+
+        if (resourceOnlyAgents != null && resourceOnlyAgents.length > 0) {
+            filters.put(FlushType.ResourceOnly, RESOURCE_ONLY_FILTER);
+
+            for (final Agent agent : resourceOnlyAgents) {
+                resourceOnlyHosts.add(HttpConnectionUtil.getHost(agent.getConfiguration().getTransportURI()));
+            }
+        }
+
+        if (hierarchicalAgents != null && hierarchicalAgents.length > 0) {
+            final List<String> agentIds = new ArrayList<String>();
+
+            for (final Agent agent : hierarchicalAgents) {
+                if (!resourceOnlyHosts.contains(HttpConnectionUtil.getHost(
+                        agent.getConfiguration().getTransportURI()))) {
+                    agentIds.add(agent.getId());
+                }
+            }
+
+            if (agentIds.size() == hierarchicalAgents.length) {
+                filters.put(FlushType.Hierarchical, HIERARCHICAL_FILTER);
+            } else if (!agentIds.isEmpty()) {
+                filters.put(FlushType.Hierarchical, new AdmittedAgentFilter(HIERARCHICAL_FILTER, agentIds));
+            }
+        }
+
+        return filters;
+    }
+
+    /**
+     * Gets the matcher compiled from the flush rules on activation; builds an uncached matcher if the rules were
+     * set without activating.
+     *
+     * @return the flush rule matcher
+     */
+    private FlushRuleMatcher getFlushRuleMatcher() {
+        final FlushRuleMatcher matcher = this.flushRuleMatcher;
+
+        if (matcher != null) {
+            return matcher;
+        }
+
+        return new FlushRuleMatcher(this.hierarchicalFlushRules, this.resourceOnlyFlushRules);
+    }
+
     /**
      * Checks if this service should react to or ignore this replication action.
      *
@@ -199,12 +558,20 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
 
         final String path = replicationAction.getPath();
 
-        if (replicationOptions.getFilter() instanceof DispatcherFlushRulesFilter) {
+        AgentFilter agentFilter = replicationOptions.getFilter();
+
+        while (agentFilter instanceof AdmittedAgentFilter) {
+            // Flushes restricted to some Agents, ex. by the flush circuit breaker, originate from the restricted filter
+            agentFilter = ((AdmittedAgentFilter) agentFilter).getAgentFilter();
+        }
+
+        if (agentFilter instanceof DispatcherFlushRulesFilter) {
             log.debug("Ignore applying dispatcher flush rules for [ {} ], as it originated from this "
                     + "Service.", path);
             return false;
         } else if ((this.hierarchicalFlushRules == null || this.hierarchicalFlushRules.size() < 1)
-                && (this.resourceOnlyFlushRules == null || this.resourceOnlyFlushRules.size() < 1)) {
+                && (this.resourceOnlyFlushRules == null || this.resourceOnlyFlushRules.size() < 1)
+                && (this.referenceFlushRules == null || this.referenceFlushRules.size() < 1)) {
             log.warn("Ignored due no configured flush rules.");
             return false;
         } else if (StringUtils.isBlank(path)) {
@@ -241,6 +608,71 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
                         DEFAULT_RESOURCE_ONLY_FLUSH_RULES), "="));
 
         log.debug("ResourceOnly flush rules: " + this.resourceOnlyFlushRules);
+
+        this.flushRuleMatcher = new FlushRuleMatcher(this.hierarchicalFlushRules, this.resourceOnlyFlushRules);
+
+        /* Reference Flush Rules */
+        this.referenceFlushRules = this.configureReferenceFlushRules(PropertiesUtil.toStringArray(
+                properties.get(PROP_REFERENCE_FLUSH_RULES), DEFAULT_REFERENCE_FLUSH_RULES));
+
+        log.debug("Reference flush rules: " + this.referenceFlushRules);
+
+        if (!this.referenceFlushRules.isEmpty()) {
+            this.openReferenceIndex(
+                    PropertiesUtil.toStringArray(properties.get(PROP_REFERENCE_PROPERTIES),
+                            DEFAULT_REFERENCE_PROPERTIES),
+                    PropertiesUtil.toStringArray(properties.get(PROP_REFERENCE_PATHS), DEFAULT_REFERENCE_PATHS));
+        }
+
+        /* Flush Coalescing */
+        final long coalesceWindow = PropertiesUtil.toLong(properties.get(PROP_COALESCE_WINDOW),
+                DEFAULT_COALESCE_WINDOW);
+
+        if (coalesceWindow > 0) {
+            this.flushCoalescer = new FlushCoalescer(coalesceWindow, new FlushCoalescer.Handler() {
+                @Override
+                public void flush(final ReplicationActionType actionType, final FlushType flushType,
+                                  final String... paths) throws Exception {
+                    issueCoalescedFlush(actionType, flushType, paths);
+                }
+            }, "ACS AEM Commons - Dispatcher Flush Rules Coalescer");
+
+            this.referenceCoalescer = new FlushCoalescer(coalesceWindow, new FlushCoalescer.Handler() {
+                @Override
+                public void flush(final ReplicationActionType actionType, final FlushType flushType,
+                                  final String... paths) throws Exception {
+                    issueCoalescedReferenceFlush(actionType, flushType, paths);
+                }
+            }, "ACS AEM Commons - Dispatcher Flush Rules Reference Coalescer");
+
+            log.debug("Coalescing flushes over {} ms", coalesceWindow);
+        } else if (PropertiesUtil.toBoolean(properties.get(PROP_ASYNC_ENABLED), DEFAULT_ASYNC_ENABLED)) {
+            final int threads = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_ASYNC_THREADS),
+                    DEFAULT_ASYNC_THREADS));
+            final int queueSize = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_ASYNC_QUEUE_SIZE),
+                    DEFAULT_ASYNC_QUEUE_SIZE));
+
+            this.asyncExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            final Thread thread = new Thread(runnable,
+                                    "ACS AEM Commons - Dispatcher Flush Rules Async Flush " + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new RejectedExecutionHandler() {
+                        @Override
+                        public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+                            // Unlike CallerRunsPolicy, also runs flushes rejected once the executor is shut down
+                            runnable.run();
+                        }
+                    });
+
+            log.debug("Flushing asynchronously with {} threads and a queue of {}", threads, queueSize);
+        }
     }
 
     /**
@@ -261,6 +693,61 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
         return rules;
     }
 
+    /**
+     * Create Pattern-based reference flush rules.
+     *
+     * @param configuredRules String based reference flush rules from OSGi configuration
+     * @return returns the configured reference flush rules
+     */
+    protected final List<Pattern> configureReferenceFlushRules(final String[] configuredRules) {
+        final List<Pattern> rules = new ArrayList<Pattern>();
+
+        for (final String configuredRule : configuredRules) {
+            if (StringUtils.isNotBlank(configuredRule)) {
+                rules.add(Pattern.compile(StringUtils.strip(configuredRule)));
+            }
+        }
+
+        return rules;
+    }
+
+    /**
+     * Opens the reference index on a background thread, so activation does not wait on the queries that build it.
+     *
+     * @param propertyNames the names of the properties that reference assets and content fragments
+     * @param observedPaths the repository trees holding the referencing pages
+     */
+    private void openReferenceIndex(final String[] propertyNames, final String[] observedPaths) {
+        final ResourceResolver resourceResolver;
+
+        try {
+            resourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+        } catch (LoginException ex) {
+            log.error("Could not observe the repository for reference changes: {}", ex.getMessage());
+            return;
+        }
+
+        final ReferenceIndex index = new ReferenceIndex(queryBuilder, propertyNames);
+
+        this.referenceResourceResolver = resourceResolver;
+        this.referenceIndex = index;
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    index.open(resourceResolver, observedPaths);
+                } catch (RepositoryException ex) {
+                    log.error("Could not open reference index; not flushing referencing pages: {}",
+                            ex.getMessage());
+                }
+            }
+        }, REFERENCE_INDEX_THREAD_NAME);
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     /**
      * Derive the ReplicationActionType to be used for Flushes.
      *
@@ -280,11 +767,158 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
         }
     }
 
+    /**
+     * Issues a flush of referencing pages collected by the reference flush coalescer, via the reference filter of
+     * the flush type.
+     *
+     * @param actionType the replication action type of the flush
+     * @param flushType the flush type of the flush
+     * @param paths the referencing pages to flush
+     * @throws LoginException
+     * @throws ReplicationException
+     */
+    private void issueCoalescedReferenceFlush(final ReplicationActionType actionType, final FlushType flushType,
+                                              final String... paths) throws LoginException, ReplicationException {
+        final AgentFilter filter = this.getReferenceFilters().get(flushType);
+
+        if (filter == null) {
+            log.warn("No {} Dispatcher Flush Agents to flush referencing pages via; not flushing {}", flushType,
+                    Arrays.asList(paths));
+            return;
+        }
+
+        ResourceResolver resourceResolver = null;
+
+        try {
+            resourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+
+            log.debug("Requesting coalesced {} flush of referencing pages: {}", flushType, Arrays.asList(paths));
+            dispatcherFlusher.flush(resourceResolver, actionType, false, filter, Arrays.asList(paths));
+        } finally {
+            if (resourceResolver != null) {
+                resourceResolver.close();
+            }
+        }
+    }
+
+    /**
+     * Issues a flush collected by the flush coalescer.
+     *
+     * @param actionType the replication action type of the flush
+     * @param flushType the flush type of the flush
+     * @param paths the paths to flush
+     * @throws LoginException
+     * @throws ReplicationException
+     */
+    private void issueCoalescedFlush(final ReplicationActionType actionType, final FlushType flushType,
+                                     final String... paths) throws LoginException, ReplicationException {
+        ResourceResolver resourceResolver = null;
+
+        try {
+            resourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+
+            log.debug("Requesting coalesced {} flush of associated paths: {}", flushType, Arrays.asList(paths));
+            dispatcherFlusher.flush(resourceResolver, actionType, false,
+                    FlushType.ResourceOnly.equals(flushType) ? RESOURCE_ONLY_FILTER : HIERARCHICAL_FILTER,
+                    paths);
+        } finally {
+            if (resourceResolver != null) {
+                resourceResolver.close();
+            }
+        }
+    }
+
     @Deactivate
     protected final void deactivate(final Map<String, String> properties) {
+        // Detach the coalescers and executor before closing them, so flushes preprocessed meanwhile are issued
+        // synchronously rather than lost
+        final FlushCoalescer coalescer = this.flushCoalescer;
+        final FlushCoalescer referenceCoalescer = this.referenceCoalescer;
+        final ThreadPoolExecutor executor = this.asyncExecutor;
+
+        this.flushCoalescer = null;
+        this.referenceCoalescer = null;
+        this.asyncExecutor = null;
+
+        if (coalescer != null) {
+            // Issues any pending flushes
+            coalescer.close();
+        }
+
+        if (referenceCoalescer != null) {
+            referenceCoalescer.close();
+        }
+
+        if (executor != null) {
+            // Issue queued flushes before the flusher is unbound
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    log.warn("Timed out waiting for queued asynchronous dispatcher flushes");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (this.referenceIndex != null) {
+            // Closing the index aborts a build in progress once its current query completes
+            this.referenceIndex.close();
+            this.referenceIndex = null;
+        }
+
+        if (this.referenceResourceResolver != null) {
+            this.referenceResourceResolver.close();
+            this.referenceResourceResolver = null;
+        }
+
         this.hierarchicalFlushRules = new HashMap<Pattern, String>();
         this.resourceOnlyFlushRules = new HashMap<Pattern, String>();
+        this.referenceFlushRules = new ArrayList<Pattern>();
         this.replicationActionType = null;
+        this.flushRuleMatcher = null;
+    }
+
+    /**
+     * The flush of the pages referencing a replicated path.
+     */
+    private static final class ReferenceFlush {
+        private final Pattern pattern;
+
+        private final Set<String> pages;
+
+        private final Map<FlushType, AgentFilter> filters;
+
+        /**
+         * @param pattern the first reference flush rule that triggered the flush
+         * @param pages the referencing pages
+         * @param filters the agent filters to flush the pages with, per flush type
+         */
+        ReferenceFlush(final Pattern pattern, final Set<String> pages, final Map<FlushType, AgentFilter> filters) {
+            this.pattern = pattern;
+            this.pages = pages;
+            this.filters = filters;
+        }
+
+        Pattern getPattern() {
+            return this.pattern;
+        }
+
+        Set<String> getPages() {
+            return this.pages;
+        }
+
+        Map<FlushType, AgentFilter> getFilters() {
+            return this.filters;
+        }
+
+        /**
+         * @return the flushed pages as recorded by the flush telemetry; the first page, and the count of the others
+         */
+        String getTarget() {
+            final String first = this.pages.iterator().next();
+            return this.pages.size() == 1 ? first : first + " (+" + (this.pages.size() - 1) + " more)";
+        }
     }
 
     /* Implementation Class used to track and prevent cyclic replications */
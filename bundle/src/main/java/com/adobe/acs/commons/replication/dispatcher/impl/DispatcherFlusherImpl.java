@@ -22,6 +22,7 @@ package com.adobe.acs.commons.replication.dispatcher.impl;
 
 import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
 import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
+import com.adobe.acs.commons.util.OsgiPropertyUtil;
 import com.day.cq.replication.Agent;
 import com.day.cq.replication.AgentFilter;
 import com.day.cq.replication.AgentManager;
@@ -30,34 +31,188 @@ import com.day.cq.replication.ReplicationException;
 import com.day.cq.replication.ReplicationOptions;
 import com.day.cq.replication.ReplicationResult;
 import com.day.cq.replication.Replicator;
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.jcr.Session;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
 @Component(
         label = "ACS AEM Commons - Dispatcher Flusher",
         description = "Service used to issue flush requests to enabled Dispatcher Flush Agents.",
         immediate = false,
-        metatype = false
+        metatype = true
 )
 @Service
 public class DispatcherFlusherImpl implements DispatcherFlusher {
     private static final Logger log = LoggerFactory.getLogger(DispatcherFlusherImpl.class);
 
+    /* Rate limit */
+    private static final double DEFAULT_RATE_LIMIT = 0;
+
+    @Property(label = "Rate Limit",
+            description = "Maximum number of flushes per second issued via each Agent. Flushes beyond the limit are "
+                    + "parked and re-flushed together. Set to 0 for no limit. [ Default: 0 ]",
+            doubleValue = DEFAULT_RATE_LIMIT)
+    private static final String PROP_RATE_LIMIT = "prop.rate-limit";
+
+    private static final int DEFAULT_RATE_LIMIT_BURST = 10;
+
+    @Property(label = "Rate Limit Burst",
+            description = "Number of flushes issued via each Agent in a burst before the rate limit applies. "
+                    + "[ Default: 10 ]",
+            intValue = DEFAULT_RATE_LIMIT_BURST)
+    private static final String PROP_RATE_LIMIT_BURST = "prop.rate-limit.burst";
+
+    /* Circuit breaker */
+    private static final int DEFAULT_FAILURE_THRESHOLD = 0;
+
+    @Property(label = "Circuit Breaker Failure Threshold",
+            description = "Number of consecutive failed flushes via an Agent that stop flushes via the Agent. "
+                    + "Flushes are also stopped while the Agent's replication queue is blocked. Stopped flushes "
+                    + "are parked and re-flushed together once the Open Time elapses. Set to 0 to never stop "
+                    + "flushes. [ Default: 0 ]",
+            intValue = DEFAULT_FAILURE_THRESHOLD)
+    private static final String PROP_FAILURE_THRESHOLD = "prop.circuit-breaker.failure-threshold";
+
+    private static final long DEFAULT_OPEN_TIME = 30000L;
+
+    @Property(label = "Circuit Breaker Open Time",
+            description = "Time in milliseconds flushes via an Agent stay stopped before parked flushes are "
+                    + "re-flushed as a trial. [ Default: 30000 ]",
+            longValue = DEFAULT_OPEN_TIME)
+    private static final String PROP_OPEN_TIME = "prop.circuit-breaker.open-time";
+
+    private static final int DEFAULT_MAX_PARKED = 10000;
+
+    @Property(label = "Max Parked Flushes",
+            description = "Maximum number of distinct paths parked per Agent. Further flushes are dropped. "
+                    + "[ Default: 10000 ]",
+            intValue = DEFAULT_MAX_PARKED)
+    private static final String PROP_MAX_PARKED = "prop.circuit-breaker.max-parked";
+
+    /* Re-warm */
+    private static final boolean DEFAULT_REWARM_ENABLED = false;
+
+    @Property(label = "Re-warm",
+            description = "Request the pages of successful synchronous Activate flushes from each flushed "
+                    + "dispatcher, so the next visitors are served from the cache. Asynchronous flushes are not "
+                    + "re-warmed, as they succeed once queued. [ Default: false ]",
+            boolValue = DEFAULT_REWARM_ENABLED)
+    private static final String PROP_REWARM_ENABLED = "prop.rewarm.enabled";
+
+    /* Pages; assets beneath /content/dam are not rendered as pages, so requesting them re-warms nothing */
+    private static final String[] DEFAULT_REWARM_PATHS = { "/content/(?!dam(/|$)).*" };
+
+    @Property(label = "Re-warm Paths",
+            description = "Patterns of flushed paths to re-warm, highest priority first. Paths of equal priority "
+                    + "are re-warmed shallowest first. [ Default: /content/(?!dam(/|$)).*, all content except "
+                    + "assets ]",
+            cardinality = Integer.MAX_VALUE,
+            value = { "/content/(?!dam(/|$)).*" })
+    private static final String PROP_REWARM_PATHS = "prop.rewarm.paths";
+
+    private static final String[] DEFAULT_REWARM_EXTENSIONS = { "html" };
+
+    @Property(label = "Re-warm Extensions",
+            description = "Extensions to request each re-warmed path with. [ Default: html ]",
+            cardinality = Integer.MAX_VALUE,
+            value = { "html" })
+    private static final String PROP_REWARM_EXTENSIONS = "prop.rewarm.extensions";
+
+    private static final String[] DEFAULT_REWARM_SELECTORS = {};
+
+    @Property(label = "Re-warm Selectors",
+            description = "Selectors to request each re-warmed path with, in addition to no selector.",
+            cardinality = Integer.MAX_VALUE,
+            value = { })
+    private static final String PROP_REWARM_SELECTORS = "prop.rewarm.selectors";
+
+    private static final String[] DEFAULT_REWARM_HOSTS = {};
+
+    @Property(label = "Re-warm Dispatchers",
+            description = "Base URL of the dispatcher to re-warm per Agent. Agents not listed are re-warmed via the "
+                    + "scheme, host and port of their transport URI. Format: <agent-id>=<http://host:port>",
+            cardinality = Integer.MAX_VALUE,
+            value = { })
+    private static final String PROP_REWARM_HOSTS = "prop.rewarm.hosts";
+
+    private static final int DEFAULT_REWARM_THREADS = 2;
+
+    @Property(label = "Re-warm Threads",
+            description = "Number of re-warm requests issued in parallel. [ Default: 2 ]",
+            intValue = DEFAULT_REWARM_THREADS)
+    private static final String PROP_REWARM_THREADS = "prop.rewarm.threads";
+
+    private static final long DEFAULT_REWARM_DELAY = 0L;
+
+    @Property(label = "Re-warm Delay",
+            description = "Time in milliseconds to wait after a successful flush before re-warming, ex. for "
+                    + "content to be replicated to the publish instances rendering the re-warmed pages. "
+                    + "[ Default: 0 ]",
+            longValue = DEFAULT_REWARM_DELAY)
+    private static final String PROP_REWARM_DELAY = "prop.rewarm.delay";
+
+    private static final int DEFAULT_REWARM_MAX_PENDING = 1000;
+
+    @Property(label = "Max Pending Re-warms",
+            description = "Maximum number of pending re-warm requests. Further requests are dropped. "
+                    + "[ Default: 1000 ]",
+            intValue = DEFAULT_REWARM_MAX_PENDING)
+    private static final String PROP_REWARM_MAX_PENDING = "prop.rewarm.max-pending";
+
+    private static final int DEFAULT_REWARM_TIMEOUT = 10000;
+
+    @Property(label = "Re-warm Timeout",
+            description = "Connect and read timeout of re-warm requests in milliseconds. [ Default: 10000 ]",
+            intValue = DEFAULT_REWARM_TIMEOUT)
+    private static final String PROP_REWARM_TIMEOUT = "prop.rewarm.timeout";
+
     @Reference
     private Replicator replicator;
 
     @Reference
     private AgentManager agentManager;
 
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile FlushTelemetry flushTelemetry;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile FlushPlanner flushPlanner;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile FlushJournal flushJournal;
+
+    private final AtomicReference<FlushAgentSnapshot> flushAgentSnapshot = new AtomicReference<FlushAgentSnapshot>();
+
+    private volatile FlushCircuitBreaker flushCircuitBreaker = null;
+
+    private volatile FlushRewarmer flushRewarmer = null;
+
     /**
      * {@inheritDoc}
      */
@@ -80,6 +235,11 @@ public class DispatcherFlusherImpl implements DispatcherFlusher {
 
     /**
      * {@inheritDoc}
+     *
+     * If a FlushPlanner is available, multiple paths are flushed as a batch planned by it.
+     *
+     * If a FlushJournal is available, flushes with a DispatcherFlushFilter are journaled until they are queued via
+     * all Agents.
      */
     @Override
     public final Map<Agent, ReplicationResult> flush(final ResourceResolver resourceResolver,
@@ -87,8 +247,165 @@ public class DispatcherFlusherImpl implements DispatcherFlusher {
                                                      final boolean synchronous,
                                                      final AgentFilter agentFilter,
                                                      final String... paths) throws ReplicationException {
+        // Asynchronous flushes succeed once queued, before the dispatchers are invalidated; they are not re-warmed
+        final ReplicationResultListener listener = new ReplicationResultListener(this.flushTelemetry,
+                synchronous ? this.flushRewarmer : null);
+        final FlushPlanner planner = this.flushPlanner;
+        final FlushJournal journal = this.flushJournal;
+        final long sequence = FlushJournalImpl.record(journal, actionType, agentFilter, Arrays.asList(paths));
+        final boolean journaled = sequence != FlushJournalImpl.NOT_JOURNALED;
+        final FlushBatch batch;
+        final Agent[] agents;
+
+        if (planner != null && paths.length > 1) {
+            agents = this.getAgents(agentFilter);
+            batch = new FlushBatch(agents, actionType, Arrays.asList(paths), planner);
+
+            this.replicate(resourceResolver, actionType, synchronous, agentFilter, agents, batch, listener);
+        } else {
+            agents = this.flushCircuitBreaker == null && !journaled ? null : this.getAgents(agentFilter);
+            batch = null;
+
+            for (final String path : paths) {
+                this.replicate(resourceResolver, actionType, synchronous, agentFilter, agents, false, path,
+                        listener);
+            }
+        }
+
+        final Map<Agent, ReplicationResult> results = this.getResults(listener);
+
+        if (journaled) {
+            FlushJournalImpl.done(journal, actionType, agentFilter, agents, batch == null
+                    ? FlushBatch.getResults(Arrays.asList(paths), results) : batch.getResults(results), sequence);
+        }
+
+        return results;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Each distinct path is replicated once, via all Agents that flush it.
+     */
+    @Override
+    public final Map<String, Map<Agent, ReplicationResult>> flush(final ResourceResolver resourceResolver,
+                                                                  final ReplicationActionType actionType,
+                                                                  final boolean synchronous,
+                                                                  final AgentFilter agentFilter,
+                                                                  final Collection<String> paths)
+            throws ReplicationException {
+        final ReplicationResultListener listener = new ReplicationResultListener(this.flushTelemetry,
+                synchronous ? this.flushRewarmer : null);
+        final Agent[] agents = this.getAgents(agentFilter);
+        final FlushBatch batch = new FlushBatch(agents, actionType, paths, this.flushPlanner);
+        final FlushJournal journal = this.flushJournal;
+        final long sequence = FlushJournalImpl.record(journal, actionType, agentFilter, batch.getPaths());
+
+        this.replicate(resourceResolver, actionType, synchronous, agentFilter, agents, batch, listener);
+
+        final Map<String, Map<Agent, ReplicationResult>> results = batch.getResults(this.getResults(listener));
+
+        if (sequence != FlushJournalImpl.NOT_JOURNALED) {
+            FlushJournalImpl.done(journal, actionType, agentFilter, agents, results, sequence);
+        }
+
+        return results;
+    }
+
+    /**
+     * Replicates each path of a batch via the Agents that flush it.
+     *
+     * @param resourceResolver access into repository
+     * @param actionType the replication action type of the flush
+     * @param synchronous true to replicate synchronously
+     * @param agentFilter the agent filter to flush with
+     * @param agents the Agents included by the agent filter
+     * @param batch the batch to flush
+     * @param listener the listener collecting the results
+     * @throws ReplicationException
+     */
+    private void replicate(final ResourceResolver resourceResolver, final ReplicationActionType actionType,
+                           final boolean synchronous, final AgentFilter agentFilter, final Agent[] agents,
+                           final FlushBatch batch, final ReplicationResultListener listener)
+            throws ReplicationException {
+        log.debug("Flushing {} distinct paths as {} flushes", batch.getPaths().size(),
+                batch.getFlushPaths().size());
+
+        for (final String flushPath : batch.getFlushPaths()) {
+            final List<Agent> flushAgents = batch.getAgents(flushPath);
+
+            this.replicate(resourceResolver, actionType, synchronous, agentFilter,
+                    flushAgents.toArray(new Agent[flushAgents.size()]), flushAgents.size() < agents.length,
+                    flushPath, listener);
+        }
+    }
+
+    /**
+     * Replicates a single path via the Agents admitted by the circuit breaker.
+     *
+     * @param resourceResolver access into repository
+     * @param actionType the replication action type of the flush
+     * @param synchronous true to replicate synchronously
+     * @param agentFilter the agent filter to flush with
+     * @param agents the Agents to flush via, or null if there is no circuit breaker and the path is not restricted
+     * @param restricted true if the agents are only some of the Agents included by the agent filter
+     * @param path the path to flush
+     * @param listener the listener collecting the results
+     * @throws ReplicationException
+     */
+    private void replicate(final ResourceResolver resourceResolver, final ReplicationActionType actionType,
+                           final boolean synchronous, final AgentFilter agentFilter, final Agent[] agents,
+                           final boolean restricted, final String path, final ReplicationResultListener listener)
+            throws ReplicationException {
+        final FlushCircuitBreaker breaker = this.flushCircuitBreaker;
+        AgentFilter pathFilter = agentFilter;
+
+        if (breaker != null || restricted) {
+            final Set<String> admitted = new HashSet<String>();
+
+            for (final Agent agent : agents) {
+                if (breaker == null || breaker.tryAcquire(agent, agentFilter, actionType, path)) {
+                    admitted.add(agent.getId());
+                }
+            }
+
+            if (admitted.isEmpty()) {
+                log.debug("Parked Dispatcher Flush request for: {}", path);
+                return;
+            } else if (restricted || admitted.size() < agents.length) {
+                pathFilter = new AdmittedAgentFilter(agentFilter, admitted);
+            }
+        }
+
+        final ReplicationOptions options = createOptions(pathFilter, synchronous, listener);
+
+        if (log.isDebugEnabled()) {
+            log.debug("--------------------------------------------------------------------------------");
+            log.debug("Issuing Dispatcher Flush (via AEM Replication API) request for: {}", path);
+            log.debug(" > Synchronous: {}", options.isSynchronous());
+            log.debug(" > Replication Action Type: {}", actionType.name());
+        }
+
+        replicator.replicate(resourceResolver.adaptTo(Session.class),
+                actionType, path, options);
+    }
+
+    private Map<Agent, ReplicationResult> getResults(final ReplicationResultListener listener) {
+        final Map<Agent, ReplicationResult> results = listener.getResults();
+        final FlushCircuitBreaker breaker = this.flushCircuitBreaker;
+
+        if (breaker != null) {
+            for (final Map.Entry<Agent, ReplicationResult> entry : results.entrySet()) {
+                breaker.recordResult(entry.getKey().getId(), entry.getValue().isSuccess());
+            }
+        }
+
+        return results;
+    }
+
+    private static ReplicationOptions createOptions(final AgentFilter agentFilter, final boolean synchronous,
+                                                    final ReplicationResultListener listener) {
         final ReplicationOptions options = new ReplicationOptions();
-        final ReplicationResultListener listener = new ReplicationResultListener();
 
         options.setFilter(agentFilter);
         options.setSynchronous(synchronous);
@@ -96,19 +413,60 @@ public class DispatcherFlusherImpl implements DispatcherFlusher {
         options.setSuppressVersions(true);
         options.setListener(listener);
 
-        for (final String path : paths) {
-            if (log.isDebugEnabled()) {
-                log.debug("--------------------------------------------------------------------------------");
-                log.debug("Issuing Dispatcher Flush (via AEM Replication API) request for: {}", path);
-                log.debug(" > Synchronous: {}", options.isSynchronous());
-                log.debug(" > Replication Action Type: {}", actionType.name());
+        return options;
+    }
+
+    /**
+     * Re-flushes paths parked by the circuit breaker via a single Agent.
+     *
+     * @param agentId the id of the Agent
+     * @param agentFilter the agent filter the paths were originally flushed with
+     * @param actionType the replication action type of the flush
+     * @param paths the paths to flush
+     * @return true if the flush succeeded via the Agent
+     * @throws LoginException
+     * @throws ReplicationException
+     */
+    private boolean reflush(final String agentId, final AgentFilter agentFilter,
+                            final ReplicationActionType actionType, final String... paths)
+            throws LoginException, ReplicationException {
+        ResourceResolver resourceResolver = null;
+
+        try {
+            resourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+
+            final ReplicationResultListener listener = new ReplicationResultListener(this.flushTelemetry);
+            final AgentFilter admittedAgentFilter = new AdmittedAgentFilter(agentFilter, agentId);
+            final ReplicationOptions options = createOptions(admittedAgentFilter, false, listener);
+            final FlushJournal journal = this.flushJournal;
+            final long sequence = FlushJournalImpl.record(journal, actionType, admittedAgentFilter,
+                    Arrays.asList(paths));
+
+            for (final String path : paths) {
+                log.debug("Issuing parked Dispatcher Flush request for: {} via {}", path, agentId);
+                replicator.replicate(resourceResolver.adaptTo(Session.class), actionType, path, options);
             }
 
-            replicator.replicate(resourceResolver.adaptTo(Session.class),
-                    actionType, path, options);
-        }
+            final Map<Agent, ReplicationResult> results = listener.getResults();
+
+            if (sequence != FlushJournalImpl.NOT_JOURNALED) {
+                // The flushes were parked for this Agent only, so are delivered once delivered via this Agent
+                FlushJournalImpl.done(journal, actionType, admittedAgentFilter, this.getAgents(admittedAgentFilter),
+                        FlushBatch.getResults(Arrays.asList(paths), results), sequence);
+            }
 
-        return listener.getResults();
+            for (final Map.Entry<Agent, ReplicationResult> entry : results.entrySet()) {
+                if (agentId.equals(entry.getKey().getId()) && !entry.getValue().isSuccess()) {
+                    return false;
+                }
+            }
+
+            return true;
+        } finally {
+            if (resourceResolver != null) {
+                resourceResolver.close();
+            }
+        }
     }
 
     /**
@@ -123,16 +481,71 @@ public class DispatcherFlusherImpl implements DispatcherFlusher {
      * {@inheritDoc}
      */
     public final Agent[] getAgents(final AgentFilter agentFilter) {
-        final List<Agent> flushAgents = new ArrayList<Agent>();
+        return FlushAgentSnapshot.getAgents(agentManager.getAgents().values(), this.flushAgentSnapshot, agentFilter);
+    }
+
+    @Activate
+    protected final void activate(final Map<String, Object> properties) {
+        final double rateLimit = PropertiesUtil.toDouble(properties.get(PROP_RATE_LIMIT), DEFAULT_RATE_LIMIT);
+        final int failureThreshold = PropertiesUtil.toInteger(properties.get(PROP_FAILURE_THRESHOLD),
+                DEFAULT_FAILURE_THRESHOLD);
 
-        for (final Agent agent : agentManager.getAgents().values()) {
-            if (agentFilter.isIncluded(agent)) {
-                flushAgents.add(agent);
+        if (rateLimit > 0 || failureThreshold > 0) {
+            this.flushCircuitBreaker = new FlushCircuitBreaker(rateLimit,
+                    PropertiesUtil.toInteger(properties.get(PROP_RATE_LIMIT_BURST), DEFAULT_RATE_LIMIT_BURST),
+                    failureThreshold,
+                    PropertiesUtil.toLong(properties.get(PROP_OPEN_TIME), DEFAULT_OPEN_TIME),
+                    PropertiesUtil.toInteger(properties.get(PROP_MAX_PARKED), DEFAULT_MAX_PARKED),
+                    new FlushCircuitBreaker.Handler() {
+                        @Override
+                        public boolean flush(final String agentId, final AgentFilter agentFilter,
+                                             final ReplicationActionType actionType, final String... paths)
+                                throws Exception {
+                            return reflush(agentId, agentFilter, actionType, paths);
+                        }
+                    }, "ACS AEM Commons - Dispatcher Flusher Circuit Breaker");
+
+            log.debug("Limiting flushes to {} per second and stopping flushes after {} failures", rateLimit,
+                    failureThreshold);
+        }
+
+        if (PropertiesUtil.toBoolean(properties.get(PROP_REWARM_ENABLED), DEFAULT_REWARM_ENABLED)) {
+            final List<Pattern> patterns = new ArrayList<Pattern>();
+
+            for (final String pattern : PropertiesUtil.toStringArray(properties.get(PROP_REWARM_PATHS),
+                    DEFAULT_REWARM_PATHS)) {
+                if (StringUtils.isNotBlank(pattern)) {
+                    patterns.add(Pattern.compile(StringUtils.strip(pattern)));
+                }
             }
+
+            this.flushRewarmer = new FlushRewarmer(patterns,
+                    PropertiesUtil.toStringArray(properties.get(PROP_REWARM_SELECTORS), DEFAULT_REWARM_SELECTORS),
+                    PropertiesUtil.toStringArray(properties.get(PROP_REWARM_EXTENSIONS), DEFAULT_REWARM_EXTENSIONS),
+                    OsgiPropertyUtil.toMap(PropertiesUtil.toStringArray(properties.get(PROP_REWARM_HOSTS),
+                            DEFAULT_REWARM_HOSTS), "="),
+                    Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_REWARM_THREADS),
+                            DEFAULT_REWARM_THREADS)),
+                    PropertiesUtil.toLong(properties.get(PROP_REWARM_DELAY), DEFAULT_REWARM_DELAY),
+                    PropertiesUtil.toInteger(properties.get(PROP_REWARM_MAX_PENDING), DEFAULT_REWARM_MAX_PENDING),
+                    PropertiesUtil.toInteger(properties.get(PROP_REWARM_TIMEOUT), DEFAULT_REWARM_TIMEOUT),
+                    "ACS AEM Commons - Dispatcher Flusher Re-warm");
+
+            log.debug("Re-warming flushed paths matching {}", patterns);
         }
-        return flushAgents.toArray(new Agent[flushAgents.size()]);
     }
-}
-
 
+    @Deactivate
+    protected final void deactivate(final Map<String, Object> properties) {
+        if (this.flushCircuitBreaker != null) {
+            // Re-flushes any parked flushes
+            this.flushCircuitBreaker.close();
+            this.flushCircuitBreaker = null;
+        }
 
+        if (this.flushRewarmer != null) {
+            this.flushRewarmer.close();
+            this.flushRewarmer = null;
+        }
+    }
+}
@@ -20,6 +20,7 @@
 package com.adobe.acs.commons.replication.dispatcher.impl;
 
 import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
+import com.adobe.acs.commons.replication.dispatcher.impl.AgentReplicationResult.PathResult;
 import com.day.cq.replication.Agent;
 import com.day.cq.replication.ReplicationActionType;
 import com.day.cq.replication.ReplicationException;
@@ -27,10 +28,13 @@ import com.day.cq.replication.ReplicationResult;
 import com.day.cq.wcm.api.Page;
 import com.day.cq.wcm.api.PageManager;
 import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceUtil;
@@ -38,6 +42,8 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
@@ -47,12 +53,53 @@ import java.util.Map;
 
 @SuppressWarnings("serial")
 @SlingServlet(resourceTypes = "acs-commons/components/utilities/dispatcher-flush/configuration",
-        selectors = "flush", methods = "POST")
+        selectors = "flush", methods = { "GET", "POST" })
 public class DispatcherFlusherServlet extends SlingAllMethodsServlet {
 
+    private static final Logger log = LoggerFactory.getLogger(DispatcherFlusherServlet.class);
+
+    /* Maximum number of chunks flushed concurrently across all background flush jobs */
+    private static final int JOB_THREADS = 4;
+
+    /* Maximum number of chunks of a single background flush job flushed concurrently */
+    private static final int JOB_WORKERS = 2;
+
+    /* Maximum number of paths of a background flush job flushed as a single batch */
+    private static final int JOB_CHUNK_SIZE = 100;
+
+    /* Number of most recent background flush jobs whose progress can be requested */
+    private static final int RETAINED_JOBS = 20;
+
+    private static final String PARAM_JOB = "job";
+
     @Reference
     private DispatcherFlusher dispatcherFlusher;
 
+    private FlushJobManager flushJobManager;
+
+    /**
+     * Reports the progress of the background flush job identified by the job request parameter.
+     */
+    @Override
+    protected final void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        final FlushJob job = flushJobManager.get(StringUtils.defaultString(request.getParameter(PARAM_JOB)));
+
+        if (job == null || !StringUtils.equals(job.getUserId(), request.getResourceResolver().getUserID())) {
+            response.sendError(SlingHttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        try {
+            job.write(new JSONWriter(response.getWriter()));
+        } catch (JSONException e) {
+            throw new ServletException("Unable to output JSON data", e);
+        }
+    }
+
     @Override
     protected final void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
             throws ServletException, IOException {
@@ -68,6 +115,14 @@ public class DispatcherFlusherServlet extends SlingAllMethodsServlet {
         final ReplicationActionType replicationActionType = ReplicationActionType.valueOf(properties.get(
                 "replicationActionType", ReplicationActionType.ACTIVATE.name()));
 
+        /* Report per-path failures in JSON responses */
+        final boolean detailed = Boolean.parseBoolean(request.getParameter("detail"));
+
+        if (Boolean.parseBoolean(request.getParameter(PARAM_JOB))) {
+            this.startJob(resourceResolver, replicationActionType, paths, response);
+            return;
+        }
+
         final List<FlushResult> overallResults = new ArrayList<FlushResult>();
         boolean caughtException = false;
 
@@ -94,7 +149,12 @@ public class DispatcherFlusherServlet extends SlingAllMethodsServlet {
                 writer.object();
                 for (final FlushResult result : overallResults) {
                     writer.key(result.agentId);
-                    writer.value(result.success);
+
+                    if (detailed) {
+                        this.writeDetail(writer, result);
+                    } else {
+                        writer.value(result.success);
+                    }
                 }
                 writer.endObject();
             } catch (JSONException e) {
@@ -112,14 +172,98 @@ public class DispatcherFlusherServlet extends SlingAllMethodsServlet {
         }
     }
 
+    /**
+     * Starts flushing the paths in the background and responds with the id of the background flush job.
+     *
+     * @param resourceResolver the requesting user's ResourceResolver
+     * @param replicationActionType the replication action type of the flush
+     * @param paths the paths to flush
+     * @param response the response
+     * @throws ServletException
+     * @throws IOException
+     */
+    private void startJob(final ResourceResolver resourceResolver, final ReplicationActionType replicationActionType,
+                          final String[] paths, final SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        final FlushJob job;
+
+        try {
+            job = flushJobManager.start(resourceResolver, replicationActionType, paths);
+        } catch (LoginException e) {
+            log.error("Could not start dispatcher flush job: {}", e.getMessage());
+            response.sendError(SlingHttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        response.setStatus(SlingHttpServletResponse.SC_ACCEPTED);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        try {
+            final JSONWriter writer = new JSONWriter(response.getWriter());
+            writer.object();
+            writer.key("id").value(job.getId());
+            writer.endObject();
+        } catch (JSONException e) {
+            throw new ServletException("Unable to output JSON data", e);
+        }
+    }
+
+    /**
+     * Writes an agent's result with the paths that failed to flush.
+     *
+     * @param writer the JSON writer
+     * @param result the agent's result
+     * @throws JSONException
+     */
+    private void writeDetail(final JSONWriter writer, final FlushResult result) throws JSONException {
+        writer.object();
+        writer.key("success").value(result.success);
+        writer.key("code").value(result.result.getCode());
+        writer.key("message").value(result.result.getMessage());
+
+        if (result.result instanceof AgentReplicationResult) {
+            final AgentReplicationResult agentResult = (AgentReplicationResult) result.result;
+
+            writer.key("paths").value(agentResult.getPathResults().size());
+            writer.key("failures").array();
+            for (final PathResult failure : agentResult.getFailures()) {
+                writer.object();
+                writer.key("path").value(failure.getPath());
+                writer.key("code").value(failure.getCode());
+                writer.key("message").value(failure.getMessage());
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+
+        writer.endObject();
+    }
+
+    @Activate
+    protected final void activate(final Map<String, Object> properties) {
+        this.flushJobManager = new FlushJobManager(dispatcherFlusher, JOB_THREADS, JOB_WORKERS, JOB_CHUNK_SIZE,
+                RETAINED_JOBS);
+    }
+
+    @Deactivate
+    protected final void deactivate(final Map<String, Object> properties) {
+        if (this.flushJobManager != null) {
+            this.flushJobManager.close();
+            this.flushJobManager = null;
+        }
+    }
+
     private final class FlushResult {
 
         private FlushResult(Agent agent, ReplicationResult result) {
             this.agentId = agent.getId();
+            this.result = result;
             this.success = result.isSuccess() && result.getCode() == SlingHttpServletResponse.SC_OK;
         }
 
         private final String agentId;
+        private final ReplicationResult result;
         private final boolean success;
 
         @Override
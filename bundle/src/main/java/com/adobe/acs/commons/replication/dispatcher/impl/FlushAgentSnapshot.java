@@ -0,0 +1,175 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentConfig;
+import com.day.cq.replication.AgentFilter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable classification of the replication agents into hierarchical Dispatcher Flush agents, ResourceOnly
+ * Dispatcher Flush agents and others.
+ *
+ * The AgentManager replaces an agent's configuration when it changes, so a snapshot remains current for as long
+ * as the AgentManager returns the same agents, with the same configurations and enabled states.
+ */
+public final class FlushAgentSnapshot {
+    private static final Agent[] EMPTY = new Agent[0];
+
+    private final Agent[] agents;
+
+    private final AgentConfig[] configs;
+
+    private final boolean[] enabled;
+
+    private final Agent[] all;
+
+    private final Agent[] hierarchical;
+
+    private final Agent[] resourceOnly;
+
+    private final Agent[] others;
+
+    /**
+     * @param agents the replication agents
+     */
+    public FlushAgentSnapshot(final Collection<Agent> agents) {
+        final List<Agent> allList = new ArrayList<Agent>();
+        final List<Agent> hierarchicalList = new ArrayList<Agent>();
+        final List<Agent> resourceOnlyList = new ArrayList<Agent>();
+        final List<Agent> othersList = new ArrayList<Agent>();
+
+        this.agents = agents.toArray(new Agent[agents.size()]);
+        this.configs = new AgentConfig[this.agents.length];
+        this.enabled = new boolean[this.agents.length];
+
+        for (int i = 0; i < this.agents.length; i++) {
+            final Agent agent = this.agents[i];
+
+            this.configs[i] = agent.getConfiguration();
+            this.enabled[i] = agent.isEnabled();
+
+            if (DispatcherFlushFilter.HIERARCHICAL.isIncluded(agent)) {
+                allList.add(agent);
+                hierarchicalList.add(agent);
+            } else if (DispatcherFlushFilter.RESOURCE_ONLY.isIncluded(agent)) {
+                allList.add(agent);
+                resourceOnlyList.add(agent);
+            } else {
+                othersList.add(agent);
+            }
+        }
+
+        this.all = allList.toArray(EMPTY);
+        this.hierarchical = hierarchicalList.toArray(EMPTY);
+        this.resourceOnly = resourceOnlyList.toArray(EMPTY);
+        this.others = othersList.toArray(EMPTY);
+    }
+
+    /**
+     * Gets the agents included by the filter.
+     *
+     * Dispatcher Flush filters are served from the snapshot held, which is replaced once the agents change, as
+     * classifying the agents is comparatively expensive. Other filters are applied to each agent.
+     *
+     * @param agents the current replication agents, in the AgentManager's order
+     * @param snapshot holds the latest snapshot of the agents, if any
+     * @param agentFilter the filter
+     * @return the included agents, in the AgentManager's order
+     */
+    public static Agent[] getAgents(final Collection<Agent> agents, final AtomicReference<FlushAgentSnapshot> snapshot,
+                                    final AgentFilter agentFilter) {
+        if (agentFilter instanceof DispatcherFlushFilter) {
+            FlushAgentSnapshot current = snapshot.get();
+
+            if (current == null || !current.isCurrent(agents)) {
+                current = new FlushAgentSnapshot(agents);
+                snapshot.set(current);
+            }
+
+            return current.getAgents(((DispatcherFlushFilter) agentFilter).getFlushType());
+        }
+
+        final List<Agent> included = new ArrayList<Agent>();
+
+        for (final Agent agent : agents) {
+            if (agentFilter.isIncluded(agent)) {
+                included.add(agent);
+            }
+        }
+        return included.toArray(new Agent[included.size()]);
+    }
+
+    /**
+     * Checks if the agents have not changed since this snapshot was taken.
+     *
+     * @param currentAgents the current replication agents, in the AgentManager's order
+     * @return true if this snapshot classifies the current agents
+     */
+    public boolean isCurrent(final Collection<Agent> currentAgents) {
+        if (currentAgents.size() != this.agents.length) {
+            return false;
+        }
+
+        int i = 0;
+        for (final Agent agent : currentAgents) {
+            if (agent != this.agents[i]
+                    || agent.getConfiguration() != this.configs[i]
+                    || agent.isEnabled() != this.enabled[i]) {
+                return false;
+            }
+            i++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the enabled Dispatcher Flush agents of the flush type.
+     *
+     * @param flushType the flush type; All for all Dispatcher Flush agents
+     * @return the agents, in the AgentManager's order
+     */
+    public Agent[] getAgents(final FlushType flushType) {
+        if (FlushType.All.equals(flushType)) {
+            return this.all.clone();
+        } else if (FlushType.Hierarchical.equals(flushType)) {
+            return this.hierarchical.clone();
+        } else if (FlushType.ResourceOnly.equals(flushType)) {
+            return this.resourceOnly.clone();
+        }
+
+        return EMPTY;
+    }
+
+    /**
+     * @return the agents that are not enabled Dispatcher Flush agents
+     */
+    public Agent[] getOthers() {
+        return this.others.clone();
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.adobe.acs.commons.replication.dispatcher.impl.AgentReplicationResult.PathResult;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationResult;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plans the flushes of a batch of paths via a set of Agents.
+ *
+ * Each distinct path is flushed once. Hierarchical Dispatcher Flush Agents receive only the paths that are not
+ * beneath another path of the batch, as flushing the ancestor hierarchically already flushes them. All other Agents
+ * receive every distinct path.
+ *
+ * A FlushPlanner may further reduce the paths flushed via each Agent, ex. to those causing distinct invalidations.
+ */
+public final class FlushBatch {
+    private final Set<String> paths = new LinkedHashSet<String>();
+
+    /* Agents per flushed path, in the order the paths were requested */
+    private final Map<String, List<Agent>> flushes = new LinkedHashMap<String, List<Agent>>();
+
+    /* Flushed path per Agent and requested path */
+    private final Map<Agent, Map<String, String>> flushPaths = new LinkedHashMap<Agent, Map<String, String>>();
+
+    /**
+     * @param agents the Agents to flush via
+     * @param paths the paths to flush; blank paths are ignored
+     */
+    public FlushBatch(final Agent[] agents, final Collection<String> paths) {
+        this(agents, null, paths, null);
+    }
+
+    /**
+     * @param agents the Agents to flush via
+     * @param actionType the replication action type of the flushes
+     * @param paths the paths to flush; blank paths are ignored
+     * @param planner the planner reducing the paths flushed via each Agent, or null
+     */
+    public FlushBatch(final Agent[] agents, final ReplicationActionType actionType, final Collection<String> paths,
+                      final FlushPlanner planner) {
+        for (final String path : paths) {
+            if (StringUtils.isNotBlank(path)) {
+                this.paths.add(path);
+            }
+        }
+
+        final boolean[] hierarchical = new boolean[agents.length];
+        final List<Map<String, String>> plans = new ArrayList<Map<String, String>>(agents.length);
+        for (int i = 0; i < agents.length; i++) {
+            hierarchical[i] = DispatcherFlushFilter.HIERARCHICAL.isIncluded(agents[i]);
+            plans.add(planner == null ? null : planner.plan(agents[i], actionType, this.paths));
+            this.flushPaths.put(agents[i], new LinkedHashMap<String, String>());
+        }
+
+        for (final String path : this.paths) {
+            final String ancestor = getFlushPath(path, this.paths);
+
+            for (int i = 0; i < agents.length; i++) {
+                String flushPath = hierarchical[i] ? ancestor : path;
+
+                final Map<String, String> plan = plans.get(i);
+                if (plan != null && plan.containsKey(flushPath)) {
+                    flushPath = plan.get(flushPath);
+                }
+
+                List<Agent> flushAgents = this.flushes.get(flushPath);
+                if (flushAgents == null) {
+                    flushAgents = new ArrayList<Agent>(agents.length);
+                    this.flushes.put(flushPath, flushAgents);
+                }
+
+                if (!flushAgents.contains(agents[i])) {
+                    flushAgents.add(agents[i]);
+                }
+
+                this.flushPaths.get(agents[i]).put(path, flushPath);
+            }
+        }
+    }
+
+    /**
+     * Gets the topmost path of the batch at or above the path, which flushes the path hierarchically.
+     *
+     * @param path the path
+     * @param paths the paths of the batch
+     * @return the topmost ancestor of the path in the batch, or the path itself
+     */
+    static String getFlushPath(final String path, final Set<String> paths) {
+        String flushPath = path;
+
+        // Check each ancestor, from the parent up to the root
+        final int start = "/".equals(path) ? -1 : path.lastIndexOf('/');
+        for (int i = start; i >= 0; i = i == 0 ? -1 : path.lastIndexOf('/', i - 1)) {
+            final String ancestor = i == 0 ? "/" : path.substring(0, i);
+
+            if (paths.contains(ancestor)) {
+                flushPath = ancestor;
+            }
+        }
+
+        return flushPath;
+    }
+
+    /**
+     * @return the distinct requested paths, in the order they were requested
+     */
+    public Set<String> getPaths() {
+        return Collections.unmodifiableSet(this.paths);
+    }
+
+    /**
+     * @return the paths to flush, each via the Agents returned by {@link #getAgents(String)}
+     */
+    public Set<String> getFlushPaths() {
+        return Collections.unmodifiableSet(this.flushes.keySet());
+    }
+
+    /**
+     * @param flushPath a path to flush
+     * @return the Agents to flush the path via
+     */
+    public List<Agent> getAgents(final String flushPath) {
+        final List<Agent> agents = this.flushes.get(flushPath);
+        return agents == null ? Collections.<Agent>emptyList() : Collections.unmodifiableList(agents);
+    }
+
+    /**
+     * @param agent an Agent
+     * @return the distinct paths to flush via the Agent
+     */
+    public List<String> getFlushPaths(final Agent agent) {
+        final Map<String, String> byPath = this.flushPaths.get(agent);
+        return byPath == null ? Collections.<String>emptyList()
+                : new ArrayList<String>(new LinkedHashSet<String>(byPath.values()));
+    }
+
+    /**
+     * Aggregates the results of the flushes per requested path.
+     *
+     * Each requested path receives, per Agent, the result of the flush that flushed it. Agents with an
+     * AgentReplicationResult report per-path results; for other results, the Agent's overall result is used.
+     *
+     * @param agentResults the results of the flushes per Agent
+     * @return the results per requested path, then Agent
+     */
+    public Map<String, Map<Agent, ReplicationResult>> getResults(final Map<Agent, ReplicationResult> agentResults) {
+        return getResults(this.paths, this.flushPaths, agentResults);
+    }
+
+    /**
+     * Aggregates the results of flushes that flushed each path as is, per path.
+     *
+     * @param paths the flushed paths
+     * @param agentResults the results of the flushes per Agent
+     * @return the results per path, then Agent
+     * @see #getResults(Map)
+     */
+    public static Map<String, Map<Agent, ReplicationResult>> getResults(final Collection<String> paths,
+            final Map<Agent, ReplicationResult> agentResults) {
+        return getResults(new LinkedHashSet<String>(paths), null, agentResults);
+    }
+
+    /**
+     * @param paths the requested paths
+     * @param flushPaths the flushed path per Agent and requested path, or null if each path was flushed as is
+     * @param agentResults the results of the flushes per Agent
+     * @return the results per requested path, then Agent
+     */
+    private static Map<String, Map<Agent, ReplicationResult>> getResults(final Set<String> paths,
+            final Map<Agent, Map<String, String>> flushPaths, final Map<Agent, ReplicationResult> agentResults) {
+        final Map<Agent, Map<String, PathResult>> pathResults = new HashMap<Agent, Map<String, PathResult>>();
+
+        for (final Map.Entry<Agent, ReplicationResult> entry : agentResults.entrySet()) {
+            if (entry.getValue() instanceof AgentReplicationResult) {
+                final Map<String, PathResult> byPath = new HashMap<String, PathResult>();
+
+                for (final PathResult pathResult : ((AgentReplicationResult) entry.getValue()).getPathResults()) {
+                    byPath.put(pathResult.getPath(), pathResult);
+                }
+
+                pathResults.put(entry.getKey(), byPath);
+            }
+        }
+
+        final Map<String, Map<Agent, ReplicationResult>> results =
+                new LinkedHashMap<String, Map<Agent, ReplicationResult>>();
+
+        for (final String path : paths) {
+            final Map<Agent, ReplicationResult> byAgent = new LinkedHashMap<Agent, ReplicationResult>();
+
+            for (final Map.Entry<Agent, ReplicationResult> entry : agentResults.entrySet()) {
+                final String flushPath;
+
+                if (flushPaths == null) {
+                    flushPath = path;
+                } else {
+                    final Map<String, String> byPath = flushPaths.get(entry.getKey());
+                    flushPath = byPath == null ? null : byPath.get(path);
+                }
+
+                if (flushPath == null) {
+                    continue;
+                }
+
+                if (pathResults.containsKey(entry.getKey())) {
+                    final PathResult pathResult = pathResults.get(entry.getKey()).get(flushPath);
+
+                    if (pathResult != null) {
+                        byAgent.put(entry.getKey(), new ReplicationResult(pathResult.isSuccess(),
+                                pathResult.getCode(), pathResult.getMessage()));
+                    }
+                } else {
+                    byAgent.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            results.put(path, byAgent);
+        }
+
+        return results;
+    }
+}
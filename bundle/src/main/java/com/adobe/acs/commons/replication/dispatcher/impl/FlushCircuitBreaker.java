@@ -0,0 +1,451 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentFilter;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-Agent circuit breaker and token bucket rate limiter for dispatcher flushes.
+ *
+ * A flush admitted by {@link #tryAcquire} is issued immediately. Otherwise it is parked: while an Agent's circuit is
+ * open, or while its rate limit is exceeded. Parked paths are grouped by agent filter and replication action type.
+ * Within a group, duplicate paths are dropped. For hierarchical Dispatcher Flush Agents, paths beneath another parked
+ * path are collapsed into it. Each group is issued later as a single re-flush.
+ *
+ * A circuit opens after a number of consecutive failed flushes, or when the Agent's replication queue is blocked.
+ * Once the open time elapses, the parked paths are re-flushed as a trial. The circuit closes if the trial
+ * succeeds, and re-opens otherwise.
+ */
+public final class FlushCircuitBreaker {
+    private static final Logger log = LoggerFactory.getLogger(FlushCircuitBreaker.class);
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private static final double NANOS_PER_SECOND = 1000000000d;
+
+    /* Interval at which parked flushes are checked */
+    private static final long DRAIN_INTERVAL = 1000L;
+
+    public static enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Issues re-flushes of parked paths.
+     */
+    public interface Handler {
+        /**
+         * Flushes the paths via a single Agent.
+         *
+         * @param agentId the id of the Agent
+         * @param agentFilter the agent filter the paths were originally flushed with
+         * @param actionType the replication action type of the flush
+         * @param paths the paths to flush
+         * @return true if the flush succeeded
+         * @throws Exception
+         */
+        boolean flush(String agentId, AgentFilter agentFilter, ReplicationActionType actionType, String... paths)
+                throws Exception;
+    }
+
+    private final double rate;
+
+    private final int burst;
+
+    private final int failureThreshold;
+
+    private final long openTime;
+
+    private final int maxParked;
+
+    private final Handler handler;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+    private final Object drainLock = new Object();
+
+    /**
+     * @param rate the number of flushes per second admitted per Agent, or 0 for no rate limit
+     * @param burst the number of flushes per Agent admitted in a burst before the rate limit applies
+     * @param failureThreshold the number of consecutive failed flushes that open an Agent's circuit, or 0 to never
+     *                         open circuits
+     * @param openTime time in milliseconds a circuit stays open before parked flushes are re-flushed as a trial
+     * @param maxParked the maximum number of paths parked per Agent; further paths are dropped
+     * @param handler issues the re-flushes of parked paths
+     * @param threadName name of the thread issuing the re-flushes
+     */
+    public FlushCircuitBreaker(final double rate, final int burst, final int failureThreshold, final long openTime,
+                               final int maxParked, final Handler handler, final String threadName) {
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+        this.maxParked = maxParked;
+        this.handler = handler;
+
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Parked flushes are issued by close
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        try {
+            this.executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    drain(false);
+                }
+            }, DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            log.warn("Could not schedule re-flushes of parked dispatcher flushes: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Admits a flush via the Agent, or parks it.
+     *
+     * @param agent the Agent
+     * @param agentFilter the agent filter the path is flushed with
+     * @param actionType the replication action type of the flush
+     * @param path the path to flush
+     * @return true if the flush should be issued now; false if it was parked
+     */
+    public boolean tryAcquire(final Agent agent, final AgentFilter agentFilter,
+                              final ReplicationActionType actionType, final String path) {
+        final Circuit circuit = this.getCircuit(agent);
+
+        synchronized (circuit) {
+            if (circuit.state == State.CLOSED && this.failureThreshold > 0 && isQueueBlocked(agent)) {
+                this.open(circuit, "its replication queue is blocked");
+            }
+
+            if (circuit.state == State.CLOSED && (this.rate <= 0 || circuit.takeToken(this.rate, this.burst))) {
+                return true;
+            }
+
+            if (circuit.parkedCount >= this.maxParked) {
+                log.warn("Dropping flush of [ {} ] via [ {} ]; {} flushes are already parked", new Object[]{ path,
+                        circuit.agentId, circuit.parkedCount });
+            } else {
+                circuit.park(agentFilter, actionType, path);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Records the result of a flush issued via an Agent.
+     *
+     * @param agentId the id of the Agent
+     * @param success true if the flush succeeded
+     */
+    public void recordResult(final String agentId, final boolean success) {
+        final Circuit circuit = this.circuits.get(agentId);
+
+        if (circuit == null) {
+            return;
+        }
+
+        synchronized (circuit) {
+            if (success) {
+                circuit.failures = 0;
+            } else if (++circuit.failures >= this.failureThreshold && this.failureThreshold > 0
+                    && circuit.state == State.CLOSED) {
+                this.open(circuit, circuit.failures + " consecutive flushes failed");
+            }
+        }
+    }
+
+    /**
+     * @param agentId the id of the Agent
+     * @return the state of the Agent's circuit
+     */
+    public State getState(final String agentId) {
+        final Circuit circuit = this.circuits.get(agentId);
+
+        if (circuit == null) {
+            return State.CLOSED;
+        }
+
+        synchronized (circuit) {
+            return circuit.state;
+        }
+    }
+
+    /**
+     * @param agentId the id of the Agent
+     * @return the number of paths parked for the Agent
+     */
+    public int getParkedCount(final String agentId) {
+        final Circuit circuit = this.circuits.get(agentId);
+
+        if (circuit == null) {
+            return 0;
+        }
+
+        synchronized (circuit) {
+            return circuit.parkedCount;
+        }
+    }
+
+    /**
+     * Re-flushes parked paths of Agents whose circuit is closed and whose rate limit admits a flush, and of Agents
+     * whose circuit has been open for the open time.
+     *
+     * @param force true to re-flush all parked paths regardless of circuit state and rate limit
+     */
+    void drain(final boolean force) {
+        synchronized (this.drainLock) {
+            for (final Circuit circuit : this.circuits.values()) {
+                this.drain(circuit, force);
+            }
+        }
+    }
+
+    private void drain(final Circuit circuit, final boolean force) {
+        final Map<AgentFilter, Map<ReplicationActionType, Set<String>>> parked;
+        final boolean trial;
+
+        synchronized (circuit) {
+            if (circuit.parkedCount == 0 && circuit.state != State.OPEN) {
+                return;
+            }
+
+            if (force) {
+                trial = false;
+            } else if (circuit.state == State.OPEN) {
+                if (System.nanoTime() - circuit.openedAt < this.openTime * NANOS_PER_MILLI) {
+                    return;
+                } else if (isQueueBlocked(circuit.agent)) {
+                    circuit.openedAt = System.nanoTime();
+                    log.debug("Dispatcher flush circuit of [ {} ] stays open; its replication queue is blocked",
+                            circuit.agentId);
+                    return;
+                }
+
+                circuit.state = State.HALF_OPEN;
+                trial = true;
+            } else if (circuit.state == State.CLOSED && (this.rate <= 0 || circuit.takeToken(this.rate, this.burst))) {
+                trial = false;
+            } else {
+                return;
+            }
+
+            parked = circuit.unpark();
+        }
+
+        boolean success = true;
+
+        for (final Map.Entry<AgentFilter, Map<ReplicationActionType, Set<String>>> byFilter : parked.entrySet()) {
+            for (final Map.Entry<ReplicationActionType, Set<String>> byActionType : byFilter.getValue().entrySet()) {
+                final Set<String> paths = byActionType.getValue();
+                final List<String> flushes = circuit.hierarchical
+                        ? FlushCoalescer.collapse(paths) : new ArrayList<String>(paths);
+
+                log.debug("Re-flushing {} parked flushes via [ {} ] as {} flushes", new Object[]{ paths.size(),
+                        circuit.agentId, flushes.size() });
+
+                boolean flushed;
+                try {
+                    flushed = this.handler.flush(circuit.agentId, byFilter.getKey(), byActionType.getKey(),
+                            flushes.toArray(new String[flushes.size()]));
+                } catch (Exception ex) {
+                    log.error("Error re-flushing parked dispatcher flushes of {} via [ {} ]", new Object[]{ flushes,
+                            circuit.agentId, ex });
+                    flushed = false;
+                }
+
+                if (!flushed) {
+                    // The paths were not flushed; keep them for the next attempt
+                    synchronized (circuit) {
+                        for (final String path : flushes) {
+                            circuit.park(byFilter.getKey(), byActionType.getKey(), path);
+                        }
+                    }
+                }
+
+                success = success && flushed;
+            }
+        }
+
+        if (trial) {
+            synchronized (circuit) {
+                if (success) {
+                    circuit.state = State.CLOSED;
+                    circuit.failures = 0;
+                    log.info("Closed dispatcher flush circuit of [ {} ]", circuit.agentId);
+                } else {
+                    this.open(circuit, "the re-flush of parked flushes failed");
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops re-flushing parked paths periodically, and re-flushes all parked paths.
+     */
+    public void close() {
+        this.executor.shutdown();
+
+        try {
+            if (!this.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Timed out waiting for re-flushes of parked dispatcher flushes");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.drain(true);
+    }
+
+    private void open(final Circuit circuit, final String reason) {
+        circuit.state = State.OPEN;
+        circuit.openedAt = System.nanoTime();
+        log.warn("Opened dispatcher flush circuit of [ {} ] for {} ms; {}", new Object[]{ circuit.agentId,
+                this.openTime, reason });
+    }
+
+    private Circuit getCircuit(final Agent agent) {
+        Circuit circuit = this.circuits.get(agent.getId());
+
+        if (circuit == null) {
+            final Circuit created = new Circuit(agent, this.burst);
+            circuit = this.circuits.putIfAbsent(agent.getId(), created);
+
+            if (circuit == null) {
+                circuit = created;
+            }
+        }
+
+        // Track the current instance of the Agent, as Agents are replaced when reconfigured
+        circuit.agent = agent;
+
+        return circuit;
+    }
+
+    private static boolean isQueueBlocked(final Agent agent) {
+        final ReplicationQueue queue = agent == null ? null : agent.getQueue();
+        return queue != null && queue.isBlocked();
+    }
+
+    /**
+     * The circuit, rate limit and parked paths of a single Agent; guarded by its own monitor.
+     */
+    private static final class Circuit {
+        private final String agentId;
+
+        private final boolean hierarchical;
+
+        private volatile Agent agent;
+
+        private State state = State.CLOSED;
+
+        private int failures = 0;
+
+        private long openedAt = 0;
+
+        private double tokens;
+
+        private long refilledAt = System.nanoTime();
+
+        private Map<AgentFilter, Map<ReplicationActionType, Set<String>>> parked =
+                new LinkedHashMap<AgentFilter, Map<ReplicationActionType, Set<String>>>();
+
+        private int parkedCount = 0;
+
+        Circuit(final Agent agent, final int burst) {
+            this.agentId = agent.getId();
+            this.agent = agent;
+            this.hierarchical = DispatcherFlushFilter.HIERARCHICAL.isIncluded(agent);
+            this.tokens = burst;
+        }
+
+        boolean takeToken(final double rate, final int burst) {
+            final long now = System.nanoTime();
+
+            this.tokens = Math.min(burst, this.tokens + (now - this.refilledAt) / NANOS_PER_SECOND * rate);
+            this.refilledAt = now;
+
+            if (this.tokens >= 1) {
+                this.tokens--;
+                return true;
+            }
+
+            return false;
+        }
+
+        void park(final AgentFilter agentFilter, final ReplicationActionType actionType, final String path) {
+            Map<ReplicationActionType, Set<String>> byActionType = this.parked.get(agentFilter);
+            if (byActionType == null) {
+                byActionType = new LinkedHashMap<ReplicationActionType, Set<String>>();
+                this.parked.put(agentFilter, byActionType);
+            }
+
+            Set<String> paths = byActionType.get(actionType);
+            if (paths == null) {
+                paths = new LinkedHashSet<String>();
+                byActionType.put(actionType, paths);
+            }
+
+            if (paths.add(path)) {
+                this.parkedCount++;
+            }
+        }
+
+        Map<AgentFilter, Map<ReplicationActionType, Set<String>>> unpark() {
+            final Map<AgentFilter, Map<ReplicationActionType, Set<String>>> unparked = this.parked;
+
+            this.parked = new LinkedHashMap<AgentFilter, Map<ReplicationActionType, Set<String>>>();
+            this.parkedCount = 0;
+
+            return unparked;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
+import com.day.cq.replication.ReplicationActionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects flush targets over a window and flushes each distinct target once.
+ *
+ * Targets are grouped by replication action type and flush type. Within a group duplicate targets are dropped,
+ * and hierarchical targets beneath another hierarchical target of the group are collapsed into it, as flushing
+ * the ancestor hierarchically already flushes them.
+ */
+public final class FlushCoalescer {
+    private static final Logger log = LoggerFactory.getLogger(FlushCoalescer.class);
+
+    private final long window;
+
+    private final Handler handler;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final Object lock = new Object();
+
+    /* Pending targets by action type and flush type, in the order they were first requested; guarded by lock */
+    private Map<ReplicationActionType, Map<FlushType, Set<String>>> pending =
+            new LinkedHashMap<ReplicationActionType, Map<FlushType, Set<String>>>();
+
+    /* Guarded by lock */
+    private boolean scheduled = false;
+
+    /* Guarded by lock */
+    private boolean closed = false;
+
+    /**
+     * @param window time in milliseconds to collect targets before flushing them
+     * @param handler issues the coalesced flushes
+     * @param threadName name of the thread issuing the coalesced flushes
+     */
+    public FlushCoalescer(final long window, final Handler handler, final String threadName) {
+        this.window = window;
+        this.handler = handler;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Pending flushes are issued by close rather than waiting out the window
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Requests a flush of the target; the flush is issued when the current window elapses.
+     *
+     * @param actionType the replication action type of the flush
+     * @param flushType the flush type of the flush
+     * @param target the path to flush
+     * @return false if the coalescer is closed and the flush was not accepted
+     */
+    public boolean add(final ReplicationActionType actionType, final FlushType flushType, final String target) {
+        synchronized (this.lock) {
+            if (this.closed) {
+                return false;
+            }
+
+            Map<FlushType, Set<String>> byFlushType = this.pending.get(actionType);
+            if (byFlushType == null) {
+                byFlushType = new EnumMap<FlushType, Set<String>>(FlushType.class);
+                this.pending.put(actionType, byFlushType);
+            }
+
+            Set<String> targets = byFlushType.get(flushType);
+            if (targets == null) {
+                targets = new LinkedHashSet<String>();
+                byFlushType.put(flushType, targets);
+            }
+
+            targets.add(target);
+
+            if (!this.scheduled) {
+                try {
+                    this.executor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    }, this.window, TimeUnit.MILLISECONDS);
+                    this.scheduled = true;
+                } catch (RejectedExecutionException ex) {
+                    log.warn("Could not schedule coalesced dispatcher flush: {}", ex.getMessage());
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Issues the flushes collected so far.
+     */
+    void flush() {
+        final Map<ReplicationActionType, Map<FlushType, Set<String>>> flushes;
+
+        synchronized (this.lock) {
+            flushes = this.pending;
+            this.pending = new LinkedHashMap<ReplicationActionType, Map<FlushType, Set<String>>>();
+            this.scheduled = false;
+        }
+
+        for (final Map.Entry<ReplicationActionType, Map<FlushType, Set<String>>> byActionType
+                : flushes.entrySet()) {
+            // EnumMap iterates Hierarchical before ResourceOnly
+            for (final Map.Entry<FlushType, Set<String>> byFlushType : byActionType.getValue().entrySet()) {
+                final Set<String> targets = byFlushType.getValue();
+                final List<String> paths = FlushType.Hierarchical.equals(byFlushType.getKey())
+                        ? collapse(targets) : new ArrayList<String>(targets);
+
+                log.debug("Coalesced {} {} flush requests into {} flushes", new Object[]{ targets.size(),
+                        byFlushType.getKey(), paths.size() });
+
+                try {
+                    this.handler.flush(byActionType.getKey(), byFlushType.getKey(),
+                            paths.toArray(new String[paths.size()]));
+                } catch (Exception ex) {
+                    log.error("Error issuing coalesced dispatcher flush of {}", paths, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the targets that are beneath another of the targets.
+     *
+     * @param targets the distinct targets
+     * @return the targets that are not beneath another target, in their original order
+     */
+    static List<String> collapse(final Set<String> targets) {
+        final List<String> collapsed = new ArrayList<String>(targets.size());
+
+        for (final String target : targets) {
+            boolean covered = false;
+
+            // Check each ancestor, from the parent up to the root
+            final int start = "/".equals(target) ? -1 : target.lastIndexOf('/');
+            for (int i = start; i >= 0 && !covered; i = target.lastIndexOf('/', i - 1)) {
+                covered = targets.contains(i == 0 ? "/" : target.substring(0, i));
+            }
+
+            if (!covered) {
+                collapsed.add(target);
+            }
+        }
+
+        return collapsed;
+    }
+
+    /**
+     * Stops accepting flushes and issues any pending flushes.
+     */
+    public void close() {
+        synchronized (this.lock) {
+            this.closed = true;
+        }
+
+        this.executor.shutdown();
+
+        try {
+            // Allow an in-progress flush to complete
+            this.executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.flush();
+    }
+
+    /**
+     * Issues coalesced flushes.
+     */
+    public interface Handler {
+        /**
+         * @param actionType the replication action type of the flush
+         * @param flushType the flush type of the flush
+         * @param paths the distinct paths to flush
+         * @throws Exception
+         */
+        void flush(ReplicationActionType actionType, FlushType flushType, String... paths) throws Exception;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+/**
+ * An immutable record of a single flush, via an Agent or triggered by a Dispatcher Flush Rule.
+ */
+public final class FlushEvent {
+    private final long sequence;
+
+    private final long time;
+
+    private final String actionType;
+
+    private final String path;
+
+    private final String target;
+
+    private final String rule;
+
+    private final String agent;
+
+    private final long duration;
+
+    private final boolean success;
+
+    private final int code;
+
+    /**
+     * @param sequence the sequence number of the event
+     * @param time the time in milliseconds of the event
+     * @param actionType the name of the replication action type of the flush
+     * @param path the flushed path, or the replicated path for rule-triggered flushes
+     * @param target the associated path flushed by a rule, or null
+     * @param rule the pattern of the rule that triggered the flush, or null
+     * @param agent the id(s) of the Agent(s) the flush was issued to, or null
+     * @param duration the time in nanoseconds taken by the flush, or -1 if unknown
+     * @param success true if the flush succeeded
+     * @param code the flush result code, or 0
+     */
+    public FlushEvent(final long sequence, final long time, final String actionType, final String path,
+                      final String target, final String rule, final String agent, final long duration,
+                      final boolean success, final int code) {
+        this.sequence = sequence;
+        this.time = time;
+        this.actionType = actionType;
+        this.path = path;
+        this.target = target;
+        this.rule = rule;
+        this.agent = agent;
+        this.duration = duration;
+        this.success = success;
+        this.code = code;
+    }
+
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public long getTime() {
+        return this.time;
+    }
+
+    public String getActionType() {
+        return this.actionType;
+    }
+
+    public String getPath() {
+        return this.path;
+    }
+
+    public String getTarget() {
+        return this.target;
+    }
+
+    public String getRule() {
+        return this.rule;
+    }
+
+    public String getAgent() {
+        return this.agent;
+    }
+
+    /**
+     * @return the time in nanoseconds taken by the flush, or -1 if unknown
+     */
+    public long getDuration() {
+        return this.duration;
+    }
+
+    public boolean isSuccess() {
+        return this.success;
+    }
+
+    public int getCode() {
+        return this.code;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationResult;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A background flush of a series of paths, tracking the status of each path on each agent.
+ */
+public final class FlushJob {
+    /**
+     * The status of a path, or of the job as a whole.
+     */
+    public static enum Status {
+        PENDING,
+        RUNNING,
+        COMPLETE,
+        ERROR
+    }
+
+    private final String id = UUID.randomUUID().toString();
+
+    private final String userId;
+
+    private final ReplicationActionType actionType;
+
+    private final String[] paths;
+
+    private final long created = System.currentTimeMillis();
+
+    /* Index of the next path to flush */
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final AtomicInteger completed = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private final AtomicReferenceArray<PathStatus> statuses;
+
+    /**
+     * @param userId the user that requested the flush
+     * @param actionType the replication action type of the flush
+     * @param paths the paths to flush
+     */
+    public FlushJob(final String userId, final ReplicationActionType actionType, final String[] paths) {
+        this.userId = userId;
+        this.actionType = actionType;
+        this.paths = paths.clone();
+        this.statuses = new AtomicReferenceArray<PathStatus>(this.paths.length);
+
+        for (int i = 0; i < this.paths.length; i++) {
+            this.statuses.set(i, PathStatus.PENDING);
+        }
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public String getUserId() {
+        return this.userId;
+    }
+
+    public ReplicationActionType getActionType() {
+        return this.actionType;
+    }
+
+    /**
+     * Claims the next chunk of paths to flush; safe for use by concurrent workers.
+     *
+     * @param count the maximum number of paths to claim
+     * @return the index of the first path of the chunk, or -1 if all paths have been claimed; the chunk ends at the
+     * lesser of the index plus count and {@link #getPathCount()}
+     */
+    int claim(final int count) {
+        final int index = this.next.getAndAdd(count);
+
+        if (index >= this.paths.length) {
+            return -1;
+        }
+
+        for (int i = index; i < Math.min(index + count, this.paths.length); i++) {
+            this.statuses.set(i, PathStatus.RUNNING);
+        }
+
+        return index;
+    }
+
+    int getPathCount() {
+        return this.paths.length;
+    }
+
+    String getPath(final int index) {
+        return this.paths[index];
+    }
+
+    /**
+     * Records the results of flushing a path.
+     *
+     * @param index the index of the path
+     * @param results the results by agent
+     */
+    void complete(final int index, final Map<Agent, ReplicationResult> results) {
+        final Map<String, ReplicationResult> byAgentId = new LinkedHashMap<String, ReplicationResult>();
+        boolean success = true;
+
+        for (final Map.Entry<Agent, ReplicationResult> entry : results.entrySet()) {
+            byAgentId.put(entry.getKey().getId(), entry.getValue());
+            success = success && entry.getValue().isSuccess();
+        }
+
+        if (!success) {
+            this.failed.incrementAndGet();
+        }
+
+        this.statuses.set(index, new PathStatus(success ? Status.COMPLETE : Status.ERROR, null,
+                Collections.unmodifiableMap(byAgentId)));
+        this.completed.incrementAndGet();
+    }
+
+    /**
+     * Records a failure to flush a path.
+     *
+     * @param index the index of the path
+     * @param message the failure message
+     */
+    void fail(final int index, final String message) {
+        this.failed.incrementAndGet();
+        this.statuses.set(index, new PathStatus(Status.ERROR, message,
+                Collections.<String, ReplicationResult>emptyMap()));
+        this.completed.incrementAndGet();
+    }
+
+    /**
+     * @return the status of the job as a whole
+     */
+    public Status getStatus() {
+        final int done = this.completed.get();
+
+        if (done >= this.paths.length) {
+            return this.failed.get() > 0 ? Status.ERROR : Status.COMPLETE;
+        } else if (done > 0 || this.next.get() > 0) {
+            return Status.RUNNING;
+        }
+
+        return Status.PENDING;
+    }
+
+    /**
+     * @return true if every path has been flushed or has failed
+     */
+    public boolean isDone() {
+        return this.completed.get() >= this.paths.length;
+    }
+
+    /**
+     * Writes the progress of the job.
+     *
+     * @param writer the JSON writer
+     * @throws JSONException
+     */
+    public void write(final JSONWriter writer) throws JSONException {
+        writer.object();
+        writer.key("id").value(this.id);
+        writer.key("status").value(this.getStatus().name());
+        writer.key("actionType").value(this.actionType.name());
+        writer.key("created").value(this.created);
+        writer.key("total").value(this.paths.length);
+        writer.key("completed").value(this.completed.get());
+        writer.key("failed").value(this.failed.get());
+
+        writer.key("paths").array();
+        for (int i = 0; i < this.paths.length; i++) {
+            final PathStatus status = this.statuses.get(i);
+
+            writer.object();
+            writer.key("path").value(this.paths[i]);
+            writer.key("status").value(status.status.name());
+
+            if (status.message != null) {
+                writer.key("message").value(status.message);
+            }
+
+            writer.key("agents").object();
+            for (final Map.Entry<String, ReplicationResult> entry : status.results.entrySet()) {
+                writer.key(entry.getKey()).object();
+                writer.key("success").value(entry.getValue().isSuccess());
+                writer.key("code").value(entry.getValue().getCode());
+                writer.key("message").value(entry.getValue().getMessage());
+                writer.endObject();
+            }
+            writer.endObject();
+
+            writer.endObject();
+        }
+        writer.endArray();
+
+        writer.endObject();
+    }
+
+    private static final class PathStatus {
+        private static final PathStatus PENDING = new PathStatus(Status.PENDING, null,
+                Collections.<String, ReplicationResult>emptyMap());
+
+        private static final PathStatus RUNNING = new PathStatus(Status.RUNNING, null,
+                Collections.<String, ReplicationResult>emptyMap());
+
+        private final Status status;
+
+        private final String message;
+
+        private final Map<String, ReplicationResult> results;
+
+        private PathStatus(final Status status, final String message, final Map<String, ReplicationResult> results) {
+            this.status = status;
+            this.message = message;
+            this.results = results;
+        }
+    }
+}
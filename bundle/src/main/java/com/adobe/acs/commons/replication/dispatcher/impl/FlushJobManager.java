@@ -0,0 +1,235 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationResult;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs flush jobs in the background and retains the most recent jobs so their progress can be reported.
+ *
+ * Each job is worked by a bounded number of workers, each with its own clone of the requesting user's
+ * ResourceResolver; ResourceResolvers are not safe for concurrent use. Workers claim the job's paths in chunks and
+ * flush each chunk as a single batch, so the batch's paths are coalesced and planned together.
+ */
+public final class FlushJobManager {
+    private static final Logger log = LoggerFactory.getLogger(FlushJobManager.class);
+
+    private final DispatcherFlusher dispatcherFlusher;
+
+    private final int workersPerJob;
+
+    private final int chunkSize;
+
+    private final ThreadPoolExecutor executor;
+
+    /* Guarded by itself */
+    private final Map<String, FlushJob> jobs;
+
+    /**
+     * @param dispatcherFlusher the DispatcherFlusher issuing the flushes
+     * @param threads the maximum number of chunks flushed concurrently across all jobs
+     * @param workersPerJob the maximum number of chunks of a single job flushed concurrently
+     * @param chunkSize the maximum number of paths flushed as a single batch
+     * @param retainedJobs the number of most recent jobs to retain
+     */
+    public FlushJobManager(final DispatcherFlusher dispatcherFlusher, final int threads, final int workersPerJob,
+                           final int chunkSize, final int retainedJobs) {
+        this.dispatcherFlusher = dispatcherFlusher;
+        this.workersPerJob = workersPerJob;
+        this.chunkSize = Math.max(1, chunkSize);
+
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "ACS AEM Commons - Dispatcher Flush Job " + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+
+        this.jobs = new LinkedHashMap<String, FlushJob>() {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, FlushJob> eldest) {
+                return this.size() > retainedJobs;
+            }
+        };
+    }
+
+    /**
+     * Starts a flush job.
+     *
+     * @param resourceResolver the requesting user's ResourceResolver; cloned, so the job can outlive the request
+     * @param actionType the replication action type of the flush
+     * @param paths the paths to flush
+     * @return the started job
+     * @throws LoginException
+     */
+    public FlushJob start(final ResourceResolver resourceResolver, final ReplicationActionType actionType,
+                          final String[] paths) throws LoginException {
+        final FlushJob job = new FlushJob(resourceResolver.getUserID(), actionType, paths);
+        final int chunks = (paths.length + this.chunkSize - 1) / this.chunkSize;
+        final int workers = Math.max(1, Math.min(this.workersPerJob, chunks));
+
+        synchronized (this.jobs) {
+            this.jobs.put(job.getId(), job);
+        }
+
+        for (int i = 0; i < workers; i++) {
+            final ResourceResolver workerResourceResolver = resourceResolver.clone(null);
+
+            try {
+                this.executor.execute(new Worker(job, workerResourceResolver));
+            } catch (RejectedExecutionException ex) {
+                workerResourceResolver.close();
+                throw ex;
+            }
+        }
+
+        log.info("Started dispatcher flush job [ {} ] of {} paths", job.getId(), paths.length);
+
+        return job;
+    }
+
+    /**
+     * Flushes chunks of the job's paths until none remain unclaimed.
+     *
+     * @param job the job
+     * @param resourceResolver the worker's ResourceResolver; closed when done
+     */
+    private void work(final FlushJob job, final ResourceResolver resourceResolver) {
+        try {
+            for (int start = job.claim(this.chunkSize); start >= 0; start = job.claim(this.chunkSize)) {
+                final int end = Math.min(start + this.chunkSize, job.getPathCount());
+                final List<String> paths = new ArrayList<String>(end - start);
+
+                for (int index = start; index < end; index++) {
+                    paths.add(job.getPath(index));
+                }
+
+                try {
+                    final Map<String, Map<Agent, ReplicationResult>> results = this.dispatcherFlusher.flush(
+                            resourceResolver, job.getActionType(), true, DispatcherFlushFilter.HIERARCHICAL, paths);
+
+                    for (int index = start; index < end; index++) {
+                        final Map<Agent, ReplicationResult> pathResults = results.get(job.getPath(index));
+
+                        job.complete(index, pathResults == null
+                                ? Collections.<Agent, ReplicationResult>emptyMap() : pathResults);
+                    }
+                } catch (ReplicationException ex) {
+                    log.warn("Dispatcher flush job [ {} ] could not flush {}: {}", new Object[]{ job.getId(),
+                            paths, ex.getMessage() });
+                    this.fail(job, start, end, ex.getMessage());
+                } catch (RuntimeException ex) {
+                    log.error("Dispatcher flush job [ {} ] could not flush {}", new Object[]{ job.getId(),
+                            paths, ex });
+                    this.fail(job, start, end, ex.getMessage());
+                }
+            }
+        } finally {
+            resourceResolver.close();
+        }
+
+        if (job.isDone()) {
+            log.info("Completed dispatcher flush job [ {} ] with status {}", job.getId(), job.getStatus());
+        }
+    }
+
+    /**
+     * Records a failure to flush a chunk of the job's paths.
+     *
+     * @param job the job
+     * @param start the index of the first path of the chunk
+     * @param end the index after the last path of the chunk
+     * @param message the failure message
+     */
+    private void fail(final FlushJob job, final int start, final int end, final String message) {
+        for (int index = start; index < end; index++) {
+            job.fail(index, message);
+        }
+    }
+
+    /**
+     * @param id the job id
+     * @return the job, or null if no such job is retained
+     */
+    public FlushJob get(final String id) {
+        synchronized (this.jobs) {
+            return this.jobs.get(id);
+        }
+    }
+
+    /**
+     * Stops running jobs; paths not yet started are not flushed.
+     */
+    public void close() {
+        for (final Runnable runnable : this.executor.shutdownNow()) {
+            if (runnable instanceof Worker) {
+                ((Worker) runnable).resourceResolver.close();
+            }
+        }
+
+        synchronized (this.jobs) {
+            this.jobs.clear();
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final FlushJob job;
+
+        private final ResourceResolver resourceResolver;
+
+        private Worker(final FlushJob job, final ResourceResolver resourceResolver) {
+            this.job = job;
+            this.resourceResolver = resourceResolver;
+        }
+
+        @Override
+        public void run() {
+            work(this.job, this.resourceResolver);
+        }
+    }
+}
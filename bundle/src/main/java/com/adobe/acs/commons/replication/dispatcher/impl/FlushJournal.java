@@ -0,0 +1,54 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
+import com.day.cq.replication.ReplicationActionType;
+
+/**
+ * Durably records intended dispatcher flushes until they succeed, so flushes that failed or were still queued when
+ * the instance stopped are re-issued when it starts.
+ *
+ * Recording must be cheap, as flushes are recorded on replication threads.
+ */
+public interface FlushJournal {
+    /**
+     * Records an intended flush as pending. A flush that is already pending is recorded once, with the sequence
+     * number of its latest record.
+     *
+     * @param actionType the replication action type of the flush
+     * @param flushType the flush type of the flush
+     * @param path the path to flush
+     * @return the sequence number of the record, or -1 if the flush was not recorded
+     */
+    long record(ReplicationActionType actionType, FlushType flushType, String path);
+
+    /**
+     * Marks the pending flushes of a path done that were recorded before the flush was issued; flushes recorded
+     * since stay pending. A hierarchical flush also marks the pending hierarchical flushes of the paths beneath it
+     * done.
+     *
+     * @param actionType the replication action type of the flush
+     * @param flushType the flush type of the flush
+     * @param path the flushed path
+     * @param sequence the sequence number of the last record before the flush was issued
+     */
+    void done(ReplicationActionType actionType, FlushType flushType, String path, long sequence);
+}
@@ -0,0 +1,670 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
+import com.adobe.acs.commons.replication.dispatcher.impl.DispatcherFlushRulesImpl.DispatcherFlushRulesFilter;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentFilter;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationResult;
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * FlushJournal kept in a pair of memory-mapped files.
+ *
+ * Each intended flush is appended to the current file as a record of its state, length and key; the action type,
+ * flush type and path of the flush. Marking a flush done overwrites the state of its record in place, so neither
+ * costs more than a few writes to memory. The operating system writes the mapped pages to disk, which survives the
+ * JVM stopping or crashing, but not the operating system crashing.
+ *
+ * The DispatcherFlushers mark a flush done once it was delivered via every Agent it is flushed via, or queued in the
+ * Agent's replication queue, which is persisted; see {@link #isDelivered(Agent[], Map)}.
+ *
+ * When the current file is full, the pending records are compacted into the other file, which grows as needed to
+ * stay at most half full. The header of the compacted file, holding its generation, is written last, so the journal
+ * is always read from the complete file of the highest generation.
+ *
+ * At startup the journal is compacted, and its pending flushes are re-issued via the DispatcherFlusher, as a batch
+ * per action type and flush type; batches flush paths beneath a hierarchically flushed path only once. Re-issued
+ * flushes are not subject to the Dispatcher Flush Rules, as the flushes they trigger are journaled themselves.
+ */
+@Component(
+        label = "ACS AEM Commons - Dispatcher Flush Journal",
+        description = "Records intended dispatcher flushes on disk until they succeed, and re-issues the flushes "
+                + "still pending at startup.",
+        immediate = true,
+        metatype = true,
+        policy = ConfigurationPolicy.REQUIRE
+)
+@Service
+public class FlushJournalImpl implements FlushJournal {
+    private static final Logger log = LoggerFactory.getLogger(FlushJournalImpl.class);
+
+    private static final String REPLAY_THREAD_NAME = "ACS AEM Commons - Dispatcher Flush Journal Replay";
+
+    private static final String[] FILE_NAMES = { "journal.0", "journal.1" };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final char SEPARATOR = '\t';
+
+    /* Header: magic number, generation */
+    private static final int MAGIC = 0x41434a31;
+
+    private static final int HEADER_SIZE = 12;
+
+    /* Record: state, key length, key */
+    private static final int RECORD_OVERHEAD = 5;
+
+    private static final byte STATE_END = 0;
+
+    private static final byte STATE_PENDING = 1;
+
+    private static final byte STATE_DONE = 2;
+
+    private static final int MIN_CAPACITY = 4096;
+
+    /* Directory */
+    private static final String DEFAULT_DIRECTORY = "acs-commons/dispatcher-flush-journal";
+
+    @Property(label = "Directory",
+            description = "Directory holding the journal files. If relative, relative to sling.home. "
+                    + "[ Default: acs-commons/dispatcher-flush-journal ]",
+            value = DEFAULT_DIRECTORY)
+    private static final String PROP_DIRECTORY = "prop.directory";
+
+    /* Capacity */
+    private static final int DEFAULT_CAPACITY = 1048576;
+
+    @Property(label = "Capacity",
+            description = "Size of each journal file in bytes. Files grow as needed to hold the pending flushes. "
+                    + "[ Default: 1048576 ]",
+            intValue = DEFAULT_CAPACITY)
+    private static final String PROP_CAPACITY = "prop.capacity";
+
+    @Reference
+    private DispatcherFlusher dispatcherFlusher;
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
+    /* Sequence number of flushes that were not journaled */
+    static final long NOT_JOURNALED = -1;
+
+    /* Record of each pending flush by key; sorted, so the flushes beneath a path form a range */
+    private final TreeMap<String, PendingRecord> pending = new TreeMap<String, PendingRecord>();
+
+    /* Sequence number of the last record */
+    private long sequence = 0;
+
+    private File[] files = null;
+
+    private int capacity = DEFAULT_CAPACITY;
+
+    private int current = 0;
+
+    private long generation = 0;
+
+    private MappedByteBuffer buffer = null;
+
+    /* Offset of the end of the current file's records */
+    private int position = 0;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final synchronized long record(final ReplicationActionType actionType, final FlushType flushType,
+                                          final String path) {
+        if (this.buffer == null || StringUtils.isBlank(path)) {
+            return NOT_JOURNALED;
+        }
+
+        final String key = getKey(actionType, flushType, path);
+        final PendingRecord record = this.pending.get(key);
+
+        if (record != null) {
+            // Already on disk; flushes issued before this record no longer mark it done
+            record.sequence = ++this.sequence;
+            return record.sequence;
+        }
+
+        final byte[] bytes = key.getBytes(UTF_8);
+
+        if (this.position + RECORD_OVERHEAD + bytes.length >= this.buffer.capacity()) {
+            try {
+                this.compact(RECORD_OVERHEAD + bytes.length);
+            } catch (IOException ex) {
+                log.error("Could not compact the dispatcher flush journal; not journaling the flush of {}: {}",
+                        path, ex.getMessage());
+                return NOT_JOURNALED;
+            }
+        }
+
+        this.pending.put(key, new PendingRecord(this.position, ++this.sequence));
+        this.position = write(this.buffer, this.position, bytes);
+
+        return this.sequence;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final synchronized void done(final ReplicationActionType actionType, final FlushType flushType,
+                                        final String path, final long sequence) {
+        if (this.buffer == null || StringUtils.isBlank(path)) {
+            return;
+        }
+
+        final String key = getKey(actionType, flushType, path);
+        final PendingRecord record = this.pending.get(key);
+
+        if (record != null && record.sequence <= sequence) {
+            this.markDone(key);
+        }
+
+        if (FlushType.Hierarchical.equals(flushType)) {
+            // The keys of the paths beneath the path start with the key followed by a slash
+            final String prefix = key.endsWith("/") ? key : key + "/";
+            final Iterator<PendingRecord> records = this.pending.subMap(prefix,
+                    prefix.substring(0, prefix.length() - 1) + "0").values().iterator();
+
+            while (records.hasNext()) {
+                final PendingRecord beneath = records.next();
+
+                if (beneath.sequence <= sequence) {
+                    this.buffer.put(beneath.offset, STATE_DONE);
+                    records.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the keys of the pending flushes; the action type, flush type and path of each flush
+     */
+    final synchronized List<String> getPending() {
+        return new ArrayList<String>(this.pending.keySet());
+    }
+
+    /**
+     * Opens the journal, reading the pending flushes of the last complete generation and compacting them.
+     *
+     * @param directory the directory holding the journal files
+     * @param capacity the size of each journal file in bytes
+     * @throws IOException
+     */
+    final synchronized void open(final File directory, final int capacity) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+
+        this.files = new File[FILE_NAMES.length];
+        this.capacity = Math.max(MIN_CAPACITY, capacity);
+        this.current = 0;
+        this.generation = 0;
+        this.buffer = null;
+        this.pending.clear();
+
+        MappedByteBuffer last = null;
+
+        for (int i = 0; i < FILE_NAMES.length; i++) {
+            this.files[i] = new File(directory, FILE_NAMES[i]);
+
+            if (this.files[i].length() > HEADER_SIZE) {
+                final MappedByteBuffer candidate = map(this.files[i], this.files[i].length());
+
+                if (candidate.getInt(0) == MAGIC && (last == null || candidate.getLong(4) > this.generation)) {
+                    last = candidate;
+                    this.current = i;
+                    this.generation = candidate.getLong(4);
+                }
+            }
+        }
+
+        if (last != null) {
+            this.read(last);
+        }
+
+        this.compact(0);
+
+        log.info("Opened dispatcher flush journal in {} with {} pending flushes", directory, this.pending.size());
+    }
+
+    /**
+     * Closes the journal; further flushes are not journaled.
+     */
+    final synchronized void close() {
+        if (this.buffer != null) {
+            this.buffer.force();
+            this.buffer = null;
+        }
+
+        this.pending.clear();
+    }
+
+    /**
+     * Re-issues the pending flushes via the DispatcherFlusher, as a batch per action type and flush type. Flushes
+     * that succeed are marked done; the others stay pending until the next startup.
+     */
+    final void replay() {
+        final DispatcherFlusher flusher = this.dispatcherFlusher;
+        final Map<ReplicationActionType, Map<FlushType, List<String>>> batches =
+                new EnumMap<ReplicationActionType, Map<FlushType, List<String>>>(ReplicationActionType.class);
+
+        for (final String key : this.getPending()) {
+            final int flushTypeIndex = key.indexOf(SEPARATOR);
+            final int pathIndex = key.indexOf(SEPARATOR, flushTypeIndex + 1);
+
+            try {
+                final ReplicationActionType actionType =
+                        ReplicationActionType.valueOf(key.substring(0, flushTypeIndex));
+                final FlushType flushType = FlushType.valueOf(key.substring(flushTypeIndex + 1, pathIndex));
+
+                Map<FlushType, List<String>> byFlushType = batches.get(actionType);
+                if (byFlushType == null) {
+                    byFlushType = new EnumMap<FlushType, List<String>>(FlushType.class);
+                    batches.put(actionType, byFlushType);
+                }
+
+                List<String> paths = byFlushType.get(flushType);
+                if (paths == null) {
+                    paths = new ArrayList<String>();
+                    byFlushType.put(flushType, paths);
+                }
+
+                paths.add(key.substring(pathIndex + 1));
+            } catch (RuntimeException ex) {
+                log.warn("Discarding unreadable dispatcher flush journal record: {}", key);
+                synchronized (this) {
+                    this.markDone(key);
+                }
+            }
+        }
+
+        if (batches.isEmpty()) {
+            return;
+        }
+
+        ResourceResolver resourceResolver = null;
+
+        try {
+            resourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+
+            for (final Map.Entry<ReplicationActionType, Map<FlushType, List<String>>> byFlushType
+                    : batches.entrySet()) {
+                for (final Map.Entry<FlushType, List<String>> batch : byFlushType.getValue().entrySet()) {
+                    this.replay(flusher, resourceResolver, byFlushType.getKey(), batch.getKey(), batch.getValue());
+                }
+            }
+        } catch (LoginException ex) {
+            log.error("Could not re-issue pending dispatcher flushes due to repository login exception: {}",
+                    ex.getMessage());
+        } finally {
+            if (resourceResolver != null) {
+                resourceResolver.close();
+            }
+        }
+    }
+
+    private void replay(final DispatcherFlusher flusher, final ResourceResolver resourceResolver,
+                        final ReplicationActionType actionType, final FlushType flushType,
+                        final List<String> paths) {
+        final DispatcherFlushRulesFilter filter = new DispatcherFlushRulesFilter(flushType);
+        final long sequence = record(this, actionType, filter, paths);
+
+        try {
+            final Map<String, Map<Agent, ReplicationResult>> results = flusher.flush(resourceResolver, actionType,
+                    false, filter, paths);
+            final Agent[] agents = flusher.getAgents(filter);
+            int delivered = 0;
+
+            for (final Map.Entry<String, Map<Agent, ReplicationResult>> result : results.entrySet()) {
+                if (isDelivered(agents, result.getValue())) {
+                    this.done(actionType, flushType, result.getKey(), sequence);
+                    delivered++;
+                }
+            }
+
+            log.info("Re-issued {} pending {} {} dispatcher flushes, of which {} were delivered", new Object[]{
+                    paths.size(), flushType, actionType, delivered });
+        } catch (ReplicationException ex) {
+            log.error("Could not re-issue pending {} {} dispatcher flushes: {}", new Object[]{ flushType,
+                    actionType, ex.getMessage() });
+        }
+    }
+
+    /**
+     * Journals the flushes of the paths, if the flushes can be re-issued; only flushes with a DispatcherFlushFilter
+     * can be re-issued.
+     *
+     * @param journal the journal, or null if not available
+     * @param actionType the replication action type of the flushes
+     * @param agentFilter the agent filter of the flushes
+     * @param paths the paths to flush
+     * @return the sequence number of the last record, to mark the flushes done with; or NOT_JOURNALED
+     */
+    static long record(final FlushJournal journal, final ReplicationActionType actionType,
+                       final AgentFilter agentFilter, final Collection<String> paths) {
+        final FlushType flushType = getFlushType(agentFilter);
+
+        if (journal == null || flushType == null) {
+            return NOT_JOURNALED;
+        }
+
+        long sequence = NOT_JOURNALED;
+
+        for (final String path : paths) {
+            sequence = Math.max(sequence, journal.record(actionType, flushType, path));
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Marks the journaled flushes done that were delivered via every Agent.
+     *
+     * @param journal the journal the flushes were journaled in
+     * @param actionType the replication action type of the flushes
+     * @param agentFilter the agent filter of the flushes
+     * @param agents the Agents included by the agent filter
+     * @param results the results of the flushes per path, then Agent
+     * @param sequence the sequence number the flushes were journaled with
+     */
+    static void done(final FlushJournal journal, final ReplicationActionType actionType,
+                     final AgentFilter agentFilter, final Agent[] agents,
+                     final Map<String, Map<Agent, ReplicationResult>> results, final long sequence) {
+        final FlushType flushType = getFlushType(agentFilter);
+
+        for (final Map.Entry<String, Map<Agent, ReplicationResult>> entry : results.entrySet()) {
+            if (isDelivered(agents, entry.getValue())) {
+                journal.done(actionType, flushType, entry.getKey(), sequence);
+            }
+        }
+    }
+
+    /**
+     * Gets the flush type of the flushes issued with an agent filter; flushes restricted to some Agents have the
+     * flush type of the restricted filter.
+     *
+     * @param agentFilter the agent filter of the flushes
+     * @return the flush type, or null if the flushes are not issued with a DispatcherFlushFilter
+     */
+    private static FlushType getFlushType(AgentFilter agentFilter) {
+        while (agentFilter instanceof AdmittedAgentFilter) {
+            agentFilter = ((AdmittedAgentFilter) agentFilter).getAgentFilter();
+        }
+
+        return agentFilter instanceof DispatcherFlushFilter ? ((DispatcherFlushFilter) agentFilter).getFlushType()
+                : null;
+    }
+
+    /**
+     * Checks whether the flush of a path was delivered via every Agent, or queued in the Agent's replication queue,
+     * which is persisted. Missing results, ex. of flushes parked by the circuit breaker, and results of flushes only
+     * submitted to be sent are not delivered.
+     *
+     * @param agents the Agents the path was flushed via
+     * @param results the results of the flush of the path per Agent
+     * @return true if the flush was delivered via at least one Agent and every Agent
+     */
+    static boolean isDelivered(final Agent[] agents, final Map<Agent, ReplicationResult> results) {
+        if (agents == null || agents.length == 0 || results == null) {
+            return false;
+        }
+
+        for (final Agent agent : agents) {
+            final ReplicationResult result = results.get(agent);
+
+            if (result == null || !result.isSuccess() || result instanceof SubmittedReplicationResult) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void markDone(final String key) {
+        final PendingRecord record = this.pending.remove(key);
+
+        if (record != null) {
+            this.buffer.put(record.offset, STATE_DONE);
+        }
+    }
+
+    /**
+     * Reads the pending flushes from a journal file.
+     *
+     * @param file the mapped journal file
+     */
+    private void read(final MappedByteBuffer file) {
+        int offset = HEADER_SIZE;
+
+        while (offset + RECORD_OVERHEAD <= file.capacity()) {
+            final byte state = file.get(offset);
+
+            if (state == STATE_END) {
+                break;
+            }
+
+            final int length = file.getInt(offset + 1);
+
+            if ((state != STATE_PENDING && state != STATE_DONE) || length < 0
+                    || length > file.capacity() - offset - RECORD_OVERHEAD) {
+                log.warn("Ignoring unreadable dispatcher flush journal records from offset {}", offset);
+                break;
+            }
+
+            if (state == STATE_PENDING) {
+                final byte[] key = new byte[length];
+                final ByteBuffer slice = file.duplicate();
+
+                slice.position(offset + RECORD_OVERHEAD);
+                slice.get(key);
+                // Records of earlier runs precede the flushes of this run
+                this.pending.put(new String(key, UTF_8), new PendingRecord(offset, 0));
+            }
+
+            offset += RECORD_OVERHEAD + length;
+        }
+    }
+
+    /**
+     * Writes the pending flushes to the other journal file, and makes it the current file.
+     *
+     * @param required the number of bytes required beyond the pending flushes
+     * @throws IOException
+     */
+    private void compact(final int required) throws IOException {
+        final List<byte[]> keys = new ArrayList<byte[]>(this.pending.size());
+        long size = HEADER_SIZE + required + 1;
+
+        for (final String key : this.pending.keySet()) {
+            final byte[] bytes = key.getBytes(UTF_8);
+
+            keys.add(bytes);
+            size += RECORD_OVERHEAD + bytes.length;
+        }
+
+        long capacity = this.capacity;
+
+        while (capacity < 2 * size) {
+            capacity *= 2;
+        }
+
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("Dispatcher flush journal exceeds maximum size");
+        }
+
+        final int target = 1 - this.current;
+        final MappedByteBuffer compacted = map(this.files[target], capacity);
+
+        // Invalidate the header, so the file is not read until it is complete
+        compacted.putInt(0, 0);
+        compacted.put(HEADER_SIZE, STATE_END);
+
+        int offset = HEADER_SIZE;
+        int i = 0;
+
+        for (final PendingRecord record : this.pending.values()) {
+            record.offset = offset;
+            offset = write(compacted, offset, keys.get(i++));
+        }
+
+        compacted.force();
+        compacted.putLong(4, this.generation + 1);
+        compacted.putInt(0, MAGIC);
+        compacted.force();
+
+        this.buffer = compacted;
+        this.current = target;
+        this.generation++;
+        this.position = offset;
+
+        log.debug("Compacted dispatcher flush journal to {} pending flushes in {} bytes", keys.size(), capacity);
+    }
+
+    /**
+     * Writes a pending record, followed by the end of the records.
+     *
+     * @param file the mapped journal file
+     * @param offset the offset of the record
+     * @param key the key of the pending flush
+     * @return the offset of the end of the records
+     */
+    private static int write(final ByteBuffer file, final int offset, final byte[] key) {
+        final int end = offset + RECORD_OVERHEAD + key.length;
+        final ByteBuffer slice = file.duplicate();
+
+        file.putInt(offset + 1, key.length);
+        slice.position(offset + RECORD_OVERHEAD);
+        slice.put(key);
+
+        // Terminate the records after the record before making the record readable
+        file.put(end, STATE_END);
+        file.put(offset, STATE_PENDING);
+
+        return end;
+    }
+
+    private static MappedByteBuffer map(final File file, final long size) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+            // The mapping stays valid once the file is closed
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static String getKey(final ReplicationActionType actionType, final FlushType flushType,
+                                 final String path) {
+        return actionType.name() + SEPARATOR + flushType.name() + SEPARATOR + path;
+    }
+
+    private static File getDirectory(final String slingHome, final String path) {
+        final File directory = new File(path.replace('/', File.separatorChar));
+
+        if (directory.isAbsolute()) {
+            return directory;
+        }
+
+        return new File(slingHome == null ? new File("").getAbsoluteFile() : new File(slingHome), directory.getPath());
+    }
+
+    @Activate
+    protected final void activate(final ComponentContext componentContext) throws IOException {
+        final String directory = PropertiesUtil.toString(componentContext.getProperties().get(PROP_DIRECTORY),
+                DEFAULT_DIRECTORY);
+
+        this.open(getDirectory(componentContext.getBundleContext().getProperty("sling.home"),
+                        StringUtils.defaultIfEmpty(directory, DEFAULT_DIRECTORY)),
+                PropertiesUtil.toInteger(componentContext.getProperties().get(PROP_CAPACITY), DEFAULT_CAPACITY));
+
+        if (!this.getPending().isEmpty()) {
+            // Re-issue on a background thread, so activation does not wait on the Agents
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    replay();
+                }
+            }, REPLAY_THREAD_NAME);
+
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Deactivate
+    protected final void deactivate(final ComponentContext componentContext) {
+        this.close();
+    }
+
+    /**
+     * The journal record of a pending flush.
+     */
+    private static final class PendingRecord {
+        /* Offset of the record in the current file */
+        private int offset;
+
+        /* Sequence number of the latest record of the flush */
+        private long sequence;
+
+        PendingRecord(final int offset, final long sequence) {
+            this.offset = offset;
+            this.sequence = sequence;
+        }
+    }
+}
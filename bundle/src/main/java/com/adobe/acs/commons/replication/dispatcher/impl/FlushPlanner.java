@@ -0,0 +1,42 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationActionType;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Plans the flushes of a set of paths via a Dispatcher Flush Agent, reducing the paths to those that cause distinct
+ * invalidations on the Agent's dispatcher.
+ */
+public interface FlushPlanner {
+    /**
+     * Plans the flushes of the paths via the Agent.
+     *
+     * @param agent the Agent to flush via
+     * @param actionType the replication action type of the flushes
+     * @param paths the distinct requested paths
+     * @return the path to flush in place of each requested path; each flushed path is itself a requested path
+     */
+    Map<String, String> plan(Agent agent, ReplicationActionType actionType, Collection<String> paths);
+}
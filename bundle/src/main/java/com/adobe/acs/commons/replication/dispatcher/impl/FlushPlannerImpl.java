@@ -0,0 +1,207 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.adobe.acs.commons.util.OsgiPropertyUtil;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationActionType;
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FlushPlanner based on the /statfileslevel of each dispatcher.
+ *
+ * Invalidating a path touches the .stat files of the directories from the docroot down to the path, but no deeper
+ * than the statfileslevel. A path at the statfileslevel and all paths beneath it therefore touch the same .stat
+ * files, and are flushed as a single path; the shallowest of them. Paths above the statfileslevel are only reduced if
+ * they are equal.
+ *
+ * Only Activate flushes via hierarchical Agents are reduced. Resource-only flushes touch no .stat files, and Delete
+ * and Deactivate flushes remove the cached files of each path. The reduction relies on the flushed content being
+ * covered by the dispatcher's /invalidate rules, as the cached files of the dropped paths are not deleted but only
+ * invalidated via the .stat files.
+ */
+@Component(
+        label = "ACS AEM Commons - Dispatcher Flush Planner",
+        description = "Reduces multi-path dispatcher flushes to the paths that cause distinct invalidations, based "
+                + "on the statfileslevel of each dispatcher.",
+        immediate = false,
+        metatype = true,
+        policy = ConfigurationPolicy.REQUIRE
+)
+@Service
+public class FlushPlannerImpl implements FlushPlanner {
+    private static final Logger log = LoggerFactory.getLogger(FlushPlannerImpl.class);
+
+    /* Stat Files Levels */
+    @Property(label = "Stat Files Levels",
+            description = "The /statfileslevel of the dispatcher flushed by each Dispatcher Flush Agent. "
+                    + "Format: <agent-id>=<statfileslevel>",
+            cardinality = Integer.MAX_VALUE,
+            value = { })
+    private static final String PROP_STAT_FILES_LEVELS = "prop.statfileslevels";
+
+    /* Default Stat Files Level */
+    private static final int DEFAULT_STAT_FILES_LEVEL = -1;
+
+    @Property(label = "Default Stat Files Level",
+            description = "The /statfileslevel of the dispatchers flushed by Agents not listed above. Set to -1 to "
+                    + "not reduce flushes via those Agents. [ Default: -1 ]",
+            intValue = DEFAULT_STAT_FILES_LEVEL)
+    private static final String PROP_DEFAULT_STAT_FILES_LEVEL = "prop.statfileslevel.default";
+
+    private volatile Map<String, Integer> statFilesLevels = new HashMap<String, Integer>();
+
+    private volatile int defaultStatFilesLevel = DEFAULT_STAT_FILES_LEVEL;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final Map<String, String> plan(final Agent agent, final ReplicationActionType actionType,
+                                          final Collection<String> paths) {
+        final int level = this.getStatFilesLevel(agent);
+
+        if (level < 0 || !ReplicationActionType.ACTIVATE.equals(actionType)
+                || DispatcherFlushFilter.RESOURCE_ONLY.isIncluded(agent)) {
+            final Map<String, String> plan = new LinkedHashMap<String, String>();
+
+            for (final String path : paths) {
+                plan.put(path, path);
+            }
+
+            return plan;
+        }
+
+        return plan(paths, level);
+    }
+
+    /**
+     * Reduces the paths to those that touch distinct .stat files.
+     *
+     * @param paths the distinct paths
+     * @param level the statfileslevel
+     * @return the path to flush in place of each path
+     */
+    static Map<String, String> plan(final Collection<String> paths, final int level) {
+        /* The shallowest path per distinct invalidation */
+        final Map<String, String> flushPaths = new HashMap<String, String>();
+
+        for (final String path : paths) {
+            final String key = getInvalidationKey(path, level);
+            final String flushPath = flushPaths.get(key);
+
+            if (flushPath == null || getDepth(path) < getDepth(flushPath)) {
+                flushPaths.put(key, path);
+            }
+        }
+
+        final Map<String, String> plan = new LinkedHashMap<String, String>();
+
+        for (final String path : paths) {
+            plan.put(path, flushPaths.get(getInvalidationKey(path, level)));
+        }
+
+        return plan;
+    }
+
+    /**
+     * Gets the key of the invalidation caused by flushing the path; paths with equal keys touch the same .stat
+     * files.
+     *
+     * @param path the path
+     * @param level the statfileslevel
+     * @return the ancestor of the path at the statfileslevel followed by /* for paths at or deeper than the
+     * statfileslevel, or else the path itself
+     */
+    static String getInvalidationKey(final String path, final int level) {
+        final int depth = getDepth(path);
+
+        if (depth < level) {
+            return path;
+        } else if (depth == level) {
+            // Touches the same .stat files as the paths beneath it, down to its own
+            return ("/".equals(path) ? "" : StringUtils.removeEnd(path, "/")) + "/*";
+        }
+
+        // The end of the level-th segment
+        int end = 0;
+        for (int i = 0; i < level; i++) {
+            end = path.indexOf('/', end + 1);
+        }
+
+        return (level == 0 ? "" : path.substring(0, end)) + "/*";
+    }
+
+    /**
+     * @param path the path
+     * @return the number of segments of the path; 0 for the root
+     */
+    static int getDepth(final String path) {
+        int depth = 0;
+
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/' && i + 1 < path.length()) {
+                depth++;
+            }
+        }
+
+        return depth;
+    }
+
+    private int getStatFilesLevel(final Agent agent) {
+        final Integer level = this.statFilesLevels.get(agent.getId());
+        return level == null ? this.defaultStatFilesLevel : level;
+    }
+
+    @Activate
+    protected final void activate(final Map<String, Object> properties) {
+        final Map<String, Integer> levels = new HashMap<String, Integer>();
+
+        for (final Map.Entry<String, String> entry : OsgiPropertyUtil.toMap(PropertiesUtil.toStringArray(
+                properties.get(PROP_STAT_FILES_LEVELS), new String[0]), "=").entrySet()) {
+            try {
+                levels.put(entry.getKey().trim(), Integer.parseInt(entry.getValue().trim()));
+            } catch (NumberFormatException ex) {
+                log.warn("Ignoring invalid statfileslevel [ {} ] of Agent [ {} ]", entry.getValue(),
+                        entry.getKey());
+            }
+        }
+
+        this.statFilesLevels = levels;
+        this.defaultStatFilesLevel = PropertiesUtil.toInteger(properties.get(PROP_DEFAULT_STAT_FILES_LEVEL),
+                DEFAULT_STAT_FILES_LEVEL);
+
+        log.debug("Planning flushes with statfileslevels {} and default {}", levels, this.defaultStatFilesLevel);
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.Agent;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Re-warms the dispatcher cache after successful flushes, by requesting the flushed pages from each flushed
+ * dispatcher before the next visitor does.
+ *
+ * Each flushed path is requested with each configured extension, plain and with each configured selector. Requests
+ * are issued by a bounded number of threads in priority order: paths matching earlier patterns first, then shallower
+ * paths first, then in the order they were flushed. Paths matching no pattern are not re-warmed. Requests for URLs
+ * that are already pending are dropped, as are requests beyond the maximum number of pending requests.
+ */
+public class FlushRewarmer {
+    private static final Logger log = LoggerFactory.getLogger(FlushRewarmer.class);
+
+    private final List<Pattern> patterns;
+
+    private final List<String> suffixes = new ArrayList<String>();
+
+    private final Map<String, String> baseUrls;
+
+    private final long delay;
+
+    private final int maxPending;
+
+    private final int timeout;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /* Pending URLs */
+    private final ConcurrentMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param patterns the patterns of flushed paths to re-warm, highest priority first
+     * @param selectors the selectors to request each path with, in addition to no selector
+     * @param extensions the extensions to request each path with
+     * @param baseUrls the dispatcher base URL (ex. http://dispatcher:80) per Agent id; Agents without a base URL are
+     *                 re-warmed via the scheme, host and port of their transport URI
+     * @param threads the number of threads issuing requests
+     * @param delay time in milliseconds to wait after a flush before requesting its paths
+     * @param maxPending the maximum number of pending requests; further requests are dropped
+     * @param timeout the connect and read timeout of requests in milliseconds
+     * @param threadName prefix of the names of the threads issuing requests
+     */
+    public FlushRewarmer(final List<Pattern> patterns, final String[] selectors, final String[] extensions,
+                         final Map<String, String> baseUrls, final int threads, final long delay,
+                         final int maxPending, final int timeout, final String threadName) {
+        this.patterns = patterns;
+        this.baseUrls = baseUrls;
+        this.delay = delay;
+        this.maxPending = maxPending;
+        this.timeout = timeout;
+
+        for (final String extension : extensions) {
+            if (StringUtils.isBlank(extension)) { continue; }
+
+            this.suffixes.add("." + StringUtils.strip(extension));
+
+            for (final String selector : selectors) {
+                if (StringUtils.isNotBlank(selector)) {
+                    this.suffixes.add("." + StringUtils.strip(selector) + "." + StringUtils.strip(extension));
+                }
+            }
+        }
+
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, threadName + " " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        // Requests are Comparable, and executed rather than submitted, so the queue orders them by priority
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), threadFactory);
+        this.scheduler = delay > 0 ? new ScheduledThreadPoolExecutor(1, threadFactory) : null;
+    }
+
+    /**
+     * Queues the re-warm of a path flushed via an Agent.
+     *
+     * @param agent the Agent the path was flushed via
+     * @param path the flushed path
+     * @return the number of requests queued
+     */
+    public int add(final Agent agent, final String path) {
+        final int priority = this.getPriority(path);
+
+        if (priority < 0) {
+            return 0;
+        }
+
+        final String baseUrl = this.getBaseUrl(agent);
+
+        if (baseUrl == null) {
+            log.debug("Could not determine the dispatcher to re-warm via [ {} ]", agent.getId());
+            return 0;
+        }
+
+        final int depth = StringUtils.countMatches(path, "/");
+        int queued = 0;
+
+        for (int s = 0; s < this.suffixes.size(); s++) {
+            final String url = baseUrl + path + this.suffixes.get(s);
+
+            if (this.pending.size() >= this.maxPending) {
+                log.debug("Dropped re-warm of {}; too many pending re-warms", url);
+                break;
+            } else if (this.pending.putIfAbsent(url, Boolean.TRUE) != null) {
+                continue;
+            }
+
+            final Request request = new Request(url, priority, depth, s, this.sequence.getAndIncrement());
+
+            try {
+                if (this.scheduler == null) {
+                    this.executor.execute(request);
+                } else {
+                    this.scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            executeQuietly(request);
+                        }
+                    }, this.delay, TimeUnit.MILLISECONDS);
+                }
+
+                queued++;
+            } catch (RejectedExecutionException ex) {
+                this.pending.remove(url);
+            }
+        }
+
+        return queued;
+    }
+
+    /**
+     * @return the number of pending requests
+     */
+    public int getPendingCount() {
+        return this.pending.size();
+    }
+
+    /**
+     * Stops re-warming; pending requests are dropped.
+     */
+    public void close() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+
+        this.executor.shutdownNow();
+        this.pending.clear();
+    }
+
+    private void executeQuietly(final Request request) {
+        try {
+            this.executor.execute(request);
+        } catch (RejectedExecutionException ex) {
+            this.pending.remove(request.url);
+        }
+    }
+
+    /**
+     * @param path the flushed path
+     * @return the index of the first pattern matching the path, or -1 if the path is not to be re-warmed
+     */
+    private int getPriority(final String path) {
+        for (int i = 0; i < this.patterns.size(); i++) {
+            if (this.patterns.get(i).matcher(path).matches()) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param agent the Agent
+     * @return the base URL of the dispatcher flushed via the Agent, or null if unknown
+     */
+    String getBaseUrl(final Agent agent) {
+        final String baseUrl = this.baseUrls.get(agent.getId());
+
+        if (StringUtils.isNotBlank(baseUrl)) {
+            return StringUtils.removeEnd(StringUtils.strip(baseUrl), "/");
+        }
+
+        if (agent.getConfiguration() == null || agent.getConfiguration().getTransportURI() == null) {
+            return null;
+        }
+
+        try {
+            final URL url = new URL(agent.getConfiguration().getTransportURI());
+            return url.getProtocol() + "://" + url.getHost() + (url.getPort() < 0 ? "" : ":" + url.getPort());
+        } catch (MalformedURLException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Requests a URL, discarding the response.
+     *
+     * @param url the URL
+     * @return the response status code, or 0 if the request failed
+     */
+    int get(final String url) {
+        HttpURLConnection connection = null;
+
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(this.timeout);
+            connection.setReadTimeout(this.timeout);
+            connection.setUseCaches(false);
+            connection.setRequestMethod("GET");
+
+            final int code = connection.getResponseCode();
+
+            HttpConnectionUtil.drainResponse(connection, code);
+
+            log.debug("Re-warm of {} returned {}", url, code);
+
+            return code;
+        } catch (IOException ex) {
+            log.debug("Could not re-warm {}: {}", url, ex.getMessage());
+
+            if (connection != null) {
+                connection.disconnect();
+            }
+
+            return 0;
+        }
+    }
+
+    /**
+     * A pending request, ordered by priority.
+     */
+    private final class Request implements Runnable, Comparable<Request> {
+        private final String url;
+
+        private final int priority;
+
+        private final int depth;
+
+        private final int suffix;
+
+        private final long sequence;
+
+        Request(final String url, final int priority, final int depth, final int suffix, final long sequence) {
+            this.url = url;
+            this.priority = priority;
+            this.depth = depth;
+            this.suffix = suffix;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                get(this.url);
+            } finally {
+                pending.remove(this.url);
+            }
+        }
+
+        @Override
+        public int compareTo(final Request other) {
+            if (this.priority != other.priority) {
+                return this.priority < other.priority ? -1 : 1;
+            } else if (this.depth != other.depth) {
+                return this.depth < other.depth ? -1 : 1;
+            } else if (this.suffix != other.suffix) {
+                return this.suffix < other.suffix ? -1 : 1;
+            } else if (this.sequence != other.sequence) {
+                return this.sequence < other.sequence ? -1 : 1;
+            }
+
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled matcher over a set of flush rules.
+ *
+ * Each rule's pattern is indexed in a character trie by the literal prefix every path it matches must start with
+ * (ex. /content/site/ for /content/site/.*). Matching walks the trie once along the path to collect the candidate
+ * rules, and only evaluates the regular expressions of those candidates. Rules without a usable literal prefix are
+ * always candidates.
+ *
+ * A rule may list several comma separated targets, and targets may reference the capture groups of the rule's
+ * pattern as $1, $2, etc. (ex. /content/dam/brand/(.*)=/content/site/$1). References are resolved against the
+ * matched path; a literal $ is escaped as \$.
+ */
+public final class FlushRuleMatcher {
+    private static final String REGEX_META_CHARACTERS = "\\.[]{}()*+?^$|";
+
+    private static final String REGEX_QUANTIFIERS = "*+?{";
+
+    private final FlushRule[] rules;
+
+    private final TrieNode root;
+
+    /**
+     * @param hierarchicalFlushRules pattern to flush path rules to be flushed hierarchically
+     * @param resourceOnlyFlushRules pattern to flush path rules to be flushed as ResourceOnly
+     */
+    public FlushRuleMatcher(final Map<Pattern, String> hierarchicalFlushRules,
+                            final Map<Pattern, String> resourceOnlyFlushRules) {
+        final List<FlushRule> list = new ArrayList<FlushRule>();
+        addRules(list, hierarchicalFlushRules, FlushType.Hierarchical);
+        addRules(list, resourceOnlyFlushRules, FlushType.ResourceOnly);
+
+        this.rules = list.toArray(new FlushRule[list.size()]);
+
+        final BuildNode buildRoot = new BuildNode();
+        for (int i = 0; i < this.rules.length; i++) {
+            BuildNode node = buildRoot;
+
+            for (final char c : getLiteralPrefix(this.rules[i].getPattern()).toCharArray()) {
+                BuildNode child = node.children.get(c);
+                if (child == null) {
+                    child = new BuildNode();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+
+            node.rules.add(i);
+        }
+
+        this.root = buildRoot.seal();
+    }
+
+    private static void addRules(final List<FlushRule> list, final Map<Pattern, String> flushRules,
+                                 final FlushType flushType) {
+        if (flushRules == null) {
+            return;
+        }
+
+        for (final Map.Entry<Pattern, String> entry : flushRules.entrySet()) {
+            list.add(new FlushRule(entry.getKey(), entry.getValue(), flushType));
+        }
+    }
+
+    /**
+     * @return the number of rules
+     */
+    public int size() {
+        return this.rules.length;
+    }
+
+    /**
+     * Finds all rules whose pattern matches the path.
+     *
+     * @param path the replicated path
+     * @return the matching rules, hierarchical rules first and otherwise in configuration order; rules with several
+     * targets, or with targets referencing capture groups, are returned once per target with the target resolved
+     * against the path
+     */
+    public List<FlushRule> match(final String path) {
+        if (path == null || this.rules.length == 0) {
+            return Collections.emptyList();
+        }
+
+        int[] candidates = new int[8];
+        int count = 0;
+
+        TrieNode node = this.root;
+        int i = 0;
+
+        while (node != null) {
+            for (final int rule : node.rules) {
+                if (count == candidates.length) {
+                    candidates = Arrays.copyOf(candidates, count * 2);
+                }
+                candidates[count++] = rule;
+            }
+
+            node = i < path.length() ? node.getChild(path.charAt(i++)) : null;
+        }
+
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+
+        // Evaluate candidates in configuration order
+        Arrays.sort(candidates, 0, count);
+
+        final List<FlushRule> matches = new ArrayList<FlushRule>(count);
+        for (int c = 0; c < count; c++) {
+            final FlushRule rule = this.rules[candidates[c]];
+
+            final Matcher matcher = rule.getPattern().matcher(path);
+
+            if (matcher.matches()) {
+                rule.resolve(matcher, matches);
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Derives the literal prefix every input matched in full by the pattern must start with.
+     *
+     * The derivation is conservative; any construct that is not plainly a literal (character classes, groups,
+     * alternation, flags, etc.) ends the prefix.
+     *
+     * @param pattern the pattern
+     * @return the literal prefix, possibly empty
+     */
+    static String getLiteralPrefix(final Pattern pattern) {
+        final String regex = pattern.pattern();
+
+        // Top-level alternation, quoting, or flags such as CASE_INSENSITIVE, invalidate a simple literal prefix
+        if (pattern.flags() != 0 || regex.contains("\\Q") || hasTopLevelAlternation(regex)) {
+            return "";
+        }
+
+        final StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            final int literalLength;
+            final char literal;
+
+            if (c == '\\' && i + 1 < regex.length() && isEscapedLiteral(regex.charAt(i + 1))) {
+                literal = regex.charAt(i + 1);
+                literalLength = 2;
+            } else if (REGEX_META_CHARACTERS.indexOf(c) < 0) {
+                literal = c;
+                literalLength = 1;
+            } else {
+                break;
+            }
+
+            final int next = i + literalLength;
+            if (next < regex.length() && REGEX_QUANTIFIERS.indexOf(regex.charAt(next)) >= 0) {
+                // The literal is quantified, so is not required (ex. /a/b?)
+                break;
+            }
+
+            prefix.append(literal);
+            i = next;
+        }
+
+        return prefix.toString();
+    }
+
+    private static boolean hasTopLevelAlternation(final String regex) {
+        int depth = 0;
+        boolean characterClass = false;
+
+        for (int i = 0; i < regex.length(); i++) {
+            final char c = regex.charAt(i);
+
+            if (c == '\\') {
+                i++;
+            } else if (characterClass) {
+                characterClass = c != ']';
+            } else if (c == '[') {
+                characterClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth <= 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isEscapedLiteral(final char c) {
+        return REGEX_META_CHARACTERS.indexOf(c) >= 0 || c == '/' || c == '-';
+    }
+
+    /**
+     * A flush rule; the pattern of replicated paths that trigger the flush of the target path.
+     */
+    public static final class FlushRule {
+        private static final TargetTemplate[] RESOLVED = new TargetTemplate[0];
+
+        private final Pattern pattern;
+
+        private final String target;
+
+        private final FlushType flushType;
+
+        private final TargetTemplate[] templates;
+
+        FlushRule(final Pattern pattern, final String target, final FlushType flushType) {
+            this.pattern = pattern;
+            this.target = target;
+            this.flushType = flushType;
+
+            final int groupCount = pattern.matcher("").groupCount();
+            final List<TargetTemplate> list = new ArrayList<TargetTemplate>();
+
+            for (final String template : target.split(",")) {
+                if (template.trim().length() > 0) {
+                    list.add(new TargetTemplate(template.trim(), groupCount, pattern));
+                }
+            }
+
+            this.templates = list.toArray(new TargetTemplate[list.size()]);
+        }
+
+        private FlushRule(final Pattern pattern, final String target, final FlushType flushType,
+                          final TargetTemplate[] templates) {
+            this.pattern = pattern;
+            this.target = target;
+            this.flushType = flushType;
+            this.templates = templates;
+        }
+
+        /**
+         * Creates a rule flushing a single target that is already resolved, ex. a page referencing the replicated
+         * path.
+         *
+         * @param pattern the pattern of the rule
+         * @param target the resolved target path
+         * @param flushType the flush type
+         * @return the rule
+         */
+        static FlushRule resolved(final Pattern pattern, final String target, final FlushType flushType) {
+            return new FlushRule(pattern, target, flushType, RESOLVED);
+        }
+
+        /**
+         * Adds the rule, once per target resolved against the matched path, to the matches.
+         *
+         * @param matcher the matcher that matched the path
+         * @param matches the matches to add to
+         */
+        private void resolve(final Matcher matcher, final List<FlushRule> matches) {
+            if (this.templates.length == 1 && this.templates[0].isLiteral()
+                    && this.templates[0].expand(matcher).equals(this.target)) {
+                matches.add(this);
+                return;
+            }
+
+            for (final TargetTemplate template : this.templates) {
+                final String expanded = template.expand(matcher);
+
+                if (expanded.length() > 0) {
+                    matches.add(resolved(this.pattern, expanded, this.flushType));
+                }
+            }
+        }
+
+        public Pattern getPattern() {
+            return this.pattern;
+        }
+
+        /**
+         * @return the target path; as configured for rules returned by the constructor, or resolved against the
+         * matched path for rules returned by {@link FlushRuleMatcher#match(String)}
+         */
+        public String getTarget() {
+            return this.target;
+        }
+
+        public FlushType getFlushType() {
+            return this.flushType;
+        }
+
+        @Override
+        public String toString() {
+            return this.pattern.pattern() + "=" + this.target + " (" + this.flushType + ")";
+        }
+    }
+
+    /**
+     * A target path, split into literal parts around references to capture groups.
+     */
+    private static final class TargetTemplate {
+        private final String[] literals;
+
+        private final int[] groups;
+
+        TargetTemplate(final String template, final int groupCount, final Pattern pattern) {
+            final List<String> literalList = new ArrayList<String>();
+            final List<Integer> groupList = new ArrayList<Integer>();
+            final StringBuilder literal = new StringBuilder();
+
+            for (int i = 0; i < template.length(); i++) {
+                final char c = template.charAt(i);
+
+                if (c == '\\' && i + 1 < template.length()) {
+                    literal.append(template.charAt(++i));
+                } else if (c == '$' && i + 1 < template.length() && Character.isDigit(template.charAt(i + 1))) {
+                    // As java.util.regex.Matcher, take further digits only while they form an existing group
+                    int group = template.charAt(++i) - '0';
+                    while (i + 1 < template.length() && Character.isDigit(template.charAt(i + 1))
+                            && group * 10 + (template.charAt(i + 1) - '0') <= groupCount) {
+                        group = group * 10 + (template.charAt(++i) - '0');
+                    }
+
+                    if (group > groupCount) {
+                        throw new IllegalArgumentException("Flush rule target [ " + template + " ] references group "
+                                + group + ", but pattern [ " + pattern.pattern() + " ] has " + groupCount
+                                + " groups");
+                    }
+
+                    literalList.add(literal.toString());
+                    literal.setLength(0);
+                    groupList.add(group);
+                } else {
+                    literal.append(c);
+                }
+            }
+
+            literalList.add(literal.toString());
+
+            this.literals = literalList.toArray(new String[literalList.size()]);
+            this.groups = new int[groupList.size()];
+            for (int g = 0; g < this.groups.length; g++) {
+                this.groups[g] = groupList.get(g);
+            }
+        }
+
+        boolean isLiteral() {
+            return this.groups.length == 0;
+        }
+
+        String expand(final Matcher matcher) {
+            if (this.groups.length == 0) {
+                return this.literals[0];
+            }
+
+            final StringBuilder sb = new StringBuilder(this.literals[0]);
+
+            for (int g = 0; g < this.groups.length; g++) {
+                final String value = matcher.group(this.groups[g]);
+
+                if (value != null) {
+                    sb.append(value);
+                }
+
+                sb.append(this.literals[g + 1]);
+            }
+
+            // An empty trailing group (ex. /content/site/$1 for /content/dam/brand/) leaves a trailing slash
+            if (sb.length() > 1 && sb.charAt(sb.length() - 1) == '/') {
+                sb.setLength(sb.length() - 1);
+            }
+
+            return sb.toString();
+        }
+    }
+
+    private static final class BuildNode {
+        private final Map<Character, BuildNode> children = new TreeMap<Character, BuildNode>();
+
+        private final List<Integer> rules = new ArrayList<Integer>();
+
+        private TrieNode seal() {
+            final char[] keys = new char[this.children.size()];
+            final TrieNode[] nodes = new TrieNode[this.children.size()];
+
+            int i = 0;
+            for (final Map.Entry<Character, BuildNode> entry : this.children.entrySet()) {
+                keys[i] = entry.getKey();
+                nodes[i] = entry.getValue().seal();
+                i++;
+            }
+
+            final int[] ruleIndexes = new int[this.rules.size()];
+            for (int r = 0; r < ruleIndexes.length; r++) {
+                ruleIndexes[r] = this.rules.get(r);
+            }
+
+            return new TrieNode(keys, nodes, ruleIndexes);
+        }
+    }
+
+    private static final class TrieNode {
+        /* Sorted child characters and their nodes */
+        private final char[] keys;
+
+        private final TrieNode[] children;
+
+        /* Indexes of rules whose literal prefix ends at this node */
+        private final int[] rules;
+
+        private TrieNode(final char[] keys, final TrieNode[] children, final int[] rules) {
+            this.keys = keys;
+            this.children = children;
+            this.rules = rules;
+        }
+
+        private TrieNode getChild(final char c) {
+            final int index = Arrays.binarySearch(this.keys, c);
+            return index < 0 ? null : this.children[index];
+        }
+    }
+}
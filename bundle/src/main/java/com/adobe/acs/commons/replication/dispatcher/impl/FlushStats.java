@@ -0,0 +1,100 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.util.impl.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free counters and latency histogram of the flushes of a single Agent or Dispatcher Flush Rule.
+ */
+public final class FlushStats {
+    private static final double MILLIS_PER_MINUTE = 60000d;
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final long since;
+
+    /**
+     * @param since the time in milliseconds from which flushes are counted
+     */
+    public FlushStats(final long since) {
+        this.since = since;
+    }
+
+    /**
+     * Records a flush.
+     *
+     * @param duration the time in nanoseconds taken by the flush, or -1 if unknown
+     * @param success true if the flush succeeded
+     */
+    public void record(final long duration, final boolean success) {
+        this.count.incrementAndGet();
+
+        if (!success) {
+            this.failures.incrementAndGet();
+        }
+
+        if (duration >= 0) {
+            this.latency.record(duration);
+        }
+    }
+
+    /**
+     * @return the number of flushes
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return the number of failed flushes
+     */
+    public long getFailures() {
+        return this.failures.get();
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @return the average number of flushes per minute since counting started
+     */
+    public double getPerMinute(final long now) {
+        return this.count.get() * MILLIS_PER_MINUTE / Math.max(1L, now - this.since);
+    }
+
+    /**
+     * @return the latencies of flushes whose duration is known, in nanoseconds
+     */
+    public LatencyHistogram getLatency() {
+        return this.latency;
+    }
+
+    /**
+     * @return the time in milliseconds from which flushes are counted
+     */
+    public long getSince() {
+        return this.since;
+    }
+}
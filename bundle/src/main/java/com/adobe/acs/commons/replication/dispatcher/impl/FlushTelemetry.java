@@ -0,0 +1,80 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.ReplicationActionType;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects counters, latencies and recent events of dispatcher flushes, per Dispatcher Flush Agent and per Dispatcher
+ * Flush Rule.
+ *
+ * Recording must be cheap and must never block, as flushes are recorded on replication threads.
+ */
+public interface FlushTelemetry {
+    /**
+     * Records the flush of a single path via a single Agent.
+     *
+     * @param agentId the id of the Agent
+     * @param actionType the replication action type of the flush
+     * @param path the flushed path
+     * @param duration the time in nanoseconds taken by the flush, or -1 if unknown
+     * @param success true if the flush succeeded
+     * @param code the flush result code, ex. the dispatcher's HTTP status code
+     */
+    void recordAgentFlush(String agentId, ReplicationActionType actionType, String path, long duration,
+                          boolean success, int code);
+
+    /**
+     * Records the flush of a single associated path triggered by a Dispatcher Flush Rule.
+     *
+     * @param rule the pattern of the triggered rule
+     * @param actionType the replication action type of the flush
+     * @param path the replicated path that triggered the rule
+     * @param target the associated path flushed by the rule
+     * @param agentIds the ids of the Agents the flush was issued to, or null if not known
+     * @param duration the time in nanoseconds taken to issue the flush, or -1 if unknown
+     * @param success true if the flush was issued
+     */
+    void recordRuleFlush(String rule, ReplicationActionType actionType, String path, String target,
+                         String agentIds, long duration, boolean success);
+
+    /**
+     * @return the statistics of flushes per Agent id
+     */
+    Map<String, FlushStats> getAgentStats();
+
+    /**
+     * @return the statistics of flushes per rule pattern
+     */
+    Map<String, FlushStats> getRuleStats();
+
+    /**
+     * @return the most recent flush events, newest first
+     */
+    List<FlushEvent> getRecentEvents();
+
+    /**
+     * Discards all statistics and recent events.
+     */
+    void reset();
+}
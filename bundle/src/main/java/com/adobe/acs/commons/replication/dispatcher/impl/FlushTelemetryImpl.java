@@ -0,0 +1,225 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.ReplicationActionType;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free FlushTelemetry, exposed via JMX.
+ *
+ * Recent events are kept in a ring buffer: each event claims the next sequence number and is written to the slot of
+ * its sequence modulo the capacity, overwriting the oldest event. Readers skip slots that were overwritten while
+ * they read, so writers never wait on readers or on each other.
+ */
+@Component(
+        label = "ACS AEM Commons - Dispatcher Flush Telemetry",
+        description = "Collects counters, latencies and recent events of dispatcher flushes per Dispatcher Flush "
+                + "Agent and per Dispatcher Flush Rule, and exposes them via JMX.",
+        immediate = true,
+        metatype = true
+)
+@Service
+public class FlushTelemetryImpl implements FlushTelemetry {
+    private static final Logger log = LoggerFactory.getLogger(FlushTelemetryImpl.class);
+
+    /* Event Capacity */
+    private static final int DEFAULT_EVENT_CAPACITY = 1000;
+
+    @Property(label = "Recent Events",
+            description = "Number of most recent flush events to keep. [ Default: 1000 ]",
+            intValue = DEFAULT_EVENT_CAPACITY)
+    private static final String PROP_EVENT_CAPACITY = "prop.events.capacity";
+
+    private final ConcurrentMap<String, FlushStats> agentStats = new ConcurrentHashMap<String, FlushStats>();
+
+    private final ConcurrentMap<String, FlushStats> ruleStats = new ConcurrentHashMap<String, FlushStats>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private volatile AtomicReferenceArray<FlushEvent> events =
+            new AtomicReferenceArray<FlushEvent>(DEFAULT_EVENT_CAPACITY);
+
+    /* Events with a lower sequence number were discarded by a reset */
+    private volatile long resetSequence = 0;
+
+    private volatile long since = System.currentTimeMillis();
+
+    private ServiceRegistration mbeanRegistration = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void recordAgentFlush(final String agentId, final ReplicationActionType actionType,
+                                       final String path, final long duration, final boolean success,
+                                       final int code) {
+        getOrCreate(this.agentStats, agentId).record(duration, success);
+
+        this.addEvent(actionType, path, null, null, agentId, duration, success, code);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void recordRuleFlush(final String rule, final ReplicationActionType actionType, final String path,
+                                      final String target, final String agentIds, final long duration,
+                                      final boolean success) {
+        getOrCreate(this.ruleStats, rule).record(duration, success);
+
+        this.addEvent(actionType, path, target, rule, agentIds, duration, success, 0);
+    }
+
+    private void addEvent(final ReplicationActionType actionType, final String path, final String target,
+                          final String rule, final String agent, final long duration, final boolean success,
+                          final int code) {
+        final AtomicReferenceArray<FlushEvent> buffer = this.events;
+        final long next = this.sequence.getAndIncrement();
+
+        buffer.set((int) (next % buffer.length()), new FlushEvent(next, System.currentTimeMillis(),
+                actionType == null ? null : actionType.name(), path, target, rule, agent, duration, success, code));
+    }
+
+    private FlushStats getOrCreate(final ConcurrentMap<String, FlushStats> stats, final String key) {
+        final String name = key == null ? "" : key;
+
+        FlushStats flushStats = stats.get(name);
+        if (flushStats == null) {
+            final FlushStats created = new FlushStats(this.since);
+            flushStats = stats.putIfAbsent(name, created);
+
+            if (flushStats == null) {
+                flushStats = created;
+            }
+        }
+
+        return flushStats;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final Map<String, FlushStats> getAgentStats() {
+        return Collections.unmodifiableMap(new TreeMap<String, FlushStats>(this.agentStats));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final Map<String, FlushStats> getRuleStats() {
+        return Collections.unmodifiableMap(new TreeMap<String, FlushStats>(this.ruleStats));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final List<FlushEvent> getRecentEvents() {
+        final AtomicReferenceArray<FlushEvent> buffer = this.events;
+        final long end = this.sequence.get();
+        final long start = Math.max(this.resetSequence, end - buffer.length());
+
+        final List<FlushEvent> recent = new ArrayList<FlushEvent>((int) (end - start));
+
+        for (long i = end - 1; i >= start; i--) {
+            final FlushEvent event = buffer.get((int) (i % buffer.length()));
+
+            // Skip slots not yet written, or already overwritten by a newer event
+            if (event != null && event.getSequence() == i) {
+                recent.add(event);
+            }
+        }
+
+        return recent;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void reset() {
+        this.since = System.currentTimeMillis();
+        this.resetSequence = this.sequence.get();
+        this.agentStats.clear();
+        this.ruleStats.clear();
+    }
+
+    @Activate
+    protected final void activate(final ComponentContext componentContext) {
+        final int capacity = Math.max(1, PropertiesUtil.toInteger(
+                componentContext.getProperties().get(PROP_EVENT_CAPACITY), DEFAULT_EVENT_CAPACITY));
+
+        if (capacity != this.events.length()) {
+            this.events = new AtomicReferenceArray<FlushEvent>(capacity);
+            this.resetSequence = this.sequence.get();
+        }
+
+        this.registerMBean(componentContext.getBundleContext());
+    }
+
+    @Deactivate
+    protected final void deactivate(final ComponentContext componentContext) {
+        if (this.mbeanRegistration != null) {
+            this.mbeanRegistration.unregister();
+            this.mbeanRegistration = null;
+        }
+    }
+
+    private void registerMBean(final BundleContext bundleContext) {
+        if (bundleContext == null) { return; }
+
+        try {
+            final Dictionary<String, Object> mbeanProps = new Hashtable<String, Object>();
+            mbeanProps.put("jmx.objectname", FlushTelemetryMBeanImpl.OBJECT_NAME);
+
+            this.mbeanRegistration = bundleContext.registerService(DynamicMBean.class.getName(),
+                    new FlushTelemetryMBeanImpl(this), mbeanProps);
+        } catch (NotCompliantMBeanException ex) {
+            log.error("Could not register Dispatcher Flush Telemetry MBean: {}", ex.getMessage());
+        }
+    }
+}
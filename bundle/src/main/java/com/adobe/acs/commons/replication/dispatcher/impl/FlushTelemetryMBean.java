@@ -0,0 +1,47 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+/**
+ * JMX view of the Dispatcher Flush Telemetry.
+ */
+public interface FlushTelemetryMBean {
+    /**
+     * @return the flush statistics per Agent, formatted as "agent: count=.., failures=.., perMinute=.., p50=.., ..."
+     * with latencies in milliseconds
+     */
+    String[] getAgentStats();
+
+    /**
+     * @return the flush statistics per rule pattern, formatted as "pattern: count=.., failures=.., perMinute=.., ..."
+     * with latencies in milliseconds
+     */
+    String[] getRuleStats();
+
+    /**
+     * @return the most recent flush events, newest first
+     */
+    String[] getRecentEvents();
+
+    /**
+     * Discards all flush statistics and recent events.
+     */
+    void resetMetrics();
+}
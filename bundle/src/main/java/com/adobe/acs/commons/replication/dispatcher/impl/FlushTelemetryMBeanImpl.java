@@ -0,0 +1,125 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Exposes the per-Agent and per-rule flush statistics and the recent flush events of the Dispatcher Flush Telemetry
+ * via JMX.
+ */
+public final class FlushTelemetryMBeanImpl extends StandardMBean implements FlushTelemetryMBean {
+    public static final String OBJECT_NAME = "com.adobe.acs.commons:type=Dispatcher Flush Telemetry";
+
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    private static final String TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+
+    private final FlushTelemetry flushTelemetry;
+
+    public FlushTelemetryMBeanImpl(final FlushTelemetry flushTelemetry) throws NotCompliantMBeanException {
+        super(FlushTelemetryMBean.class);
+        this.flushTelemetry = flushTelemetry;
+    }
+
+    @Override
+    public String[] getAgentStats() {
+        return format(this.flushTelemetry.getAgentStats());
+    }
+
+    @Override
+    public String[] getRuleStats() {
+        return format(this.flushTelemetry.getRuleStats());
+    }
+
+    @Override
+    public String[] getRecentEvents() {
+        final List<FlushEvent> events = this.flushTelemetry.getRecentEvents();
+        final SimpleDateFormat timeFormat = new SimpleDateFormat(TIME_FORMAT, Locale.ENGLISH);
+        final String[] formatted = new String[events.size()];
+
+        for (int i = 0; i < formatted.length; i++) {
+            final FlushEvent event = events.get(i);
+            final StringBuilder sb = new StringBuilder();
+
+            sb.append(timeFormat.format(new Date(event.getTime()))).append(' ')
+                    .append(event.getActionType()).append(' ')
+                    .append(event.getPath());
+
+            if (event.getTarget() != null) {
+                sb.append(" -> ").append(event.getTarget());
+            }
+            if (event.getRule() != null) {
+                sb.append(", rule=").append(event.getRule());
+            }
+            if (event.getAgent() != null) {
+                sb.append(", agent=").append(event.getAgent());
+            }
+            if (event.getDuration() >= 0) {
+                sb.append(", duration=").append(toMillis(event.getDuration())).append("ms");
+            }
+
+            sb.append(", success=").append(event.isSuccess());
+
+            if (event.getCode() != 0) {
+                sb.append(", code=").append(event.getCode());
+            }
+
+            formatted[i] = sb.toString();
+        }
+
+        return formatted;
+    }
+
+    @Override
+    public void resetMetrics() {
+        this.flushTelemetry.reset();
+    }
+
+    private static String[] format(final Map<String, FlushStats> stats) {
+        final long now = System.currentTimeMillis();
+        final String[] formatted = new String[stats.size()];
+
+        int i = 0;
+        for (final Map.Entry<String, FlushStats> entry : stats.entrySet()) {
+            final FlushStats flushStats = entry.getValue();
+
+            formatted[i++] = entry.getKey()
+                    + ": count=" + flushStats.getCount()
+                    + ", failures=" + flushStats.getFailures()
+                    + ", perMinute=" + String.format(Locale.ENGLISH, "%.2f", flushStats.getPerMinute(now))
+                    + ", p50=" + toMillis(flushStats.getLatency().getPercentile(50)) + "ms"
+                    + ", p95=" + toMillis(flushStats.getLatency().getPercentile(95)) + "ms"
+                    + ", p99=" + toMillis(flushStats.getLatency().getPercentile(99)) + "ms";
+        }
+
+        return formatted;
+    }
+
+    private static double toMillis(final double nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Writes the per-Agent and per-rule flush statistics and the recent flush events of the Dispatcher Flush Telemetry as
+ * JSON. Latencies are in milliseconds.
+ */
+@SuppressWarnings("serial")
+@SlingServlet(resourceTypes = "acs-commons/components/utilities/dispatcher-flush/configuration",
+        selectors = "telemetry", extensions = "json", methods = "GET")
+public final class FlushTelemetryServlet extends SlingSafeMethodsServlet {
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    @Reference
+    private FlushTelemetry flushTelemetry;
+
+    @Override
+    protected void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        try {
+            final JSONWriter writer = new JSONWriter(response.getWriter());
+            final long now = System.currentTimeMillis();
+
+            writer.object();
+
+            writer.key("agents");
+            writeStats(writer, this.flushTelemetry.getAgentStats(), now);
+
+            writer.key("rules");
+            writeStats(writer, this.flushTelemetry.getRuleStats(), now);
+
+            writer.key("events").array();
+            for (final FlushEvent event : this.flushTelemetry.getRecentEvents()) {
+                writer.object()
+                        .key("sequence").value(event.getSequence())
+                        .key("time").value(event.getTime())
+                        .key("actionType").value(event.getActionType())
+                        .key("path").value(event.getPath());
+
+                if (event.getTarget() != null) {
+                    writer.key("target").value(event.getTarget());
+                }
+                if (event.getRule() != null) {
+                    writer.key("rule").value(event.getRule());
+                }
+                if (event.getAgent() != null) {
+                    writer.key("agent").value(event.getAgent());
+                }
+                if (event.getDuration() >= 0) {
+                    writer.key("duration").value(event.getDuration() / NANOS_PER_MILLI);
+                }
+
+                writer.key("success").value(event.isSuccess())
+                        .key("code").value(event.getCode())
+                        .endObject();
+            }
+            writer.endArray();
+
+            writer.endObject();
+        } catch (JSONException e) {
+            throw new ServletException("Unable to output JSON data", e);
+        }
+    }
+
+    private static void writeStats(final JSONWriter writer, final Map<String, FlushStats> stats, final long now)
+            throws JSONException {
+        writer.array();
+
+        for (final Map.Entry<String, FlushStats> entry : stats.entrySet()) {
+            final FlushStats flushStats = entry.getValue();
+
+            writer.object()
+                    .key("name").value(entry.getKey())
+                    .key("count").value(flushStats.getCount())
+                    .key("failures").value(flushStats.getFailures())
+                    .key("perMinute").value(flushStats.getPerMinute(now))
+                    .key("p50").value(flushStats.getLatency().getPercentile(50) / NANOS_PER_MILLI)
+                    .key("p95").value(flushStats.getLatency().getPercentile(95) / NANOS_PER_MILLI)
+                    .key("p99").value(flushStats.getLatency().getPercentile(99) / NANOS_PER_MILLI)
+                    .endObject();
+        }
+
+        writer.endArray();
+    }
+}
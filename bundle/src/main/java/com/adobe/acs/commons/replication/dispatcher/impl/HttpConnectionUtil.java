@@ -0,0 +1,77 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Helpers for HttpURLConnections to dispatchers.
+ */
+final class HttpConnectionUtil {
+    private HttpConnectionUtil() {
+    }
+
+    /**
+     * Fully reads and discards the response, so the connection is returned to HttpURLConnection's keep-alive pool.
+     *
+     * @param connection the connection
+     * @param code the response status code
+     * @throws IOException
+     */
+    static void drainResponse(final HttpURLConnection connection, final int code) throws IOException {
+        final InputStream inputStream = code < HttpURLConnection.HTTP_BAD_REQUEST
+                ? connection.getInputStream() : connection.getErrorStream();
+
+        if (inputStream == null) {
+            return;
+        }
+
+        try {
+            final byte[] buffer = new byte[1024];
+            while (inputStream.read(buffer) >= 0) {
+                // Discard
+            }
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Identifies the dispatcher an Agent's transport URI addresses.
+     *
+     * @param transportUri the transport URI
+     * @return the host and port of the transport URI, or the transport URI itself if it is malformed
+     */
+    static String getHost(final String transportUri) {
+        try {
+            final URL url = new URL(transportUri);
+            return url.getHost() + ":" + (url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
+        } catch (MalformedURLException ex) {
+            return StringUtils.defaultString(transportUri);
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.eval.JcrPropertyPredicateEvaluator;
+import com.day.cq.search.eval.PathPredicateEvaluator;
+import com.day.cq.search.result.Hit;
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * In-memory reverse index of the references that content properties (ex. fileReference) hold to other content, such
+ * as DAM assets and shared content fragments.
+ *
+ * Maps each referenced path to the properties referencing it, and thereby to the referencing pages. The index is
+ * built once and then kept current via JCR observation of the referencing properties, so the pages referencing a
+ * replicated path can be found without executing any queries.
+ *
+ * Changes to the index are serialized on the index; the repository is read outside the lock, both when building the
+ * index and when processing events, so lookups and events are not held up by the queries discovering references. Lookups before the index is built find nothing
+ * rather than waiting.
+ */
+public class ReferenceIndex implements EventListener {
+    private static final Logger log = LoggerFactory.getLogger(ReferenceIndex.class);
+
+    private static final String JCR_CONTENT_SEGMENT = "/" + JcrConstants.JCR_CONTENT + "/";
+
+    private static final String EVENT_INFO_SRC_ABS_PATH = "srcAbsPath";
+
+    private static final int EVENT_TYPES = Event.NODE_REMOVED | Event.NODE_MOVED
+            | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+    private final QueryBuilder queryBuilder;
+
+    private final Set<String> propertyNames;
+
+    /* Mutable state; guarded by this */
+
+    /* Referenced paths per referencing property path */
+    private final TreeMap<String, String[]> references = new TreeMap<String, String[]>();
+
+    /* Referencing property paths per referenced path */
+    private final TreeMap<String, Set<String>> referrers = new TreeMap<String, Set<String>>();
+
+    private ResourceResolver resourceResolver;
+
+    private boolean closed = false;
+
+    /* Property and removed node paths changed by events while the index is built; null once built */
+    private Set<String> changedWhileBuilding = null;
+
+    private volatile boolean built = false;
+
+    /**
+     * @param queryBuilder used to discover the referencing properties
+     * @param propertyNames the names of the properties holding references (ex. fileReference)
+     */
+    public ReferenceIndex(final QueryBuilder queryBuilder, final String[] propertyNames) {
+        this.queryBuilder = queryBuilder;
+        this.propertyNames = new HashSet<String>();
+
+        for (final String propertyName : propertyNames) {
+            if (StringUtils.isNotBlank(propertyName)) {
+                this.propertyNames.add(StringUtils.strip(propertyName));
+            }
+        }
+    }
+
+    /**
+     * Builds the index and starts observing the repository to keep it current.
+     *
+     * The resource resolver must remain open until the index is closed. Opening an index that has already been
+     * closed does nothing.
+     *
+     * @param serviceResourceResolver resolver with read access to all referencing content
+     * @param observedPaths the repository trees holding referencing content
+     * @throws RepositoryException
+     */
+    public void open(final ResourceResolver serviceResourceResolver, final String[] observedPaths)
+            throws RepositoryException {
+        final ObservationManager observationManager;
+
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+
+            this.resourceResolver = serviceResourceResolver;
+            this.changedWhileBuilding = new HashSet<String>();
+            observationManager = this.getObservationManager();
+        }
+
+        final long start = System.currentTimeMillis();
+
+        for (final String observedPath : observedPaths) {
+            if (StringUtils.isBlank(observedPath)) { continue; }
+
+            synchronized (this) {
+                // Closing the index aborts the build
+                if (this.closed) {
+                    return;
+                }
+
+                // Observe before discovering, so references changed while discovering are not missed
+                observationManager.addEventListener(this, EVENT_TYPES, StringUtils.strip(observedPath), true,
+                        null, null, false);
+            }
+
+            this.mergeBuilt(this.discover(serviceResourceResolver, StringUtils.strip(observedPath)));
+
+            log.debug("Observing [ {} ] for reference changes", observedPath);
+        }
+
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+
+            this.changedWhileBuilding = null;
+            this.built = true;
+
+            log.info("Built reference index of {} references in {} ms", this.references.size(),
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Stops observing the repository.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        this.built = false;
+
+        if (this.resourceResolver == null) {
+            return;
+        }
+
+        try {
+            this.getObservationManager().removeEventListener(this);
+        } catch (RepositoryException ex) {
+            log.warn("Could not remove reference index observation listener: {}", ex.getMessage());
+        }
+
+        this.resourceResolver = null;
+        this.changedWhileBuilding = null;
+        this.references.clear();
+        this.referrers.clear();
+    }
+
+    /**
+     * @return true if the index has been built and is kept current
+     */
+    public boolean isBuilt() {
+        return this.built;
+    }
+
+    /**
+     * Gets the pages referencing the path, or any path beneath it.
+     *
+     * @param path the referenced path, ex. a DAM asset
+     * @return the paths of the referencing pages, sorted; empty if the index has not been built
+     */
+    public Set<String> getReferencingPages(final String path) {
+        final Set<String> pages = new TreeSet<String>();
+
+        if (!this.built || StringUtils.isBlank(path)) {
+            return pages;
+        }
+
+        final String prefix = path.endsWith("/") ? path : path + "/";
+
+        synchronized (this) {
+            this.addPages(this.referrers.get(path), pages);
+
+            // Every path beneath the prefix sorts between the prefix and the prefix with its '/' replaced by '0'
+            for (final Set<String> propertyPaths : this.referrers.subMap(prefix,
+                    prefix.substring(0, prefix.length() - 1) + '0').values()) {
+                this.addPages(propertyPaths, pages);
+            }
+        }
+
+        return pages;
+    }
+
+    /**
+     * @return the number of indexed referencing properties
+     */
+    public synchronized int size() {
+        return this.references.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onEvent(final EventIterator events) {
+        final ResourceResolver resolver;
+
+        synchronized (this) {
+            resolver = this.resourceResolver;
+        }
+
+        if (resolver == null) {
+            return;
+        }
+
+        try {
+            // Long lived sessions must be refreshed to see the changes being reported
+            resolver.adaptTo(Session.class).refresh(true);
+        } catch (RepositoryException ex) {
+            log.warn("Could not refresh reference index session: {}", ex.getMessage());
+        }
+
+        while (events.hasNext()) {
+            try {
+                this.handleEvent(resolver, events.nextEvent());
+            } catch (RepositoryException ex) {
+                log.warn("Could not process reference index event: {}", ex.getMessage());
+            }
+        }
+    }
+
+    private void handleEvent(final ResourceResolver resolver, final Event event) throws RepositoryException {
+        final String path = event.getPath();
+        final int type = event.getType();
+
+        if (type == Event.PROPERTY_ADDED || type == Event.PROPERTY_CHANGED || type == Event.PROPERTY_REMOVED) {
+            if (!this.propertyNames.contains(StringUtils.substringAfterLast(path, "/"))) {
+                return;
+            }
+
+            final Map<String, String[]> discovered = new HashMap<String, String[]>();
+            discovered.put(path, type == Event.PROPERTY_REMOVED ? null : readProperty(resolver, path));
+            this.merge(null, discovered);
+        } else if (type == Event.NODE_REMOVED) {
+            this.merge(path, Collections.<String, String[]>emptyMap());
+        } else if (type == Event.NODE_MOVED) {
+            final Object srcAbsPath = event.getInfo().get(EVENT_INFO_SRC_ABS_PATH);
+
+            // Moved trees do not report property events for their descendants
+            this.merge(srcAbsPath instanceof String ? (String) srcAbsPath : null, this.discover(resolver, path));
+        }
+    }
+
+    /**
+     * Applies changes read from the repository to the index at once, unless the index has since been closed.
+     *
+     * @param removedPath the path of a removed node whose references are removed, or null
+     * @param discovered the values of the referencing properties, per property path; null values remove the
+     *                   references held by the property
+     */
+    private synchronized void merge(final String removedPath, final Map<String, String[]> discovered) {
+        if (this.closed) {
+            return;
+        }
+
+        if (removedPath != null) {
+            this.remove(removedPath);
+        }
+
+        for (final Map.Entry<String, String[]> entry : discovered.entrySet()) {
+            this.update(entry.getKey(), entry.getValue());
+        }
+
+        if (this.changedWhileBuilding != null) {
+            if (removedPath != null) {
+                this.changedWhileBuilding.add(removedPath);
+            }
+            this.changedWhileBuilding.addAll(discovered.keySet());
+        }
+    }
+
+    /**
+     * Applies references discovered while building the index, except for those that events have since changed, as
+     * the events read the repository after the discovery did.
+     *
+     * @param discovered the values of the referencing properties, per property path
+     */
+    private synchronized void mergeBuilt(final Map<String, String[]> discovered) {
+        if (this.closed) {
+            return;
+        }
+
+        for (final Map.Entry<String, String[]> entry : discovered.entrySet()) {
+            if (!this.isChangedWhileBuilding(entry.getKey())) {
+                this.update(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private boolean isChangedWhileBuilding(final String propertyPath) {
+        for (final String changedPath : this.changedWhileBuilding) {
+            if (propertyPath.equals(changedPath) || propertyPath.startsWith(changedPath + "/")) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Queries for the referencing properties beneath the path. Reads only the repository, not the index, so is
+     * called without holding the index's lock.
+     *
+     * @param resolver the resolver to query and read the properties with
+     * @param path the tree to search
+     * @return the values of the referencing properties, per property path
+     */
+    private Map<String, String[]> discover(final ResourceResolver resolver, final String path) {
+        final Map<String, String[]> discovered = new HashMap<String, String[]>();
+
+        for (final String propertyName : this.propertyNames) {
+            final Map<String, String> map = new HashMap<String, String>();
+
+            map.put(PathPredicateEvaluator.PATH, path);
+            map.put(JcrPropertyPredicateEvaluator.PROPERTY, propertyName);
+            map.put(JcrPropertyPredicateEvaluator.PROPERTY + "." + JcrPropertyPredicateEvaluator.OPERATION,
+                    JcrPropertyPredicateEvaluator.OP_EXISTS);
+            map.put("p.limit", "0");
+
+            final Query query = queryBuilder.createQuery(PredicateGroup.create(map),
+                    resolver.adaptTo(Session.class));
+
+            for (final Hit hit : query.getResult().getHits()) {
+                try {
+                    final String propertyPath = hit.getPath() + "/" + propertyName;
+                    discovered.put(propertyPath, readProperty(resolver, propertyPath));
+                } catch (RepositoryException ex) {
+                    log.error("Could not resolve hit to a valid resource");
+                }
+            }
+        }
+
+        return discovered;
+    }
+
+    private static String[] readProperty(final ResourceResolver resolver, final String propertyPath) {
+        final Resource resource = resolver.getResource(StringUtils.substringBeforeLast(propertyPath,
+                "/"));
+
+        if (resource == null) {
+            return null;
+        }
+
+        final ValueMap properties = resource.adaptTo(ValueMap.class);
+        if (properties == null) {
+            return null;
+        }
+
+        return properties.get(StringUtils.substringAfterLast(propertyPath, "/"), String[].class);
+    }
+
+    /**
+     * Replaces the references held by a property.
+     *
+     * @param propertyPath the path of the referencing property
+     * @param values the values of the property, or null if the property was removed; values that are not absolute
+     *               paths are ignored
+     */
+    synchronized void update(final String propertyPath, final String[] values) {
+        final String[] previous = this.references.remove(propertyPath);
+
+        if (previous != null) {
+            for (final String referencedPath : previous) {
+                final Set<String> propertyPaths = this.referrers.get(referencedPath);
+
+                if (propertyPaths != null && propertyPaths.remove(propertyPath) && propertyPaths.isEmpty()) {
+                    this.referrers.remove(referencedPath);
+                }
+            }
+        }
+
+        if (values == null) {
+            return;
+        }
+
+        final List<String> referencedPaths = new ArrayList<String>(values.length);
+
+        for (final String value : values) {
+            final String referencedPath = StringUtils.strip(value);
+
+            if (StringUtils.startsWith(referencedPath, "/") && !referencedPaths.contains(referencedPath)) {
+                referencedPaths.add(referencedPath);
+            }
+        }
+
+        if (referencedPaths.isEmpty()) {
+            return;
+        }
+
+        this.references.put(propertyPath, referencedPaths.toArray(new String[referencedPaths.size()]));
+
+        for (final String referencedPath : referencedPaths) {
+            Set<String> propertyPaths = this.referrers.get(referencedPath);
+
+            if (propertyPaths == null) {
+                propertyPaths = new HashSet<String>();
+                this.referrers.put(referencedPath, propertyPaths);
+            }
+
+            propertyPaths.add(propertyPath);
+        }
+    }
+
+    /**
+     * Removes the references held by all properties beneath a removed node.
+     *
+     * @param path the path of the removed node
+     */
+    synchronized void remove(final String path) {
+        final String prefix = path.endsWith("/") ? path : path + "/";
+        final Collection<String> propertyPaths = new ArrayList<String>(this.references.subMap(prefix,
+                prefix.substring(0, prefix.length() - 1) + '0').keySet());
+
+        for (final String propertyPath : propertyPaths) {
+            this.update(propertyPath, null);
+        }
+    }
+
+    private void addPages(final Set<String> propertyPaths, final Set<String> pages) {
+        if (propertyPaths == null) {
+            return;
+        }
+
+        for (final String propertyPath : propertyPaths) {
+            pages.add(getPagePath(propertyPath));
+        }
+    }
+
+    /**
+     * Gets the page holding a referencing property; the path above its jcr:content node, or else the node holding the
+     * property.
+     *
+     * @param propertyPath the path of the referencing property
+     * @return the page path
+     */
+    static String getPagePath(final String propertyPath) {
+        final int index = propertyPath.indexOf(JCR_CONTENT_SEGMENT);
+
+        if (index > 0) {
+            return propertyPath.substring(0, index);
+        }
+
+        return StringUtils.substringBeforeLast(propertyPath, "/");
+    }
+
+    private ObservationManager getObservationManager() throws RepositoryException {
+        return this.resourceResolver.adaptTo(Session.class).getWorkspace().getObservationManager();
+    }
+}
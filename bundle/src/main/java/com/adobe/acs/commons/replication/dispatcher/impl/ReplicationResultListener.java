@@ -17,47 +17,257 @@
  * limitations under the License.
  * #L%
  */
-
 package com.adobe.acs.commons.replication.dispatcher.impl;
 
+import com.adobe.acs.commons.replication.dispatcher.impl.AgentReplicationResult.PathResult;
 import com.day.cq.replication.Agent;
 import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationActionType;
 import com.day.cq.replication.ReplicationListener;
 import com.day.cq.replication.ReplicationLog;
 import com.day.cq.replication.ReplicationResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Replication Listener that stores replication results for a series of agents.
+ * Replication Listener that stores replication results for a series of agents and paths.
+ *
+ * The listener may be notified concurrently, ex. by asynchronous replications.
  */
 public class ReplicationResultListener implements ReplicationListener {
     private static final Logger log = LoggerFactory.getLogger(ReplicationResultListener.class);
 
-    private final Map<Agent, ReplicationResult> results = new HashMap<Agent, ReplicationResult>();
+    private static final String UNKNOWN_PATH = "";
+
+    /* Results by agent, then path */
+    private final ConcurrentMap<Agent, ConcurrentMap<String, PathResult>> results =
+            new ConcurrentHashMap<Agent, ConcurrentMap<String, PathResult>>();
+
+    /* Start times by agent, then path */
+    private final ConcurrentMap<Agent, ConcurrentMap<String, Long>> starts =
+            new ConcurrentHashMap<Agent, ConcurrentMap<String, Long>>();
+
+    /* Order in which the first result of each path arrived, by agent, then path */
+    private final ConcurrentMap<Agent, ConcurrentMap<String, Long>> sequences =
+            new ConcurrentHashMap<Agent, ConcurrentMap<String, Long>>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final FlushTelemetry flushTelemetry;
+
+    private final FlushRewarmer flushRewarmer;
+
+    public ReplicationResultListener() {
+        this(null);
+    }
+
+    /**
+     * @param flushTelemetry the telemetry to record each path's result with, or null
+     */
+    public ReplicationResultListener(final FlushTelemetry flushTelemetry) {
+        this(flushTelemetry, null);
+    }
+
+    /**
+     * @param flushTelemetry the telemetry to record each path's result with, or null
+     * @param flushRewarmer the re-warmer to re-warm each successfully invalidated path with, or null
+     */
+    public ReplicationResultListener(final FlushTelemetry flushTelemetry, final FlushRewarmer flushRewarmer) {
+        this.flushTelemetry = flushTelemetry;
+        this.flushRewarmer = flushRewarmer;
+    }
 
     public final void onStart(final Agent agent, final ReplicationAction action) {
+        if (agent != null) {
+            getOrCreate(this.starts, agent).put(getPath(action), System.nanoTime());
+        }
     }
 
     public final void onMessage(final ReplicationLog.Level level, final String message) {
     }
 
     public final void onEnd(final Agent agent, final ReplicationAction action, final ReplicationResult result) {
-        this.results.put(agent, result);
+        if (agent == null || result == null) {
+            return;
+        }
+
+        // Keep an error reported via onError
+        this.put(agent, action, getPath(action), result.isSuccess(), result.getCode(), result.getMessage(), false);
     }
 
     public final void onError(final Agent agent, final ReplicationAction action, final Exception error) {
+        if (agent == null) {
+            return;
+        }
+
+        final String path = getPath(action);
+        log.debug("Replication of [ {} ] via [ {} ] failed", path, agent.getId());
+
+        this.put(agent, action, path, false, 0, error == null ? null : error.getMessage(), true);
+    }
+
+    /**
+     * Stores the result of a path, then records it with the telemetry and re-warmer.
+     *
+     * @param replaceFailure false to keep a failed result already stored for the path
+     */
+    private void put(final Agent agent, final ReplicationAction action, final String path, final boolean success,
+                     final int code, final String message, final boolean replaceFailure) {
+        final Long start = getOrCreate(this.starts, agent).get(path);
+        final long duration = start == null ? -1 : System.nanoTime() - start;
+        final ConcurrentMap<String, PathResult> byPath = getOrCreate(this.results, agent);
+        final PathResult result = new PathResult(path, success, code, message, duration);
+
+        final ConcurrentMap<String, Long> sequencesByPath = getOrCreate(this.sequences, agent);
+
+        if (!sequencesByPath.containsKey(path)) {
+            sequencesByPath.putIfAbsent(path, this.sequence.incrementAndGet());
+        }
+
+        if (replaceFailure) {
+            byPath.put(path, result);
+        } else if (!putUnlessFailed(byPath, path, result)) {
+            return;
+        }
+
+        if (this.flushTelemetry != null) {
+            this.flushTelemetry.recordAgentFlush(agent.getId(), action == null ? null : action.getType(), path,
+                    duration, success, code);
+        }
+
+        if (success && this.flushRewarmer != null && action != null
+                && ReplicationActionType.ACTIVATE.equals(action.getType())) {
+            // Deleted and deactivated content is not re-warmed
+            this.flushRewarmer.add(agent, path);
+        }
+    }
+
+    /**
+     * Stores the result of a path, unless a failed result is stored for the path; atomic with concurrent puts.
+     *
+     * @param byPath the results by path
+     * @param path the path
+     * @param result the result
+     * @return true if the result was stored
+     */
+    static boolean putUnlessFailed(final ConcurrentMap<String, PathResult> byPath, final String path,
+                                   final PathResult result) {
+        PathResult previous = byPath.putIfAbsent(path, result);
+
+        while (previous != null) {
+            if (!previous.isSuccess()) {
+                return false;
+            } else if (byPath.replace(path, previous, result)) {
+                return true;
+            }
+
+            // The result changed or was removed meanwhile; check again
+            previous = byPath.putIfAbsent(path, result);
+        }
+
+        return true;
+    }
+
+    private static String getPath(final ReplicationAction action) {
+        return action == null || action.getPath() == null ? UNKNOWN_PATH : action.getPath();
+    }
+
+    private static <T> ConcurrentMap<String, T> getOrCreate(final ConcurrentMap<Agent, ConcurrentMap<String, T>> map,
+                                                            final Agent agent) {
+        ConcurrentMap<String, T> byPath = map.get(agent);
+
+        if (byPath == null) {
+            final ConcurrentMap<String, T> created = new ConcurrentHashMap<String, T>();
+            byPath = map.putIfAbsent(agent, created);
+
+            if (byPath == null) {
+                byPath = created;
+            }
+        }
+
+        return byPath;
     }
 
     /**
      * Gets the results of the Replication operation.
      *
+     * Each agent's result is an AgentReplicationResult, which is successful only if every path replicated via the
+     * agent was replicated successfully. Agents, and the paths of each agent, are in the order their first result
+     * arrived in, so the code and first failure of each result do not depend on hashing.
+     *
      * @return the Mapped results between the Agent and ReplicationResult
      */
     public final Map<Agent, ReplicationResult> getResults() {
-        return this.results;
+        final List<Agent> agents = new ArrayList<Agent>(this.results.keySet());
+        final Map<Agent, Long> agentSequences = new LinkedHashMap<Agent, Long>();
+
+        for (final Agent agent : agents) {
+            agentSequences.put(agent, min(getOrCreate(this.sequences, agent).values()));
+        }
+
+        Collections.sort(agents, new SequenceComparator<Agent>(agentSequences));
+
+        final Map<Agent, ReplicationResult> agentResults = new LinkedHashMap<Agent, ReplicationResult>();
+
+        for (final Agent agent : agents) {
+            final Map<String, PathResult> byPath = this.results.get(agent);
+            final List<String> paths = new ArrayList<String>(byPath.keySet());
+            final List<PathResult> pathResults = new ArrayList<PathResult>(paths.size());
+
+            Collections.sort(paths, new SequenceComparator<String>(getOrCreate(this.sequences, agent)));
+
+            for (final String path : paths) {
+                pathResults.add(byPath.get(path));
+            }
+
+            if (!pathResults.isEmpty()) {
+                agentResults.put(agent, new AgentReplicationResult(pathResults));
+            }
+        }
+
+        return agentResults;
+    }
+
+    private static Long min(final Iterable<Long> values) {
+        Long min = null;
+
+        for (final Long value : values) {
+            if (min == null || value < min) {
+                min = value;
+            }
+        }
+
+        return min;
+    }
+
+    /**
+     * Orders keys by their sequence; keys without a sequence last.
+     */
+    private static final class SequenceComparator<T> implements Comparator<T> {
+        private final Map<T, Long> sequences;
+
+        private SequenceComparator(final Map<T, Long> sequences) {
+            this.sequences = sequences;
+        }
+
+        @Override
+        public int compare(final T a, final T b) {
+            final Long x = this.sequences.get(a);
+            final Long y = this.sequences.get(b);
+            final long first = x == null ? Long.MAX_VALUE : x;
+            final long second = y == null ? Long.MAX_VALUE : y;
+
+            return first < second ? -1 : (first == second ? 0 : 1);
+        }
     }
 }
@@ -0,0 +1,32 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.ReplicationResult;
+
+/**
+ * The successful result of flushes that were submitted to be sent to a dispatcher, but not yet delivered. Unlike
+ * flushes queued in a replication queue, submitted flushes are only held in memory.
+ */
+public class SubmittedReplicationResult extends ReplicationResult {
+    public SubmittedReplicationResult() {
+        super(true, 0, "Flush requests submitted");
+    }
+}
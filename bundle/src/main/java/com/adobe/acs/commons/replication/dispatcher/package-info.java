@@ -20,5 +20,5 @@
 /**
  * Dispatcher utilities.
  */
-@aQute.bnd.annotation.Version("1.0.0")
+@aQute.bnd.annotation.Version("1.1.0")
 package com.adobe.acs.commons.replication.dispatcher;
\ No newline at end of file
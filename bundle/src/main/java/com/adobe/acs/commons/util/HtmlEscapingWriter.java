@@ -0,0 +1,100 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.util;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer that HTML escapes (&amp;, &lt;, &gt;, &quot; and &#39;) all characters written to it before passing them to
+ * the wrapped writer.
+ *
+ * Allows large text (ex. stack traces) to be streamed into HTML without first building an escaped copy in memory.
+ */
+public class HtmlEscapingWriter extends FilterWriter {
+    public HtmlEscapingWriter(final Writer out) {
+        super(out);
+    }
+
+    @Override
+    public void write(final int c) throws IOException {
+        final String escaped = escape((char) c);
+
+        if (escaped == null) {
+            this.out.write(c);
+        } else {
+            this.out.write(escaped);
+        }
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) throws IOException {
+        int start = off;
+        final int end = off + len;
+
+        for (int i = off; i < end; i++) {
+            final String escaped = escape(cbuf[i]);
+
+            if (escaped != null) {
+                this.out.write(cbuf, start, i - start);
+                this.out.write(escaped);
+                start = i + 1;
+            }
+        }
+
+        this.out.write(cbuf, start, end - start);
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) throws IOException {
+        int start = off;
+        final int end = off + len;
+
+        for (int i = off; i < end; i++) {
+            final String escaped = escape(str.charAt(i));
+
+            if (escaped != null) {
+                this.out.write(str, start, i - start);
+                this.out.write(escaped);
+                start = i + 1;
+            }
+        }
+
+        this.out.write(str, start, end - start);
+    }
+
+    private static String escape(final char c) {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '"':
+                return "&quot;";
+            case '\'':
+                return "&#39;";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ErrorPageCacheTest {
+    private ErrorPageCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new ErrorPageCache(2, 10, 60000);
+    }
+
+    private ErrorPageCache.Entry entry(String pagePath, String templatePath, int size) {
+        return new ErrorPageCache.Entry(pagePath, templatePath, "text/html", "UTF-8", new byte[size]);
+    }
+
+    @Test
+    public void testPut() throws Exception {
+        final String key = ErrorPageCache.toKey("/content/site/errors/404.html", "DISABLED");
+        cache.put(key, entry("/content/site/errors/404", null, 5), cache.getGeneration());
+
+        assertNotNull(cache.get(key));
+        assertNull(cache.get(ErrorPageCache.toKey("/content/site/errors/404.html", "PREVIEW")));
+    }
+
+    @Test
+    public void testPut_tooLarge() throws Exception {
+        cache.put("a", entry("/content/site/errors/404", null, 11), cache.getGeneration());
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testPut_full() throws Exception {
+        cache.put("a", entry("/content/a/errors/404", null, 1), cache.getGeneration());
+        cache.put("b", entry("/content/b/errors/404", null, 1), cache.getGeneration());
+        cache.get("a");
+        cache.put("c", entry("/content/c/errors/404", null, 1), cache.getGeneration());
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void testPut_invalidatedWhileRendering() throws Exception {
+        final long generation = cache.getGeneration();
+
+        cache.invalidate("/content/a/errors/404/jcr:content");
+        cache.put("a", entry("/content/a/errors/404", null, 1), generation);
+
+        assertNull(cache.get("a"));
+
+        cache.put("a", entry("/content/a/errors/404", null, 1), cache.getGeneration());
+
+        assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void testInvalidate_page() throws Exception {
+        cache.put("a", entry("/content/a/errors/404", null, 1), cache.getGeneration());
+        cache.put("b", entry("/content/b/errors/404", null, 1), cache.getGeneration());
+
+        cache.invalidate("/content/a/errors/404/jcr:content/par");
+
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+    }
+
+    @Test
+    public void testInvalidate_template() throws Exception {
+        cache.put("a", entry("/content/a/errors/404", "/conf/site/settings/wcm/templates/error", 1),
+                cache.getGeneration());
+        cache.put("b", entry("/content/b/errors/404", "/conf/site/settings/wcm/templates/error-other", 1),
+                cache.getGeneration());
+
+        cache.invalidate("/conf/site/settings/wcm/templates/error/structure");
+
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+    }
+
+    @Test
+    public void testInvalidate_ancestor() throws Exception {
+        cache.put("a", entry("/content/a/errors/404", null, 1), cache.getGeneration());
+        cache.put("b", entry("/content/b/errors/404", null, 1), cache.getGeneration());
+
+        cache.invalidate("/content/a");
+
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+    }
+
+    @Test
+    public void testInvalidate_code() throws Exception {
+        cache.put("a", entry("/content/a/errors/404", null, 1), cache.getGeneration());
+        cache.put("b", entry("/content/b/errors/404", null, 1), cache.getGeneration());
+
+        // Components and client libraries render every error page
+        cache.invalidate("/apps/site/components/footer/footer.html");
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testGet_expired() throws Exception {
+        final ErrorPageCache expiring = new ErrorPageCache(2, 10, -1);
+        expiring.put("a", entry("/content/a/errors/404", null, 1), expiring.getGeneration());
+
+        assertNull(expiring.get("a"));
+        assertEquals(0, expiring.size());
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.component.ComponentContext;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.ObservationManager;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares error page resolution via per-request queries against resolution via the error page index, with
+ * 5,000 sites each defining their own error pages.
+ *
+ * Run with: java -cp target/test-classes:&lt;test classpath&gt; org.openjdk.jmh.Main ErrorPageHandlerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ErrorPageHandlerBenchmark {
+    private static final int SITES = 5000;
+
+    @Param({ "false", "true" })
+    public boolean indexEnabled;
+
+    private ErrorPageHandlerImpl errorPageHandler;
+
+    private SlingHttpServletRequest request;
+
+    private Resource errorResource;
+
+    @Setup
+    public void setUp() throws Exception {
+        final Map<String, Resource> resources = new HashMap<String, Resource>();
+        final List<Hit> hits = new ArrayList<Hit>();
+        final List<Node> notFoundNodes = new ArrayList<Node>();
+
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+
+        for (int i = 0; i < SITES; i++) {
+            final String rootPath = "/content/site-" + i;
+            final String errorsPath = rootPath + "/errors";
+
+            final Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put(ErrorPageHandlerImpl.ERROR_PAGE_PROPERTY, errorsPath);
+            final ValueMap valueMap = new ValueMapDecorator(properties);
+
+            final Resource contentResource = mockResource(resourceResolver, resources,
+                    rootPath + "/" + JcrConstants.JCR_CONTENT, "nt:unstructured");
+            when(contentResource.adaptTo(ValueMap.class)).thenReturn(valueMap);
+
+            final Resource root = mockResource(resourceResolver, resources, rootPath, "cq:Page");
+            when(root.getChild(JcrConstants.JCR_CONTENT)).thenReturn(contentResource);
+
+            final Resource errors = mockResource(resourceResolver, resources, errorsPath, "cq:Page");
+            final Resource notFound = mockResource(resourceResolver, resources, errorsPath + "/404", "cq:Page");
+            final Resource serverError = mockResource(resourceResolver, resources, errorsPath + "/500", "cq:Page");
+            mockChildren(errors, notFound, serverError);
+
+            final Hit hit = mock(Hit.class);
+            when(hit.getPath()).thenReturn(rootPath);
+            when(hit.getResource()).thenReturn(root);
+            hits.add(hit);
+
+            final Node node = mock(Node.class);
+            when(node.getPath()).thenReturn(errorsPath + "/404");
+            notFoundNodes.add(node);
+        }
+
+        when(resourceResolver.getResource(anyString())).thenAnswer(new Answer<Resource>() {
+            @Override
+            public Resource answer(final InvocationOnMock invocation) throws Throwable {
+                return resources.get(invocation.getArguments()[0]);
+            }
+        });
+
+        when(resourceResolver.resolve(anyString())).thenAnswer(new Answer<Resource>() {
+            @Override
+            public Resource answer(final InvocationOnMock invocation) throws Throwable {
+                return resources.get(invocation.getArguments()[0]);
+            }
+        });
+
+        final Session session = mock(Session.class);
+        final Workspace workspace = mock(Workspace.class);
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+        when(session.getWorkspace()).thenReturn(workspace);
+        when(workspace.getObservationManager()).thenReturn(mock(ObservationManager.class));
+
+        final SearchResult searchResult = mock(SearchResult.class);
+        when(searchResult.getHits()).thenReturn(hits);
+        when(searchResult.getNodes()).thenAnswer(new Answer<Iterator<Node>>() {
+            @Override
+            public Iterator<Node> answer(final InvocationOnMock invocation) throws Throwable {
+                return notFoundNodes.iterator();
+            }
+        });
+
+        final Query query = mock(Query.class);
+        when(query.getResult()).thenReturn(searchResult);
+
+        final QueryBuilder queryBuilder = mock(QueryBuilder.class);
+        when(queryBuilder.createQuery(any(PredicateGroup.class), any(Session.class))).thenReturn(query);
+
+        final ResourceResolverFactory resourceResolverFactory = mock(ResourceResolverFactory.class);
+        when(resourceResolverFactory.getAdministrativeResourceResolver(null)).thenReturn(resourceResolver);
+
+        errorPageHandler = new ErrorPageHandlerImpl();
+        inject(errorPageHandler, "queryBuilder", queryBuilder);
+        inject(errorPageHandler, "resourceResolverFactory", resourceResolverFactory);
+
+        final Hashtable<String, Object> config = new Hashtable<String, Object>();
+        config.put("prop.index.enabled", indexEnabled);
+
+        final ComponentContext componentContext = mock(ComponentContext.class);
+        when(componentContext.getProperties()).thenReturn(config);
+        errorPageHandler.activate(componentContext);
+
+        request = mock(SlingHttpServletRequest.class);
+        when(request.getAttribute(SlingConstants.ERROR_STATUS)).thenReturn(404);
+
+        errorResource = mockResource(resourceResolver, resources, "/content/site-" + (SITES / 2) + "/page",
+                "cq:Page");
+    }
+
+    @TearDown
+    public void tearDown() {
+        errorPageHandler.deactivate(null);
+    }
+
+    @Benchmark
+    public String findErrorPage() {
+        return errorPageHandler.findErrorPage(request, errorResource);
+    }
+
+    private static Resource mockResource(final ResourceResolver resourceResolver,
+                                         final Map<String, Resource> resources,
+                                         final String path, final String resourceType) {
+        final Resource resource = mock(Resource.class);
+        when(resource.getPath()).thenReturn(path);
+        when(resource.getName()).thenReturn(path.substring(path.lastIndexOf('/') + 1));
+        when(resource.getResourceType()).thenReturn(resourceType);
+        when(resource.getResourceResolver()).thenReturn(resourceResolver);
+        mockChildren(resource);
+
+        resources.put(path, resource);
+        return resource;
+    }
+
+    private static void mockChildren(final Resource resource, final Resource... children) {
+        final List<Resource> list = new ArrayList<Resource>();
+        Collections.addAll(list, children);
+
+        when(resource.listChildren()).thenAnswer(new Answer<Iterator<Resource>>() {
+            @Override
+            public Iterator<Resource> answer(final InvocationOnMock invocation) throws Throwable {
+                return list.iterator();
+            }
+        });
+    }
+
+    private static void inject(final Object target, final String fieldName, final Object value) throws Exception {
+        final Field field = target.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestProgressTracker;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ErrorPageHandlerImplTest {
+    private static final String NL = System.getProperty("line.separator");
+
+    private ErrorPageHandlerImpl errorPageHandler;
+
+    private SlingHttpServletRequest request;
+
+    @Before
+    public void setUp() throws Exception {
+        final Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("prop.enabled", false);
+        properties.put("prop.error-message.max-frames", 3);
+        properties.put("prop.error-message.max-depth", 1);
+        properties.put("prop.request-progress.max-messages", 2);
+
+        final ComponentContext componentContext = mock(ComponentContext.class);
+        when(componentContext.getProperties()).thenReturn(properties);
+
+        errorPageHandler = new ErrorPageHandlerImpl();
+        errorPageHandler.activate(componentContext);
+
+        request = mock(SlingHttpServletRequest.class);
+    }
+
+    @Test
+    public void testGetException_frameLimit() throws Exception {
+        final Exception exception = new IllegalStateException("outer");
+        exception.setStackTrace(frames("a", 5));
+        when(request.getAttribute(SlingConstants.ERROR_EXCEPTION)).thenReturn(exception);
+
+        final String[] lines = errorPageHandler.getException(request).split(NL);
+
+        assertEquals(5, lines.length);
+        assertEquals("java.lang.IllegalStateException: outer", lines[0]);
+        assertEquals("\tat a.Frame.m0(Frame.java:0)", lines[1]);
+        assertEquals("\t... 2 more", lines[4]);
+    }
+
+    @Test
+    public void testGetException_commonFrames() throws Exception {
+        final Exception cause = new RuntimeException("cause");
+        final StackTraceElement[] causeFrames = frames("b", 4);
+        cause.setStackTrace(causeFrames);
+
+        final Exception exception = new IllegalStateException("outer", cause);
+        final StackTraceElement[] outerFrames = frames("a", 2);
+        final StackTraceElement[] combined = new StackTraceElement[4];
+        System.arraycopy(outerFrames, 0, combined, 0, 2);
+        System.arraycopy(causeFrames, 2, combined, 2, 2);
+        exception.setStackTrace(combined);
+
+        when(request.getAttribute(SlingConstants.ERROR_EXCEPTION)).thenReturn(exception);
+
+        final String actual = errorPageHandler.getException(request);
+
+        assertTrue(actual.contains("Caused by: java.lang.RuntimeException: cause" + NL
+                + "\tat b.Frame.m0(Frame.java:0)" + NL
+                + "\tat b.Frame.m1(Frame.java:1)" + NL
+                + "\t... 2 more" + NL));
+    }
+
+    @Test
+    public void testGetException_depthLimit() throws Exception {
+        final Exception exception = new IllegalStateException("outer",
+                new RuntimeException("first", new RuntimeException("second")));
+        when(request.getAttribute(SlingConstants.ERROR_EXCEPTION)).thenReturn(exception);
+
+        final String actual = errorPageHandler.getException(request);
+
+        assertTrue(actual.contains("Caused by: java.lang.RuntimeException: first"));
+        assertFalse(actual.contains("second"));
+        assertTrue(actual.contains("Caused by: ... further causes omitted"));
+    }
+
+    @Test
+    public void testGetException_none() throws Exception {
+        assertEquals("", errorPageHandler.getException(request));
+    }
+
+    @Test
+    public void testGetRequestProgress() throws Exception {
+        final List<String> messages = new ArrayList<String>();
+        messages.add("0 TIMER_START{Request Processing}\n");
+        messages.add("1 COMMENT timer_end format is {<elapsed msec>,<timer name>}\n");
+        messages.add("2 LOG Method=GET\n");
+        messages.add("3 LOG Resource=/content/site\n");
+
+        final RequestProgressTracker tracker = mock(RequestProgressTracker.class);
+        when(tracker.getMessages()).thenReturn(messages.iterator());
+        when(request.getRequestProgressTracker()).thenReturn(tracker);
+
+        assertEquals(messages.get(0) + messages.get(1) + "... 2 more" + NL, errorPageHandler.getRequestProgress(request));
+    }
+
+    @Test
+    public void testGetStormClient() throws Exception {
+        final Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("prop.enabled", false);
+        properties.put("prop.storm.client-header", "X-Forwarded-For");
+
+        final ComponentContext componentContext = mock(ComponentContext.class);
+        when(componentContext.getProperties()).thenReturn(properties);
+        errorPageHandler.activate(componentContext);
+
+        when(request.getRemoteAddr()).thenReturn("10.0.0.1");
+        assertEquals("10.0.0.1", errorPageHandler.getStormClient(request));
+
+        // The leftmost address is set by the client; by default, the rightmost hop is used
+        when(request.getHeader("X-Forwarded-For")).thenReturn("1.1.1.1, 203.0.113.7");
+        assertEquals("203.0.113.7", errorPageHandler.getStormClient(request));
+
+        properties.put("prop.storm.trusted-proxies", 2);
+        errorPageHandler.activate(componentContext);
+
+        when(request.getHeader("X-Forwarded-For")).thenReturn("1.1.1.1, 203.0.113.7, 10.0.0.2");
+        assertEquals("203.0.113.7", errorPageHandler.getStormClient(request));
+
+        when(request.getHeader("X-Forwarded-For")).thenReturn("203.0.113.7");
+        assertEquals("203.0.113.7", errorPageHandler.getStormClient(request));
+    }
+
+    private static StackTraceElement[] frames(final String pkg, final int count) {
+        final StackTraceElement[] frames = new StackTraceElement[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = new StackTraceElement(pkg + ".Frame", "m" + i, "Frame.java", i);
+        }
+        return frames;
+    }
+}
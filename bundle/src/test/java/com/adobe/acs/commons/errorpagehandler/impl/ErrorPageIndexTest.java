@@ -0,0 +1,179 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.ObservationManager;
+import java.io.FileNotFoundException;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ErrorPageIndexTest {
+    private ErrorPageIndex.Snapshot snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        final SortedMap<String, String> errorPagesMap = new TreeMap<String, String>();
+        errorPagesMap.put("/content/site", "/content/site/errors");
+
+        final Map<String, String> pages = new HashMap<String, String>();
+        pages.put("404", "/content/site/errors/404");
+        pages.put("ioexception", "/content/site/errors/ioexception");
+        pages.put("runtimeexception", "/content/site/errors/runtimeexception");
+
+        final Map<String, Map<String, String>> trees = new HashMap<String, Map<String, String>>();
+        trees.put("/content/site/errors", pages);
+
+        pages.put("4xx", "/content/site/errors/4xx");
+        pages.put("500", "/content/site/errors/500");
+
+        final FallbackChains fallbackChains = new FallbackChains(new String[]{ "4xx=4xx", "503=5xx,500" });
+
+        snapshot = new ErrorPageIndex.Snapshot(errorPagesMap, new PathTrie<String>(errorPagesMap), trees,
+                fallbackChains);
+    }
+
+    @Test
+    public void testGetStatusErrorPage() throws Exception {
+        assertEquals("/content/site/errors/404", snapshot.getStatusErrorPage("/content/site/errors", 404));
+        assertEquals("/content/site/errors/4xx", snapshot.getStatusErrorPage("/content/site/errors", 403));
+        assertEquals("/content/site/errors/500", snapshot.getStatusErrorPage("/content/site/errors", 503));
+        assertNull(snapshot.getStatusErrorPage("/content/site/errors", 502));
+        assertNull(snapshot.getStatusErrorPage("/content/site/errors", 302));
+        assertNull(snapshot.getStatusErrorPage("/content/other/errors", 404));
+    }
+
+    @Test
+    public void testGetExceptionErrorPage() throws Exception {
+        assertEquals("/content/site/errors/runtimeexception",
+                snapshot.getExceptionErrorPage("/content/site/errors", RuntimeException.class));
+    }
+
+    @Test
+    public void testGetExceptionErrorPage_superclass() throws Exception {
+        assertEquals("/content/site/errors/runtimeexception",
+                snapshot.getExceptionErrorPage("/content/site/errors", NullPointerException.class));
+        assertEquals("/content/site/errors/ioexception",
+                snapshot.getExceptionErrorPage("/content/site/errors", FileNotFoundException.class));
+    }
+
+    @Test
+    public void testGetExceptionErrorPage_noMatch() throws Exception {
+        assertNull(snapshot.getExceptionErrorPage("/content/site/errors", Error.class));
+        // Memoized misses are still misses
+        assertNull(snapshot.getExceptionErrorPage("/content/site/errors", Error.class));
+        assertNull(snapshot.getExceptionErrorPage("/content/other/errors", RuntimeException.class));
+        assertNull(snapshot.getExceptionErrorPage("/content/site/errors", null));
+    }
+
+    @Test
+    public void testOpen_ObservesBeforeBuilding() throws Exception {
+        final QueryBuilder queryBuilder = mock(QueryBuilder.class);
+        final Query query = mock(Query.class);
+        final SearchResult searchResult = mock(SearchResult.class);
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        final Session session = mock(Session.class);
+        final Workspace workspace = mock(Workspace.class);
+        final ObservationManager observationManager = mock(ObservationManager.class);
+
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+        when(session.getWorkspace()).thenReturn(workspace);
+        when(workspace.getObservationManager()).thenReturn(observationManager);
+        when(queryBuilder.createQuery(any(PredicateGroup.class), any(Session.class))).thenReturn(query);
+        when(query.getResult()).thenReturn(searchResult);
+        when(searchResult.getHits()).thenReturn(Collections.<Hit>emptyList());
+
+        final ErrorPageIndex index = new ErrorPageIndex(queryBuilder, new TreeMap<String, String>(),
+                new FallbackChains(new String[0]));
+        index.open(resourceResolver, new String[]{ "/content" });
+
+        final InOrder inOrder = inOrder(observationManager, queryBuilder);
+        inOrder.verify(observationManager).addEventListener(eq(index), anyInt(), eq("/content"), anyBoolean(),
+                any(String[].class), any(String[].class), anyBoolean());
+        inOrder.verify(queryBuilder).createQuery(any(PredicateGroup.class), any(Session.class));
+
+        assertNotNull(index.getSnapshot());
+    }
+
+    @Test
+    public void testGetExceptionErrorPage_ClassLoaderNotRetained() throws Exception {
+        final URL classes = ErrorPageIndexTest.class.getProtectionDomain().getCodeSource().getLocation();
+        URLClassLoader classLoader = new URLClassLoader(new URL[]{ classes }, null);
+        Class<?> exceptionType = classLoader.loadClass(TestException.class.getName());
+
+        assertTrue(exceptionType != TestException.class);
+        assertEquals("/content/site/errors/runtimeexception",
+                snapshot.getExceptionErrorPage("/content/site/errors", exceptionType));
+
+        final WeakReference<ClassLoader> reference = new WeakReference<ClassLoader>(classLoader);
+        classLoader = null;
+        exceptionType = null;
+
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        // The memoized resolution does not pin the class loader of the exception type
+        assertNull(reference.get());
+    }
+
+    @SuppressWarnings("serial")
+    public static class TestException extends RuntimeException {
+    }
+
+    @Test
+    public void testIsSelfOrDescendant() throws Exception {
+        assertTrue(ErrorPageIndex.isSelfOrDescendant("/content/site", "/content/site"));
+        assertTrue(ErrorPageIndex.isSelfOrDescendant("/content/site/en", "/content/site"));
+        assertFalse(ErrorPageIndex.isSelfOrDescendant("/content/site-other", "/content/site"));
+        assertFalse(ErrorPageIndex.isSelfOrDescendant("/content", "/content/site"));
+    }
+}
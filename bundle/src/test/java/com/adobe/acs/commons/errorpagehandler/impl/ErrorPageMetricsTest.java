@@ -0,0 +1,57 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ErrorPageMetricsTest {
+    @Test
+    public void testRecord() throws Exception {
+        final ErrorPageMetrics metrics = new ErrorPageMetrics();
+
+        metrics.record(404, true, false, 100, 300);
+        metrics.record(404, false, true, 100, 300);
+        metrics.record(500, false, false, 100, 300);
+        metrics.record(999, false, false, 100, 300);
+
+        assertArrayEquals(new String[]{ "404=2", "500=1", "other=1" }, metrics.getStatusCounts());
+        assertEquals(1, metrics.getAuthoredHits());
+        assertEquals(3, metrics.getAuthoredMisses());
+        assertEquals(1, metrics.getSystemHits());
+        assertEquals(2, metrics.getSystemMisses());
+        assertEquals(100, metrics.getQueryTime().getPercentile(50), 100 / 16);
+        assertEquals(200, metrics.getResolutionTime().getPercentile(50), 200 / 16);
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        final ErrorPageMetrics metrics = new ErrorPageMetrics();
+
+        metrics.record(404, true, false, 100, 300);
+        metrics.reset();
+
+        assertEquals(0, metrics.getStatusCounts().length);
+        assertEquals(0, metrics.getAuthoredHits());
+        assertEquals(0, metrics.getTotalTime().getCount());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jcr.observation.ObservationManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+
+public class ExistingAncestorCacheTest {
+    private ExistingAncestorCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new ExistingAncestorCache(2, 60000);
+        cache.open(mock(ObservationManager.class), new String[]{ "/content" });
+    }
+
+    @Test
+    public void testGet_descendant() throws Exception {
+        cache.put("/content/site/a", "/content/site");
+
+        assertEquals("/content/site", cache.get("/content/site/a"));
+        assertEquals("/content/site", cache.get("/content/site/a/b/c/d/e/f.php"));
+        assertNull(cache.get("/content/site/ab"));
+        assertNull(cache.get("/content/site"));
+    }
+
+    @Test
+    public void testPut_notObserved() throws Exception {
+        cache.put("/etc/site/a", "/etc/site");
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testPut_full() throws Exception {
+        cache.put("/content/a/x", "/content/a");
+        cache.put("/content/b/x", "/content/b");
+        cache.get("/content/a/x/y");
+        cache.put("/content/c/x", "/content/c");
+
+        // The least recently used entry is evicted
+        assertEquals(2, cache.size());
+        assertEquals("/content/a", cache.get("/content/a/x"));
+        assertNull(cache.get("/content/b/x"));
+        assertEquals("/content/c", cache.get("/content/c/x"));
+    }
+
+    @Test
+    public void testPut_expired() throws Exception {
+        final ExistingAncestorCache expiring = new ExistingAncestorCache(1, -1);
+        expiring.open(mock(ObservationManager.class), new String[]{ "/content" });
+
+        expiring.put("/content/a/x", "/content/a");
+        assertNull(expiring.get("/content/a/x/y"));
+
+        expiring.put("/content/b/x", "/content/b");
+        assertEquals(1, expiring.size());
+    }
+
+    @Test
+    public void testInvalidateAdded() throws Exception {
+        cache.put("/content/site/a", "/content/site");
+        cache.put("/content/other/a", "/content/other");
+
+        cache.invalidateAdded("/content/site/a");
+
+        assertNull(cache.get("/content/site/a/b"));
+        assertEquals("/content/other", cache.get("/content/other/a/b"));
+    }
+
+    @Test
+    public void testInvalidateAdded_descendant() throws Exception {
+        cache.put("/content/site/a", "/content/site");
+
+        cache.invalidateAdded("/content/site/a/b/c");
+
+        assertNull(cache.get("/content/site/a/b"));
+    }
+
+    @Test
+    public void testInvalidateRemoved() throws Exception {
+        cache.put("/content/site/en/a", "/content/site/en");
+        cache.put("/content/other/a", "/content/other");
+
+        cache.invalidateRemoved("/content/site");
+
+        assertNull(cache.get("/content/site/en/a/b"));
+        assertEquals("/content/other", cache.get("/content/other/a/b"));
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FallbackChainsTest {
+    @Test
+    public void testGetPageNames() throws Exception {
+        final FallbackChains chains = new FallbackChains(new String[]{ "4XX=4xx", "404=4xx, Errors", "503=5xx,500,503", "bad=x" });
+
+        assertArrayEquals(new String[]{ "404", "4xx", "errors" }, chains.getPageNames(404));
+        assertArrayEquals(new String[]{ "403", "4xx" }, chains.getPageNames(403));
+        assertArrayEquals(new String[]{ "503", "5xx", "500" }, chains.getPageNames(503));
+        assertArrayEquals(new String[]{ "500" }, chains.getPageNames(500));
+        assertArrayEquals(new String[]{ "302" }, chains.getPageNames(302));
+    }
+
+    @Test
+    public void testNone() throws Exception {
+        assertArrayEquals(new String[]{ "404" }, FallbackChains.NONE.getPageNames(404));
+    }
+}
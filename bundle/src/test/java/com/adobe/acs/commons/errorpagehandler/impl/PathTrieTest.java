@@ -0,0 +1,123 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PathTrieTest {
+    private PathTrie<String> trie;
+
+    @Before
+    public void setUp() throws Exception {
+        final Map<String, String> map = new LinkedHashMap<String, String>();
+        map.put("/content/site", "/content/site/errors");
+        map.put("/content/site/en", "/content/site/en/errors");
+        map.put("/content/site/en/products/shoes", "/content/site/en/products/shoes/errors");
+        map.put("/content/site-other", "/content/site-other/errors");
+
+        for (int i = 0; i < 5000; i++) {
+            map.put("/content/generated-" + i, "/content/generated-" + i + "/errors");
+        }
+
+        trie = new PathTrie<String>(map);
+    }
+
+    @Test
+    public void testSize() throws Exception {
+        assertEquals(5004, trie.size());
+    }
+
+    @Test
+    public void testFindDeepest_exact() throws Exception {
+        final PathTrie.Match<String> actual = trie.findDeepest("/content/site/en");
+
+        assertEquals("/content/site/en", actual.getPath());
+        assertEquals("/content/site/en/errors", actual.getValue());
+    }
+
+    @Test
+    public void testFindDeepest_descendant() throws Exception {
+        final PathTrie.Match<String> actual = trie.findDeepest("/content/site/en/products/shoes/red/jcr:content");
+
+        assertEquals("/content/site/en/products/shoes", actual.getPath());
+    }
+
+    @Test
+    public void testFindDeepest_partialSegmentDoesNotMatch() throws Exception {
+        final PathTrie.Match<String> actual = trie.findDeepest("/content/site-other2/page");
+
+        assertNull(actual);
+    }
+
+    @Test
+    public void testFindDeepest_siblingPrefix() throws Exception {
+        final PathTrie.Match<String> actual = trie.findDeepest("/content/site-other/page");
+
+        assertEquals("/content/site-other", actual.getPath());
+    }
+
+    @Test
+    public void testFindDeepest_generated() throws Exception {
+        final PathTrie.Match<String> actual = trie.findDeepest("/content/generated-4321/a/b/c.html");
+
+        assertEquals("/content/generated-4321/errors", actual.getValue());
+    }
+
+    @Test
+    public void testFindDeepest_noMatch() throws Exception {
+        assertNull(trie.findDeepest("/etc/designs"));
+        assertNull(trie.findDeepest("/content"));
+        assertNull(trie.findDeepest("/"));
+        assertNull(trie.findDeepest(null));
+    }
+
+    @Test
+    public void testGetNext() throws Exception {
+        final PathTrie.Match<String> deepest = trie.findDeepest("/content/site/en/products/shoes/red");
+
+        assertEquals("/content/site/en/products/shoes", deepest.getPath());
+        assertEquals("/content/site/en", deepest.getNext().getPath());
+        assertEquals("/content/site", deepest.getNext().getNext().getPath());
+        assertNull(deepest.getNext().getNext().getNext());
+    }
+
+    @Test
+    public void testDuplicateSlashes() throws Exception {
+        final PathTrie.Match<String> actual = trie.findDeepest("/content//site/en/");
+
+        assertEquals("/content/site/en", actual.getPath());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        final PathTrie<String> empty = new PathTrie<String>(new LinkedHashMap<String, String>());
+
+        assertTrue(empty.isEmpty());
+        assertNull(empty.findDeepest("/content/site"));
+    }
+}
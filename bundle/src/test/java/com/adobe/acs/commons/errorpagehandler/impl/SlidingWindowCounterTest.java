@@ -0,0 +1,60 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SlidingWindowCounterTest {
+    private static final long NOW = 1000000L;
+
+    @Test
+    public void testIncrement() throws Exception {
+        final SlidingWindowCounter counter = new SlidingWindowCounter(1024, 1000);
+
+        assertEquals(1, counter.increment("10.0.0.1", NOW));
+        assertEquals(2, counter.increment("10.0.0.1", NOW + 50));
+        assertEquals(3, counter.increment("10.0.0.1", NOW + 950));
+        assertEquals(3, counter.count("10.0.0.1", NOW + 950));
+    }
+
+    @Test
+    public void testWindowSlides() throws Exception {
+        final SlidingWindowCounter counter = new SlidingWindowCounter(1024, 1000);
+
+        counter.increment("10.0.0.1", NOW);
+        counter.increment("10.0.0.1", NOW + 500);
+
+        assertEquals(1, counter.count("10.0.0.1", NOW + 1000));
+        assertEquals(0, counter.count("10.0.0.1", NOW + 1500));
+        assertEquals(1, counter.increment("10.0.0.1", NOW + 5000));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        final SlidingWindowCounter counter = new SlidingWindowCounter(1024, 1000);
+
+        counter.increment("10.0.0.1", NOW);
+        counter.reset();
+
+        assertEquals(0, counter.count("10.0.0.1", NOW));
+    }
+}
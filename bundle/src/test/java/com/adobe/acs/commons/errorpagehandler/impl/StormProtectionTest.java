@@ -0,0 +1,69 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StormProtectionTest {
+    @Test
+    public void testRecord_client() throws Exception {
+        final StormProtection protection = new StormProtection(60000, 2, 0);
+
+        assertFalse(protection.record("10.0.0.1", "/content/site"));
+        assertFalse(protection.record("10.0.0.1", "/content/site"));
+        assertTrue(protection.record("10.0.0.1", "/content/site"));
+        assertFalse(protection.record("10.0.0.2", "/content/site"));
+
+        assertTrue(protection.isStorming());
+        assertArrayEquals(new String[]{ "10.0.0.1" }, protection.getStormingClients());
+        assertEquals(0, protection.getStormingContentRoots().length);
+        assertEquals(1, protection.getDegradedCount());
+    }
+
+    @Test
+    public void testRecord_contentRoot() throws Exception {
+        final StormProtection protection = new StormProtection(60000, 0, 2);
+
+        assertFalse(protection.record("10.0.0.1", "/content/site"));
+        assertFalse(protection.record("10.0.0.2", "/content/site"));
+        assertTrue(protection.record("10.0.0.3", "/content/site"));
+        assertFalse(protection.record("10.0.0.4", "/content/other"));
+
+        assertArrayEquals(new String[]{ "/content/site" }, protection.getStormingContentRoots());
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        final StormProtection protection = new StormProtection(60000, 1, 0);
+
+        protection.record("10.0.0.1", "/content/site");
+        assertTrue(protection.record("10.0.0.1", "/content/site"));
+
+        protection.reset();
+
+        assertFalse(protection.isStorming());
+        assertFalse(protection.record("10.0.0.1", "/content/site"));
+    }
+}
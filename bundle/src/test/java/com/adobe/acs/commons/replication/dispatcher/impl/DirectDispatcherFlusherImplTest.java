@@ -0,0 +1,297 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentManager;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationResult;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.adobe.acs.commons.replication.dispatcher.impl.FlushAgentFixtures.mockAgentAt;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DirectDispatcherFlusherImplTest {
+    @Mock
+    private AgentManager agentManager;
+
+    @Mock
+    private FlushJournal flushJournal;
+
+    @InjectMocks
+    private DirectDispatcherFlusherImpl dispatcherFlusher = new DirectDispatcherFlusherImpl();
+
+    private HttpServer server;
+
+    private final ConcurrentLinkedQueue<String> requests = new ConcurrentLinkedQueue<String>();
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicInteger maxActive = new AtomicInteger();
+
+    private volatile int status = 200;
+
+    /* Released to let the dispatcher respond, or null to respond right away */
+    private volatile CountDownLatch release = null;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/dispatcher/invalidate.cache", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final int current = active.incrementAndGet();
+                maxActive.set(Math.max(maxActive.get(), current));
+
+                try {
+                    Thread.sleep(20);
+
+                    if (release != null) {
+                        release.await(5, TimeUnit.SECONDS);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+
+                requests.add(exchange.getRequestMethod() + " "
+                        + exchange.getRequestHeaders().getFirst("CQ-Action") + " "
+                        + exchange.getRequestHeaders().getFirst("CQ-Handle"));
+
+                active.decrementAndGet();
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(10));
+        server.start();
+
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("prop.threads", 10);
+        properties.put("prop.max-connections-per-host", 2);
+
+        dispatcherFlusher.activate(properties);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dispatcherFlusher.deactivate(Collections.<String, Object>emptyMap());
+        server.stop(0);
+    }
+
+    private String getTransportUri() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/dispatcher/invalidate.cache";
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        final Agent agent = mockAgentAt("flush", getTransportUri(), "CQ-Action:{action}", "CQ-Handle:{path}",
+                "CQ-Path:{path}");
+        final Agent resourceOnlyAgent = mockAgentAt("flush-resource-only", getTransportUri(), "CQ-Action:{action}",
+                "CQ-Handle:{path}", "CQ-Action-Scope: ResourceOnly");
+
+        final Map<String, Agent> agents = new LinkedHashMap<String, Agent>();
+        agents.put("flush", agent);
+        agents.put("flush-resource-only", resourceOnlyAgent);
+        when(agentManager.getAgents()).thenReturn(agents);
+
+        final Map<Agent, ReplicationResult> results = dispatcherFlusher.flush(mock(ResourceResolver.class),
+                ReplicationActionType.DELETE, true, DispatcherFlushFilter.HIERARCHICAL,
+                "/content/a", "/content/b", "/content/c", "/content/d", "/content/e", "/content/f");
+
+        assertEquals(1, results.size());
+        assertTrue(results.get(agent).isSuccess());
+        assertEquals(200, results.get(agent).getCode());
+
+        assertEquals(6, requests.size());
+        assertTrue(requests.contains("POST Delete /content/a"));
+        assertTrue(requests.contains("POST Delete /content/f"));
+
+        // Fan out, limited per host
+        assertEquals(2, maxActive.get());
+    }
+
+    @Test
+    public void testFlush_Failure() throws Exception {
+        status = 503;
+
+        final Agent agent = mockAgentAt("flush", getTransportUri(), "CQ-Action:{action}", "CQ-Handle:{path}");
+        when(agentManager.getAgents()).thenReturn(Collections.singletonMap("flush", agent));
+
+        final Map<Agent, ReplicationResult> results = dispatcherFlusher.flush(mock(ResourceResolver.class),
+                ReplicationActionType.ACTIVATE, true, DispatcherFlushFilter.ALL, "/content/a");
+
+        assertFalse(results.get(agent).isSuccess());
+        assertEquals(503, results.get(agent).getCode());
+    }
+
+    @Test
+    public void testInvalidate_ConnectionRefused() throws Exception {
+        final int port = server.getAddress().getPort();
+        server.stop(0);
+
+        final Agent agent = mockAgentAt("flush", "http://127.0.0.1:" + port + "/dispatcher/invalidate.cache",
+                "CQ-Action:{action}", "CQ-Handle:{path}");
+
+        final ReplicationResult result = dispatcherFlusher.invalidate(agent, ReplicationActionType.ACTIVATE,
+                "/content/a");
+
+        assertFalse(result.isSuccess());
+        assertEquals(0, result.getCode());
+    }
+
+    @Test
+    public void testFlush_SlowHost() throws Exception {
+        final CountDownLatch slowRelease = new CountDownLatch(1);
+        final HttpServer slowServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        slowServer.createContext("/dispatcher/invalidate.cache", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    slowRelease.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        slowServer.setExecutor(Executors.newFixedThreadPool(10));
+        slowServer.start();
+
+        try {
+            final Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put("prop.threads", 2);
+            properties.put("prop.max-connections-per-host", 1);
+
+            dispatcherFlusher.deactivate(Collections.<String, Object>emptyMap());
+            dispatcherFlusher.activate(properties);
+
+            final Agent slowAgent = mockAgentAt("flush-slow", "http://127.0.0.1:" + slowServer.getAddress().getPort()
+                    + "/dispatcher/invalidate.cache", "CQ-Action:{action}", "CQ-Handle:{path}");
+            final Agent agent = mockAgentAt("flush", getTransportUri(), "CQ-Action:{action}", "CQ-Handle:{path}");
+
+            when(agentManager.getAgents()).thenReturn(Collections.singletonMap("flush-slow", slowAgent));
+            dispatcherFlusher.flush(mock(ResourceResolver.class), "/content/a", "/content/b", "/content/c");
+
+            when(agentManager.getAgents()).thenReturn(Collections.singletonMap("flush", agent));
+            final long start = System.currentTimeMillis();
+            final Map<Agent, ReplicationResult> results = dispatcherFlusher.flush(mock(ResourceResolver.class),
+                    ReplicationActionType.ACTIVATE, true, "/content/d");
+
+            // Requests queued for the slow dispatcher do not hold up requests to other dispatchers
+            assertTrue(results.get(agent).isSuccess());
+            assertTrue(System.currentTimeMillis() - start < 2000);
+            assertEquals(1, slowRelease.getCount());
+        } finally {
+            slowRelease.countDown();
+            dispatcherFlusher.deactivate(Collections.<String, Object>emptyMap());
+            slowServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testFlush_Asynchronous() throws Exception {
+        final Agent agent = mockAgentAt("flush", getTransportUri(), "CQ-Action:{action}", "CQ-Handle:{path}");
+        when(agentManager.getAgents()).thenReturn(Collections.singletonMap("flush", agent));
+
+        final Map<Agent, ReplicationResult> results = dispatcherFlusher.flush(mock(ResourceResolver.class),
+                "/content/a");
+
+        assertTrue(results.get(agent).isSuccess());
+
+        // Deactivation waits for submitted requests
+        dispatcherFlusher.deactivate(Collections.<String, Object>emptyMap());
+        assertEquals("POST Activate /content/a", requests.peek());
+    }
+
+    @Test
+    public void testFlush_AsynchronousJournal() throws Exception {
+        final Agent agent = mockAgentAt("flush", getTransportUri(), "CQ-Action:{action}", "CQ-Handle:{path}");
+        when(agentManager.getAgents()).thenReturn(Collections.singletonMap("flush", agent));
+
+        release = new CountDownLatch(1);
+
+        final Map<Agent, ReplicationResult> results = dispatcherFlusher.flush(mock(ResourceResolver.class),
+                "/content/a");
+
+        // Submitted requests are held in memory only, so stay pending until delivered
+        assertTrue(results.get(agent) instanceof SubmittedReplicationResult);
+        verify(flushJournal).record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a");
+        verify(flushJournal, never()).done(eq(ReplicationActionType.ACTIVATE), eq(FlushType.Hierarchical), eq("/content/a"),
+                anyLong());
+
+        release.countDown();
+
+        verify(flushJournal, timeout(5000)).done(eq(ReplicationActionType.ACTIVATE), eq(FlushType.Hierarchical),
+                eq("/content/a"), anyLong());
+    }
+
+    @Test
+    public void testFlush_AsynchronousJournalFailure() throws Exception {
+        status = 503;
+
+        final Agent agent = mockAgentAt("flush", getTransportUri(), "CQ-Action:{action}", "CQ-Handle:{path}");
+        when(agentManager.getAgents()).thenReturn(Collections.singletonMap("flush", agent));
+
+        dispatcherFlusher.flush(mock(ResourceResolver.class), "/content/a");
+
+        // Deactivation waits for submitted requests
+        dispatcherFlusher.deactivate(Collections.<String, Object>emptyMap());
+
+        verify(flushJournal).record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a");
+        verify(flushJournal, never()).done(eq(ReplicationActionType.ACTIVATE), eq(FlushType.Hierarchical), eq("/content/a"),
+                anyLong());
+    }
+}
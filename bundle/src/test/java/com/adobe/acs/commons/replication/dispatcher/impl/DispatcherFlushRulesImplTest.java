@@ -22,9 +22,13 @@ package com.adobe.acs.commons.replication.dispatcher.impl;
 
 import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
 import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentFilter;
 import com.day.cq.replication.ReplicationAction;
 import com.day.cq.replication.ReplicationActionType;
 import com.day.cq.replication.ReplicationOptions;
+import com.day.cq.replication.ReplicationResult;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.junit.After;
@@ -35,14 +39,32 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
+import static com.adobe.acs.commons.replication.dispatcher.impl.FlushAgentFixtures.mockAgent;
+import static com.adobe.acs.commons.replication.dispatcher.impl.FlushAgentFixtures.mockAgentAt;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
@@ -61,9 +83,21 @@ public class DispatcherFlushRulesImplTest {
     @Spy
     private Map<Pattern, String> resourceOnlyFlushRules = new LinkedHashMap<Pattern, String>();
 
+    @Spy
+    private List<Pattern> referenceFlushRules = new LinkedList<Pattern>();
+
+    @Mock
+    private ReferenceIndex referenceIndex;
+
     @Mock
     private ResourceResolverFactory resourceResolverFactory;
 
+    @Mock
+    private FlushTelemetry flushTelemetry;
+
+    @Mock
+    private FlushJournal flushJournal;
+
     @InjectMocks
     private DispatcherFlushRulesImpl dispatcherFlushRules = new DispatcherFlushRulesImpl();
 
@@ -77,8 +111,12 @@ public class DispatcherFlushRulesImplTest {
     public void tearDown() throws Exception {
         reset(dispatcherFlusher);
         reset(resourceResolverFactory);
+        reset(flushTelemetry);
+        reset(flushJournal);
         reset(hierarchicalFlushRules);
         reset(resourceOnlyFlushRules);
+        reset(referenceFlushRules);
+        reset(referenceIndex);
     }
 
     @Test
@@ -268,6 +306,166 @@ public class DispatcherFlushRulesImplTest {
         verifyNoMoreInteractions(dispatcherFlusher);
     }
 
+    @Test
+    public void testPreprocess_success_groupReferences() throws Exception {
+        hierarchicalFlushRules.put(Pattern.compile("/content/dam/acs-aem-commons/([^/]+)/.*"),
+                "/content/acs-aem-commons/$1,/content/shared");
+
+        final ReplicationAction replicationAction = mock(ReplicationAction.class);
+        when(replicationAction.getPath()).thenReturn("/content/dam/acs-aem-commons/en/logo.png");
+        when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+
+        final ReplicationOptions replicationOptions = new ReplicationOptions();
+        replicationOptions.setSynchronous(false);
+
+        dispatcherFlushRules.preprocess(replicationAction, replicationOptions);
+
+        verify(dispatcherFlusher, times(1)).flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE),
+                eq(false),
+                any(DispatcherFlushFilter.class),
+                eq("/content/acs-aem-commons/en"));
+        verify(dispatcherFlusher, times(1)).flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE),
+                eq(false),
+                any(DispatcherFlushFilter.class),
+                eq("/content/shared"));
+
+        verifyNoMoreInteractions(dispatcherFlusher);
+    }
+
+    @Test
+    public void testPreprocess_success_references() throws Exception {
+        referenceFlushRules.add(Pattern.compile("/content/dam/.*"));
+
+        when(referenceIndex.isBuilt()).thenReturn(true);
+        when(referenceIndex.getReferencingPages("/content/dam/acs-aem-commons/logo.png")).thenReturn(
+                new TreeSet<String>(Arrays.asList("/content/acs-aem-commons/en", "/content/acs-aem-commons/fr")));
+        mockAgents(new Agent[]{ mockAgentAt("resource-only", "http://dispatcher1/invalidate.cache",
+                "CQ-Action-Scope: ResourceOnly") }, new Agent[]{ mockAgentAt("hierarchical",
+                "http://dispatcher1:80/invalidate.cache") });
+
+        final ReplicationAction replicationAction = mock(ReplicationAction.class);
+        when(replicationAction.getPath()).thenReturn("/content/dam/acs-aem-commons/logo.png");
+        when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+
+        final ReplicationOptions replicationOptions = new ReplicationOptions();
+        replicationOptions.setSynchronous(false);
+
+        final ArgumentCaptor<DispatcherFlushFilter> agentFilterCaptor = ArgumentCaptor.forClass(DispatcherFlushFilter
+                .class);
+
+        dispatcherFlushRules.preprocess(replicationAction, replicationOptions);
+
+        // The pages are flushed as a batch, and only ResourceOnly as the dispatcher has a ResourceOnly Agent
+        verify(dispatcherFlusher, times(1)).flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE),
+                eq(false),
+                agentFilterCaptor.capture(),
+                eq(new LinkedHashSet<String>(Arrays.asList("/content/acs-aem-commons/en",
+                        "/content/acs-aem-commons/fr"))));
+        verify(dispatcherFlusher, times(1)).flush(any(ResourceResolver.class), any(ReplicationActionType.class),
+                eq(false), any(AgentFilter.class), anyCollectionOf(String.class));
+
+        assertEquals(DispatcherFlushFilter.FlushType.ResourceOnly, agentFilterCaptor.getValue().getFlushType());
+    }
+
+    @Test
+    public void testPreprocess_success_referencesHierarchical() throws Exception {
+        referenceFlushRules.add(Pattern.compile("/content/dam/.*"));
+
+        when(referenceIndex.isBuilt()).thenReturn(true);
+        when(referenceIndex.getReferencingPages("/content/dam/acs-aem-commons/logo.png")).thenReturn(
+                new TreeSet<String>(Arrays.asList("/content/acs-aem-commons/en")));
+        mockAgents(new Agent[0], new Agent[]{ mockAgent("hierarchical") });
+
+        final ReplicationAction replicationAction = mock(ReplicationAction.class);
+        when(replicationAction.getPath()).thenReturn("/content/dam/acs-aem-commons/logo.png");
+        when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+
+        final ArgumentCaptor<DispatcherFlushFilter> agentFilterCaptor = ArgumentCaptor.forClass(DispatcherFlushFilter
+                .class);
+
+        dispatcherFlushRules.preprocess(replicationAction, new ReplicationOptions());
+
+        verify(dispatcherFlusher, times(1)).flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE),
+                eq(false),
+                agentFilterCaptor.capture(),
+                eq(Collections.singleton("/content/acs-aem-commons/en")));
+
+        // No ResourceOnly Dispatcher Flush Agents are enabled
+        assertEquals(DispatcherFlushFilter.FlushType.Hierarchical, agentFilterCaptor.getValue().getFlushType());
+    }
+
+    @Test
+    public void testPreprocess_success_referencesPerDispatcher() throws Exception {
+        referenceFlushRules.add(Pattern.compile("/content/dam/.*"));
+
+        final Agent resourceOnly = mockAgentAt("resource-only", "http://dispatcher1/invalidate.cache",
+                "CQ-Action:{action}", "CQ-Handle:{path}", "CQ-Action-Scope: ResourceOnly");
+        final Agent covered = mockAgentAt("covered", "http://dispatcher1/invalidate.cache", "CQ-Action:{action}",
+                "CQ-Handle:{path}");
+        final Agent uncovered = mockAgentAt("uncovered", "http://dispatcher2/invalidate.cache", "CQ-Action:{action}",
+                "CQ-Handle:{path}");
+
+        when(referenceIndex.isBuilt()).thenReturn(true);
+        when(referenceIndex.getReferencingPages("/content/dam/acs-aem-commons/logo.png")).thenReturn(
+                new TreeSet<String>(Arrays.asList("/content/acs-aem-commons/en")));
+        mockAgents(new Agent[]{ resourceOnly }, new Agent[]{ covered, uncovered });
+
+        final ReplicationAction replicationAction = mock(ReplicationAction.class);
+        when(replicationAction.getPath()).thenReturn("/content/dam/acs-aem-commons/logo.png");
+        when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+
+        final ArgumentCaptor<AgentFilter> agentFilterCaptor = ArgumentCaptor.forClass(AgentFilter.class);
+
+        dispatcherFlushRules.preprocess(replicationAction, new ReplicationOptions());
+
+        verify(dispatcherFlusher, times(2)).flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE),
+                eq(false),
+                agentFilterCaptor.capture(),
+                eq(Collections.singleton("/content/acs-aem-commons/en")));
+
+        // Only the dispatcher without a ResourceOnly Agent is flushed hierarchically
+        final AgentFilter hierarchicalFilter = agentFilterCaptor.getAllValues().get(0);
+        assertTrue(hierarchicalFilter.isIncluded(uncovered));
+        assertFalse(hierarchicalFilter.isIncluded(covered));
+        assertFalse(hierarchicalFilter.isIncluded(resourceOnly));
+
+        final AgentFilter resourceOnlyFilter = agentFilterCaptor.getAllValues().get(1);
+        assertTrue(resourceOnlyFilter.isIncluded(resourceOnly));
+        assertFalse(resourceOnlyFilter.isIncluded(covered));
+    }
+
+    /**
+     * Mocks the Dispatcher Flush Agents the DispatcherFlusher includes per flush type.
+     *
+     * @param resourceOnlyAgents the ResourceOnly Dispatcher Flush Agents
+     * @param hierarchicalAgents the hierarchical Dispatcher Flush Agents
+     */
+    private void mockAgents(final Agent[] resourceOnlyAgents, final Agent[] hierarchicalAgents) {
+        when(dispatcherFlusher.getAgents(any(AgentFilter.class))).thenAnswer(new Answer<Agent[]>() {
+            @Override
+            public Agent[] answer(final InvocationOnMock invocation) {
+                final DispatcherFlushFilter filter = (DispatcherFlushFilter) invocation.getArguments()[0];
+                return FlushType.ResourceOnly.equals(filter.getFlushType()) ? resourceOnlyAgents
+                        : hierarchicalAgents;
+            }
+        });
+    }
+
+    @Test
+    public void testPreprocess_notMatches_referenceIndexNotBuilt() throws Exception {
+        referenceFlushRules.add(Pattern.compile("/content/dam/.*"));
+
+        when(referenceIndex.isBuilt()).thenReturn(false);
+
+        final ReplicationAction replicationAction = mock(ReplicationAction.class);
+        when(replicationAction.getPath()).thenReturn("/content/dam/acs-aem-commons/logo.png");
+        when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+
+        dispatcherFlushRules.preprocess(replicationAction, new ReplicationOptions());
+
+        verifyZeroInteractions(dispatcherFlusher);
+    }
+
     @Test
     public void testPreprocess_success_resourceOnly() throws Exception {
         resourceOnlyFlushRules.put(Pattern.compile("/content/acs-aem-commons/.*"), "/content/target");
@@ -334,4 +532,217 @@ public class DispatcherFlushRulesImplTest {
 
         verifyNoMoreInteractions(dispatcherFlusher);
     }
+
+    @Test
+    public void testPreprocess_success_coalesced() throws Exception {
+        final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("prop.rules.hierarchical", new String[]{ "/content/site/.*=/content/site",
+                "/content/site/en/.*=/content/site/en" });
+        properties.put("prop.coalesce.window", 60000L);
+
+        dispatcherFlushRules.activate((Map) properties);
+
+        final ReplicationOptions replicationOptions = new ReplicationOptions();
+        replicationOptions.setFilter(new DispatcherFlushFilter());
+
+        for (int i = 0; i < 100; i++) {
+            final ReplicationAction replicationAction = mock(ReplicationAction.class);
+            when(replicationAction.getPath()).thenReturn("/content/site/en/page-" + i);
+            when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+
+            dispatcherFlushRules.preprocess(replicationAction, replicationOptions);
+        }
+
+        verifyZeroInteractions(dispatcherFlusher);
+
+        // Pending flushes are issued on deactivation
+        dispatcherFlushRules.deactivate((Map) properties);
+
+        verify(dispatcherFlusher, times(1)).flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE),
+                eq(false),
+                any(DispatcherFlushFilter.class),
+                eq("/content/site"));
+
+        verifyNoMoreInteractions(dispatcherFlusher);
+    }
+
+    @Test
+    public void testPreprocess_success_async() throws Exception {
+        final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("prop.rules.hierarchical", new String[]{ "/content/site/.*=/content/site" });
+        properties.put("prop.rules.resource-only", new String[]{ "/content/site/.*=/content/site/nav" });
+        properties.put("prop.async.enabled", true);
+        properties.put("prop.async.queue-size", 1);
+
+        dispatcherFlushRules.activate((Map) properties);
+
+        final ReplicationOptions replicationOptions = new ReplicationOptions();
+        replicationOptions.setFilter(new DispatcherFlushFilter());
+
+        for (int i = 0; i < 10; i++) {
+            final ReplicationAction replicationAction = mock(ReplicationAction.class);
+            when(replicationAction.getPath()).thenReturn("/content/site/page-" + i);
+            when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+
+            dispatcherFlushRules.preprocess(replicationAction, replicationOptions);
+        }
+
+        // Queued flushes are issued on deactivation
+        dispatcherFlushRules.deactivate((Map) properties);
+
+        verify(dispatcherFlusher, times(10)).flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE),
+                eq(false),
+                any(DispatcherFlushFilter.class),
+                eq("/content/site"));
+
+        verify(dispatcherFlusher, times(10)).flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE),
+                eq(false),
+                any(DispatcherFlushFilter.class),
+                eq("/content/site/nav"));
+
+        verifyNoMoreInteractions(dispatcherFlusher);
+    }
+
+    @Test
+    public void testPreprocess_async_whileDeactivating() throws Exception {
+        final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("prop.rules.hierarchical", new String[]{ "/content/site/(.*)=/content/site/$1" });
+        properties.put("prop.async.enabled", true);
+
+        dispatcherFlushRules.activate((Map) properties);
+
+        final ReplicationOptions replicationOptions = new ReplicationOptions();
+        replicationOptions.setFilter(new DispatcherFlushFilter());
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final Thread deactivation = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatcherFlushRules.deactivate((Map) properties);
+            }
+        });
+
+        // Once deactivation awaits the first flush, another replication is preprocessed
+        when(dispatcherFlusher.flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE), eq(false),
+                any(DispatcherFlushFilter.class), eq("/content/site/first"))).thenAnswer(
+                new Answer<Map<Agent, ReplicationResult>>() {
+                    @Override
+                    public Map<Agent, ReplicationResult> answer(final InvocationOnMock invocation) throws Throwable {
+                        deactivation.start();
+                        started.countDown();
+
+                        while (deactivation.getState() != Thread.State.TIMED_WAITING) {
+                            Thread.sleep(1);
+                        }
+
+                        dispatcherFlushRules.preprocess(mockReplicationAction("/content/site/second"),
+                                replicationOptions);
+                        return Collections.emptyMap();
+                    }
+                });
+
+        dispatcherFlushRules.preprocess(mockReplicationAction("/content/site/first"), replicationOptions);
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        deactivation.join(10000);
+
+        // Flushes preprocessed while deactivating are not discarded
+        verify(dispatcherFlusher, times(1)).flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE),
+                eq(false),
+                any(DispatcherFlushFilter.class),
+                eq("/content/site/second"));
+    }
+
+    private static ReplicationAction mockReplicationAction(final String path) {
+        final ReplicationAction replicationAction = mock(ReplicationAction.class);
+        when(replicationAction.getPath()).thenReturn(path);
+        when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+        return replicationAction;
+    }
+
+    @Test
+    public void testPreprocess_notMatches_noResourceResolver() throws Exception {
+        hierarchicalFlushRules.put(Pattern.compile("/content/site/.*"), "/content/site");
+
+        final ReplicationAction replicationAction = mock(ReplicationAction.class);
+        when(replicationAction.getPath()).thenReturn("/content/other/page");
+        when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+
+        final ReplicationOptions replicationOptions = new ReplicationOptions();
+        replicationOptions.setFilter(new DispatcherFlushFilter());
+
+        dispatcherFlushRules.preprocess(replicationAction, replicationOptions);
+
+        verifyZeroInteractions(resourceResolverFactory);
+        verifyZeroInteractions(dispatcherFlusher);
+    }
+
+    @Test
+    public void testPreprocess_success_telemetry() throws Exception {
+        hierarchicalFlushRules.put(Pattern.compile("/content/site/.*"), "/content/site");
+
+        final ReplicationAction replicationAction = mock(ReplicationAction.class);
+        when(replicationAction.getPath()).thenReturn("/content/site/page");
+        when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+
+        final ReplicationOptions replicationOptions = new ReplicationOptions();
+        replicationOptions.setFilter(new DispatcherFlushFilter());
+
+        dispatcherFlushRules.preprocess(replicationAction, replicationOptions);
+
+        verify(flushTelemetry, times(1)).recordRuleFlush(eq("/content/site/.*"), eq(ReplicationActionType.ACTIVATE),
+                eq("/content/site/page"), eq("/content/site"), anyString(), anyLong(), eq(true));
+        verifyNoMoreInteractions(flushTelemetry);
+    }
+
+    @Test
+    public void testPreprocess_coalesced_telemetry() throws Exception {
+        final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("prop.rules.hierarchical", new String[]{ "/content/site/.*=/content/site" });
+        properties.put("prop.coalesce.window", 60000L);
+
+        dispatcherFlushRules.activate((Map) properties);
+
+        final ReplicationAction replicationAction = mock(ReplicationAction.class);
+        when(replicationAction.getPath()).thenReturn("/content/site/page");
+        when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+
+        final ReplicationOptions replicationOptions = new ReplicationOptions();
+        replicationOptions.setFilter(new DispatcherFlushFilter());
+
+        dispatcherFlushRules.preprocess(replicationAction, replicationOptions);
+
+        // Queued flushes are recorded without a duration or agents
+        verify(flushTelemetry, times(1)).recordRuleFlush(eq("/content/site/.*"), eq(ReplicationActionType.ACTIVATE),
+                eq("/content/site/page"), eq("/content/site"), (String) isNull(), eq(-1L), eq(true));
+
+        dispatcherFlushRules.deactivate((Map) properties);
+    }
+
+    @Test
+    public void testPreprocess_success_journal() throws Exception {
+        hierarchicalFlushRules.put(Pattern.compile("/content/site/.*"), "/content/site");
+        resourceOnlyFlushRules.put(Pattern.compile("/content/site/.*"), "/content/site-index");
+
+        when(dispatcherFlusher.flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE), eq(false),
+                any(AgentFilter.class), eq("/content/site-index"))).thenReturn(Collections.singletonMap(
+                mock(Agent.class), new ReplicationResult(false, 500, "Internal Server Error")));
+
+        final ReplicationAction replicationAction = mock(ReplicationAction.class);
+        when(replicationAction.getPath()).thenReturn("/content/site/page");
+        when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+
+        final ReplicationOptions replicationOptions = new ReplicationOptions();
+        replicationOptions.setFilter(new DispatcherFlushFilter());
+
+        dispatcherFlushRules.preprocess(replicationAction, replicationOptions);
+
+        verify(flushJournal, times(1)).record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical,
+                "/content/site");
+        verify(flushJournal, times(1)).record(ReplicationActionType.ACTIVATE, FlushType.ResourceOnly,
+                "/content/site-index");
+
+        // The DispatcherFlusher marks flushes done once it knows they were delivered
+        verifyNoMoreInteractions(flushJournal);
+    }
 }
@@ -20,14 +20,23 @@
 
 package com.adobe.acs.commons.replication.dispatcher.impl;
 
-import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
 import com.day.cq.replication.Agent;
 import com.day.cq.replication.AgentConfig;
+import com.day.cq.replication.AgentFilter;
 import com.day.cq.replication.AgentManager;
+import com.day.cq.replication.ReplicationAction;
 import com.day.cq.replication.ReplicationActionType;
 import com.day.cq.replication.ReplicationOptions;
+import com.day.cq.replication.ReplicationQueue;
+import com.day.cq.replication.ReplicationResult;
 import com.day.cq.replication.Replicator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.junit.After;
 import org.junit.Before;
@@ -35,21 +44,34 @@ import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import javax.jcr.Session;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import static com.adobe.acs.commons.replication.dispatcher.impl.FlushAgentFixtures.mockAgent;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 public class DispatcherFlusherImplTest {
@@ -59,8 +81,14 @@ public class DispatcherFlusherImplTest {
     @Mock
     private AgentManager agentManager;
 
+    @Mock
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @Mock
+    private FlushJournal flushJournal;
+
     @InjectMocks
-    private DispatcherFlusher dispatcherFlusher = new DispatcherFlusherImpl();
+    private DispatcherFlusherImpl dispatcherFlusher = new DispatcherFlusherImpl();
 
     @Before
     public void setUp() throws Exception {
@@ -71,6 +99,8 @@ public class DispatcherFlusherImplTest {
     public void tearDown() throws Exception {
         reset(replicator);
         reset(agentManager);
+        reset(resourceResolverFactory);
+        reset(flushJournal);
     }
 
     @Test
@@ -165,4 +195,256 @@ public class DispatcherFlusherImplTest {
 
         assertEquals("Agent 1", actual[0].getId());
     }
+
+    @Test
+    public void testFlush_circuitBreaker() throws Exception {
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        final Session session = mock(Session.class);
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+        when(resourceResolverFactory.getAdministrativeResourceResolver(null)).thenReturn(resourceResolver);
+
+        final Agent agent = mock(Agent.class);
+        final AgentConfig agentConfig = mock(AgentConfig.class);
+        final ReplicationQueue queue = mock(ReplicationQueue.class);
+
+        final Map<String, Agent> agents = mock(Map.class);
+        when(agentManager.getAgents()).thenReturn(agents);
+        when(agents.values()).thenReturn(Arrays.asList(new Agent[]{ agent }));
+
+        when(agent.getId()).thenReturn("Agent 1");
+        when(agent.isEnabled()).thenReturn(true);
+        when(agent.getConfiguration()).thenReturn(agentConfig);
+        when(agent.getQueue()).thenReturn(queue);
+        when(agentConfig.getSerializationType()).thenReturn("flush");
+        when(agentConfig.getTransportURI()).thenReturn("http://localhost/dispatcher/invalidate.cache");
+
+        final Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put(AgentConfig.PROTOCOL_HTTP_HEADERS, new String[] {"CQ-Action:{action}", "CQ-Handle:{path}"});
+        when(agentConfig.getProperties()).thenReturn(new ValueMapDecorator(headers));
+
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("prop.circuit-breaker.failure-threshold", 3);
+        properties.put("prop.circuit-breaker.open-time", 60000L);
+        dispatcherFlusher.activate(properties);
+
+        // The agent's queue is blocked; flushes are parked rather than queued
+        when(queue.isBlocked()).thenReturn(true);
+
+        dispatcherFlusher.flush(resourceResolver, "/content/foo", "/content/foo/bar", "/content/baz");
+
+        verifyZeroInteractions(replicator);
+
+        // Parked flushes are re-flushed, collapsed, on deactivation
+        dispatcherFlusher.deactivate(properties);
+
+        verify(replicator, times(1)).replicate(eq(session), eq(ReplicationActionType.ACTIVATE), eq("/content/foo"),
+                any(ReplicationOptions.class));
+        verify(replicator, times(1)).replicate(eq(session), eq(ReplicationActionType.ACTIVATE), eq("/content/baz"),
+                any(ReplicationOptions.class));
+        verifyNoMoreInteractions(replicator);
+    }
+
+    @Test
+    public void testFlush_batch() throws Exception {
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        final Session session = mock(Session.class);
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+
+        final Agent agent = mock(Agent.class);
+        final AgentConfig agentConfig = mock(AgentConfig.class);
+
+        final Map<String, Agent> agents = mock(Map.class);
+        when(agentManager.getAgents()).thenReturn(agents);
+        when(agents.values()).thenReturn(Arrays.asList(new Agent[]{ agent }));
+
+        when(agent.getId()).thenReturn("Agent 1");
+        when(agent.isEnabled()).thenReturn(true);
+        when(agent.getConfiguration()).thenReturn(agentConfig);
+        when(agentConfig.getSerializationType()).thenReturn("flush");
+        when(agentConfig.getTransportURI()).thenReturn("http://localhost/dispatcher/invalidate.cache");
+
+        final Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put(AgentConfig.PROTOCOL_HTTP_HEADERS, new String[] {"CQ-Action:{action}", "CQ-Handle:{path}"});
+        when(agentConfig.getProperties()).thenReturn(new ValueMapDecorator(headers));
+
+        final Map<String, Map<Agent, ReplicationResult>> results = dispatcherFlusher.flush(resourceResolver,
+                ReplicationActionType.ACTIVATE, false, DispatcherFlushFilter.HIERARCHICAL,
+                Arrays.asList("/content/foo/bar", "/content/foo", "/content/baz", "/content/foo/bar"));
+
+        // One replication per distinct, collapsed path
+        verify(replicator, times(1)).replicate(eq(session), eq(ReplicationActionType.ACTIVATE), eq("/content/foo"),
+                any(ReplicationOptions.class));
+        verify(replicator, times(1)).replicate(eq(session), eq(ReplicationActionType.ACTIVATE), eq("/content/baz"),
+                any(ReplicationOptions.class));
+        verifyNoMoreInteractions(replicator);
+
+        assertEquals(3, results.size());
+    }
+
+    @Test
+    public void testFlush_journal() throws Exception {
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        final Session session = mock(Session.class);
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+
+        final Agent agent = mockFlushAgent(mock(ReplicationQueue.class));
+
+        // Flushes of /content/bar fail
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) throws Throwable {
+                final String path = (String) invocation.getArguments()[2];
+                final ReplicationOptions options = (ReplicationOptions) invocation.getArguments()[3];
+
+                options.getListener().onEnd(agent, new ReplicationAction(ReplicationActionType.ACTIVATE, path),
+                        new ReplicationResult(!"/content/bar".equals(path), 200, "OK"));
+                return null;
+            }
+        }).when(replicator).replicate(eq(session), eq(ReplicationActionType.ACTIVATE), any(String.class),
+                any(ReplicationOptions.class));
+
+        dispatcherFlusher.flush(resourceResolver, "/content/foo");
+        dispatcherFlusher.flush(resourceResolver, "/content/bar");
+
+        verify(flushJournal, times(1)).record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical,
+                "/content/foo");
+        verify(flushJournal, times(1)).done(eq(ReplicationActionType.ACTIVATE), eq(FlushType.Hierarchical),
+                eq("/content/foo"), anyLong());
+        verify(flushJournal, times(1)).record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical,
+                "/content/bar");
+        verify(flushJournal, never()).done(eq(ReplicationActionType.ACTIVATE), eq(FlushType.Hierarchical),
+                eq("/content/bar"), anyLong());
+
+        // Flushes with other agent filters cannot be re-issued, so are not journaled
+        dispatcherFlusher.flush(resourceResolver, ReplicationActionType.ACTIVATE, false, new AgentFilter() {
+            @Override
+            public boolean isIncluded(final Agent agent) {
+                return true;
+            }
+        }, "/content/baz");
+
+        verifyNoMoreInteractions(flushJournal);
+    }
+
+    @Test
+    public void testFlush_journalParked() throws Exception {
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        final Session session = mock(Session.class);
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+
+        final ReplicationQueue queue = mock(ReplicationQueue.class);
+        final Agent agent = mockFlushAgent(queue);
+
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("prop.circuit-breaker.failure-threshold", 3);
+        properties.put("prop.circuit-breaker.open-time", 60000L);
+        dispatcherFlusher.activate(properties);
+
+        // The agent's queue is blocked; flushes are parked in memory, so stay pending
+        when(queue.isBlocked()).thenReturn(true);
+
+        dispatcherFlusher.flush(resourceResolver, ReplicationActionType.ACTIVATE, false,
+                DispatcherFlushFilter.HIERARCHICAL, Arrays.asList("/content/foo", "/content/bar"));
+        dispatcherFlusher.flush(resourceResolver, "/content/baz");
+
+        verifyZeroInteractions(replicator);
+        verify(flushJournal, times(1)).record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical,
+                "/content/foo");
+        verify(flushJournal, times(1)).record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical,
+                "/content/bar");
+        verify(flushJournal, times(1)).record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical,
+                "/content/baz");
+        verifyNoMoreInteractions(flushJournal);
+
+        when(resourceResolverFactory.getAdministrativeResourceResolver(null)).thenReturn(resourceResolver);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) throws Throwable {
+                final String path = (String) invocation.getArguments()[2];
+                final ReplicationOptions options = (ReplicationOptions) invocation.getArguments()[3];
+
+                options.getListener().onEnd(agent, new ReplicationAction(ReplicationActionType.ACTIVATE, path),
+                        new ReplicationResult(true, 200, "OK"));
+                return null;
+            }
+        }).when(replicator).replicate(eq(session), eq(ReplicationActionType.ACTIVATE), any(String.class),
+                any(ReplicationOptions.class));
+
+        // Parked flushes delivered on deactivation are done
+        dispatcherFlusher.deactivate(properties);
+
+        verify(flushJournal, times(1)).done(eq(ReplicationActionType.ACTIVATE), eq(FlushType.Hierarchical),
+                eq("/content/foo"), anyLong());
+        verify(flushJournal, times(1)).done(eq(ReplicationActionType.ACTIVATE), eq(FlushType.Hierarchical),
+                eq("/content/bar"), anyLong());
+        verify(flushJournal, times(1)).done(eq(ReplicationActionType.ACTIVATE), eq(FlushType.Hierarchical),
+                eq("/content/baz"), anyLong());
+    }
+
+    @Test
+    public void testFlush_rewarmSynchronousOnly() throws Exception {
+        final BlockingQueue<String> rewarms = new LinkedBlockingQueue<String>();
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                rewarms.add(exchange.getRequestURI().getPath());
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        final Session session = mock(Session.class);
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+
+        final Agent agent = mockFlushAgent(mock(ReplicationQueue.class));
+
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) throws Throwable {
+                final String path = (String) invocation.getArguments()[2];
+                final ReplicationOptions options = (ReplicationOptions) invocation.getArguments()[3];
+
+                options.getListener().onEnd(agent, new ReplicationAction(ReplicationActionType.ACTIVATE, path),
+                        new ReplicationResult(true, 200, "OK"));
+                return null;
+            }
+        }).when(replicator).replicate(eq(session), eq(ReplicationActionType.ACTIVATE), any(String.class),
+                any(ReplicationOptions.class));
+
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("prop.rewarm.enabled", true);
+        properties.put("prop.rewarm.threads", 1);
+        properties.put("prop.rewarm.hosts", new String[]{ "Agent 1=http://127.0.0.1:"
+                + server.getAddress().getPort() });
+        dispatcherFlusher.activate(properties);
+
+        try {
+            // Asynchronous flushes succeed once queued, before the dispatcher is invalidated
+            dispatcherFlusher.flush(resourceResolver, ReplicationActionType.ACTIVATE, false, "/content/queued");
+            // Assets are not re-warmed by default
+            dispatcherFlusher.flush(resourceResolver, ReplicationActionType.ACTIVATE, true,
+                    "/content/dam/site/logo.png");
+            dispatcherFlusher.flush(resourceResolver, ReplicationActionType.ACTIVATE, true, "/content/flushed");
+
+            assertEquals("/content/flushed.html", rewarms.poll(5, TimeUnit.SECONDS));
+            assertNull(rewarms.poll(100, TimeUnit.MILLISECONDS));
+        } finally {
+            dispatcherFlusher.deactivate(properties);
+            server.stop(0);
+        }
+    }
+
+    private Agent mockFlushAgent(final ReplicationQueue queue) {
+        final Agent agent = mockAgent("Agent 1", "CQ-Action:{action}", "CQ-Handle:{path}");
+        when(agent.getQueue()).thenReturn(queue);
+
+        final Map<String, Agent> agents = mock(Map.class);
+        when(agentManager.getAgents()).thenReturn(agents);
+        when(agents.values()).thenReturn(Arrays.asList(new Agent[]{ agent }));
+
+        return agent;
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentConfig;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Mock replication agents shared by the Dispatcher Flush tests.
+ */
+final class FlushAgentFixtures {
+    static final String TRANSPORT_URI = "http://localhost:80/dispatcher/invalidate.cache";
+
+    private FlushAgentFixtures() {
+    }
+
+    /**
+     * @param id the agent id
+     * @param headers the HTTP headers of the agent, ex. CQ-Action-Scope: ResourceOnly
+     * @return an enabled Dispatcher Flush agent
+     */
+    static Agent mockAgent(final String id, final String... headers) {
+        return mockAgentAt(id, TRANSPORT_URI, headers);
+    }
+
+    /**
+     * @param id the agent id
+     * @param transportUri the transport URI of the agent
+     * @param headers the HTTP headers of the agent
+     * @return an enabled Dispatcher Flush agent
+     */
+    static Agent mockAgentAt(final String id, final String transportUri, final String... headers) {
+        return mockAgent(id, "flush", true, transportUri, headers);
+    }
+
+    /**
+     * @param id the agent id
+     * @param serializationType the serialization type; flush for Dispatcher Flush agents
+     * @param enabled true if the agent is enabled
+     * @param transportUri the transport URI of the agent
+     * @param headers the HTTP headers of the agent
+     * @return the agent
+     */
+    static Agent mockAgent(final String id, final String serializationType, final boolean enabled,
+                           final String transportUri, final String... headers) {
+        final Agent agent = mock(Agent.class);
+        final AgentConfig config = mock(AgentConfig.class);
+
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(AgentConfig.PROTOCOL_HTTP_HEADERS, headers);
+
+        when(agent.getId()).thenReturn(id);
+        when(agent.isEnabled()).thenReturn(enabled);
+        when(agent.getConfiguration()).thenReturn(config);
+        when(config.getSerializationType()).thenReturn(serializationType);
+        when(config.getTransportURI()).thenReturn(transportUri);
+        when(config.getProperties()).thenReturn(new ValueMapDecorator(properties));
+
+        return agent;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentConfig;
+import com.day.cq.replication.AgentFilter;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.adobe.acs.commons.replication.dispatcher.impl.FlushAgentFixtures.TRANSPORT_URI;
+import static com.adobe.acs.commons.replication.dispatcher.impl.FlushAgentFixtures.mockAgent;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FlushAgentSnapshotTest {
+
+    @Test
+    public void testGetAgents() throws Exception {
+        final Agent hierarchical = mockAgent("hierarchical", "CQ-Action:{action}", "CQ-Handle:{path}");
+        final Agent resourceOnly = mockAgent("resourceOnly", "CQ-Action:{action}", "CQ-Handle:{path}",
+                "CQ-Action-Scope: ResourceOnly");
+        final Agent disabled = mockAgent("disabled", "flush", false, TRANSPORT_URI, "CQ-Action:{action}",
+                "CQ-Handle:{path}");
+        final Agent publish = mockAgent("publish", "durbo", true, TRANSPORT_URI);
+
+        final FlushAgentSnapshot snapshot = new FlushAgentSnapshot(Arrays.asList(publish, resourceOnly,
+                hierarchical, disabled));
+
+        assertArrayEquals(new Agent[]{ resourceOnly, hierarchical }, snapshot.getAgents(FlushType.All));
+        assertArrayEquals(new Agent[]{ hierarchical }, snapshot.getAgents(FlushType.Hierarchical));
+        assertArrayEquals(new Agent[]{ resourceOnly }, snapshot.getAgents(FlushType.ResourceOnly));
+        assertArrayEquals(new Agent[]{ publish, disabled }, snapshot.getOthers());
+        assertEquals(0, snapshot.getAgents(null).length);
+    }
+
+    @Test
+    public void testIsCurrent() throws Exception {
+        final Agent hierarchical = mockAgent("hierarchical", "CQ-Action:{action}", "CQ-Handle:{path}");
+        final Agent publish = mockAgent("publish", "durbo", true, TRANSPORT_URI);
+
+        final Collection<Agent> agents = Arrays.asList(hierarchical, publish);
+        final FlushAgentSnapshot snapshot = new FlushAgentSnapshot(agents);
+
+        assertTrue(snapshot.isCurrent(agents));
+        assertFalse(snapshot.isCurrent(Arrays.asList(publish, hierarchical)));
+        assertFalse(snapshot.isCurrent(Arrays.asList(hierarchical)));
+
+        // Reconfigured
+        when(hierarchical.getConfiguration()).thenReturn(mock(AgentConfig.class));
+        assertFalse(snapshot.isCurrent(agents));
+
+        // Disabled
+        final FlushAgentSnapshot reconfigured = new FlushAgentSnapshot(agents);
+        when(publish.isEnabled()).thenReturn(false);
+        assertFalse(reconfigured.isCurrent(agents));
+    }
+
+    @Test
+    public void testGetAgents_Filter() throws Exception {
+        final Agent hierarchical = mockAgent("hierarchical", "CQ-Action:{action}", "CQ-Handle:{path}");
+        final Agent publish = mockAgent("publish", "durbo", true, TRANSPORT_URI);
+
+        final Collection<Agent> agents = Arrays.asList(hierarchical, publish);
+        final AtomicReference<FlushAgentSnapshot> holder = new AtomicReference<FlushAgentSnapshot>();
+
+        assertArrayEquals(new Agent[]{ hierarchical },
+                FlushAgentSnapshot.getAgents(agents, holder, new DispatcherFlushFilter()));
+        final FlushAgentSnapshot snapshot = holder.get();
+
+        // Reused until the agents change
+        FlushAgentSnapshot.getAgents(agents, holder, new DispatcherFlushFilter(FlushType.Hierarchical));
+        assertSame(snapshot, holder.get());
+
+        when(hierarchical.isEnabled()).thenReturn(false);
+        assertEquals(0, FlushAgentSnapshot.getAgents(agents, holder, new DispatcherFlushFilter()).length);
+        assertNotSame(snapshot, holder.get());
+
+        // Other filters are applied to each agent
+        final AgentFilter filter = mock(AgentFilter.class);
+        when(filter.isIncluded(publish)).thenReturn(true);
+        assertArrayEquals(new Agent[]{ publish }, FlushAgentSnapshot.getAgents(agents, holder, filter));
+    }
+}
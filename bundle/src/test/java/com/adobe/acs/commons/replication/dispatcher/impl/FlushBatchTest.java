@@ -0,0 +1,124 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.impl.AgentReplicationResult.PathResult;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationResult;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.adobe.acs.commons.replication.dispatcher.impl.FlushAgentFixtures.mockAgent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FlushBatchTest {
+
+    @Test
+    public void testGetFlushPath() throws Exception {
+        final HashSet<String> paths = new HashSet<String>(Arrays.asList("/content", "/content/site/en",
+                "/content/site/en/page", "/other/page"));
+
+        assertEquals("/content", FlushBatch.getFlushPath("/content/site/en/page", paths));
+        assertEquals("/content", FlushBatch.getFlushPath("/content", paths));
+        assertEquals("/other/page", FlushBatch.getFlushPath("/other/page", paths));
+
+        paths.add("/");
+        assertEquals("/", FlushBatch.getFlushPath("/other/page", paths));
+        assertEquals("/", FlushBatch.getFlushPath("/", paths));
+    }
+
+    @Test
+    public void testFlushPaths() throws Exception {
+        final Agent hierarchical = mockAgent("hierarchical", "CQ-Action:{action}", "CQ-Handle:{path}");
+        final Agent resourceOnly = mockAgent("resourceOnly", "CQ-Action:{action}", "CQ-Handle:{path}",
+                "CQ-Action-Scope: ResourceOnly");
+
+        final FlushBatch batch = new FlushBatch(new Agent[]{ hierarchical, resourceOnly },
+                Arrays.asList("/content/site/en/page", "/content/site", "/content/site/en/page", "", "/etc/a"));
+
+        assertEquals(Arrays.asList("/content/site/en/page", "/content/site", "/etc/a"),
+                Arrays.asList(batch.getPaths().toArray()));
+
+        // Hierarchical agents flush the ancestor only; other agents flush every distinct path
+        assertEquals(Arrays.asList("/content/site", "/etc/a"), batch.getFlushPaths(hierarchical));
+        assertEquals(Arrays.asList("/content/site/en/page", "/content/site", "/etc/a"),
+                batch.getFlushPaths(resourceOnly));
+
+        assertEquals(Arrays.asList(resourceOnly), batch.getAgents("/content/site/en/page"));
+        assertEquals(Arrays.asList(hierarchical, resourceOnly), batch.getAgents("/content/site"));
+        assertEquals(Arrays.asList("/content/site", "/content/site/en/page", "/etc/a"),
+                Arrays.asList(batch.getFlushPaths().toArray()));
+    }
+
+    @Test
+    public void testFlushPaths_planned() throws Exception {
+        final Agent hierarchical = mockAgent("hierarchical", "CQ-Action:{action}", "CQ-Handle:{path}");
+        final Agent other = mockAgent("other", "CQ-Action:{action}", "CQ-Handle:{path}");
+
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("prop.statfileslevels", new String[]{ "hierarchical=3" });
+
+        final FlushPlannerImpl planner = new FlushPlannerImpl();
+        planner.activate(properties);
+
+        final FlushBatch batch = new FlushBatch(new Agent[]{ hierarchical, other }, ReplicationActionType.ACTIVATE,
+                Arrays.asList("/content/site/en/a/b", "/content/site/fr", "/content/site/en/c"), planner);
+
+        assertEquals(Arrays.asList("/content/site/en/c", "/content/site/fr"), batch.getFlushPaths(hierarchical));
+        assertEquals(Arrays.asList("/content/site/en/a/b", "/content/site/fr", "/content/site/en/c"),
+                batch.getFlushPaths(other));
+    }
+
+    @Test
+    public void testGetResults() throws Exception {
+        final Agent hierarchical = mockAgent("hierarchical", "CQ-Action:{action}", "CQ-Handle:{path}");
+        final Agent resourceOnly = mockAgent("resourceOnly", "CQ-Action:{action}", "CQ-Handle:{path}",
+                "CQ-Action-Scope: ResourceOnly");
+
+        final FlushBatch batch = new FlushBatch(new Agent[]{ hierarchical, resourceOnly },
+                Arrays.asList("/content/site", "/content/site/page"));
+
+        final Map<Agent, ReplicationResult> agentResults = new LinkedHashMap<Agent, ReplicationResult>();
+        agentResults.put(hierarchical, new AgentReplicationResult(Arrays.asList(
+                new PathResult("/content/site", false, 503, "Service Unavailable", 10))));
+        agentResults.put(resourceOnly, new ReplicationResult(true, 0, "Flush requests submitted"));
+
+        final Map<String, Map<Agent, ReplicationResult>> results = batch.getResults(agentResults);
+        assertEquals(2, results.size());
+
+        // The collapsed path reports the result of its ancestor's flush
+        final ReplicationResult collapsed = results.get("/content/site/page").get(hierarchical);
+        assertFalse(collapsed.isSuccess());
+        assertEquals(503, collapsed.getCode());
+
+        assertTrue(results.get("/content/site/page").get(resourceOnly).isSuccess());
+        assertEquals(503, results.get("/content/site").get(hierarchical).getCode());
+    }
+}
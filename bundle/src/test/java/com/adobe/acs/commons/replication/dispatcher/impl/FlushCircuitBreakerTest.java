@@ -0,0 +1,254 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.adobe.acs.commons.replication.dispatcher.impl.FlushCircuitBreaker.State;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentFilter;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationQueue;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.adobe.acs.commons.replication.dispatcher.impl.FlushAgentFixtures.mockAgent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FlushCircuitBreakerTest {
+
+    private final List<String> flushes = new ArrayList<String>();
+
+    private boolean succeed = true;
+
+    private FlushCircuitBreaker breaker;
+
+    private final FlushCircuitBreaker.Handler handler = new FlushCircuitBreaker.Handler() {
+        @Override
+        public boolean flush(final String agentId, final AgentFilter agentFilter,
+                             final ReplicationActionType actionType, final String... paths) {
+            flushes.add(agentId + " " + actionType.name() + " " + Arrays.asList(paths));
+            return succeed;
+        }
+    };
+
+    @After
+    public void tearDown() throws Exception {
+        if (breaker != null) {
+            breaker.close();
+        }
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        breaker = new FlushCircuitBreaker(0.001, 2, 0, 0, 100, handler, "test");
+        final Agent agent = mockAgent("flush", "CQ-Action:{action}");
+        final Agent other = mockAgent("flush2", "CQ-Action:{action}");
+
+        assertTrue(breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE,
+                "/content/a"));
+        assertTrue(breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE,
+                "/content/b"));
+        assertFalse(breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE,
+                "/content/c"));
+
+        // Rate limits are per agent
+        assertTrue(breaker.tryAcquire(other, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE,
+                "/content/c"));
+
+        assertEquals(1, breaker.getParkedCount("flush"));
+        assertEquals(State.CLOSED, breaker.getState("flush"));
+
+        // No tokens to re-flush with yet
+        breaker.drain(false);
+        assertTrue(flushes.isEmpty());
+    }
+
+    @Test
+    public void testFailureThreshold() throws Exception {
+        breaker = new FlushCircuitBreaker(0, 1, 2, 0, 100, handler, "test");
+        final Agent agent = mockAgent("flush", "CQ-Action:{action}");
+
+        assertTrue(breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE,
+                "/content/a"));
+
+        breaker.recordResult("flush", false);
+        assertEquals(State.CLOSED, breaker.getState("flush"));
+        breaker.recordResult("flush", false);
+        assertEquals(State.OPEN, breaker.getState("flush"));
+
+        for (final String path : new String[]{ "/content/site/en/a", "/content/site", "/content/site/en/a",
+                "/content/other" }) {
+            assertFalse(breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL,
+                    ReplicationActionType.ACTIVATE, path));
+        }
+        assertFalse(breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.DELETE,
+                "/content/site/en/b"));
+
+        // Duplicates are parked once
+        assertEquals(4, breaker.getParkedCount("flush"));
+
+        breaker.drain(false);
+
+        // Parked paths are merged into a single, collapsed re-flush per action type
+        assertEquals(Arrays.asList("flush ACTIVATE [/content/site, /content/other]",
+                "flush DELETE [/content/site/en/b]"), flushes);
+        assertEquals(State.CLOSED, breaker.getState("flush"));
+        assertEquals(0, breaker.getParkedCount("flush"));
+    }
+
+    @Test
+    public void testResourceOnly_notCollapsed() throws Exception {
+        breaker = new FlushCircuitBreaker(0, 1, 1, 0, 100, handler, "test");
+        final Agent agent = mockAgent("flush", "CQ-Action:{action}", "CQ-Action-Scope: ResourceOnly");
+
+        breaker.tryAcquire(agent, DispatcherFlushFilter.RESOURCE_ONLY, ReplicationActionType.ACTIVATE, "/content/a");
+        breaker.recordResult("flush", false);
+
+        breaker.tryAcquire(agent, DispatcherFlushFilter.RESOURCE_ONLY, ReplicationActionType.ACTIVATE, "/content");
+        breaker.tryAcquire(agent, DispatcherFlushFilter.RESOURCE_ONLY, ReplicationActionType.ACTIVATE,
+                "/content/a");
+
+        breaker.drain(false);
+
+        assertEquals(Arrays.asList("flush ACTIVATE [/content, /content/a]"), flushes);
+    }
+
+    @Test
+    public void testOpenTime() throws Exception {
+        breaker = new FlushCircuitBreaker(0, 1, 1, 60000, 100, handler, "test");
+        final Agent agent = mockAgent("flush", "CQ-Action:{action}");
+
+        breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE, "/content/a");
+        breaker.recordResult("flush", false);
+        breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE, "/content/b");
+
+        breaker.drain(false);
+
+        assertTrue(flushes.isEmpty());
+        assertEquals(State.OPEN, breaker.getState("flush"));
+    }
+
+    @Test
+    public void testQueueBlocked() throws Exception {
+        breaker = new FlushCircuitBreaker(0, 1, 5, 0, 100, handler, "test");
+        final Agent agent = mockAgent("flush", "CQ-Action:{action}");
+        final ReplicationQueue queue = mock(ReplicationQueue.class);
+        when(agent.getQueue()).thenReturn(queue);
+
+        when(queue.isBlocked()).thenReturn(true);
+        assertFalse(breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE,
+                "/content/a"));
+        assertEquals(State.OPEN, breaker.getState("flush"));
+
+        // The circuit stays open while the queue is blocked
+        breaker.drain(false);
+        assertTrue(flushes.isEmpty());
+        assertEquals(State.OPEN, breaker.getState("flush"));
+
+        when(queue.isBlocked()).thenReturn(false);
+        breaker.drain(false);
+        assertEquals(Arrays.asList("flush ACTIVATE [/content/a]"), flushes);
+        assertEquals(State.CLOSED, breaker.getState("flush"));
+    }
+
+    @Test
+    public void testTrialFailure() throws Exception {
+        breaker = new FlushCircuitBreaker(0, 1, 1, 0, 100, handler, "test");
+        final Agent agent = mockAgent("flush", "CQ-Action:{action}");
+
+        breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE, "/content/a");
+        breaker.recordResult("flush", false);
+        breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE, "/content/b");
+
+        succeed = false;
+        breaker.drain(false);
+
+        assertEquals(1, flushes.size());
+        assertEquals(State.OPEN, breaker.getState("flush"));
+
+        // The failed re-flush is parked again for the next trial
+        assertEquals(1, breaker.getParkedCount("flush"));
+
+        succeed = true;
+        breaker.drain(false);
+
+        assertEquals(Arrays.asList("flush ACTIVATE [/content/b]", "flush ACTIVATE [/content/b]"), flushes);
+        assertEquals(State.CLOSED, breaker.getState("flush"));
+        assertEquals(0, breaker.getParkedCount("flush"));
+    }
+
+    @Test
+    public void testRateLimit_reflushFailure() throws Exception {
+        breaker = new FlushCircuitBreaker(0.001, 1, 0, 0, 100, handler, "test");
+        final Agent agent = mockAgent("flush", "CQ-Action:{action}");
+
+        assertTrue(breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE,
+                "/content/a"));
+        assertFalse(breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE,
+                "/content/b"));
+
+        succeed = false;
+        breaker.drain(true);
+
+        // The handler reported the re-flush failed without throwing; the path stays parked
+        assertEquals(Arrays.asList("flush ACTIVATE [/content/b]"), flushes);
+        assertEquals(1, breaker.getParkedCount("flush"));
+    }
+
+    @Test
+    public void testMaxParked() throws Exception {
+        breaker = new FlushCircuitBreaker(0, 1, 1, 60000, 2, handler, "test");
+        final Agent agent = mockAgent("flush", "CQ-Action:{action}");
+
+        breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE, "/content/a");
+        breaker.recordResult("flush", false);
+
+        for (int i = 0; i < 5; i++) {
+            breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE,
+                    "/content/" + i);
+        }
+
+        assertEquals(2, breaker.getParkedCount("flush"));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        breaker = new FlushCircuitBreaker(0, 1, 1, 60000, 100, handler, "test");
+        final Agent agent = mockAgent("flush", "CQ-Action:{action}");
+
+        breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE, "/content/a");
+        breaker.recordResult("flush", false);
+        breaker.tryAcquire(agent, DispatcherFlushFilter.HIERARCHICAL, ReplicationActionType.ACTIVATE, "/content/b");
+
+        // Parked flushes are re-flushed on close, even while the circuit is open
+        breaker.close();
+        breaker = null;
+
+        assertEquals(Arrays.asList("flush ACTIVATE [/content/b]"), flushes);
+    }
+}
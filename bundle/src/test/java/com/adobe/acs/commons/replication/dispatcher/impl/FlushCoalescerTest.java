@@ -0,0 +1,124 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
+import com.day.cq.replication.ReplicationActionType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlushCoalescerTest {
+    private final List<String> flushes = new ArrayList<String>();
+
+    private CountDownLatch latch = new CountDownLatch(1);
+
+    private FlushCoalescer coalescer;
+
+    @Before
+    public void setUp() throws Exception {
+        coalescer = new FlushCoalescer(60000, new FlushCoalescer.Handler() {
+            @Override
+            public void flush(final ReplicationActionType actionType, final FlushType flushType,
+                              final String... paths) {
+                synchronized (flushes) {
+                    flushes.add(actionType.name() + " " + flushType.name() + " " + Arrays.asList(paths));
+                }
+                latch.countDown();
+            }
+        }, "test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        coalescer.close();
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            coalescer.add(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/site/en");
+            coalescer.add(ReplicationActionType.ACTIVATE, FlushType.ResourceOnly, "/content/site/en/page-" + i);
+        }
+        coalescer.add(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/site/en/products");
+        coalescer.add(ReplicationActionType.ACTIVATE, FlushType.ResourceOnly, "/content/site/en/page-1");
+        coalescer.add(ReplicationActionType.DELETE, FlushType.Hierarchical, "/content/site/en/products");
+
+        coalescer.flush();
+
+        assertEquals(3, flushes.size());
+        assertEquals("ACTIVATE Hierarchical [/content/site/en]", flushes.get(0));
+        assertTrue(flushes.get(1).startsWith("ACTIVATE ResourceOnly [/content/site/en/page-0, "));
+        assertEquals(1000, flushes.get(1).split(",").length);
+        assertEquals("DELETE Hierarchical [/content/site/en/products]", flushes.get(2));
+
+        // Nothing pending
+        coalescer.flush();
+        assertEquals(3, flushes.size());
+    }
+
+    @Test
+    public void testFlush_AfterWindow() throws Exception {
+        coalescer.close();
+        coalescer = new FlushCoalescer(10, new FlushCoalescer.Handler() {
+            @Override
+            public void flush(final ReplicationActionType actionType, final FlushType flushType,
+                              final String... paths) {
+                latch.countDown();
+            }
+        }, "test");
+
+        assertTrue(coalescer.add(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/site"));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        coalescer.add(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/site");
+        coalescer.close();
+
+        assertEquals(1, flushes.size());
+        assertFalse(coalescer.add(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/site"));
+    }
+
+    @Test
+    public void testCollapse() throws Exception {
+        final List<String> collapsed = FlushCoalescer.collapse(new LinkedHashSet<String>(Arrays.asList(
+                "/content/site/en/page", "/content/site/en", "/content/site-b/en", "/content/site/enx",
+                "/content/site/en/page/child", "/etc/designs/site")));
+
+        assertEquals(Arrays.asList("/content/site/en", "/content/site-b/en", "/content/site/enx",
+                "/etc/designs/site"), collapsed);
+
+        assertEquals(Arrays.asList("/"), FlushCoalescer.collapse(new LinkedHashSet<String>(Arrays.asList(
+                "/content", "/"))));
+    }
+}
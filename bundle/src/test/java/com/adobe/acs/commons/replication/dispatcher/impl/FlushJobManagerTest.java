@@ -0,0 +1,193 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationResult;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FlushJobManagerTest {
+    private final DispatcherFlusher dispatcherFlusher = mock(DispatcherFlusher.class);
+
+    private final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+
+    private final ResourceResolver clonedResourceResolver = mock(ResourceResolver.class);
+
+    private final Agent agent = mock(Agent.class);
+
+    private final AtomicInteger concurrent = new AtomicInteger();
+
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    private final AtomicInteger maxChunkSize = new AtomicInteger();
+
+    private FlushJobManager flushJobManager;
+
+    @Before
+    public void setUp() throws Exception {
+        when(agent.getId()).thenReturn("flush");
+        when(resourceResolver.getUserID()).thenReturn("author");
+        when(resourceResolver.clone(anyMap())).thenReturn(clonedResourceResolver);
+
+        when(dispatcherFlusher.flush(any(ResourceResolver.class), any(ReplicationActionType.class), eq(true),
+                eq(DispatcherFlushFilter.HIERARCHICAL), anyCollection())).thenAnswer(
+                new Answer<Map<String, Map<Agent, ReplicationResult>>>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Map<String, Map<Agent, ReplicationResult>> answer(final InvocationOnMock invocation)
+                            throws Exception {
+                        final Collection<String> paths = (Collection<String>) invocation.getArguments()[4];
+                        final Map<String, Map<Agent, ReplicationResult>> results =
+                                new LinkedHashMap<String, Map<Agent, ReplicationResult>>();
+
+                        maxConcurrent.set(Math.max(maxConcurrent.get(), concurrent.incrementAndGet()));
+                        maxChunkSize.set(Math.max(maxChunkSize.get(), paths.size()));
+                        Thread.sleep(5);
+                        concurrent.decrementAndGet();
+
+                        for (final String path : paths) {
+                            if (path.endsWith("/error")) {
+                                throw new ReplicationException("Replication failed");
+                            }
+
+                            results.put(path, Collections.singletonMap(agent, new ReplicationResult(
+                                    !path.endsWith("/failure"), path.endsWith("/failure") ? 503 : 200, "Done")));
+                        }
+
+                        return results;
+                    }
+                });
+
+        flushJobManager = new FlushJobManager(dispatcherFlusher, 4, 2, 3, 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        flushJobManager.close();
+    }
+
+    private JSONObject toJSON(final FlushJob job) throws Exception {
+        final StringWriter stringWriter = new StringWriter();
+        job.write(new JSONWriter(stringWriter));
+        return new JSONObject(stringWriter.toString());
+    }
+
+    private void await(final FlushJob job) throws Exception {
+        for (int i = 0; i < 500 && !job.isDone(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(job.isDone());
+    }
+
+    @Test
+    public void testStart() throws Exception {
+        final String[] paths = new String[20];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "/content/page-" + i;
+        }
+        paths[3] = "/content/failure";
+        paths[7] = "/content/error";
+
+        final FlushJob job = flushJobManager.start(resourceResolver, ReplicationActionType.ACTIVATE, paths);
+        assertSame(job, flushJobManager.get(job.getId()));
+        assertEquals("author", job.getUserId());
+
+        await(job);
+
+        assertEquals(FlushJob.Status.ERROR, job.getStatus());
+        // Bounded by the workers per job
+        assertEquals(2, maxConcurrent.get());
+        verify(clonedResourceResolver, times(2)).close();
+
+        // Paths are flushed as batches of at most the chunk size
+        assertEquals(3, maxChunkSize.get());
+        verify(dispatcherFlusher, times(7)).flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE),
+                eq(true), eq(DispatcherFlushFilter.HIERARCHICAL), anyCollection());
+
+        final JSONObject json = toJSON(job);
+        assertEquals(20, json.getInt("total"));
+        assertEquals(20, json.getInt("completed"));
+        // The failed path, and the whole chunk whose flush threw
+        assertEquals(4, json.getInt("failed"));
+
+        final JSONArray pathStatuses = json.getJSONArray("paths");
+        assertEquals("/content/page-0", pathStatuses.getJSONObject(0).getString("path"));
+        assertEquals("COMPLETE", pathStatuses.getJSONObject(0).getString("status"));
+        assertEquals(200, pathStatuses.getJSONObject(0).getJSONObject("agents").getJSONObject("flush")
+                .getInt("code"));
+        assertEquals("ERROR", pathStatuses.getJSONObject(3).getString("status"));
+        assertEquals(503, pathStatuses.getJSONObject(3).getJSONObject("agents").getJSONObject("flush")
+                .getInt("code"));
+        for (int i = 6; i <= 8; i++) {
+            assertEquals("ERROR", pathStatuses.getJSONObject(i).getString("status"));
+            assertEquals("Replication failed", pathStatuses.getJSONObject(i).getString("message"));
+        }
+        assertEquals("COMPLETE", pathStatuses.getJSONObject(9).getString("status"));
+    }
+
+    @Test
+    public void testGet_Retained() throws Exception {
+        final FlushJob first = flushJobManager.start(resourceResolver, ReplicationActionType.ACTIVATE,
+                new String[]{ "/content/a" });
+        final FlushJob second = flushJobManager.start(resourceResolver, ReplicationActionType.ACTIVATE,
+                new String[]{ "/content/b" });
+        final FlushJob third = flushJobManager.start(resourceResolver, ReplicationActionType.DELETE,
+                new String[]{ "/content/c" });
+
+        await(third);
+
+        assertNull(flushJobManager.get(first.getId()));
+        assertSame(second, flushJobManager.get(second.getId()));
+        assertSame(third, flushJobManager.get(third.getId()));
+        assertNull(flushJobManager.get("unknown"));
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentFilter;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationResult;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FlushJournalImplTest {
+    private static final String PREFIX = "ACTIVATE\tHierarchical\t";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private DispatcherFlusher dispatcherFlusher;
+
+    @Mock
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @InjectMocks
+    private FlushJournalImpl flushJournal = new FlushJournalImpl();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(resourceResolverFactory.getAdministrativeResourceResolver(null)).thenReturn(mock(ResourceResolver.class));
+
+        directory = new File(folder.getRoot(), "journal");
+        flushJournal.open(directory, 4096);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        flushJournal.close();
+    }
+
+    @Test
+    public void testRecord() throws Exception {
+        flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a");
+        final long sequence = flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical,
+                "/content/b");
+        flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a");
+        flushJournal.record(ReplicationActionType.DELETE, FlushType.ResourceOnly, "/content/a");
+        assertEquals(FlushJournalImpl.NOT_JOURNALED, flushJournal.record(ReplicationActionType.ACTIVATE,
+                FlushType.Hierarchical, " "));
+        flushJournal.done(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/b", sequence);
+
+        assertEquals(Arrays.asList(PREFIX + "/content/a", "DELETE\tResourceOnly\t/content/a"),
+                flushJournal.getPending());
+
+        // Pending flushes survive reopening
+        flushJournal.close();
+        flushJournal.open(directory, 4096);
+
+        assertEquals(Arrays.asList(PREFIX + "/content/a", "DELETE\tResourceOnly\t/content/a"),
+                flushJournal.getPending());
+    }
+
+    @Test
+    public void testDone_hierarchical() throws Exception {
+        flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a");
+        flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a/b/c");
+        flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a-b");
+        flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.ResourceOnly, "/content/a/b");
+        final long sequence = flushJournal.record(ReplicationActionType.DELETE, FlushType.Hierarchical,
+                "/content/a/b");
+
+        flushJournal.done(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a", sequence);
+
+        assertEquals(Arrays.asList(PREFIX + "/content/a-b", "ACTIVATE\tResourceOnly\t/content/a/b",
+                "DELETE\tHierarchical\t/content/a/b"), flushJournal.getPending());
+
+        flushJournal.done(ReplicationActionType.ACTIVATE, FlushType.ResourceOnly, "/content", sequence);
+        flushJournal.done(ReplicationActionType.DELETE, FlushType.Hierarchical, "/", sequence);
+
+        assertEquals(Arrays.asList(PREFIX + "/content/a-b", "ACTIVATE\tResourceOnly\t/content/a/b"),
+                flushJournal.getPending());
+    }
+
+    @Test
+    public void testDone_recordedSince() throws Exception {
+        final long sequence = flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical,
+                "/content/a");
+
+        // Recorded again, and beneath it, while the first flush is in flight
+        flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/b");
+        flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a");
+        flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a/b");
+
+        // The first flush does not mark the flushes recorded since done
+        flushJournal.done(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a", sequence);
+        flushJournal.done(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/b", sequence);
+
+        assertEquals(Arrays.asList(PREFIX + "/content/a", PREFIX + "/content/a/b", PREFIX + "/content/b"),
+                flushJournal.getPending());
+
+        final long latest = flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical,
+                "/content/a");
+        flushJournal.done(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a", latest);
+
+        assertEquals(Collections.singletonList(PREFIX + "/content/b"), flushJournal.getPending());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        // Far more flushes than fit in the journal, of which every tenth stays pending
+        for (int i = 0; i < 2000; i++) {
+            final long sequence = flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical,
+                    "/content/page-" + i);
+
+            if (i % 10 != 0) {
+                flushJournal.done(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/page-" + i,
+                        sequence);
+            }
+        }
+
+        assertEquals(200, flushJournal.getPending().size());
+
+        flushJournal.close();
+        flushJournal.open(directory, 4096);
+
+        assertEquals(200, flushJournal.getPending().size());
+        assertTrue(flushJournal.getPending().contains(PREFIX + "/content/page-1990"));
+
+        // The journal files grow to stay at most half full of pending flushes, rather than to hold all flushes
+        for (final File file : directory.listFiles()) {
+            assertTrue(file.getName(), file.length() <= 8 * 4096);
+        }
+    }
+
+    @Test
+    public void testOpen_ignoresIncompleteFile() throws Exception {
+        flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a");
+        flushJournal.close();
+
+        // Opening compacted the journal into journal.1; corrupt journal.0 as if compacting into it was interrupted
+        final FileOutputStream out = new FileOutputStream(new File(directory, "journal.0"));
+        try {
+            final byte[] garbage = new byte[4096];
+            Arrays.fill(garbage, (byte) 1);
+            out.write(garbage);
+        } finally {
+            out.close();
+        }
+
+        flushJournal.open(directory, 4096);
+
+        assertEquals(Collections.singletonList(PREFIX + "/content/a"), flushJournal.getPending());
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        final Agent agent = mock(Agent.class);
+
+        when(dispatcherFlusher.flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE), eq(false),
+                any(AgentFilter.class), anyCollectionOf(String.class))).thenAnswer(
+                new Answer<Map<String, Map<Agent, ReplicationResult>>>() {
+                    @Override
+                    public Map<String, Map<Agent, ReplicationResult>> answer(final InvocationOnMock invocation)
+                            throws Throwable {
+                        final DispatcherFlushFilter filter = (DispatcherFlushFilter) invocation.getArguments()[3];
+                        final Map<String, Map<Agent, ReplicationResult>> results =
+                                new LinkedHashMap<String, Map<Agent, ReplicationResult>>();
+
+                        // Resource-only flushes fail
+                        for (final String path : (Collection<String>) invocation.getArguments()[4]) {
+                            results.put(path, Collections.singletonMap(agent, new ReplicationResult(
+                                    !FlushType.ResourceOnly.equals(filter.getFlushType()), 200, "OK")));
+                        }
+
+                        return results;
+                    }
+                });
+
+        when(dispatcherFlusher.getAgents(any(AgentFilter.class))).thenReturn(new Agent[]{ agent });
+
+        flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a/b");
+        flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.Hierarchical, "/content/a");
+        flushJournal.record(ReplicationActionType.ACTIVATE, FlushType.ResourceOnly, "/content/c");
+        flushJournal.close();
+
+        flushJournal.open(directory, 4096);
+        flushJournal.replay();
+
+        // Re-issued as a batch per flush type, not subject to the flush rules
+        verify(dispatcherFlusher, times(1)).flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE),
+                eq(false), any(DispatcherFlushRulesImpl.DispatcherFlushRulesFilter.class),
+                eq(Arrays.asList("/content/a", "/content/a/b")));
+        verify(dispatcherFlusher, times(1)).flush(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE),
+                eq(false), any(DispatcherFlushRulesImpl.DispatcherFlushRulesFilter.class),
+                eq(Arrays.asList("/content/c")));
+
+        assertEquals(Collections.singletonList("ACTIVATE\tResourceOnly\t/content/c"), flushJournal.getPending());
+    }
+
+    @Test
+    public void testIsDelivered() throws Exception {
+        final Agent agent = mock(Agent.class);
+        final Agent other = mock(Agent.class);
+        final Agent[] agents = new Agent[]{ agent, other };
+
+        final Map<Agent, ReplicationResult> results = new LinkedHashMap<Agent, ReplicationResult>();
+        results.put(agent, new ReplicationResult(true, 200, "OK"));
+
+        // Missing results, ex. of parked flushes, are not delivered
+        assertFalse(FlushJournalImpl.isDelivered(agents, results));
+        assertFalse(FlushJournalImpl.isDelivered(new Agent[0], results));
+        assertFalse(FlushJournalImpl.isDelivered(agents, Collections.<Agent, ReplicationResult>emptyMap()));
+
+        results.put(other, new SubmittedReplicationResult());
+        assertFalse(FlushJournalImpl.isDelivered(agents, results));
+
+        results.put(other, new ReplicationResult(false, 503, "Service Unavailable"));
+        assertFalse(FlushJournalImpl.isDelivered(agents, results));
+
+        results.put(other, new ReplicationResult(true, 0, "Queued"));
+        assertTrue(FlushJournalImpl.isDelivered(agents, results));
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationActionType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static com.adobe.acs.commons.replication.dispatcher.impl.FlushAgentFixtures.mockAgent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FlushPlannerImplTest {
+    private FlushPlannerImpl planner;
+
+    @Before
+    public void setUp() throws Exception {
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("prop.statfileslevels", new String[]{ "publish1=2", "publish2=0", "invalid=x" });
+
+        planner = new FlushPlannerImpl();
+        planner.activate(properties);
+    }
+
+    /**
+     * Gets the .stat files touched by flushing the path, independently of the planner.
+     */
+    private static Set<String> getTouchedStatFiles(final String path, final int level) {
+        final Set<String> statFiles = new HashSet<String>();
+        final String[] segments = path.substring(1).split("/");
+
+        String directory = "";
+        statFiles.add("/.stat");
+        for (int i = 0; i < segments.length && i < level; i++) {
+            directory += "/" + segments[i];
+            statFiles.add(directory + "/.stat");
+        }
+
+        return statFiles;
+    }
+
+    private static List<String> generatePaths(final Random random, final int count) {
+        final Set<String> paths = new LinkedHashSet<String>();
+
+        while (paths.size() < count) {
+            final StringBuilder path = new StringBuilder("/content");
+            final int depth = random.nextInt(6);
+
+            for (int i = 0; i < depth; i++) {
+                path.append('/').append((char) ('a' + random.nextInt(3)));
+            }
+
+            paths.add(path.toString());
+        }
+
+        return new ArrayList<String>(paths);
+    }
+
+    @Test
+    public void testGetDepth() throws Exception {
+        assertEquals(0, FlushPlannerImpl.getDepth("/"));
+        assertEquals(1, FlushPlannerImpl.getDepth("/content"));
+        assertEquals(3, FlushPlannerImpl.getDepth("/content/site/en"));
+        assertEquals(3, FlushPlannerImpl.getDepth("/content/site/en/"));
+    }
+
+    @Test
+    public void testGetInvalidationKey() throws Exception {
+        assertEquals("/*", FlushPlannerImpl.getInvalidationKey("/content/site/en", 0));
+        assertEquals("/content/*", FlushPlannerImpl.getInvalidationKey("/content/site/en", 1));
+        assertEquals("/content/site/*", FlushPlannerImpl.getInvalidationKey("/content/site/en", 2));
+        assertEquals("/content/site/en/*", FlushPlannerImpl.getInvalidationKey("/content/site/en", 3));
+        assertEquals("/content/site/en/*", FlushPlannerImpl.getInvalidationKey("/content/site/en/", 3));
+        assertEquals("/content/site/en", FlushPlannerImpl.getInvalidationKey("/content/site/en", 5));
+        assertEquals("/*", FlushPlannerImpl.getInvalidationKey("/", 0));
+        assertEquals("/", FlushPlannerImpl.getInvalidationKey("/", 1));
+    }
+
+    @Test
+    public void testPlan() throws Exception {
+        final Map<String, String> plan = FlushPlannerImpl.plan(Arrays.asList("/content/site/en/a/b/c",
+                "/content/site/en/a/d", "/content/site/fr", "/content/site/en", "/content/other/x"), 3);
+
+        // A path at the statfileslevel touches the same .stat files as the paths beneath it
+        assertEquals("/content/site/en", plan.get("/content/site/en/a/b/c"));
+        assertEquals("/content/site/en", plan.get("/content/site/en/a/d"));
+        assertEquals("/content/site/fr", plan.get("/content/site/fr"));
+        assertEquals("/content/site/en", plan.get("/content/site/en"));
+        assertEquals("/content/other/x", plan.get("/content/other/x"));
+    }
+
+    @Test
+    public void testPlan_GeneratedPaths() throws Exception {
+        final Random random = new Random(42);
+
+        for (int run = 0; run < 200; run++) {
+            final List<String> paths = generatePaths(random, 1 + random.nextInt(30));
+            final int level = random.nextInt(6);
+
+            final Map<String, String> plan = FlushPlannerImpl.plan(paths, level);
+
+            assertEquals(paths.size(), plan.size());
+
+            final Set<String> flushPaths = new HashSet<String>(plan.values());
+            assertTrue(paths.containsAll(flushPaths));
+
+            // Each path is flushed by a path touching the same .stat files
+            for (final String path : paths) {
+                final String flushPath = plan.get(path);
+
+                assertEquals(path + " @ " + level, getTouchedStatFiles(path, level),
+                        getTouchedStatFiles(flushPath, level));
+                assertTrue(FlushPlannerImpl.getDepth(flushPath) <= FlushPlannerImpl.getDepth(path));
+
+                if (FlushPlannerImpl.getDepth(path) < level) {
+                    assertEquals(path, flushPath);
+                } else {
+                    assertTrue(FlushPlannerImpl.getDepth(flushPath) >= level);
+                }
+            }
+
+            // No two flushed paths at or deeper than the statfileslevel touch the same .stat files
+            final List<String> distinct = new ArrayList<String>(flushPaths);
+            for (int i = 0; i < distinct.size(); i++) {
+                for (int j = i + 1; j < distinct.size(); j++) {
+                    if (FlushPlannerImpl.getDepth(distinct.get(i)) >= level
+                            && FlushPlannerImpl.getDepth(distinct.get(j)) >= level) {
+                        assertTrue(distinct.get(i) + ", " + distinct.get(j) + " @ " + level,
+                                !getTouchedStatFiles(distinct.get(i), level).equals(
+                                        getTouchedStatFiles(distinct.get(j), level)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPlan_Agents() throws Exception {
+        final List<String> paths = Arrays.asList("/content/site/en/a", "/content/site/en/b", "/content/other");
+
+        final Agent publish1 = mockAgent("publish1", "CQ-Action:{action}", "CQ-Handle:{path}");
+        final Map<String, String> plan = planner.plan(publish1, ReplicationActionType.ACTIVATE, paths);
+        assertEquals("/content/site/en/a", plan.get("/content/site/en/b"));
+        assertEquals("/content/other", plan.get("/content/other"));
+
+        final Agent publish2 = mockAgent("publish2", "CQ-Action:{action}", "CQ-Handle:{path}");
+        assertEquals(new HashSet<String>(Arrays.asList("/content/other")),
+                new HashSet<String>(planner.plan(publish2, ReplicationActionType.ACTIVATE, paths).values()));
+
+        // Delete flushes remove the cached files of each path
+        assertEquals(3, new HashSet<String>(planner.plan(publish1, ReplicationActionType.DELETE, paths)
+                .values()).size());
+
+        // Resource-only flushes touch no .stat files
+        final Agent resourceOnly = mockAgent("publish1", "CQ-Action:{action}", "CQ-Handle:{path}",
+                "CQ-Action-Scope: ResourceOnly");
+        assertEquals(3, new HashSet<String>(planner.plan(resourceOnly, ReplicationActionType.ACTIVATE, paths)
+                .values()).size());
+
+        // Agents without a statfileslevel
+        for (final String id : new String[]{ "publish3", "invalid" }) {
+            final Agent agent = mockAgent(id, "CQ-Action:{action}", "CQ-Handle:{path}");
+            assertEquals(3, new HashSet<String>(planner.plan(agent, ReplicationActionType.ACTIVATE, paths)
+                    .values()).size());
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentConfig;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FlushRewarmerTest {
+    private HttpServer server;
+
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    /* Counted down as requests are received */
+    private volatile CountDownLatch received;
+
+    /* Awaited before responding */
+    private volatile CountDownLatch release = new CountDownLatch(0);
+
+    private Agent agent;
+
+    private FlushRewarmer rewarmer;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+                received.countDown();
+
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+
+                final byte[] body = "<html/>".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        agent = mock(Agent.class);
+        when(agent.getId()).thenReturn("publish");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+
+        if (rewarmer != null) {
+            rewarmer.close();
+        }
+
+        server.stop(0);
+    }
+
+    private FlushRewarmer createRewarmer(final int maxPending, final String... selectors) {
+        final Map<String, String> baseUrls = new HashMap<String, String>();
+        baseUrls.put("publish", "http://localhost:" + server.getAddress().getPort() + "/");
+
+        return new FlushRewarmer(Arrays.asList(Pattern.compile("/content/site/.*"), Pattern.compile("/content/.*")),
+                selectors, new String[]{ "html", " " }, baseUrls, 1, 0, maxPending, 5000, "Test Re-warm");
+    }
+
+    @Test
+    public void testAdd() throws Exception {
+        rewarmer = createRewarmer(100, "mobile");
+        received = new CountDownLatch(2);
+
+        assertEquals(2, rewarmer.add(agent, "/content/site/en"));
+        assertEquals(0, rewarmer.add(agent, "/etc/designs/site"));
+
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("GET /content/site/en.html", "GET /content/site/en.mobile.html"), requests);
+    }
+
+    @Test
+    public void testAdd_priority() throws Exception {
+        rewarmer = createRewarmer(100);
+        received = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+
+        // Occupies the only thread until released
+        rewarmer.add(agent, "/content/site/blocking");
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+
+        received = new CountDownLatch(4);
+        rewarmer.add(agent, "/content/other/page");
+        rewarmer.add(agent, "/content/site/en/a/b");
+        rewarmer.add(agent, "/content/site/fr");
+        rewarmer.add(agent, "/content/site/en");
+
+        release.countDown();
+
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("GET /content/site/blocking.html", "GET /content/site/fr.html",
+                "GET /content/site/en.html", "GET /content/site/en/a/b.html", "GET /content/other/page.html"),
+                requests);
+    }
+
+    @Test
+    public void testAdd_pending() throws Exception {
+        rewarmer = createRewarmer(2);
+        received = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+
+        rewarmer.add(agent, "/content/site/blocking");
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+
+        assertEquals(1, rewarmer.add(agent, "/content/site/en"));
+        // Already pending
+        assertEquals(0, rewarmer.add(agent, "/content/site/en"));
+        // Too many pending
+        assertEquals(0, rewarmer.add(agent, "/content/site/fr"));
+        assertEquals(2, rewarmer.getPendingCount());
+
+        received = new CountDownLatch(1);
+        release.countDown();
+
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testGetBaseUrl() throws Exception {
+        rewarmer = createRewarmer(100);
+
+        final Agent other = mock(Agent.class);
+        final AgentConfig config = mock(AgentConfig.class);
+        when(other.getId()).thenReturn("other");
+        when(other.getConfiguration()).thenReturn(config);
+
+        when(config.getTransportURI()).thenReturn("http://dispatcher:8080/dispatcher/invalidate.cache");
+        assertEquals("http://dispatcher:8080", rewarmer.getBaseUrl(other));
+
+        when(config.getTransportURI()).thenReturn("https://dispatcher/dispatcher/invalidate.cache");
+        assertEquals("https://dispatcher", rewarmer.getBaseUrl(other));
+
+        when(config.getTransportURI()).thenReturn("not a url");
+        assertNull(rewarmer.getBaseUrl(other));
+
+        assertEquals("http://localhost:" + server.getAddress().getPort(), rewarmer.getBaseUrl(agent));
+    }
+}
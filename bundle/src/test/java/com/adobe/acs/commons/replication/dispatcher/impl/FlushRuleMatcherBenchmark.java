@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Compares matching a replicated path against each configured flush rule in turn, as DispatcherFlushRulesImpl
+ * previously did, with matching via the literal-prefix prefiltered FlushRuleMatcher.
+ *
+ * Run with: java -cp target/test-classes:&lt;test classpath&gt; org.openjdk.jmh.Main FlushRuleMatcherBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FlushRuleMatcherBenchmark {
+    @Param({ "10", "100", "1000" })
+    private int sites;
+
+    private Map<Pattern, String> hierarchicalFlushRules;
+
+    private Map<Pattern, String> resourceOnlyFlushRules;
+
+    private FlushRuleMatcher matcher;
+
+    private String[] paths;
+
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        this.hierarchicalFlushRules = new LinkedHashMap<Pattern, String>();
+        this.resourceOnlyFlushRules = new LinkedHashMap<Pattern, String>();
+
+        for (int i = 0; i < this.sites; i++) {
+            this.hierarchicalFlushRules.put(Pattern.compile("/content/site-" + i + "/.*"), "/content/site-" + i);
+            this.hierarchicalFlushRules.put(Pattern.compile("/etc/designs/site-" + i + "/.*"),
+                    "/content/site-" + i);
+            this.resourceOnlyFlushRules.put(Pattern.compile("/content/dam/site-" + i + "/.*\\.(png|jpg|gif)"),
+                    "/content/site-" + i + "/assets");
+        }
+
+        // A few rules with no literal prefix, which are always evaluated
+        this.hierarchicalFlushRules.put(Pattern.compile(".*/jcr:content/header"), "/content");
+        this.resourceOnlyFlushRules.put(Pattern.compile("(?i)/CONTENT/shared/.*"), "/content/shared");
+
+        this.matcher = new FlushRuleMatcher(this.hierarchicalFlushRules, this.resourceOnlyFlushRules);
+
+        this.paths = new String[64];
+        for (int i = 0; i < this.paths.length; i++) {
+            final int site = (i * 31) % this.sites;
+
+            switch (i % 4) {
+                case 0:
+                    this.paths[i] = "/content/site-" + site + "/en/products/page-" + i;
+                    break;
+                case 1:
+                    this.paths[i] = "/content/dam/site-" + site + "/images/image-" + i + ".png";
+                    break;
+                case 2:
+                    this.paths[i] = "/etc/designs/site-" + site + "/clientlibs";
+                    break;
+                default:
+                    this.paths[i] = "/content/unmapped/page-" + i;
+                    break;
+            }
+        }
+    }
+
+    private String nextPath() {
+        this.next = (this.next + 1) & (this.paths.length - 1);
+        return this.paths[this.next];
+    }
+
+    @Benchmark
+    public int loop() {
+        final String path = this.nextPath();
+        int matches = 0;
+
+        for (final Map.Entry<Pattern, String> entry : this.hierarchicalFlushRules.entrySet()) {
+            if (entry.getKey().matcher(path).matches()) {
+                matches++;
+            }
+        }
+
+        for (final Map.Entry<Pattern, String> entry : this.resourceOnlyFlushRules.entrySet()) {
+            if (entry.getKey().matcher(path).matches()) {
+                matches++;
+            }
+        }
+
+        return matches;
+    }
+
+    @Benchmark
+    public int matcher() {
+        return this.matcher.match(this.nextPath()).size();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
+import com.adobe.acs.commons.replication.dispatcher.impl.FlushRuleMatcher.FlushRule;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FlushRuleMatcherTest {
+
+    @Test
+    public void testGetLiteralPrefix() throws Exception {
+        assertEquals("/content/site/", FlushRuleMatcher.getLiteralPrefix(Pattern.compile("/content/site/.*")));
+        assertEquals("/content/site.", FlushRuleMatcher.getLiteralPrefix(Pattern.compile("^/content/site\\..*")));
+        assertEquals("/content/dam/", FlushRuleMatcher.getLiteralPrefix(Pattern.compile("/content/dam/[a-z]+")));
+        assertEquals("/content/sit", FlushRuleMatcher.getLiteralPrefix(Pattern.compile("/content/site?")));
+        assertEquals("/content/", FlushRuleMatcher.getLiteralPrefix(Pattern.compile("/content/(a|b)")));
+        assertEquals("", FlushRuleMatcher.getLiteralPrefix(Pattern.compile("/content/a|/etc/b")));
+        assertEquals("/content/", FlushRuleMatcher.getLiteralPrefix(Pattern.compile("/content/[|].*")));
+        assertEquals("", FlushRuleMatcher.getLiteralPrefix(Pattern.compile("/content/\\(|b")));
+        assertEquals("", FlushRuleMatcher.getLiteralPrefix(Pattern.compile("/content/\\Q(\\E|b")));
+        assertEquals("", FlushRuleMatcher.getLiteralPrefix(Pattern.compile("/content/.*", Pattern.CASE_INSENSITIVE)));
+        assertEquals("", FlushRuleMatcher.getLiteralPrefix(Pattern.compile(".*/jcr:content")));
+        assertEquals("/content/a", FlushRuleMatcher.getLiteralPrefix(Pattern.compile("/content/a\\d")));
+    }
+
+    @Test
+    public void testMatch() throws Exception {
+        final Map<Pattern, String> hierarchical = new LinkedHashMap<Pattern, String>();
+        hierarchical.put(Pattern.compile("/content/foo/.*"), "/content/foo");
+        hierarchical.put(Pattern.compile(".*/jcr:content"), "/content/any");
+        hierarchical.put(Pattern.compile("/content/bar/.*"), "/content/bar");
+
+        final Map<Pattern, String> resourceOnly = new LinkedHashMap<Pattern, String>();
+        resourceOnly.put(Pattern.compile("/content/foo/a/.*"), "/content/foo/a");
+        resourceOnly.put(Pattern.compile("/content/(foo|bar)/.*"), "/content/either");
+
+        final FlushRuleMatcher matcher = new FlushRuleMatcher(hierarchical, resourceOnly);
+        assertEquals(5, matcher.size());
+
+        final List<FlushRule> matches = matcher.match("/content/foo/a/jcr:content");
+
+        assertEquals(4, matches.size());
+        assertEquals("/content/foo", matches.get(0).getTarget());
+        assertEquals(FlushType.Hierarchical, matches.get(0).getFlushType());
+        assertEquals("/content/any", matches.get(1).getTarget());
+        assertEquals("/content/foo/a", matches.get(2).getTarget());
+        assertEquals(FlushType.ResourceOnly, matches.get(2).getFlushType());
+        assertEquals("/content/either", matches.get(3).getTarget());
+
+        assertEquals(3, matcher.match("/content/bar/jcr:content").size());
+        assertTrue(matcher.match("/content/bar").isEmpty());
+        assertEquals("/content/bar", matcher.match("/content/bar/page").get(0).getTarget());
+        assertTrue(matcher.match("/etc/foo").isEmpty());
+        assertTrue(matcher.match("/content/fo").isEmpty());
+    }
+
+    @Test
+    public void testMatch_AgreesWithRegex() throws Exception {
+        final Map<Pattern, String> hierarchical = new LinkedHashMap<Pattern, String>();
+        for (int i = 0; i < 50; i++) {
+            hierarchical.put(Pattern.compile("/content/site-" + i + "/.*"), "/content/site-" + i);
+            hierarchical.put(Pattern.compile("/content/dam/site-" + i + "/.*\\.(png|jpg)"), "/content/site-" + i);
+        }
+        hierarchical.put(Pattern.compile("/content/site-1\\d?/.*"), "/content/teens");
+        hierarchical.put(Pattern.compile("/etc/designs/.*"), "/content");
+
+        final FlushRuleMatcher matcher = new FlushRuleMatcher(hierarchical,
+                Collections.<Pattern, String>emptyMap());
+
+        final String[] paths = { "/content/site-1/en", "/content/site-12/en", "/content/site-49/a/b",
+                "/content/dam/site-3/x.png", "/content/dam/site-3/x.gif", "/etc/designs/site", "/content", "" };
+
+        for (final String path : paths) {
+            int expected = 0;
+            for (final Pattern pattern : hierarchical.keySet()) {
+                if (pattern.matcher(path).matches()) {
+                    expected++;
+                }
+            }
+
+            assertEquals(path, expected, matcher.match(path).size());
+        }
+    }
+
+    @Test
+    public void testMatch_GroupReferences() throws Exception {
+        final Map<Pattern, String> hierarchical = new LinkedHashMap<Pattern, String>();
+        hierarchical.put(Pattern.compile("/content/dam/brand/(.*)"), "/content/site/$1");
+        hierarchical.put(Pattern.compile("/content/dam/(\\w+)/(\\w+)/.*"), "/content/$1/$2, /content/$2/$1,/etc/\\$2");
+        hierarchical.put(Pattern.compile("/content/dam/brand/(a)?.*"), "/content/opt/$1");
+
+        final FlushRuleMatcher matcher = new FlushRuleMatcher(hierarchical,
+                Collections.<Pattern, String>emptyMap());
+
+        final List<FlushRule> matches = matcher.match("/content/dam/brand/en/logo.png");
+
+        assertEquals(5, matches.size());
+        assertEquals("/content/site/en/logo.png", matches.get(0).getTarget());
+        assertEquals("/content/brand/en", matches.get(1).getTarget());
+        assertEquals("/content/en/brand", matches.get(2).getTarget());
+        assertEquals("/etc/$2", matches.get(3).getTarget());
+        assertEquals("/content/opt", matches.get(4).getTarget());
+        assertEquals(FlushType.Hierarchical, matches.get(4).getFlushType());
+
+        assertEquals("/content/site", matcher.match("/content/dam/brand/").get(0).getTarget());
+    }
+
+    @Test
+    public void testMatch_LiteralTargetIsShared() throws Exception {
+        final Map<Pattern, String> hierarchical = new LinkedHashMap<Pattern, String>();
+        hierarchical.put(Pattern.compile("/content/(foo)/.*"), "/content/foo");
+
+        final FlushRuleMatcher matcher = new FlushRuleMatcher(hierarchical,
+                Collections.<Pattern, String>emptyMap());
+
+        assertSame(matcher.match("/content/foo/a").get(0), matcher.match("/content/foo/b").get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMatch_InvalidGroupReference() throws Exception {
+        final Map<Pattern, String> hierarchical = new LinkedHashMap<Pattern, String>();
+        hierarchical.put(Pattern.compile("/content/dam/(.*)"), "/content/site/$2");
+
+        new FlushRuleMatcher(hierarchical, Collections.<Pattern, String>emptyMap());
+    }
+
+    @Test
+    public void testMatch_NoRules() throws Exception {
+        final FlushRuleMatcher matcher = new FlushRuleMatcher(null, null);
+
+        assertEquals(0, matcher.size());
+        assertTrue(matcher.match("/content/foo").isEmpty());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.ReplicationActionType;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FlushTelemetryImplTest {
+
+    private FlushTelemetryImpl flushTelemetry;
+
+    @Before
+    public void setUp() throws Exception {
+        final Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("prop.events.capacity", 4);
+
+        final ComponentContext componentContext = mock(ComponentContext.class);
+        when(componentContext.getProperties()).thenReturn(properties);
+
+        flushTelemetry = new FlushTelemetryImpl();
+        flushTelemetry.activate(componentContext);
+    }
+
+    @Test
+    public void testAgentStats() throws Exception {
+        flushTelemetry.recordAgentFlush("flush", ReplicationActionType.ACTIVATE, "/content/a", 2000000L, true, 200);
+        flushTelemetry.recordAgentFlush("flush", ReplicationActionType.ACTIVATE, "/content/b", 4000000L, false, 503);
+        flushTelemetry.recordAgentFlush("flush", ReplicationActionType.ACTIVATE, "/content/c", -1, true, 0);
+        flushTelemetry.recordAgentFlush("flush2", ReplicationActionType.DELETE, "/content/a", 1000000L, true, 200);
+
+        final Map<String, FlushStats> stats = flushTelemetry.getAgentStats();
+        assertEquals(2, stats.size());
+
+        final FlushStats flush = stats.get("flush");
+        assertEquals(3, flush.getCount());
+        assertEquals(1, flush.getFailures());
+        // Unknown durations are counted, but not recorded as latencies
+        assertEquals(2, flush.getLatency().getCount());
+        assertTrue(flush.getPerMinute(flush.getSince() + 60000L) == 3d);
+
+        assertEquals(1, stats.get("flush2").getCount());
+        assertTrue(flushTelemetry.getRuleStats().isEmpty());
+    }
+
+    @Test
+    public void testRuleStats() throws Exception {
+        flushTelemetry.recordRuleFlush("/content/.*", ReplicationActionType.ACTIVATE, "/content/a", "/content/nav",
+                "flush", 1000000L, true);
+        flushTelemetry.recordRuleFlush("/content/.*", ReplicationActionType.ACTIVATE, "/content/b", "/content/nav",
+                null, -1, false);
+
+        final FlushStats stats = flushTelemetry.getRuleStats().get("/content/.*");
+        assertEquals(2, stats.getCount());
+        assertEquals(1, stats.getFailures());
+
+        final FlushEvent event = flushTelemetry.getRecentEvents().get(1);
+        assertEquals("/content/.*", event.getRule());
+        assertEquals("/content/a", event.getPath());
+        assertEquals("/content/nav", event.getTarget());
+        assertEquals("flush", event.getAgent());
+        assertEquals("ACTIVATE", event.getActionType());
+    }
+
+    @Test
+    public void testRecentEvents_wrapAround() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            flushTelemetry.recordAgentFlush("flush", ReplicationActionType.ACTIVATE, "/content/" + i, i, true, 200);
+        }
+
+        final List<FlushEvent> events = flushTelemetry.getRecentEvents();
+        assertEquals(4, events.size());
+
+        // Newest first
+        assertEquals("/content/9", events.get(0).getPath());
+        assertEquals("/content/6", events.get(3).getPath());
+        assertEquals(9, events.get(0).getSequence());
+        assertNull(events.get(0).getRule());
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        flushTelemetry.recordAgentFlush("flush", ReplicationActionType.ACTIVATE, "/content/a", 1000L, true, 200);
+        flushTelemetry.recordRuleFlush("/content/.*", ReplicationActionType.ACTIVATE, "/content/a", "/content/nav",
+                null, -1, true);
+
+        flushTelemetry.reset();
+
+        assertTrue(flushTelemetry.getAgentStats().isEmpty());
+        assertTrue(flushTelemetry.getRuleStats().isEmpty());
+        assertTrue(flushTelemetry.getRecentEvents().isEmpty());
+
+        flushTelemetry.recordAgentFlush("flush", ReplicationActionType.ACTIVATE, "/content/b", 1000L, true, 200);
+        assertEquals(1, flushTelemetry.getRecentEvents().size());
+        assertEquals("/content/b", flushTelemetry.getRecentEvents().get(0).getPath());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[8];
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+
+                    for (int i = 0; i < 1000; i++) {
+                        flushTelemetry.recordAgentFlush("flush", ReplicationActionType.ACTIVATE, "/content/" + i,
+                                i, true, 200);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(8000, flushTelemetry.getAgentStats().get("flush").getCount());
+        assertEquals(4, flushTelemetry.getRecentEvents().size());
+        assertEquals(7999, flushTelemetry.getRecentEvents().get(0).getSequence());
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.ObservationManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ReferenceIndexTest {
+    private ResourceResolver resourceResolver;
+
+    private ObservationManager observationManager;
+
+    private QueryBuilder queryBuilder;
+
+    private ReferenceIndex index;
+
+    private final List<Boolean> queriedHoldingLock = new ArrayList<Boolean>();
+
+    private Runnable whileQuerying;
+
+    @Before
+    public void setUp() throws Exception {
+        resourceResolver = mock(ResourceResolver.class);
+        observationManager = mock(ObservationManager.class);
+        queryBuilder = mock(QueryBuilder.class);
+
+        final Session session = mock(Session.class);
+        final Workspace workspace = mock(Workspace.class);
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+        when(session.getWorkspace()).thenReturn(workspace);
+        when(workspace.getObservationManager()).thenReturn(observationManager);
+
+        final Hit hit = mock(Hit.class);
+        when(hit.getPath()).thenReturn("/content/site/en/jcr:content/par/image");
+        mockProperty("/content/site/en/jcr:content/par/image", "fileReference", "/content/dam/site/logo.png");
+
+        final Query query = mock(Query.class);
+        final SearchResult result = mock(SearchResult.class);
+        when(queryBuilder.createQuery(any(PredicateGroup.class), any(Session.class))).thenReturn(query);
+        when(query.getResult()).thenReturn(result);
+        when(result.getHits()).thenAnswer(new Answer<List<Hit>>() {
+            @Override
+            public List<Hit> answer(final InvocationOnMock invocation) {
+                queriedHoldingLock.add(Thread.holdsLock(index));
+                if (whileQuerying != null) {
+                    whileQuerying.run();
+                }
+                return Arrays.asList(hit);
+            }
+        });
+
+        index = new ReferenceIndex(queryBuilder, new String[]{ "fileReference" });
+    }
+
+    private void mockProperty(final String nodePath, final String name, final Object value) {
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(name, value);
+
+        final Resource resource = mock(Resource.class);
+        when(resource.adaptTo(ValueMap.class)).thenReturn(new ValueMapDecorator(properties));
+        when(resourceResolver.getResource(nodePath)).thenReturn(resource);
+    }
+
+    private static Event mockEvent(final int type, final String path) throws Exception {
+        final Event event = mock(Event.class);
+        when(event.getType()).thenReturn(type);
+        when(event.getPath()).thenReturn(path);
+        return event;
+    }
+
+    private static EventIterator mockEvents(final Event... events) {
+        final Iterator<Event> iterator = Arrays.asList(events).iterator();
+        final EventIterator eventIterator = mock(EventIterator.class);
+
+        when(eventIterator.hasNext()).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) {
+                return iterator.hasNext();
+            }
+        });
+        when(eventIterator.nextEvent()).thenAnswer(new Answer<Event>() {
+            @Override
+            public Event answer(final InvocationOnMock invocation) {
+                return iterator.next();
+            }
+        });
+
+        return eventIterator;
+    }
+
+    private static Set<String> set(final String... values) {
+        return new TreeSet<String>(Arrays.asList(values));
+    }
+
+    @Test
+    public void testGetPagePath() throws Exception {
+        assertEquals("/content/site/en", ReferenceIndex.getPagePath("/content/site/en/jcr:content/fileReference"));
+        assertEquals("/content/site/en",
+                ReferenceIndex.getPagePath("/content/site/en/jcr:content/par/image/fileReference"));
+        assertEquals("/content/site/en/image", ReferenceIndex.getPagePath("/content/site/en/image/fileReference"));
+    }
+
+    @Test
+    public void testOpen() throws Exception {
+        assertFalse(index.isBuilt());
+        assertTrue(index.getReferencingPages("/content/dam/site/logo.png").isEmpty());
+
+        index.open(resourceResolver, new String[]{ "/content", " " });
+
+        assertEquals(Arrays.asList(false), queriedHoldingLock);
+        assertTrue(index.isBuilt());
+        assertEquals(1, index.size());
+        assertEquals(set("/content/site/en"), index.getReferencingPages("/content/dam/site/logo.png"));
+        verify(observationManager).addEventListener(eq(index), anyInt(), eq("/content"), anyBoolean(),
+                any(String[].class), any(String[].class), anyBoolean());
+
+        index.close();
+
+        assertFalse(index.isBuilt());
+        verify(observationManager).removeEventListener(index);
+
+        // Closed indexes are not reopened
+        index.open(resourceResolver, new String[]{ "/content" });
+        assertFalse(index.isBuilt());
+    }
+
+    @Test
+    public void testOpen_EventsWhileBuilding() throws Exception {
+        whileQuerying = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // The discovered reference is removed after the query read it
+                    mockProperty("/content/site/en/jcr:content/par/image", "fileReference", null);
+                    index.onEvent(mockEvents(mockEvent(Event.PROPERTY_REMOVED,
+                            "/content/site/en/jcr:content/par/image/fileReference")));
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        };
+
+        index.open(resourceResolver, new String[]{ "/content" });
+
+        assertTrue(index.isBuilt());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testOpen_Closed() throws Exception {
+        whileQuerying = new Runnable() {
+            @Override
+            public void run() {
+                index.close();
+            }
+        };
+
+        index.open(resourceResolver, new String[]{ "/content", "/content/dam" });
+
+        assertFalse(index.isBuilt());
+        assertEquals(0, index.size());
+        assertEquals(1, queriedHoldingLock.size());
+    }
+
+    @Test
+    public void testGetReferencingPages() throws Exception {
+        index.open(resourceResolver, new String[]{ "/content" });
+
+        index.update("/content/site/fr/jcr:content/par/image/fileReference",
+                new String[]{ "/content/dam/site/logo.png", "/content/dam/site/hero.png", "relative.png" });
+        index.update("/content/site/de/jcr:content/fileReference", new String[]{ "/content/dam/site-other/a.png" });
+
+        assertEquals(set("/content/site/en", "/content/site/fr"),
+                index.getReferencingPages("/content/dam/site/logo.png"));
+        assertEquals(set("/content/site/en", "/content/site/fr"), index.getReferencingPages("/content/dam/site"));
+        assertEquals(set("/content/site/en", "/content/site/fr", "/content/site/de"),
+                index.getReferencingPages("/content/dam"));
+        assertEquals(set("/content/site/en", "/content/site/fr", "/content/site/de"),
+                index.getReferencingPages("/"));
+        assertTrue(index.getReferencingPages("relative.png").isEmpty());
+        assertTrue(index.getReferencingPages("/content/dam/site/logo").isEmpty());
+
+        // Changed references replace the previous references
+        index.update("/content/site/fr/jcr:content/par/image/fileReference",
+                new String[]{ "/content/dam/site/hero.png" });
+        assertEquals(set("/content/site/en"), index.getReferencingPages("/content/dam/site/logo.png"));
+
+        index.remove("/content/site/fr");
+        assertTrue(index.getReferencingPages("/content/dam/site/hero.png").isEmpty());
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testOnEvent() throws Exception {
+        index.open(resourceResolver, new String[]{ "/content" });
+
+        mockProperty("/content/site/fr/jcr:content/image", "fileReference", "/content/dam/site/logo.png");
+
+        index.onEvent(mockEvents(
+                mockEvent(Event.PROPERTY_ADDED, "/content/site/fr/jcr:content/image/fileReference"),
+                mockEvent(Event.PROPERTY_CHANGED, "/content/site/fr/jcr:content/image/jcr:title"),
+                mockEvent(Event.PROPERTY_REMOVED, "/content/site/en/jcr:content/par/image/fileReference")));
+
+        assertEquals(set("/content/site/fr"), index.getReferencingPages("/content/dam/site/logo.png"));
+
+        // Moved pages are rediscovered at their destination
+        final Event moved = mockEvent(Event.NODE_MOVED, "/content/site/en");
+        when(moved.getInfo()).thenReturn(Collections.singletonMap("srcAbsPath", "/content/site/fr"));
+
+        queriedHoldingLock.clear();
+        index.onEvent(mockEvents(moved));
+
+        assertEquals(set("/content/site/en"), index.getReferencingPages("/content/dam/site/logo.png"));
+
+        // Lookups are not blocked while the moved tree is rediscovered
+        assertEquals(Arrays.asList(false), queriedHoldingLock);
+
+        index.onEvent(mockEvents(mockEvent(Event.NODE_REMOVED, "/content/site/en")));
+
+        assertTrue(index.getReferencingPages("/content/dam/site/logo.png").isEmpty());
+        assertEquals(0, index.size());
+    }
+}
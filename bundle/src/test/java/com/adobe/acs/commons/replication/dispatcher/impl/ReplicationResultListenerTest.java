@@ -0,0 +1,221 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.impl.AgentReplicationResult.PathResult;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationResult;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+public class ReplicationResultListenerTest {
+
+    @Test
+    public void testGetResults() throws Exception {
+        final ReplicationResultListener listener = new ReplicationResultListener();
+        final Agent agent = mock(Agent.class);
+        final Agent other = mock(Agent.class);
+
+        final ReplicationAction a = new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/a");
+        final ReplicationAction b = new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/b");
+        final ReplicationAction c = new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/c");
+
+        listener.onStart(agent, a);
+        listener.onEnd(agent, a, new ReplicationResult(true, 200, "OK"));
+        listener.onStart(agent, b);
+        listener.onError(agent, b, new Exception("Connection refused"));
+        listener.onEnd(agent, b, new ReplicationResult(true, 200, "OK"));
+        listener.onEnd(agent, c, new ReplicationResult(true, 200, "OK"));
+        listener.onEnd(other, a, new ReplicationResult(true, 200, "OK"));
+
+        final Map<Agent, ReplicationResult> results = listener.getResults();
+        assertEquals(2, results.size());
+
+        // A later successful path does not hide an earlier failure
+        final AgentReplicationResult result = (AgentReplicationResult) results.get(agent);
+        assertFalse(result.isSuccess());
+        assertEquals(3, result.getPathResults().size());
+        assertEquals(1, result.getFailures().size());
+        assertEquals("/content/b", result.getFailures().get(0).getPath());
+        assertEquals("Connection refused", result.getFailures().get(0).getMessage());
+        assertTrue(result.getFailures().get(0).getDuration() >= 0);
+
+        assertTrue(results.get(other).isSuccess());
+        assertEquals(200, results.get(other).getCode());
+    }
+
+    @Test
+    public void testGetResults_order() throws Exception {
+        final ReplicationResultListener listener = new ReplicationResultListener();
+        final Agent first = mock(Agent.class);
+        final Agent second = mock(Agent.class);
+
+        for (int i = 0; i < 50; i++) {
+            final ReplicationAction action = new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/" + i);
+            listener.onEnd(second, action, new ReplicationResult(i % 10 != 9, i % 10 != 9 ? 200 : 500 + i, ""));
+        }
+        listener.onEnd(first, new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/0"),
+                new ReplicationResult(true, 200, "OK"));
+        listener.onEnd(second, new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/0"),
+                new ReplicationResult(true, 201, "OK"));
+
+        // Agents and paths are in the order their first result arrived in, regardless of hashing
+        final Map<Agent, ReplicationResult> results = listener.getResults();
+        assertEquals(Arrays.asList(second, first), new ArrayList<Agent>(results.keySet()));
+
+        final AgentReplicationResult result = (AgentReplicationResult) results.get(second);
+        for (int i = 0; i < 50; i++) {
+            assertEquals("/content/" + i, result.getPathResults().get(i).getPath());
+        }
+        assertEquals(509, result.getCode());
+        assertEquals("/content/9", result.getFailures().get(0).getPath());
+    }
+
+    @Test
+    public void testConcurrentResults() throws Exception {
+        final ReplicationResultListener listener = new ReplicationResultListener();
+        final Agent agent = mock(Agent.class);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+
+                    for (int i = 0; i < 500; i++) {
+                        final ReplicationAction action = new ReplicationAction(ReplicationActionType.ACTIVATE,
+                                "/content/" + offset + "/" + i);
+                        listener.onStart(agent, action);
+                        listener.onEnd(agent, action, new ReplicationResult(i != 250, i != 250 ? 200 : 503, ""));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        final AgentReplicationResult result = (AgentReplicationResult) listener.getResults().get(agent);
+        assertEquals(4000, result.getPathResults().size());
+        assertEquals(8, result.getFailures().size());
+        assertEquals(503, result.getCode());
+    }
+
+    @Test
+    public void testPutUnlessFailed() throws Exception {
+        final PathResult success = new PathResult("/content/a", true, 200, "OK", 1);
+        final PathResult later = new PathResult("/content/a", true, 200, "OK", 2);
+        final PathResult failure = new PathResult("/content/a", false, 0, "Connection refused", 1);
+
+        @SuppressWarnings("serial")
+        final ConcurrentMap<String, PathResult> byPath = new ConcurrentHashMap<String, PathResult>() {
+            private boolean raced = false;
+
+            @Override
+            public boolean replace(final String key, final PathResult oldValue, final PathResult newValue) {
+                if (!raced) {
+                    // An error is reported between reading and replacing the previous result
+                    raced = true;
+                    this.put(key, failure);
+                }
+                return super.replace(key, oldValue, newValue);
+            }
+        };
+
+        assertTrue(ReplicationResultListener.putUnlessFailed(byPath, "/content/a", success));
+        assertSame(success, byPath.get("/content/a"));
+
+        assertFalse(ReplicationResultListener.putUnlessFailed(byPath, "/content/a", later));
+        assertSame(failure, byPath.get("/content/a"));
+    }
+
+    @Test
+    public void testTelemetry() throws Exception {
+        final FlushTelemetry flushTelemetry = mock(FlushTelemetry.class);
+        final ReplicationResultListener listener = new ReplicationResultListener(flushTelemetry);
+        final Agent agent = mock(Agent.class);
+        when(agent.getId()).thenReturn("flush");
+
+        final ReplicationAction a = new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/a");
+        final ReplicationAction b = new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/b");
+
+        listener.onStart(agent, a);
+        listener.onEnd(agent, a, new ReplicationResult(true, 200, "OK"));
+        listener.onStart(agent, b);
+        listener.onError(agent, b, new Exception("Connection refused"));
+        listener.onEnd(agent, b, new ReplicationResult(true, 200, "OK"));
+
+        verify(flushTelemetry).recordAgentFlush(eq("flush"), eq(ReplicationActionType.ACTIVATE), eq("/content/a"),
+                anyLong(), eq(true), eq(200));
+        // The failure is recorded once; the later end of the same path is ignored
+        verify(flushTelemetry).recordAgentFlush(eq("flush"), eq(ReplicationActionType.ACTIVATE), eq("/content/b"),
+                anyLong(), eq(false), eq(0));
+        verifyNoMoreInteractions(flushTelemetry);
+    }
+
+    @Test
+    public void testRewarm() throws Exception {
+        final FlushRewarmer flushRewarmer = mock(FlushRewarmer.class);
+        final ReplicationResultListener listener = new ReplicationResultListener(null, flushRewarmer);
+        final Agent agent = mock(Agent.class);
+
+        final ReplicationAction a = new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/a");
+        final ReplicationAction b = new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/b");
+        final ReplicationAction c = new ReplicationAction(ReplicationActionType.DELETE, "/content/c");
+
+        listener.onEnd(agent, a, new ReplicationResult(true, 200, "OK"));
+        listener.onEnd(agent, b, new ReplicationResult(false, 500, "Error"));
+        listener.onEnd(agent, c, new ReplicationResult(true, 200, "OK"));
+
+        verify(flushRewarmer).add(agent, "/content/a");
+        verify(flushRewarmer, never()).add(agent, "/content/b");
+        verify(flushRewarmer, never()).add(agent, "/content/c");
+    }
+}
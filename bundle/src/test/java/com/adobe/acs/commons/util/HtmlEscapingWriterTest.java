@@ -0,0 +1,52 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.util;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+
+public class HtmlEscapingWriterTest {
+    @Test
+    public void testWriteString() throws Exception {
+        final StringWriter stringWriter = new StringWriter();
+        final Writer writer = new HtmlEscapingWriter(stringWriter);
+
+        writer.write("<a href=\"x\">Tom & Jerry's</a>");
+        writer.flush();
+
+        assertEquals("&lt;a href=&quot;x&quot;&gt;Tom &amp; Jerry&#39;s&lt;/a&gt;", stringWriter.toString());
+    }
+
+    @Test
+    public void testWriteChars() throws Exception {
+        final StringWriter stringWriter = new StringWriter();
+        final Writer writer = new HtmlEscapingWriter(stringWriter);
+
+        writer.write("x<y>z".toCharArray(), 1, 3);
+        writer.write('&');
+        writer.write('a');
+
+        assertEquals("&lt;y&gt;&amp;a", stringWriter.toString());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.util.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testIndex() throws Exception {
+        for (long value = 0; value < 1000000; value += 7) {
+            final long highest = LatencyHistogram.highestEquivalentValue(LatencyHistogram.index(value));
+
+            assertTrue(highest >= value);
+            assertTrue(highest - value <= value / 16);
+        }
+
+        assertEquals(LatencyHistogram.index(Long.MAX_VALUE),
+                LatencyHistogram.index(LatencyHistogram.highestEquivalentValue(LatencyHistogram.index(Long.MAX_VALUE))));
+    }
+
+    @Test
+    public void testGetPercentile() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertWithin(500000, histogram.getPercentile(50));
+        assertWithin(950000, histogram.getPercentile(95));
+        assertWithin(990000, histogram.getPercentile(99));
+        assertWithin(1000000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getPercentile(99));
+
+        histogram.record(10);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+    }
+
+    private static void assertWithin(final long expected, final long actual) {
+        assertTrue(actual + " is not within 1/16 of " + expected,
+                actual >= expected && actual - expected <= expected / 16);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * #%L
+ * ACS AEM Commons Package
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+/*
+ * Issues the dispatcher flush as a background job, and polls the job's progress until it is done.
+ */
+;$(function() {
+    var POLL_INTERVAL = 1000;
+
+    $('#dispatcher-flush form').submit(function() {
+        var $form = $(this),
+            $button = $form.find('.button'),
+            $progress = $('#dispatcher-flush .progress'),
+            url = $form.data('job-url');
+
+        var render = function(job) {
+            var $paths = $('<ul/>');
+
+            $.each(job.paths, function(index, path) {
+                $('<li/>').text(path.path + ': ' + path.status + (path.message ? ' (' + path.message + ')' : ''))
+                    .appendTo($paths);
+            });
+
+            $progress.empty()
+                .append($('<p/>').text('Flushed ' + job.completed + ' of ' + job.total + ' paths; '
+                    + job.failed + ' failed. Status: ' + job.status))
+                .append($paths);
+
+            if (job.failed > 0 && (job.status === 'COMPLETE' || job.status === 'ERROR')) {
+                $progress.append($('<p/>').text('Please review your Dispatcher Flush Agent logs to ensure all '
+                    + 'replication requests were successfully processed.'));
+            }
+        };
+
+        var fail = function() {
+            $progress.empty().append($('<p/>').text('An error occurred during replication. Possible issues include '
+                + 'invalid flush paths or lack of active dispatcher flush agents.'));
+            $button.prop('disabled', false);
+        };
+
+        var poll = function(id) {
+            $.getJSON(url, { job: id }).done(function(job) {
+                render(job);
+
+                if (job.status === 'COMPLETE' || job.status === 'ERROR') {
+                    $button.prop('disabled', false);
+                } else {
+                    setTimeout(function() { poll(id); }, POLL_INTERVAL);
+                }
+            }).fail(fail);
+        };
+
+        $button.prop('disabled', true);
+        $progress.show().empty().append($('<p/>').text('Starting dispatcher flush...'));
+
+        $.post(url, { job: true }, null, 'json').done(function(data) {
+            poll(data.id);
+        }).fail(fail);
+
+        return false;
+    });
+});
@@ -40,12 +40,19 @@
     boolean hasPaths = paths.length > 0;
 %>
 
+<cq:includeClientLib js="acs-commons.utilities.dispatcher-flush"/>
+
+<div id="dispatcher-flush">
 <% if(hasActionType && hasPaths && hasAgents) { %>
-<form action="<%= resource.getPath() %>.flush.html" method="post">
+<form action="<%= resource.getPath() %>.flush.html" method="post"
+      data-job-url="<%= resource.getPath() %>.flush.json">
     <input class="button" type="submit" value="Flush Paths on Dispatchers"/>
 </form>
 <% } %>
 
+<div class="progress call-out" style="display: none;"></div>
+</div>
+
 <h3>Flush Action</h3>
 <ul>
     <% if(StringUtils.equals("ACTIVATE", actionType)) { %>
@@ -23,14 +23,18 @@
 ErrorPageHandlerService errorPageHandlerService = sling.getService(ErrorPageHandlerService.class);
 
 if(errorPageHandlerService != null && errorPageHandlerService.isEnabled()) {
+    // Serve a minimal 404 to clients or content roots producing 404s at an abnormal rate
+    if(errorPageHandlerService.doHandle404Storm(slingRequest, slingResponse)) {
+        return;
+    }
+
     // Check for and handle 404 Requests properly according on Author/Publish 
     errorPageHandlerService.doHandle404(slingRequest, slingResponse);
 
     final String path = errorPageHandlerService.findErrorPage(slingRequest, resource);
 
     if(path != null) {
-        slingResponse.setStatus(404);
-        sling.include(path);
+        errorPageHandlerService.includeErrorPage(slingRequest, slingResponse, path, 404);
         return;
     }
 }
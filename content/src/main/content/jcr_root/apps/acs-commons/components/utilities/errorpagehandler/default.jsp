@@ -21,8 +21,7 @@
 %><%@page session="false"
         import="org.apache.sling.api.SlingHttpServletResponse,
                 com.adobe.acs.commons.wcm.ComponentHelper,
-                com.adobe.acs.commons.errorpagehandler.ErrorPageHandlerService"%>
-<%
+                com.adobe.acs.commons.errorpagehandler.ErrorPageHandlerService"%><%
 final ErrorPageHandlerService errorPageHandlerService = sling.getService(ErrorPageHandlerService.class);
 
 if(errorPageHandlerService != null && errorPageHandlerService.isEnabled()) {
@@ -45,7 +44,7 @@ if(errorPageHandlerService != null && errorPageHandlerService.isEnabled()) {
 
         if(path != null) {
             errorPageHandlerService.resetRequestAndResponse(slingRequest, slingResponse, status);
-            sling.include(path);
+            errorPageHandlerService.includeErrorPage(slingRequest, slingResponse, path, status);
             return;
         }
     }
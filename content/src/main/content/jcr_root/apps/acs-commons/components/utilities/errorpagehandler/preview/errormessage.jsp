@@ -20,7 +20,7 @@
 <%@include file="/libs/foundation/global.jsp" %><%
 %><%@page session="false" contentType="text/html; charset=UTF-8" pageEncoding="UTF-8"
           import="com.adobe.acs.commons.errorpagehandler.ErrorPageHandlerService,
-                org.apache.commons.lang.StringEscapeUtils,
+                com.adobe.acs.commons.util.HtmlEscapingWriter,
                 javax.servlet.http.HttpServletResponse" %><%
 
     final ErrorPageHandlerService errorPageHandlerService = sling.getService(ErrorPageHandlerService.class);
@@ -28,8 +28,6 @@
         return;
     }
 
-    final String stackTrace = StringEscapeUtils.escapeHtml(errorPageHandlerService.getException(slingRequest));
-    final String requestProgress = StringEscapeUtils.escapeHtml(errorPageHandlerService.getRequestProgress(slingRequest));
     final String path = errorPageHandlerService.findErrorPage(slingRequest, resource);
 
     final String erroringTitle = currentPage == null ? resource.getName() : currentPage.getTitle();
@@ -84,7 +82,7 @@
                role="button"
                data-collapse-text="Collapse error message"
                data-expand-text="Expand error message">Expand error message</a>
-            <pre><%= stackTrace %></pre>
+            <pre><% errorPageHandlerService.writeException(slingRequest, new HtmlEscapingWriter(out)); %></pre>
         </div>
 
         <div class="section collapsed" id="request-progress">
@@ -94,7 +92,7 @@
                role="button"
                data-collapse-text="Collapse request progress"
                data-expand-text="Expand request progress">Expand request progress</a>
-            <pre><%= requestProgress %></pre>
+            <pre><% errorPageHandlerService.writeRequestProgress(slingRequest, new HtmlEscapingWriter(out)); %></pre>
         </div>
     </div>
 </div>